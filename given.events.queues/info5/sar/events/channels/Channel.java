@@ -16,6 +16,8 @@
  */
 package info5.sar.events.channels;
 
+import java.util.Arrays;
+
 import info5.sar.channels.DisconnectedException;
 
 /**
@@ -63,6 +65,18 @@ public abstract class Channel {
 	   * @param bytes : the read bytes
 	   */
 	  public void read(byte[] bytes);
+
+	  /**
+	   * Defines the behavior when bytes have been read, in the array given to
+	   * {@link Channel#read(byte[], int, int, ReadListener) read()}, without copying them.<br>
+	   * By default, calls {@link #read(byte[])} with a copy of the read bytes.
+	   * @param bytes : the array given to read()
+	   * @param offset : the index of the first read byte
+	   * @param length : the number of read bytes
+	   */
+	  public default void read(byte[] bytes, int offset, int length) {
+		  read(Arrays.copyOfRange(bytes, offset, offset + length));
+	  }
   }
 
   /**
@@ -107,6 +121,36 @@ public abstract class Channel {
    */
   public abstract void write(byte[] bytes, int offset, int length, WriteListener listener) throws DisconnectedException;
 
+  /**
+   * Listener for Channel
+   * Allows to define the behavior when a splice ends.
+   */
+  public interface SpliceListener {
+	  /**
+	   * Defines the behavior when a splice ends, both Channels being disconnected.
+	   * @param src : the Channel the bytes were read from
+	   * @param dst : the Channel the bytes were written to
+	   * @param transferred : the number of bytes forwarded
+	   */
+	  public void spliced(Channel src, Channel dst, long transferred);
+  }
+
+  /**
+   * Forwards all the bytes received by this Channel to the given Channel, until either is
+   * disconnected, which disconnects the other. The bytes are moved by the event pump straight
+   * from one Channel to the other, as many as the given Channel has room for.<br>
+   * The bytes already received but not read yet are forwarded too, this Channel must not
+   * be read anymore, and the given Channel should not be written, or the bytes are interleaved.<br>
+   * This is a thread-safe non-blocking method.
+   *
+   * @param dst : the Channel to forward the bytes to
+   * @param listener : the listener to call when finished, may be null
+   * @throws IllegalArgumentException if the bytes cannot be moved to the given Channel.
+   * @throws IllegalStateException if this Channel is already spliced or has pending reads.
+   * @throws DisconnectedException if either Channel is disconnected.
+   */
+  public abstract void splice(Channel dst, SpliceListener listener) throws DisconnectedException;
+
   /**
    * Thread-safe disconnects this Channel, unblocking any thread 
    * blocked read or write operation.
@@ -16,6 +16,12 @@
  */
 package info5.sar.events.queues.events;
 
+import java.io.InputStream;
+import java.util.List;
+
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.PooledBuffer;
+
 /**
  * MessageQueue are there to permit to send and receive byte arrays called messages.<br>
  * <br>
@@ -25,6 +31,56 @@ package info5.sar.events.queues.events;
  */
 public abstract class MessageQueue {
 
+	/**
+	 * Default maximum size of a single frame on the wire. Messages larger than
+	 * this are sent as a sequence of frames.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+	/**
+	 * Suggested compression threshold, below which compressing a frame costs
+	 * more than sending it as is.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+	/**
+	 * Compression threshold disabling compression, the default.
+	 */
+	public static final int NO_COMPRESSION = -1;
+
+	/**
+	 * Default maximum number of messages delivered in a single batch to a {@link BatchListener}.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+	/**
+	 * Default number of bytes queued for sending above which send() refuses new messages.
+	 */
+	public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+	/**
+	 * Default number of bytes queued for sending below which the listener is told
+	 * it can send again.
+	 */
+	public static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+
+	/**
+	 * Inbound limit disabling the automatic pause of reading, the default.
+	 */
+	public static final int NO_INBOUND_LIMIT = 0;
+
+	/**
+	 * Priority of the regular messages.
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/**
+	 * Priority of the urgent messages, such as control messages. Their frames
+	 * are sent before the pending frames of normal messages, even in the middle
+	 * of a large message.
+	 */
+	public static final int PRIORITY_URGENT = 1;
+
 	/**
 	 * @return The parent QueueBroker
 	 */
@@ -51,6 +107,90 @@ public abstract class MessageQueue {
 		 * Defines the behavior when the communication is closed.
 		 */
 		void closed();
+
+		/**
+		 * Defines the behavior when a message can be sent again, once a send() was refused
+		 * and the bytes queued for sending dropped to the {@link MessageQueue#getLowWatermark() low watermark}.
+		 * Does nothing by default.
+		 */
+		default void writable() {
+		}
+	}
+
+	/**
+	 * Listener for MessageQueue receiving large messages as a stream of chunks.<br>
+	 * When the listener given to {@link MessageQueue#setListener(Listener) setListener()}
+	 * is a StreamListener, a message sent as several frames is delivered frame by frame
+	 * through {@link #receivedChunk(byte[], boolean)} instead of being reassembled,
+	 * so it is never held in memory as a whole.
+	 * A message sent as a single frame, or with the urgent priority, is still delivered
+	 * through received().
+	 */
+	public interface StreamListener extends Listener {
+		/**
+		 * Defines the behavior when a chunk of a large message is received.
+		 * Chunks of a message are delivered in order.
+		 * @param chunk : the received chunk, may be empty
+		 * @param last : true if this is the last chunk of the message
+		 */
+		void receivedChunk(byte[] chunk, boolean last);
+	}
+
+	/**
+	 * Listener for MessageQueue receiving the messages in batches.<br>
+	 * When the listener given to {@link MessageQueue#setListener(Listener) setListener()}
+	 * is a BatchListener, the messages are delivered through {@link #received(List)},
+	 * a batch holding the messages received in order, at most {@link MessageQueue#getMaxBatchSize()}.
+	 * A batch is delivered once the bytes already received by the channel are decoded, or
+	 * earlier once its first message has waited {@link MessageQueue#getMaxBatchDelay()}
+	 * microseconds while more bytes were coming, so a consumer can amortize its work
+	 * per message without delaying the last messages of a burst.
+	 */
+	public interface BatchListener extends Listener {
+		/**
+		 * Defines the behavior when a batch of messages is received.
+		 * The list is reused once this method returns, it must be copied to be kept.
+		 * @param batch : the received messages, at least one, in order
+		 */
+		void received(List<byte[]> batch);
+
+		/**
+		 * Delivers a single message as a batch, not called by the MessageQueue.
+		 */
+		@Override
+		default void received(byte[] msg) {
+			received(List.of(msg));
+		}
+	}
+
+	/**
+	 * Listener for MessageQueue receiving the messages in pooled buffers.<br>
+	 * When the listener given to {@link MessageQueue#setListener(Listener) setListener()}
+	 * is a BufferListener, and not a BatchListener, each whole message is delivered through
+	 * {@link #received(PooledBuffer)} in the buffer it was read or reassembled in, instead of
+	 * being copied in a new array. The chunks delivered to a StreamListener are still arrays.
+	 */
+	public interface BufferListener extends Listener {
+		/**
+		 * Defines the behavior when a message is received.
+		 * The buffer is released by the MessageQueue once this method returns,
+		 * it must be {@link PooledBuffer#retain() retained} to be kept.
+		 * @param msg : the received message, its bytes in use from index 0
+		 */
+		void received(PooledBuffer msg);
+
+		/**
+		 * Delivers a message held in an array in a pooled buffer, not called by the MessageQueue.
+		 */
+		@Override
+		default void received(byte[] msg) {
+			PooledBuffer buffer = BufferPool.DEFAULT.copyOf(msg, 0, msg.length);
+			try {
+				received(buffer);
+			} finally {
+				buffer.release();
+			}
+		}
 	}
 
 	/**
@@ -63,11 +203,189 @@ public abstract class MessageQueue {
 
 	/**
 	 * This method avoids any ownership issue on the array so the array can be changed at the return of this method().
-	 * This is a thread-safe non-blocking FIFO method.
+	 * This is a thread-safe non-blocking FIFO method, sending the message with the {@link #PRIORITY_NORMAL normal} priority.
 	 * @param bytes : the message to send
 	 * @return True if the message is successfully queued for sending
 	 */
-	public abstract boolean send(byte[] bytes);
+	public boolean send(byte[] bytes) {
+		return send(bytes, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a message in the lane of the given priority.<br>
+	 * Large messages are sent as several frames, and the frames of an urgent message
+	 * are sent before the pending frames of normal messages, so an urgent message is not
+	 * delayed by a large transfer. Messages of the same priority are received in the
+	 * order they were sent, messages of different priorities may be received out of order.<br>
+	 * If the legacy frame format was agreed on with the peer, the lanes only switch between messages.<br>
+	 * This method avoids any ownership issue on the array so the array can be changed at the return of this method().
+	 * This is a thread-safe non-blocking method, FIFO per priority.
+	 * @param bytes : the message to send
+	 * @param priority : {@link #PRIORITY_NORMAL} or {@link #PRIORITY_URGENT}
+	 * @return True if the message is successfully queued for sending, false if it is refused
+	 *         because of the {@link #setWatermarks(int, int) high watermark}
+	 * @throws IllegalArgumentException if the priority is not valid
+	 */
+	public abstract boolean send(byte[] bytes, int priority);
+
+	/**
+	 * Sends a message in the lane of the given priority, like {@link #send(byte[], int) send()},
+	 * but without copying the array: the array must not be changed at the return of this method.<br>
+	 * This allows the same immutable message to be sent on several MessageQueues, such as when
+	 * fanning it out to many subscribers.<br>
+	 * This is a thread-safe non-blocking method, FIFO per priority.
+	 * @param bytes : the message to send, not changed afterwards
+	 * @param priority : {@link #PRIORITY_NORMAL} or {@link #PRIORITY_URGENT}
+	 * @return True if the message is successfully queued for sending, false if it is refused
+	 *         because of the {@link #setWatermarks(int, int) high watermark}
+	 * @throws IllegalArgumentException if the priority is not valid
+	 */
+	public abstract boolean sendShared(byte[] bytes, int priority);
+
+	/**
+	 * Returns the number of messages queued for sending by this MessageQueue, including streams,
+	 * that are not fully written to the channel yet. This allows a producer to bound the
+	 * messages it queues for a slow peer.
+	 * @return The number of messages not fully written yet
+	 */
+	public abstract int pendingMessages();
+
+	/**
+	 * Sends the whole content of the given stream as a single message.<br>
+	 * The stream is read by the event pump one frame of at most {@link #getMaxFrameSize()}
+	 * bytes at a time, each frame being read once the previous one is written,
+	 * so the stream should not block for long.
+	 * The stream is sent with the {@link #PRIORITY_NORMAL normal} priority, normal messages
+	 * sent after this call are queued until the stream is fully sent.<br>
+	 * The stream is closed once fully sent. If reading it fails, this MessageQueue is closed.<br>
+	 * The stream is read as it is sent, its bytes are not counted against the watermarks.<br>
+	 * This is a thread-safe non-blocking FIFO method.
+	 * @param in : the stream to send
+	 * @return True if the stream is successfully queued for sending
+	 */
+	public abstract boolean sendStream(InputStream in);
+
+	/**
+	 * Sets the maximum size of a single frame, for both sending and receiving.
+	 * Receiving a frame announcing a larger size closes the connection instead of
+	 * allocating it, so both ends should use the same maximum size.
+	 * @param size : the maximum size of a frame in bytes, at least 1
+	 * @throws IllegalArgumentException if the size is not strictly positive
+	 */
+	public abstract void setMaxFrameSize(int size);
+
+	/**
+	 * @return The maximum size of a single frame in bytes
+	 */
+	public abstract int getMaxFrameSize();
+
+	/**
+	 * Enables the transparent compression of the frames sent on this MessageQueue.
+	 * Frames of at least 'size' bytes are compressed, unless compressing them does
+	 * not make them smaller. The receiver decompresses them before delivering the
+	 * message.<br>
+	 * Compression is only used if the peer announced it supports it when the
+	 * connection was established, and is disabled by default.
+	 * @param size : the minimum size of a compressed frame in bytes,
+	 *               or {@link #NO_COMPRESSION} to disable compression
+	 */
+	public abstract void setCompressionThreshold(int size);
+
+	/**
+	 * @return The minimum size of a compressed frame in bytes,
+	 *         or {@link #NO_COMPRESSION} if compression is disabled
+	 */
+	public abstract int getCompressionThreshold();
+
+	/**
+	 * Sets the limits of the batches delivered to a {@link BatchListener}.
+	 * @param size : the maximum number of messages in a batch, at least 1
+	 * @param delay : the maximum time in microseconds a message waits for the next ones
+	 *                while more bytes are received, 0 to deliver at once what is received
+	 * @throws IllegalArgumentException if the size is not strictly positive or the delay is negative
+	 */
+	public abstract void setBatchLimits(int size, long delay);
+
+	/**
+	 * @return The maximum number of messages in a batch
+	 */
+	public abstract int getMaxBatchSize();
+
+	/**
+	 * @return The maximum time in microseconds a message waits for the next ones
+	 */
+	public abstract long getMaxBatchDelay();
+
+	/**
+	 * Sets the watermarks bounding the bytes queued for sending by this MessageQueue.<br>
+	 * A message is refused, send() returning false, when it would bring the bytes queued
+	 * above the high watermark, unless nothing is queued. Once a message was refused, the
+	 * {@link Listener#writable()} method of the listener is called when the bytes queued
+	 * drop to the low watermark.
+	 * @param low : the low watermark in bytes
+	 * @param high : the high watermark in bytes, Integer.MAX_VALUE to never refuse a message
+	 * @throws IllegalArgumentException if the low watermark is negative or above the high watermark
+	 */
+	public abstract void setWatermarks(int low, int high);
+
+	/**
+	 * @return The number of bytes queued for sending below which the listener is told it can send again
+	 */
+	public abstract int getLowWatermark();
+
+	/**
+	 * @return The number of bytes queued for sending above which messages are refused
+	 */
+	public abstract int getHighWatermark();
+
+	/**
+	 * @return False once a message was refused, until the bytes queued for sending drop to the low watermark
+	 */
+	public abstract boolean isWritable();
+
+	/**
+	 * Stops delivering the received messages, and stops reading the channel once the bytes
+	 * already read are decoded, so the peer's writes stop once the channel is full.
+	 * A message being delivered when this method is called is the last one delivered.<br>
+	 * This is a thread-safe non-blocking method.
+	 */
+	public abstract void pauseReading();
+
+	/**
+	 * Resumes the delivery of the received messages and the reading of the channel,
+	 * from where {@link #pauseReading()} stopped them.<br>
+	 * This is a thread-safe non-blocking method.
+	 */
+	public abstract void resumeReading();
+
+	/**
+	 * @return True if reading is paused, by {@link #pauseReading()} or by the {@link #setInboundLimit(int) inbound limit}
+	 */
+	public abstract boolean isReadingPaused();
+
+	/**
+	 * Bounds the number of messages delivered to the listener and not consumed yet.<br>
+	 * Once this number of messages were delivered, reading is paused until the listener
+	 * tells with {@link #consumed(int)} that it is done with some of them, so a listener
+	 * queuing the messages it cannot process at once holds a bounded number of them.
+	 * Messages delivered as chunks to a {@link StreamListener} count once, with their last chunk.
+	 * @param limit : the maximum number of messages not consumed, or {@link #NO_INBOUND_LIMIT}
+	 * @throws IllegalArgumentException if the limit is negative
+	 */
+	public abstract void setInboundLimit(int limit);
+
+	/**
+	 * @return The maximum number of messages not consumed, or {@link #NO_INBOUND_LIMIT}
+	 */
+	public abstract int getInboundLimit();
+
+	/**
+	 * Tells that the listener is done with delivered messages, resuming reading if the
+	 * {@link #setInboundLimit(int) inbound limit} paused it.<br>
+	 * This is a thread-safe non-blocking method.
+	 * @param count : the number of messages consumed
+	 */
+	public abstract void consumed(int count);
 
 	/**
 	 * Thread-safe closes this MessageQueue, unblocking any thread 
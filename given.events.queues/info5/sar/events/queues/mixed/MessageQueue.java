@@ -16,6 +16,11 @@
  */
 package info5.sar.events.queues.mixed;
 
+import java.util.List;
+
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.PooledBuffer;
+
 /**
  * MessageQueue are there to permit to send and receive byte arrays called messages.<br>
  * <br>
@@ -25,6 +30,34 @@ package info5.sar.events.queues.mixed;
  */
 public abstract class MessageQueue {
 
+	/**
+	 * Default maximum number of messages delivered in a single batch to a {@link BatchListener}.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+	/**
+	 * Default number of bytes queued for sending above which send() refuses new messages.
+	 */
+	public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+	/**
+	 * Default number of bytes queued for sending below which the listener is told
+	 * it can send again.
+	 */
+	public static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+
+	/**
+	 * Priority of the regular messages.
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/**
+	 * Priority of the urgent messages, such as control messages. Their frames
+	 * are sent before the pending frames of normal messages, even in the middle
+	 * of a large message.
+	 */
+	public static final int PRIORITY_URGENT = 1;
+
 	/**
 	 * @return The parent QueueBroker
 	 */
@@ -51,6 +84,69 @@ public abstract class MessageQueue {
 		 * Defines the behavior when the communication is closed.
 		 */
 		void closed();
+
+		/**
+		 * Defines the behavior when a message can be sent again, once a send() was refused
+		 * and the bytes queued for sending dropped to the {@link MessageQueue#getLowWatermark() low watermark}.
+		 * Does nothing by default.
+		 */
+		default void writable() {
+		}
+	}
+
+	/**
+	 * Listener for MessageQueue receiving the messages in batches.<br>
+	 * When the listener given to {@link MessageQueue#setListener(Listener) setListener()}
+	 * is a BatchListener, the messages are delivered through {@link #received(List)},
+	 * a batch holding the messages received in order while the executor was busy,
+	 * at most {@link MessageQueue#getMaxBatchSize()}. No message is held back waiting for
+	 * the next ones, the latency of a batch being the one of the executor.
+	 */
+	public interface BatchListener extends Listener {
+		/**
+		 * Defines the behavior when a batch of messages is received.
+		 * The list is reused once this method returns, it must be copied to be kept.
+		 * @param batch : the received messages, at least one, in order
+		 */
+		void received(List<byte[]> batch);
+
+		/**
+		 * Delivers a single message as a batch, not called by the MessageQueue.
+		 */
+		@Override
+		default void received(byte[] msg) {
+			received(List.of(msg));
+		}
+	}
+
+	/**
+	 * Listener for MessageQueue receiving the messages in pooled buffers.<br>
+	 * When the listener given to {@link MessageQueue#setListener(Listener) setListener()}
+	 * is a BufferListener, and not a BatchListener, each message is delivered through
+	 * {@link #received(PooledBuffer)} in the buffer it was read or reassembled in, instead of
+	 * being copied in a new array.
+	 */
+	public interface BufferListener extends Listener {
+		/**
+		 * Defines the behavior when a message is received.
+		 * The buffer is released by the MessageQueue once this method returns,
+		 * it must be {@link PooledBuffer#retain() retained} to be kept.
+		 * @param msg : the received message, its bytes in use from index 0
+		 */
+		void received(PooledBuffer msg);
+
+		/**
+		 * Delivers a message held in an array in a pooled buffer, not called by the MessageQueue.
+		 */
+		@Override
+		default void received(byte[] msg) {
+			PooledBuffer buffer = BufferPool.DEFAULT.copyOf(msg, 0, msg.length);
+			try {
+				received(buffer);
+			} finally {
+				buffer.release();
+			}
+		}
 	}
 
 	/**
@@ -63,11 +159,69 @@ public abstract class MessageQueue {
 
 	/**
 	 * This method avoids any ownership issue on the array so the array can be changed at the return of this method().
-	 * This is a thread-safe non-blocking FIFO method.
+	 * This is a thread-safe non-blocking FIFO method, sending the message with the {@link #PRIORITY_NORMAL normal} priority.
 	 * @param bytes : the message to send
 	 * @return True if the message is successfully queued for sending
 	 */
-	public abstract boolean send(byte[] bytes);
+	public boolean send(byte[] bytes) {
+		return send(bytes, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Sends a message in the lane of the given priority.<br>
+	 * Large messages are sent as several frames, and the frames of an urgent message
+	 * are sent before the pending frames of normal messages, so an urgent message is not
+	 * delayed by a large transfer. Messages of the same priority are received in the
+	 * order they were sent, messages of different priorities may be received out of order.<br>
+	 * If the legacy frame format was agreed on with the peer, the lanes only switch between messages.<br>
+	 * This method avoids any ownership issue on the array so the array can be changed at the return of this method().
+	 * This is a thread-safe non-blocking method, FIFO per priority.
+	 * @param bytes : the message to send
+	 * @param priority : {@link #PRIORITY_NORMAL} or {@link #PRIORITY_URGENT}
+	 * @return True if the message is successfully queued for sending, false if it is refused
+	 *         because of the {@link #setWatermarks(int, int) high watermark}
+	 * @throws IllegalArgumentException if the priority is not valid
+	 */
+	public abstract boolean send(byte[] bytes, int priority);
+
+	/**
+	 * Sets the maximum number of messages in a batch delivered to a {@link BatchListener}.
+	 * @param size : the maximum number of messages, at least 1
+	 * @throws IllegalArgumentException if the size is not strictly positive
+	 */
+	public abstract void setMaxBatchSize(int size);
+
+	/**
+	 * @return The maximum number of messages in a batch
+	 */
+	public abstract int getMaxBatchSize();
+
+	/**
+	 * Sets the watermarks bounding the bytes queued for sending by this MessageQueue.<br>
+	 * A message is refused, send() returning false, when it would bring the bytes queued
+	 * above the high watermark, unless nothing is queued. Once a message was refused, the
+	 * {@link Listener#writable()} method of the listener is called when the bytes queued
+	 * drop to the low watermark.
+	 * @param low : the low watermark in bytes
+	 * @param high : the high watermark in bytes, Integer.MAX_VALUE to never refuse a message
+	 * @throws IllegalArgumentException if the low watermark is negative or above the high watermark
+	 */
+	public abstract void setWatermarks(int low, int high);
+
+	/**
+	 * @return The number of bytes queued for sending below which the listener is told it can send again
+	 */
+	public abstract int getLowWatermark();
+
+	/**
+	 * @return The number of bytes queued for sending above which messages are refused
+	 */
+	public abstract int getHighWatermark();
+
+	/**
+	 * @return False once a message was refused, until the bytes queued for sending drop to the low watermark
+	 */
+	public abstract boolean isWritable();
 
 	/**
 	 * Thread-safe closes this MessageQueue, unblocking any thread 
@@ -0,0 +1,374 @@
+package info5.sar.events.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.events.queues.mixed.MessageQueue;
+import info5.sar.events.queues.mixed.QueueBroker;
+import info5.sar.queues.ClosedException;
+import info5.sar.utils.Executor;
+import info5.sar.utils.Panic;
+
+/**
+ * This benchmark measures how the three queue stacks scale with the number of
+ * concurrent connections, each client echoing messages with the server.
+ *
+ * - threads: the blocking queues, a task with a small stack per connection on each side.
+ * - mixed: the blocking channels served by the shared I/O workers.
+ * - events: the event channels and queues, on a single event pump.
+ *
+ * All the connections are opened before the clients start sending, so they
+ * are all held at the same time. For each stack, the benchmark reports the
+ * time to open them and to echo the messages, and the peak number of threads.
+ *
+ * The brokers of each stack are created by reflection from the class names
+ * below, as with {@link Test}.
+ *
+ * You can control the benchmark via arguments given when launching:
+ *
+ *   -nconnections: the number of concurrent connections.
+ *   -nmessages: the number of messages echoed on each connection.
+ *   -msize: the size of the messages.
+ *   -stacks: the stacks to run, separated by commas, all by default.
+ */
+public class ScaleBench {
+
+  private static final String NCONNECTIONS_OPTION = "-nconnections:";
+  private static final String NMESSAGES_OPTION = "-nmessages:";
+  private static final String MSIZE_OPTION = "-msize:";
+  private static final String STACKS_OPTION = "-stacks:";
+  private static final int PORT = 80;
+  private static final long TIMEOUT = 120;
+
+  private static int nconnections = 2000;
+  private static int nmessages = 20;
+  private static int msize = 64;
+  private static String stacks[] = { "threads", "mixed", "events" };
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static String MixedQueueBrokerClassName = "info5.sar.mixed.queues.CQueueBroker";
+  private static String EventBrokerClassName = "info5.sar.events.queues.CBroker";
+  private static String EventQueueBrokerClassName = "info5.sar.events.queues.CQueueBroker";
+
+  private static ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private static int run;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(NCONNECTIONS_OPTION))
+        nconnections = Integer.valueOf(arg.substring(NCONNECTIONS_OPTION.length()));
+      if (arg.startsWith(NMESSAGES_OPTION))
+        nmessages = Integer.valueOf(arg.substring(NMESSAGES_OPTION.length()));
+      if (arg.startsWith(MSIZE_OPTION))
+        msize = Integer.valueOf(arg.substring(MSIZE_OPTION.length()));
+      if (arg.startsWith(STACKS_OPTION))
+        stacks = arg.substring(STACKS_OPTION.length()).split(",");
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("  nconnections=" + nconnections);
+    System.out.println("  nmessages=" + nmessages);
+    System.out.println("  msize=" + msize);
+    System.out.println("  stacks=" + String.join(",", stacks));
+    System.out.println("--------------------------------------\n");
+
+    System.out.println(String.format("%8s %12s %12s %14s %8s", "stack", "connect ms", "echo ms", "messages/s", "threads"));
+    for (String stack : stacks) {
+      Result result;
+      switch (stack) {
+      case "threads":
+        result = runThreads();
+        break;
+      case "mixed":
+        result = runMixed();
+        break;
+      case "events":
+        result = runEvents();
+        break;
+      default:
+        throw new IllegalArgumentException("ScaleBench : Illegal stack " + stack);
+      }
+      double rate = (double) nconnections * nmessages / (result.echo / 1e9);
+      System.out.println(String.format("%8s %12d %12d %14.0f %8d", stack, result.connect / 1000000,
+          result.echo / 1000000, rate, result.threads));
+    }
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  static class Result {
+    long connect;
+    long echo;
+    int threads;
+  }
+
+  private static info5.sar.queues.QueueBroker newQueueBroker(String name) throws Exception {
+    Broker cb = (Broker) Class.forName(ChannelBrokerClassName).getConstructor(String.class).newInstance(name);
+    return (info5.sar.queues.QueueBroker) Class.forName(QueueBrokerClassName).getConstructor(Broker.class)
+        .newInstance(cb);
+  }
+
+  private static QueueBroker newMixedQueueBroker(Executor pump, String name) throws Exception {
+    Broker cb = (Broker) Class.forName(ChannelBrokerClassName).getConstructor(String.class).newInstance(name);
+    return (QueueBroker) Class.forName(MixedQueueBrokerClassName).getConstructor(Executor.class, Broker.class)
+        .newInstance(pump, cb);
+  }
+
+  private static info5.sar.events.queues.events.QueueBroker newEventQueueBroker(Executor pump, String name)
+      throws Exception {
+    info5.sar.events.channels.Broker cb = (info5.sar.events.channels.Broker) Class.forName(EventBrokerClassName)
+        .getConstructor(String.class, Executor.class).newInstance(name, pump);
+    return (info5.sar.events.queues.events.QueueBroker) Class.forName(EventQueueBrokerClassName)
+        .getConstructor(Executor.class, info5.sar.events.channels.Broker.class).newInstance(pump, cb);
+  }
+
+  private static byte[] message(int no) {
+    byte msg[] = new byte[msize];
+    Arrays.fill(msg, (byte) no);
+    return msg;
+  }
+
+  private static void await(CountDownLatch latch) throws InterruptedException {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS))
+      Panic.failStop("ScaleBench : timeout, " + latch.getCount() + " left");
+  }
+
+  /**
+   * Echoes on the blocking queues, the server and each client holding a task
+   * with a small stack per connection, blocked in receive() while waiting.
+   */
+  private static Result runThreads() throws Exception {
+    Result result = new Result();
+    String name = "ScaleServer" + (++run);
+    info5.sar.queues.QueueBroker server = newQueueBroker(name);
+    info5.sar.queues.QueueBroker client = newQueueBroker("ScaleClient" + run);
+    CountDownLatch connected = new CountDownLatch(nconnections);
+    CountDownLatch go = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(nconnections);
+    threads.resetPeakThreadCount();
+    long start = System.nanoTime();
+
+    Task acceptor = new Task(name + "-acceptor", server.getBroker());
+    acceptor.start(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < nconnections; i++) {
+          info5.sar.queues.MessageQueue queue = server.accept(PORT);
+          Task worker = new Task(name + "-worker" + i, server.getBroker(), Task.LIGHT_STACK_SIZE);
+          worker.start(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                for (int n = 0; n < nmessages; n++) {
+                  byte msg[] = queue.receive();
+                  queue.send(msg, 0, msg.length);
+                }
+              } catch (ClosedException e) {
+                Panic.failStop(e);
+              }
+            }
+          });
+        }
+      }
+    });
+
+    for (int i = 0; i < nconnections; i++) {
+      Task task = new Task("ScaleClient" + run + "-" + i, client.getBroker(), Task.LIGHT_STACK_SIZE);
+      task.start(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            info5.sar.queues.MessageQueue queue = client.connect(name, PORT);
+            connected.countDown();
+            go.await();
+            for (int n = 0; n < nmessages; n++) {
+              byte msg[] = message(n);
+              queue.send(msg, 0, msg.length);
+              Panic.ensure(queue.receive()[0] == (byte) n);
+            }
+            queue.close();
+            done.countDown();
+          } catch (Exception e) {
+            Panic.failStop(e);
+          }
+        }
+      });
+    }
+    await(connected);
+    result.connect = System.nanoTime() - start;
+    start = System.nanoTime();
+    go.countDown();
+    await(done);
+    result.echo = System.nanoTime() - start;
+    result.threads = threads.getPeakThreadCount();
+    return result;
+  }
+
+  /**
+   * Echoes on the mixed queues, the listeners running on one event pump and
+   * the channels being read and written by the shared I/O workers.
+   */
+  private static Result runMixed() throws Exception {
+    Result result = new Result();
+    String name = "ScaleServer" + (++run);
+    Executor pump = new Executor(name + "-pump");
+    pump.setDaemon(true);
+    QueueBroker server = newMixedQueueBroker(pump, name);
+    QueueBroker client = newMixedQueueBroker(pump, "ScaleClient" + run);
+    threads.resetPeakThreadCount();
+    pump.start();
+    server.bind(PORT, queue -> queue.setListener(new MessageQueue.Listener() {
+      @Override
+      public void received(byte[] msg) {
+        queue.send(msg);
+      }
+
+      @Override
+      public void closed() {
+      }
+    }));
+    MessageQueue queues[] = new MessageQueue[nconnections];
+    CountDownLatch connected = new CountDownLatch(nconnections);
+    CountDownLatch done = new CountDownLatch(nconnections);
+    long start = System.nanoTime();
+    for (int i = 0; i < nconnections; i++) {
+      int no = i;
+      client.connect(name, PORT, new QueueBroker.ConnectListener() {
+        @Override
+        public void connected(MessageQueue queue) {
+          queues[no] = queue;
+          connected.countDown();
+        }
+
+        @Override
+        public void refused() {
+          Panic.failStop("ScaleBench : connection refused");
+        }
+      });
+    }
+    await(connected);
+    result.connect = System.nanoTime() - start;
+    start = System.nanoTime();
+    pump.post(new Runnable() {
+      @Override
+      public void run() {
+        for (MessageQueue queue : queues) {
+          queue.setListener(new MessageQueue.Listener() {
+            int received;
+
+            @Override
+            public void received(byte[] msg) {
+              Panic.ensure(msg[0] == (byte) received);
+              if (++received < nmessages) {
+                queue.send(message(received));
+              } else {
+                queue.close();
+                done.countDown();
+              }
+            }
+
+            @Override
+            public void closed() {
+            }
+          });
+          queue.send(message(0));
+        }
+      }
+    });
+    await(done);
+    result.echo = System.nanoTime() - start;
+    result.threads = threads.getPeakThreadCount();
+    return result;
+  }
+
+  /**
+   * Echoes on the event queues, everything running on one event pump.
+   */
+  private static Result runEvents() throws Exception {
+    Result result = new Result();
+    String name = "ScaleServer" + (++run);
+    Executor pump = new Executor(name + "-pump");
+    pump.setDaemon(true);
+    info5.sar.events.queues.events.QueueBroker server = newEventQueueBroker(pump, name);
+    info5.sar.events.queues.events.QueueBroker client = newEventQueueBroker(pump, "ScaleClient" + run);
+    threads.resetPeakThreadCount();
+    pump.start();
+    info5.sar.events.queues.events.MessageQueue queues[] = new info5.sar.events.queues.events.MessageQueue[nconnections];
+    CountDownLatch connected = new CountDownLatch(nconnections);
+    CountDownLatch done = new CountDownLatch(nconnections);
+    long start = System.nanoTime();
+    pump.post(new Runnable() {
+      @Override
+      public void run() {
+        server.bind(PORT, queue -> queue.setListener(new info5.sar.events.queues.events.MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            queue.send(msg);
+          }
+
+          @Override
+          public void closed() {
+          }
+        }));
+        for (int i = 0; i < nconnections; i++) {
+          int no = i;
+          client.connect(name, PORT, new info5.sar.events.queues.events.QueueBroker.ConnectListener() {
+            @Override
+            public void connected(info5.sar.events.queues.events.MessageQueue queue) {
+              queues[no] = queue;
+              connected.countDown();
+            }
+
+            @Override
+            public void refused() {
+              Panic.failStop("ScaleBench : connection refused");
+            }
+          });
+        }
+      }
+    });
+    await(connected);
+    result.connect = System.nanoTime() - start;
+    start = System.nanoTime();
+    pump.post(new Runnable() {
+      @Override
+      public void run() {
+        for (info5.sar.events.queues.events.MessageQueue queue : queues) {
+          queue.setListener(new info5.sar.events.queues.events.MessageQueue.Listener() {
+            int received;
+
+            @Override
+            public void received(byte[] msg) {
+              Panic.ensure(msg[0] == (byte) received);
+              if (++received < nmessages) {
+                queue.send(message(received));
+              } else {
+                queue.close();
+                done.countDown();
+              }
+            }
+
+            @Override
+            public void closed() {
+            }
+          });
+          queue.send(message(0));
+        }
+      }
+    });
+    await(done);
+    result.echo = System.nanoTime() - start;
+    result.threads = threads.getPeakThreadCount();
+    return result;
+  }
+}
@@ -27,8 +27,10 @@ import info5.sar.utils.Panic;
  * This is the server-side of a client session. One instance of this class
  * ServerWorker handles one client, through one queue.
  * 
- * Because a queue may refuse a request to send a message, this worker relies on
- * a background sender for the messages to echo back to clients.
+ * Because a queue may refuse a request to send a message, this worker pauses
+ * the reading of its queue while messages wait to be echoed back to the client,
+ * and resumes it once they are sent. The messages waiting are then the ones
+ * refused, so the memory used by a slow client is bounded.
  */
 public class ServerWorker implements MessageQueue.Listener {
   private MessageQueue m_queue;
@@ -40,29 +42,35 @@ public class ServerWorker implements MessageQueue.Listener {
    */
   private BackgroundEchoer m_echoer;
 
-  private Executor m_pump;
-
   ServerWorker(MessageQueue queue) {
     m_name = queue.broker().getName();
     m_queue = queue;
-    m_queue.setListener(this);
     m_msgs = new LinkedList<byte[]>();
-    m_pump = queue.broker().getEventPump();
     m_echoer = new BackgroundEchoer();
+    m_queue.setListener(this);
   }
 
   /**
    * This is the queue callback to notify of a newly received message. The message
-   * is to be echoed back, but this cannot be done in this reaction since a queue
-   * may refuse a request to send a message. Hence, we used a list of messages to
-   * echo and a different object to do it.
+   * is echoed back at once, unless messages are already waiting or the queue
+   * refuses it. It then waits, and reading is paused until the queue tells it is
+   * writable again.
    */
   @Override
   public void received(byte[] msg) {
     Executor.check();
     m_msgs.add(msg);
-    if (m_msgs.size() == 1)
-      m_pump.post(m_echoer);
+    m_echoer.run();
+  }
+
+  /**
+   * This is the queue callback to notify that messages can be sent again, after
+   * the queue refused one.
+   */
+  @Override
+  public void writable() {
+    Executor.check();
+    m_echoer.run();
   }
 
   @Override
@@ -71,49 +79,42 @@ public class ServerWorker implements MessageQueue.Listener {
   }
 
   /**
-   * This is the background sender of messages that must be echoed back to their
-   * sender. Nota Bene: since queues do not have a callback to indicate that
-   * sending is allowed again after refusing a request, we are forced to have an
-   * active polling through repetitive events... without a delay since the
-   * executor does not have the capability to post delayed events.
+   * This is the sender of messages that must be echoed back to their sender,
+   * run when a message is received and when the queue is writable again.
    */
   class BackgroundEchoer implements Runnable {
-    // current message this echoer is trying to send.
-    private byte[] m_msg;
     // the first and last integer values of the last message that we echoed.
     // this is used to check that messages are received in the proper order
     // and with the proper contents.
     private int m_lastFirst = -1, m_lastLast;
 
     /**
-     * This is where the work is done, trying to echo back one message per event
-     * reaction.
+     * This is where the work is done, echoing back the waiting messages until
+     * the queue refuses one. Reading is paused while messages are waiting.
      */
     @Override
     public void run() {
       Executor.check();
-      if (m_msg != null) {
-        if (m_queue.send(m_msg))
-          m_msg = null;
-        else {
-          m_pump.post(this);
+      while (m_msgs.size() != 0) {
+        byte[] msg = m_msgs.get(0);
+        if (!m_queue.send(msg)) {
+          m_queue.pauseReading();
           return;
         }
+        m_msgs.remove(0);
+        check(msg);
       }
-      if (m_msgs.size() == 0)
-        return;
-      m_msg = m_msgs.remove(0);
-      check();
-      m_pump.post(this);
+      if (m_queue.isReadingPaused())
+        m_queue.resumeReading();
     }
 
     /**
      * this is used to check that messages are received in the proper order and with
      * the proper contents.
      */
-    private void check() {
-      int first = Test.readInt(m_msg, 0);
-      int last = Test.readInt(m_msg, m_msg.length - 4) + 1;
+    private void check(byte[] msg) {
+      int first = Test.readInt(msg, 0);
+      int last = Test.readInt(msg, msg.length - 4) + 1;
       if (m_lastFirst != -1) {
         if (m_lastLast + 1 != first)
           Panic.failStop("TestServer:_Worker: PANIC");
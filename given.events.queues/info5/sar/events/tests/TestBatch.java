@@ -0,0 +1,265 @@
+package info5.sar.events.tests;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import info5.sar.events.channels.Broker;
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.Executor;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the delivery of the received messages in batches,
+ * see {@link MessageQueue.BatchListener} and {@link MessageQueue#setBatchLimits(int, long)}.
+ *
+ * It checks that:
+ *
+ * - illegal batch limits are rejected.
+ * - a burst of small messages is delivered in batches no larger than the
+ *   maximum batch size, the batches holding all the messages whole and in order,
+ *   several of them gathered in a batch.
+ * - a queue closed by its listener while receiving a burst delivers the
+ *   messages it gathered, in order, then tells once that it is closed,
+ *   no batch following.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestBatch {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ChannelBrokerClassName = "info5.sar.events.queues.CBroker";
+  static String QueueBrokerClassName = "info5.sar.events.queues.CQueueBroker";
+  static final String CBROKER_OPTION = "-cbroker:";
+  static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the pump, in seconds
+  private static final long TIMEOUT = 30;
+  private static final int MAX_BATCH = 16;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    Executor pump = new Executor("Event Pump");
+    pump.setDaemon(true);
+    QueueBroker server = newBrokers(pump, "BatchServer");
+    QueueBroker client = newBrokers(pump, "BatchClient");
+    pump.start();
+    testLimits(server, client, 80);
+    testBatches(server, client, 81);
+    testClose(server, client, 82);
+    System.out.println("That's all folks.");
+    System.exit(0);
+  }
+
+  /**
+   * Checks the default batch limits, and that illegal ones are rejected.
+   */
+  private static void testLimits(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch done = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        MessageQueue queue = queues[1];
+        ensure(queue.getMaxBatchSize() == MessageQueue.DEFAULT_MAX_BATCH_SIZE && queue.getMaxBatchDelay() == 0);
+        int illegal[][] = { { 0, 0 }, { 1, -1 } };
+        for (int limits[] : illegal) {
+          try {
+            queue.setBatchLimits(limits[0], limits[1]);
+            ensure(false);
+          } catch (IllegalArgumentException e) {
+            // Nothing to do here, the limits are illegal
+          }
+        }
+        queue.setBatchLimits(MAX_BATCH, 500);
+        ensure(queue.getMaxBatchSize() == MAX_BATCH && queue.getMaxBatchDelay() == 500);
+        done.countDown();
+      }
+    });
+    await(done);
+    close(server, queues);
+    System.out.println("Batch limits: ok");
+  }
+
+  /**
+   * Sends a burst of small messages, each one telling its rank, and checks the batches.
+   */
+  private static void testBatches(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nmessages = 1000;
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch done = new CountDownLatch(1);
+    int stats[] = new int[3];
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        queues[1].setBatchLimits(MAX_BATCH, 1000);
+        queues[1].setListener(new MessageQueue.BatchListener() {
+          @Override
+          public void received(List<byte[]> batch) {
+            ensure(batch.size() >= 1 && batch.size() <= MAX_BATCH);
+            for (byte msg[] : batch)
+              ensure(Arrays.equals(msg, message(stats[0]++)));
+            stats[1]++;
+            stats[2] = Math.max(stats[2], batch.size());
+            if (stats[0] == nmessages)
+              done.countDown();
+          }
+
+          @Override
+          public void closed() {
+          }
+        });
+        for (int i = 0; i < nmessages; i++)
+          ensure(queues[0].send(message(i)));
+      }
+    });
+    await(done);
+    ensure(stats[2] > 1);
+    close(server, queues);
+    System.out.println(nmessages + " messages in " + stats[1] + " batches of at most " + stats[2] + ": ok");
+  }
+
+  /*
+   * Send a burst of messages to a queue gathering them in large batches
+   * Close the receiving queue from its listener once half of them are received
+   * Check the gathered messages are delivered in order, then closed() once, with no batch after it
+   */
+  /**
+   * Closes a queue from its listener while it receives a burst of messages.
+   */
+  private static void testClose(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nmessages = 1000;
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch closed = new CountDownLatch(1);
+    int counts[] = new int[2];
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        queues[1].setBatchLimits(MessageQueue.DEFAULT_MAX_BATCH_SIZE, 1000);
+        queues[1].setListener(new MessageQueue.BatchListener() {
+          @Override
+          public void received(List<byte[]> batch) {
+            ensure(counts[1] == 0);
+            for (byte msg[] : batch)
+              ensure(Arrays.equals(msg, message(counts[0]++)));
+            if (counts[0] >= nmessages / 2)
+              queues[1].close();
+          }
+
+          @Override
+          public void closed() {
+            ensure(++counts[1] == 1 && counts[0] >= nmessages / 2);
+            closed.countDown();
+          }
+        });
+        for (int i = 0; i < nmessages; i++)
+          ensure(queues[0].send(message(i)));
+      }
+    });
+    await(closed);
+    // let the pump run what the close posted
+    CountDownLatch drained = new CountDownLatch(1);
+    server.getEventPump().post(drained::countDown);
+    await(drained);
+    ensure(counts[1] == 1 && queues[1].closed());
+    close(server, queues);
+    System.out.println("Close from the listener after " + counts[0] + " messages: ok");
+  }
+
+  /**
+   * @return The message of the given rank, its size depending on it
+   */
+  private static byte[] message(int rank) {
+    byte bytes[] = new byte[2 + rank % 40];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) (i * 31 + rank);
+    bytes[0] = (byte) rank;
+    bytes[1] = (byte) (rank >>> 8);
+    return bytes;
+  }
+
+  /**
+   * Connects the client to the server on the given port.
+   * @return The client queue and the server queue, their listeners not set yet
+   */
+  private static MessageQueue[] connect(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = new MessageQueue[2];
+    CountDownLatch connected = new CountDownLatch(2);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        server.bind(port, queue -> {
+          queues[1] = queue;
+          server.unbind(port);
+          connected.countDown();
+        });
+        client.connect(server.getName(), port, new QueueBroker.ConnectListener() {
+          @Override
+          public void connected(MessageQueue queue) {
+            queues[0] = queue;
+            connected.countDown();
+          }
+
+          @Override
+          public void refused() {
+            Panic.failStop("TestBatch : connection refused");
+          }
+        });
+      }
+    });
+    await(connected);
+    return queues;
+  }
+
+  private static void close(QueueBroker server, MessageQueue queues[]) throws Exception {
+    CountDownLatch closed = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        for (MessageQueue queue : queues) {
+          queue.close();
+          ensure(queue.closed());
+        }
+        closed.countDown();
+      }
+    });
+    await(closed);
+  }
+
+  private static void await(CountDownLatch latch) throws InterruptedException {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS))
+      Panic.failStop("TestBatch : timeout, " + latch.getCount() + " left");
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker on the given pump,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(Executor pump, String name) throws Exception {
+    Broker cb = (Broker) Class.forName(ChannelBrokerClassName).getConstructor(String.class, Executor.class)
+        .newInstance(name, pump);
+    return (QueueBroker) Class.forName(QueueBrokerClassName).getConstructor(Executor.class, Broker.class)
+        .newInstance(pump, cb);
+  }
+}
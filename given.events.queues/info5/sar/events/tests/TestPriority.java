@@ -0,0 +1,289 @@
+package info5.sar.events.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import info5.sar.events.channels.Broker;
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.Executor;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the priority lanes of the event message queues,
+ * see {@link MessageQueue#send(byte[], int)}.
+ *
+ * It checks that:
+ *
+ * - an urgent message sent after a large normal message is received before it,
+ *   its frames going ahead of the pending frames of the large message.
+ * - messages of random sizes and priorities are received whole, in order per priority.
+ * - an illegal priority is rejected, and closing a queue tells both ends once
+ *   that they are closed.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestPriority {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ChannelBrokerClassName = "info5.sar.events.queues.CBroker";
+  static String QueueBrokerClassName = "info5.sar.events.queues.CQueueBroker";
+  static final String CBROKER_OPTION = "-cbroker:";
+  static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the pump, in seconds
+  private static final long TIMEOUT = 30;
+  private static final int FRAME = 1024;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    Executor pump = new Executor("Event Pump");
+    pump.setDaemon(true);
+    QueueBroker server = newBrokers(pump, "PriorityServer");
+    QueueBroker client = newBrokers(pump, "PriorityClient");
+    pump.start();
+    testOvertaking(server, client, 80);
+    testOrder(server, client, 81);
+    testClose(server, client, 82);
+    System.out.println("That's all folks.");
+    System.exit(0);
+  }
+
+  /**
+   * Sends a large normal message, an urgent one and a small normal one,
+   * and checks the urgent one is received first.
+   */
+  private static void testOvertaking(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = connect(server, client, port);
+    byte large[] = payload(256 * FRAME, 1), urgent[] = payload(10, 2), small[] = payload(10, 3);
+    List<byte[]> received = new ArrayList<>();
+    CountDownLatch done = new CountDownLatch(3);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        queues[1].setListener(new MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            received.add(msg);
+            done.countDown();
+          }
+
+          @Override
+          public void closed() {
+          }
+        });
+        ensure(queues[0].send(large, MessageQueue.PRIORITY_NORMAL));
+        ensure(queues[0].send(urgent, MessageQueue.PRIORITY_URGENT));
+        ensure(queues[0].send(small, MessageQueue.PRIORITY_NORMAL));
+      }
+    });
+    await(done);
+    ensure(Arrays.equals(received.get(0), urgent));
+    ensure(Arrays.equals(received.get(1), large));
+    ensure(Arrays.equals(received.get(2), small));
+    close(server, queues);
+    System.out.println("Urgent message overtaking a large one: ok");
+  }
+
+  /**
+   * Sends messages of random sizes and priorities, each one telling its priority
+   * and its rank in its lane, and checks they are received in order per lane.
+   */
+  private static void testOrder(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nmessages = 400;
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch done = new CountDownLatch(nmessages);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        queues[1].setListener(new MessageQueue.Listener() {
+          int next[] = new int[2];
+
+          @Override
+          public void received(byte[] msg) {
+            int priority = msg[0], rank = msg[1] & 0xFF | (msg[2] & 0xFF) << 8;
+            ensure(rank == next[priority]++);
+            ensure(Arrays.equals(msg, message(priority, rank, msg.length)));
+            done.countDown();
+          }
+
+          @Override
+          public void closed() {
+          }
+        });
+        Random random = new Random(4);
+        int ranks[] = new int[2];
+        for (int i = 0; i < nmessages; i++) {
+          int priority = random.nextInt(4) == 0 ? MessageQueue.PRIORITY_URGENT : MessageQueue.PRIORITY_NORMAL;
+          int size = 3 + (random.nextInt(8) == 0 ? random.nextInt(8 * FRAME) : random.nextInt(100));
+          ensure(queues[0].send(message(priority, ranks[priority]++, size), priority));
+        }
+      }
+    });
+    await(done);
+    close(server, queues);
+    System.out.println(nmessages + " messages of mixed priorities: ok");
+  }
+
+  /**
+   * Checks an illegal priority is rejected, then sends messages of both priorities
+   * and closes the sending queue once they are received, checking both ends are
+   * told once that they are closed.
+   */
+  private static void testClose(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch closed = new CountDownLatch(2);
+    int counts[] = new int[3];
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queues[0].send(new byte[1], 2);
+          ensure(false);
+        } catch (IllegalArgumentException e) {
+          // Nothing to do here, the priority is illegal
+        }
+        queues[0].setListener(new MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            ensure(false);
+          }
+
+          @Override
+          public void closed() {
+            ensure(++counts[1] == 1);
+            closed.countDown();
+          }
+        });
+        queues[1].setListener(new MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            ensure(Arrays.equals(msg, payload(msg.length, msg.length)));
+            if (++counts[0] == 2) {
+              queues[0].close();
+              ensure(queues[0].closed());
+            }
+          }
+
+          @Override
+          public void closed() {
+            ensure(counts[0] == 2 && ++counts[2] == 1);
+            ensure(queues[1].closed());
+            closed.countDown();
+          }
+        });
+        ensure(queues[0].send(payload(4 * FRAME, 4 * FRAME), MessageQueue.PRIORITY_NORMAL));
+        ensure(queues[0].send(payload(10, 10), MessageQueue.PRIORITY_URGENT));
+      }
+    });
+    await(closed);
+    System.out.println("Close once both priorities are received: ok");
+  }
+
+  /**
+   * @return The message of the given priority and rank in its lane, of the given size
+   */
+  private static byte[] message(int priority, int rank, int size) {
+    byte bytes[] = payload(size, rank);
+    bytes[0] = (byte) priority;
+    bytes[1] = (byte) rank;
+    bytes[2] = (byte) (rank >>> 8);
+    return bytes;
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Connects the client to the server on the given port, with the frame size set on both queues.
+   * @return The client queue and the server queue, their listeners not set yet
+   */
+  private static MessageQueue[] connect(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = new MessageQueue[2];
+    CountDownLatch connected = new CountDownLatch(2);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        server.bind(port, queue -> {
+          queue.setMaxFrameSize(FRAME);
+          queues[1] = queue;
+          server.unbind(port);
+          connected.countDown();
+        });
+        client.connect(server.getName(), port, new QueueBroker.ConnectListener() {
+          @Override
+          public void connected(MessageQueue queue) {
+            queue.setMaxFrameSize(FRAME);
+            queues[0] = queue;
+            connected.countDown();
+          }
+
+          @Override
+          public void refused() {
+            Panic.failStop("TestPriority : connection refused");
+          }
+        });
+      }
+    });
+    await(connected);
+    return queues;
+  }
+
+  private static void close(QueueBroker server, MessageQueue queues[]) throws Exception {
+    CountDownLatch closed = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        for (MessageQueue queue : queues) {
+          queue.close();
+          ensure(queue.closed());
+        }
+        closed.countDown();
+      }
+    });
+    await(closed);
+  }
+
+  private static void await(CountDownLatch latch) throws InterruptedException {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS))
+      Panic.failStop("TestPriority : timeout, " + latch.getCount() + " left");
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker on the given pump,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(Executor pump, String name) throws Exception {
+    Broker cb = (Broker) Class.forName(ChannelBrokerClassName).getConstructor(String.class, Executor.class)
+        .newInstance(name, pump);
+    return (QueueBroker) Class.forName(QueueBrokerClassName).getConstructor(Executor.class, Broker.class)
+        .newInstance(pump, cb);
+  }
+}
@@ -0,0 +1,273 @@
+package info5.sar.events.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import info5.sar.events.channels.Broker;
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.Executor;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the watermarks bounding the bytes queued for sending,
+ * see {@link MessageQueue#setWatermarks(int, int)} and {@link MessageQueue.Listener#writable()}.
+ *
+ * It checks that:
+ *
+ * - illegal watermarks are rejected.
+ * - a message above the high watermark is accepted when nothing is queued.
+ * - while the receiver has paused reading, send() refuses a message once the
+ *   bytes queued reach the high watermark, the queue is no longer writable and
+ *   nothing is delivered.
+ * - once the receiver resumes reading, writable() is called after each refusal,
+ *   and the sender sending again from the refused message gets all the messages
+ *   received whole and in order.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestWatermarks {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ChannelBrokerClassName = "info5.sar.events.queues.CBroker";
+  static String QueueBrokerClassName = "info5.sar.events.queues.CQueueBroker";
+  static final String CBROKER_OPTION = "-cbroker:";
+  static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the pump, in seconds
+  private static final long TIMEOUT = 30;
+  private static final int LOW = 1024, HIGH = 4096;
+  private static final int MSIZE = 512;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    Executor pump = new Executor("Event Pump");
+    pump.setDaemon(true);
+    QueueBroker server = newBrokers(pump, "WatermarksServer");
+    QueueBroker client = newBrokers(pump, "WatermarksClient");
+    pump.start();
+    testLimits(server, client, 80);
+    testFlow(server, client, 81);
+    System.out.println("That's all folks.");
+    System.exit(0);
+  }
+
+  /**
+   * Checks the default watermarks, and that illegal ones are rejected.
+   */
+  private static void testLimits(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch done = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        MessageQueue queue = queues[0];
+        ensure(queue.getLowWatermark() == MessageQueue.DEFAULT_LOW_WATERMARK);
+        ensure(queue.getHighWatermark() == MessageQueue.DEFAULT_HIGH_WATERMARK);
+        ensure(queue.isWritable());
+        int illegal[][] = { { -1, HIGH }, { HIGH, LOW } };
+        for (int watermarks[] : illegal) {
+          try {
+            queue.setWatermarks(watermarks[0], watermarks[1]);
+            ensure(false);
+          } catch (IllegalArgumentException e) {
+            // Nothing to do here, the watermarks are illegal
+          }
+        }
+        queue.setWatermarks(LOW, HIGH);
+        ensure(queue.getLowWatermark() == LOW && queue.getHighWatermark() == HIGH);
+        done.countDown();
+      }
+    });
+    await(done);
+    close(server, queues);
+    System.out.println("Watermark limits: ok");
+  }
+
+  /*
+   * Pause the reading of the receiver, then send a message above the high watermark,
+   * and messages until one is refused
+   * Check nothing is delivered meanwhile, then resume the reading of the receiver
+   * On each writable(), send again from the refused message until another one is refused
+   * Check the receiver gets all the messages in order
+   */
+  /**
+   * Sends messages to a receiver pausing its reading, following the refusals and writable() calls.
+   */
+  private static void testFlow(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nmessages = 200;
+    MessageQueue queues[] = connect(server, client, port);
+    CountDownLatch refused = new CountDownLatch(1), done = new CountDownLatch(1);
+    // the next message to send, the number of refusals and of writable() calls
+    int sender[] = new int[3];
+    int received[] = new int[1];
+    byte large[] = payload(2 * HIGH, -1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        queues[1].setListener(new MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            if (received[0]++ == 0)
+              ensure(Arrays.equals(msg, large));
+            else
+              ensure(Arrays.equals(msg, payload(MSIZE, received[0] - 2)));
+            if (received[0] == nmessages + 1)
+              done.countDown();
+          }
+
+          @Override
+          public void closed() {
+          }
+        });
+        queues[1].pauseReading();
+        ensure(queues[1].isReadingPaused());
+
+        queues[0].setWatermarks(LOW, HIGH);
+        queues[0].setListener(new MessageQueue.Listener() {
+          @Override
+          public void received(byte[] msg) {
+            ensure(false);
+          }
+
+          @Override
+          public void writable() {
+            ensure(queues[0].isWritable() && ++sender[2] == sender[1]);
+            sendSome(queues[0], sender, nmessages);
+          }
+
+          @Override
+          public void closed() {
+          }
+        });
+        ensure(queues[0].send(large));
+        sendSome(queues[0], sender, nmessages);
+        ensure(sender[1] == 1 && !queues[0].isWritable());
+        refused.countDown();
+      }
+    });
+    await(refused);
+    Thread.sleep(100);
+    CountDownLatch checked = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        // the paused receiver holds the writer back
+        ensure(received[0] == 0 && sender[1] == 1 && sender[2] == 0 && !queues[0].isWritable());
+        queues[1].resumeReading();
+        ensure(!queues[1].isReadingPaused());
+        checked.countDown();
+      }
+    });
+    await(checked);
+    await(done);
+    ensure(sender[0] == nmessages && sender[2] == sender[1] && sender[1] > 1);
+    close(server, queues);
+    System.out.println(nmessages + " messages with " + sender[1] + " refusals: ok");
+  }
+
+  /**
+   * Sends the next messages until one is refused or all are sent, run by the pump.
+   * @param sender : the next message to send and the number of refusals
+   */
+  private static void sendSome(MessageQueue queue, int sender[], int nmessages) {
+    while (sender[0] < nmessages) {
+      if (!queue.send(payload(MSIZE, sender[0]))) {
+        sender[1]++;
+        return;
+      }
+      sender[0]++;
+    }
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Connects the client to the server on the given port.
+   * @return The client queue and the server queue, their listeners not set yet
+   */
+  private static MessageQueue[] connect(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = new MessageQueue[2];
+    CountDownLatch connected = new CountDownLatch(2);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        server.bind(port, queue -> {
+          queues[1] = queue;
+          server.unbind(port);
+          connected.countDown();
+        });
+        client.connect(server.getName(), port, new QueueBroker.ConnectListener() {
+          @Override
+          public void connected(MessageQueue queue) {
+            queues[0] = queue;
+            connected.countDown();
+          }
+
+          @Override
+          public void refused() {
+            Panic.failStop("TestWatermarks : connection refused");
+          }
+        });
+      }
+    });
+    await(connected);
+    return queues;
+  }
+
+  private static void close(QueueBroker server, MessageQueue queues[]) throws Exception {
+    CountDownLatch closed = new CountDownLatch(1);
+    server.getEventPump().post(new Runnable() {
+      @Override
+      public void run() {
+        for (MessageQueue queue : queues) {
+          queue.close();
+          ensure(queue.closed());
+        }
+        closed.countDown();
+      }
+    });
+    await(closed);
+  }
+
+  private static void await(CountDownLatch latch) throws InterruptedException {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS))
+      Panic.failStop("TestWatermarks : timeout, " + latch.getCount() + " left");
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker on the given pump,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(Executor pump, String name) throws Exception {
+    Broker cb = (Broker) Class.forName(ChannelBrokerClassName).getConstructor(String.class, Executor.class)
+        .newInstance(name, pump);
+    return (QueueBroker) Class.forName(QueueBrokerClassName).getConstructor(Executor.class, Broker.class)
+        .newInstance(pump, cb);
+  }
+}
@@ -0,0 +1,50 @@
+package info5.sar.channels;
+
+/**
+ * Broker establishing {@link BondedChannel BondedChannels} through another Broker,
+ * so the layers above, like the message queues, run on them unchanged.<br>
+ * Both ends must use a BondedBroker.
+ */
+public class BondedBroker extends Broker {
+
+  private final Broker broker;
+  private final int count;
+
+  /**
+   * @param broker : the Broker establishing the sub-channels, whose name this Broker takes
+   * @param count : the number of sub-channels of each bonded Channel connected
+   * @throws IllegalArgumentException if the count is not strictly positive
+   */
+  public BondedBroker(Broker broker, int count) {
+    super(broker.getName());
+    if (count < 1)
+      throw new IllegalArgumentException("BondedBroker : Illegal number of channels");
+    this.broker = broker;
+    this.count = count;
+  }
+
+  /**
+   * @return The Broker establishing the sub-channels
+   */
+  public Broker getBroker() {
+    return broker;
+  }
+
+  @Override
+  public Channel accept(int port) {
+    return BondedChannel.accept(broker, port);
+  }
+
+  /**
+   * @return The bonded Channel, null if no Broker with the given name has been found
+   *         or if a sub-channel was disconnected while connecting
+   */
+  @Override
+  public Channel connect(String name, int port) {
+    try {
+      return BondedChannel.connect(broker, name, port, count);
+    } catch (DisconnectedException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,612 @@
+package info5.sar.channels;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.PooledBuffer;
+
+/**
+ * Channel striping one stream of bytes across several Channels, to use the copy
+ * bandwidth of several threads for large transfers.<br>
+ * <br>
+ * The bytes written are cut in chunks, sent round-robin on the sub-channels, so
+ * the reading end gets them back in order by reading the sub-channels in the same
+ * round-robin order. Each sub-channel has its own sender and receiver tasks on
+ * each end, moving the chunks between the sub-channel and a small queue, so the
+ * sub-channels are copied in parallel while the bonded channel is read and written
+ * like any other Channel, by the layers above like the message queues, see
+ * {@link BondedBroker}.<br>
+ * <br>
+ * Both ends must be bonded: {@link #connect(Broker, String, int, int) connect()}
+ * opens the sub-channels, telling the accepting end which bond and which rank each
+ * one is, and {@link #accept(Broker, int) accept()} gathers them, even when several
+ * bonds are accepted on the same port concurrently.<br>
+ * <br>
+ * Disconnecting sends the chunks already written before disconnecting the sub-channels,
+ * and the remote end reads them before reaching the end of the stream. A chunk announced
+ * with an illegal length disconnects the bond.
+ */
+public class BondedChannel extends Channel {
+
+  public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+  public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+  // time the sub-channels of a bond are kept waiting for the others, in milliseconds
+  public static final long BOND_TIMEOUT = 30 * 1000;
+  // the number of chunks queued per sub-channel, in each direction
+  private static final int QUEUE_SIZE = 4;
+  // the bond identifier, the rank and the number of sub-channels
+  private static final int HANDSHAKE_SIZE = 16;
+  private static final int HEADER_SIZE = 4;
+
+  // the sub-channels accepted, by bond, and the bonds fully accepted, by broker and port
+  private static final ReentrantLock bondsLock = new ReentrantLock();
+  private static final Map<String, PartialBond> accepting = new HashMap<>();
+  private static final Map<String, ArrayDeque<Channel[]>> accepted = new HashMap<>();
+
+  private final int port;
+  private final Channel[] subs;
+  // the chunks written, prefixed with their length, and the chunks read
+  private final List<ChunkQueue<PooledBuffer>> outQueues;
+  private final List<ChunkQueue<PooledBuffer>> inQueues;
+  private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+  // the rank of the sub-channel of the next chunk to write, and to read
+  private int nextOut, nextIn;
+  // the chunk being read and the index of its next byte
+  private PooledBuffer chunk;
+  private int chunkIndex;
+  private volatile boolean disconnected;
+  private volatile ReadyListener readyListener;
+
+  /*
+   * Store the sub-channels, create their queues
+   * Start a sender and a receiver task for each of them
+   */
+  private BondedChannel(Broker broker, int port, Channel[] subs) {
+    super(broker);
+    this.port = port;
+    this.subs = subs;
+    this.outQueues = new ArrayList<>(subs.length);
+    this.inQueues = new ArrayList<>(subs.length);
+    for (int i = 0; i < subs.length; i++) {
+      outQueues.add(new ChunkQueue<>());
+      inQueues.add(new ChunkQueue<>());
+    }
+    for (int i = 0; i < subs.length; i++) {
+      int rank = i;
+      String name = toString() + "-" + rank;
+      new Task(name + "-sender", broker, Task.LIGHT_STACK_SIZE).start(() -> send(rank));
+      new Task(name + "-receiver", broker, Task.LIGHT_STACK_SIZE).start(() -> receive(rank));
+    }
+  }
+
+  /*
+   * Draw a bond identifier
+   * Connect the given number of sub-channels, writing on each one the identifier,
+   * its rank and their number
+   * If a connect fails, disconnect the sub-channels already connected and return null
+   */
+  /**
+   * Connects a bond of Channels, accepted by {@link #accept(Broker, int)} on the remote end.
+   * This is a thread-safe blocking rendez-vous, like {@link Broker#connect(String, int)}.
+   * @param broker : the local Broker
+   * @param name : the name of the remote Broker
+   * @param port : the connection port
+   * @param count : the number of sub-channels
+   * @return The bonded Channel, null if no Broker with the given name has been found
+   * @throws DisconnectedException if a sub-channel is disconnected while connecting
+   * @throws IllegalArgumentException if the count is not strictly positive
+   */
+  public static BondedChannel connect(Broker broker, String name, int port, int count) throws DisconnectedException {
+    if (count < 1)
+      throw new IllegalArgumentException("BondedChannel : Illegal number of channels");
+    long id = ThreadLocalRandom.current().nextLong();
+    Channel[] subs = new Channel[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        subs[i] = broker.connect(name, port);
+        if (subs[i] == null) {
+          disconnect(subs);
+          return null;
+        }
+        byte[] handshake = new byte[HANDSHAKE_SIZE];
+        putLong(handshake, 0, id);
+        putInt(handshake, 8, i);
+        putInt(handshake, 12, count);
+        writeFully(subs[i], handshake, 0, handshake.length);
+      }
+    } catch (DisconnectedException e) {
+      disconnect(subs);
+      throw e;
+    }
+    return new BondedChannel(broker, port, subs);
+  }
+
+  /*
+   * Until a bond of this broker and port is fully accepted :
+   * - accept a sub-channel, outside the lock
+   * - read its bond identifier, rank and the number of sub-channels of its bond
+   * - holding the lock, drop the bonds waiting for their sub-channels for longer than BOND_TIMEOUT,
+   *   disconnecting their sub-channels
+   * - store it with the other sub-channels of its bond, queueing the bond as fully accepted
+   *   if it was the last one
+   * - if it does not fit in its bond, drop the bond, disconnecting its sub-channels
+   * Return the first fully accepted bond, possibly gathered by another thread
+   */
+  /**
+   * Accepts a bond of Channels connected by {@link #connect(Broker, String, int, int)}.
+   * This is a thread-safe blocking rendez-vous, like {@link Broker#accept(int)}.
+   * A sub-channel failing its handshake is dropped, with the bond it claims to be part of,
+   * and a bond whose sub-channels are not all accepted within BOND_TIMEOUT is dropped.
+   * @param broker : the local Broker
+   * @param port : the connection port
+   * @return The bonded Channel
+   */
+  public static BondedChannel accept(Broker broker, int port) {
+    String bonds = broker.getName() + ":" + port;
+    while (true) {
+      bondsLock.lock();
+      try {
+        ArrayDeque<Channel[]> ready = accepted.get(bonds);
+        if (ready != null && !ready.isEmpty())
+          return new BondedChannel(broker, port, ready.poll());
+      } finally {
+        bondsLock.unlock();
+      }
+      Channel sub = broker.accept(port);
+      byte[] handshake = new byte[HANDSHAKE_SIZE];
+      try {
+        readFully(sub, handshake, 0, handshake.length);
+      } catch (DisconnectedException e) {
+        continue;
+      }
+      long id = getLong(handshake, 0);
+      int rank = getInt(handshake, 8), count = getInt(handshake, 12);
+      if (count < 1 || rank < 0 || rank >= count) {
+        sub.disconnect();
+        continue;
+      }
+      String bond = bonds + ":" + sub.getRemoteName() + ":" + id;
+      bondsLock.lock();
+      try {
+        evictExpired();
+        PartialBond partial = accepting.computeIfAbsent(bond, k -> new PartialBond(count));
+        if (partial.subs.length != count || partial.subs[rank] != null) {
+          accepting.remove(bond);
+          disconnect(partial.subs);
+          sub.disconnect();
+          continue;
+        }
+        partial.subs[rank] = sub;
+        if (complete(partial.subs)) {
+          accepting.remove(bond);
+          accepted.computeIfAbsent(bonds, k -> new ArrayDeque<>()).add(partial.subs);
+        }
+      } finally {
+        bondsLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the bondsLock lock.
+   * Drops the bonds waiting for their sub-channels for longer than BOND_TIMEOUT.
+   */
+  private static void evictExpired() {
+    long now = System.nanoTime();
+    Iterator<PartialBond> partials = accepting.values().iterator();
+    while (partials.hasNext()) {
+      PartialBond partial = partials.next();
+      if (now - partial.since >= BOND_TIMEOUT * 1000000) {
+        partials.remove();
+        disconnect(partial.subs);
+      }
+    }
+  }
+
+  /**
+   * @return The number of sub-channels
+   */
+  public int getChannelCount() {
+    return subs.length;
+  }
+
+  /**
+   * Sets the size of the chunks the written bytes are cut in, for the following writes.
+   * @param size : the chunk size, DEFAULT_CHUNK_SIZE by default
+   * @throws IllegalArgumentException if the size is not strictly positive or above MAX_CHUNK_SIZE
+   */
+  public void setChunkSize(int size) {
+    if (size < 1 || size > MAX_CHUNK_SIZE)
+      throw new IllegalArgumentException(this.toString() + " setChunkSize : Illegal size");
+    this.chunkSize = size;
+  }
+
+  @Override
+  public String getRemoteName() {
+    return subs[0].getRemoteName();
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws DisconnectedException {
+    return read(bytes, offset, length, true, "read");
+  }
+
+  @Override
+  public int tryRead(byte[] bytes, int offset, int length) throws DisconnectedException {
+    return read(bytes, offset, length, false, "tryRead");
+  }
+
+  /*
+   * Check the arguments and the state, releasing the chunk being read if disconnected
+   * If no chunk is being read, take the next one from the queue of the next sub-channel, if blocking,
+   * else poll it and return 0 if there is none
+   * If the queue is done, the stream is over : disconnect and throw a DisconnectedException
+   * Copy as many bytes of the chunk as possible, releasing it if they were all read
+   */
+  private int read(byte[] bytes, int offset, int length, boolean block, String op) throws DisconnectedException {
+    if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+      throw new IllegalArgumentException(this.toString() + " " + op + " : Illegal arguments");
+    if (disconnected) {
+      if (chunk != null) {
+        chunk.release();
+        chunk = null;
+      }
+      throw new DisconnectedException(this.toString() + " " + op + " : Disconnected channel");
+    }
+    if (chunk == null) {
+      ChunkQueue<PooledBuffer> queue = inQueues.get(nextIn);
+      chunk = block ? queue.take() : queue.poll();
+      if (chunk == null) {
+        if (!block && !queue.done())
+          return 0;
+        String reason = disconnected ? " : Disconnected channel" : " : Linked channel disconnected";
+        disconnect();
+        throw new DisconnectedException(this.toString() + " " + op + reason);
+      }
+      chunkIndex = 0;
+      nextIn = (nextIn + 1) % subs.length;
+    }
+    int n = Math.min(length, chunk.length() - chunkIndex);
+    System.arraycopy(chunk.array(), chunkIndex, bytes, offset, n);
+    chunkIndex += n;
+    if (chunkIndex == chunk.length()) {
+      chunk.release();
+      chunk = null;
+    }
+    return n;
+  }
+
+  @Override
+  public int write(byte[] bytes, int offset, int length) throws DisconnectedException {
+    return write(bytes, offset, length, true, "write");
+  }
+
+  @Override
+  public int tryWrite(byte[] bytes, int offset, int length) throws DisconnectedException {
+    return write(bytes, offset, length, false, "tryWrite");
+  }
+
+  /*
+   * Check the arguments and the state
+   * Cut the bytes in chunks, prefixed with their length, each queued for the next sub-channel :
+   * the first one waiting for room if blocking, the others only while there is room
+   * If a queue is closed, the remote end is lost : throw a DisconnectedException
+   * Return the number of bytes queued
+   */
+  private int write(byte[] bytes, int offset, int length, boolean block, String op) throws DisconnectedException {
+    if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+      throw new IllegalArgumentException(this.toString() + " " + op + " : Illegal arguments");
+    if (disconnected)
+      throw new DisconnectedException(this.toString() + " " + op + " : Disconnected channel");
+    int written = 0;
+    while (written < length) {
+      int n = Math.min(length - written, chunkSize);
+      PooledBuffer buffer = BufferPool.DEFAULT.allocate(HEADER_SIZE + n);
+      putInt(buffer.array(), 0, n);
+      System.arraycopy(bytes, offset + written, buffer.array(), HEADER_SIZE, n);
+      ChunkQueue<PooledBuffer> queue = outQueues.get(nextOut);
+      int result = queue.put(buffer, block && written == 0);
+      if (result != ChunkQueue.PUT) {
+        buffer.release();
+        if (result == ChunkQueue.FULL)
+          break;
+        String reason = disconnected ? " : Disconnected channel" : " : Linked channel disconnected";
+        throw new DisconnectedException(this.toString() + " " + op + reason);
+      }
+      nextOut = (nextOut + 1) % subs.length;
+      written += n;
+    }
+    return written;
+  }
+
+  /*
+   * Until the queue is done, take its next chunk and write it on the sub-channel, then release it
+   * If the sub-channel is disconnected, the remote end is lost : close all the out queues
+   * In any case, disconnect the sub-channel
+   */
+  /**
+   * Runs the sender task of a sub-channel.
+   */
+  private void send(int rank) {
+    ChunkQueue<PooledBuffer> queue = outQueues.get(rank);
+    try {
+      PooledBuffer buffer;
+      while ((buffer = queue.take()) != null) {
+        try {
+          writeFully(subs[rank], buffer.array(), 0, buffer.length());
+        } finally {
+          buffer.release();
+        }
+        fireReady();
+      }
+    } catch (DisconnectedException e) {
+      for (ChunkQueue<PooledBuffer> out : outQueues)
+        out.close();
+      fireReady();
+    } finally {
+      subs[rank].disconnect();
+    }
+  }
+
+  /*
+   * Read chunks from the sub-channel in pooled buffers, putting them in the queue, until it is closed
+   * If a chunk length is not between 1 and MAX_CHUNK_SIZE, the stream is corrupted :
+   * disconnect the sub-channel and the bond
+   * When the sub-channel is disconnected, end the queue, its last chunks being still readable
+   */
+  /**
+   * Runs the receiver task of a sub-channel.
+   */
+  private void receive(int rank) {
+    ChunkQueue<PooledBuffer> queue = inQueues.get(rank);
+    byte[] header = new byte[HEADER_SIZE];
+    try {
+      while (true) {
+        readFully(subs[rank], header, 0, HEADER_SIZE);
+        int length = getInt(header, 0);
+        if (length < 1 || length > MAX_CHUNK_SIZE) {
+          subs[rank].disconnect();
+          disconnect();
+          return;
+        }
+        PooledBuffer chunk = BufferPool.DEFAULT.allocate(length);
+        try {
+          readFully(subs[rank], chunk.array(), 0, length);
+        } catch (DisconnectedException e) {
+          chunk.release();
+          throw e;
+        }
+        if (queue.put(chunk, true) != ChunkQueue.PUT) {
+          chunk.release();
+          return;
+        }
+        fireReady();
+      }
+    } catch (DisconnectedException e) {
+      queue.end();
+      fireReady();
+    }
+  }
+
+  @Override
+  public void setReadyListener(ReadyListener listener) {
+    this.readyListener = listener;
+  }
+
+  private void fireReady() {
+    ReadyListener listener = readyListener;
+    if (listener != null)
+      listener.ready();
+  }
+
+  /*
+   * Set the disconnected flag
+   * End the out queues, the senders disconnecting the sub-channels once the chunks written are sent
+   * Close the in queues, dropping their chunks and unblocking the readers
+   */
+  @Override
+  public void disconnect() {
+    if (disconnected)
+      return;
+    disconnected = true;
+    for (ChunkQueue<PooledBuffer> out : outQueues)
+      out.end();
+    for (ChunkQueue<PooledBuffer> in : inQueues)
+      in.close();
+    fireReady();
+  }
+
+  @Override
+  public boolean disconnected() {
+    return disconnected;
+  }
+
+  @Override
+  public String toString() {
+    return "BondedChannel[" + broker.getName() + ":" + port + "]x" + subs.length;
+  }
+
+  private static boolean complete(Channel[] subs) {
+    for (Channel sub : subs)
+      if (sub == null)
+        return false;
+    return true;
+  }
+
+  private static void disconnect(Channel[] subs) {
+    for (Channel sub : subs)
+      if (sub != null)
+        sub.disconnect();
+  }
+
+  private static void writeFully(Channel channel, byte[] bytes, int offset, int length) throws DisconnectedException {
+    while (length > 0) {
+      int n = channel.write(bytes, offset, length);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  private static void readFully(Channel channel, byte[] bytes, int offset, int length) throws DisconnectedException {
+    while (length > 0) {
+      int n = channel.read(bytes, offset, length);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+        | (bytes[offset + 3] & 0xFF);
+  }
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    putInt(bytes, offset, (int) (value >>> 32));
+    putInt(bytes, offset + 4, (int) value);
+  }
+
+  private static long getLong(byte[] bytes, int offset) {
+    return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Sub-channels of a bond being accepted, by rank, and the time the first one was accepted.
+   */
+  private static class PartialBond {
+    final Channel[] subs;
+    final long since = System.nanoTime();
+
+    PartialBond(int count) {
+      this.subs = new Channel[count];
+    }
+  }
+
+  /**
+   * Bounded queue of chunks between a bonded channel and the task of a sub-channel.<br>
+   * Once ended, its chunks are still taken, then take() returns null.
+   * Once closed, its chunks are dropped, released if pooled, and take() returns null at once.
+   */
+  private static class ChunkQueue<T> {
+    static final int PUT = 0, FULL = 1, CLOSED = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<T> chunks = new ArrayDeque<>(QUEUE_SIZE);
+    private boolean ended, closed;
+
+    /**
+     * @param block : true to wait for room
+     * @return PUT, FULL if there is no room and not blocking, CLOSED if ended or closed
+     */
+    int put(T chunk, boolean block) {
+      lock.lock();
+      try {
+        while (chunks.size() == QUEUE_SIZE && block && !ended && !closed)
+          notFull.awaitUninterruptibly();
+        if (ended || closed)
+          return CLOSED;
+        if (chunks.size() == QUEUE_SIZE)
+          return FULL;
+        chunks.add(chunk);
+        notEmpty.signal();
+        return PUT;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return The next chunk, null once ended and empty or closed
+     */
+    T take() {
+      lock.lock();
+      try {
+        while (chunks.isEmpty() && !ended && !closed)
+          notEmpty.awaitUninterruptibly();
+        return next();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return The next chunk, null if there is none
+     */
+    T poll() {
+      lock.lock();
+      try {
+        return next();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private T next() {
+      if (closed)
+        return null;
+      T chunk = chunks.poll();
+      if (chunk != null)
+        notFull.signal();
+      return chunk;
+    }
+
+    /**
+     * @return True if no chunk will ever be taken
+     */
+    boolean done() {
+      lock.lock();
+      try {
+        return closed || (ended && chunks.isEmpty());
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void end() {
+      lock.lock();
+      try {
+        ended = true;
+        notEmpty.signalAll();
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void close() {
+      lock.lock();
+      try {
+        closed = true;
+        for (T chunk : chunks)
+          if (chunk instanceof PooledBuffer)
+            ((PooledBuffer) chunk).release();
+        chunks.clear();
+        notEmpty.signalAll();
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
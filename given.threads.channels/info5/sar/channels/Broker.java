@@ -28,6 +28,7 @@ package info5.sar.channels;
  */
 public abstract class Broker {
   String name;
+  volatile WaitStrategy waitStrategy = WaitStrategy.BALANCED;
   /**
    * Each Broker must be uniquely named. 
    * @param name : name of the Broker
@@ -41,6 +42,23 @@ public abstract class Broker {
    * @returns the name of this Broker.
    */
   public String getName() { return name; }
+
+  /**
+   * @return The strategy of the threads waiting in the reads and writes of the Channels of this Broker.
+   */
+  public WaitStrategy getWaitStrategy() { return waitStrategy; }
+
+  /**
+   * Sets how the threads blocked in the reads and writes of the Channels
+   * of this Broker wait, for the Channels established afterwards.
+   * @param strategy : the wait strategy, WaitStrategy.BALANCED by default
+   * @throws IllegalArgumentException if the strategy is null
+   */
+  public void setWaitStrategy(WaitStrategy strategy) {
+    if (strategy == null)
+      throw new IllegalArgumentException("Broker : Illegal wait strategy");
+    this.waitStrategy = strategy;
+  }
   
   /**
    * Indicate that this Broker will accept one connection
@@ -16,6 +16,11 @@
  */
 package info5.sar.channels;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
 /**
  * Channel is a point-to-point stream of bytes.
  * Full-duplex, each end point can be used to read or write.
@@ -38,7 +43,16 @@ package info5.sar.channels;
  * operations will be interrupted throwing a disconnected exception. 
  */
 public abstract class Channel {
+  // the size of the file regions mapped by the transfers
+  private static final long MAP_SIZE = 8 * 1024 * 1024;
+  // the size of the arrays the default ByteBuffer operations copy through
+  private static final int COPY_SIZE = 8192;
+
   Broker broker;
+  // the bytes read by the default trySplice() and not written yet
+  private byte[] spliceCarry;
+  private int spliceOffset;
+  int spliceLength;
 
   /**
    * @param broker : the parent Broker
@@ -93,6 +107,225 @@ public abstract class Channel {
    */
   public abstract int write(byte[] bytes, int offset, int length) throws DisconnectedException;
 
+  /**
+   * Not thread-safe. Read bytes in the remaining space of the given buffer
+   * like {@link #read(byte[], int, int) read()}, advancing its position.
+   * Implementations should override it to copy the bytes without an
+   * intermediate array; this one reads through the array of heap buffers,
+   * or through a temporary array.
+   * 
+   * @param dst : the buffer to write on
+   * @returns the number of bytes read, may not be zero.
+   * @throws DisconnectedException if this Channel is disconnected.
+   */
+  public int read(ByteBuffer dst) throws DisconnectedException {
+    if (dst.hasArray()) {
+      int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+      dst.position(dst.position() + n);
+      return n;
+    }
+    byte[] bytes = new byte[Math.min(dst.remaining(), COPY_SIZE)];
+    int n = read(bytes, 0, bytes.length);
+    dst.put(bytes, 0, n);
+    return n;
+  }
+
+  /**
+   * Not thread-safe. Write the remaining bytes of the given buffer
+   * like {@link #write(byte[], int, int) write()}, advancing its position.
+   * Implementations should override it to copy the bytes without an
+   * intermediate array; this one writes through the array of heap buffers,
+   * or through a temporary array.
+   * 
+   * @param src : the buffer to read from
+   * @returns the number of bytes written, may not be zero.
+   * @throws DisconnectedException if this Channel is disconnected.
+   */
+  public int write(ByteBuffer src) throws DisconnectedException {
+    if (src.hasArray()) {
+      int n = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+      src.position(src.position() + n);
+      return n;
+    }
+    byte[] bytes = new byte[Math.min(src.remaining(), COPY_SIZE)];
+    src.get(src.position(), bytes);
+    int n = write(bytes, 0, bytes.length);
+    src.position(src.position() + n);
+    return n;
+  }
+
+  /**
+   * Not thread-safe. Write the given region of a file, blocking until it is
+   * all written. The file is mapped in memory, a region at a time, and copied
+   * to the Channel with {@link #write(ByteBuffer)}, without intermediate arrays.
+   * 
+   * @param file : the file to read from, opened for reading
+   * @param position : the position of the region in the file
+   * @param count : the size of the region, truncated at the end of the file
+   * @returns the number of bytes written.
+   * @throws DisconnectedException if this Channel is disconnected.
+   * @throws IOException if the file cannot be mapped.
+   */
+  public long transferFrom(FileChannel file, long position, long count) throws DisconnectedException, IOException {
+    if (file == null || position < 0 || count < 0)
+      throw new IllegalArgumentException(this.toString() + " transferFrom : Illegal arguments");
+    long end = Math.min(file.size(), position + count);
+    long transferred = 0;
+    while (position < end) {
+      long size = Math.min(end - position, MAP_SIZE);
+      MappedByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+      while (region.hasRemaining())
+        write(region);
+      position += size;
+      transferred += size;
+    }
+    return transferred;
+  }
+
+  /**
+   * Not thread-safe. Read bytes into the given region of a file, blocking until
+   * the region is filled or the end of stream is reached. The file is mapped in
+   * memory, a region at a time, and filled from the Channel with
+   * {@link #read(ByteBuffer)}, without intermediate arrays. If the end of stream
+   * is reached first, the file is truncated after the bytes read if it was grown.
+   * 
+   * @param file : the file to write on, opened for reading and writing
+   * @param position : the position of the region in the file
+   * @param count : the size of the region
+   * @returns the number of bytes read, less than count only if the end of stream was reached.
+   * @throws DisconnectedException if this Channel is disconnected before any byte is read.
+   * @throws IOException if the file cannot be mapped.
+   */
+  public long transferTo(FileChannel file, long position, long count) throws DisconnectedException, IOException {
+    if (file == null || position < 0 || count < 0)
+      throw new IllegalArgumentException(this.toString() + " transferTo : Illegal arguments");
+    long size = file.size();
+    long transferred = 0;
+    try {
+      while (transferred < count) {
+        MappedByteBuffer region = file.map(FileChannel.MapMode.READ_WRITE, position + transferred,
+            Math.min(count - transferred, MAP_SIZE));
+        try {
+          while (region.hasRemaining())
+            read(region);
+        } finally {
+          transferred += region.position();
+        }
+      }
+    } catch (DisconnectedException e) {
+      if (file.size() > Math.max(size, position + transferred))
+        file.truncate(Math.max(size, position + transferred));
+      if (transferred == 0)
+        throw e;
+    }
+    return transferred;
+  }
+
+  /**
+   * Not thread-safe. Read bytes in the given array like {@link #read(byte[], int, int) read()},
+   * without blocking. Lets a few threads serve many channels, see {@link ReadyListener}.
+   * 
+   * @param bytes : the array to write on
+   * @param offset : the starting index in the array
+   * @param length : number of bytes to read
+   * @returns the number of bytes read, zero if there are no bytes available.
+   * @throws DisconnectedException if this Channel is disconnected.
+   */
+  public abstract int tryRead(byte[] bytes, int offset, int length) throws DisconnectedException;
+
+  /**
+   * Not thread-safe. Write bytes from the given array like {@link #write(byte[], int, int) write()},
+   * without blocking.
+   * 
+   * @param bytes : the array to read from
+   * @param offset : the starting index in the array
+   * @param length : number of bytes to write
+   * @returns the number of bytes written, zero if there is no room to write any byte.
+   * @throws DisconnectedException if this Channel is disconnected.
+   */
+  public abstract int tryWrite(byte[] bytes, int offset, int length) throws DisconnectedException;
+
+  /**
+   * Tells if {@link #trySplice(Channel, int) trySplice()} can move the bytes of this Channel
+   * straight to the given one, without copying them through an array. By default, false.
+   *
+   * @param dst : the Channel to move the bytes to
+   * @return True if trySplice() moves the bytes straight for this pair of Channels
+   */
+  public boolean canSplice(Channel dst) {
+    return false;
+  }
+
+  /**
+   * Not thread-safe. Moves the bytes received by this Channel to the given Channel, as if read
+   * by {@link #tryRead(byte[], int, int) tryRead()} and written by {@link #tryWrite(byte[], int, int)
+   * tryWrite()}, without blocking and without copying them in between. At most as many bytes as
+   * the given Channel has room for are moved.<br>
+   * Implementations should override it when {@link #canSplice(Channel)} is true; this one
+   * copies the bytes through a temporary array of at most 8 KB, the bytes read but
+   * not accepted by the given Channel being written first by the next call.
+   *
+   * @param dst : the Channel to move the bytes to
+   * @param length : the maximum number of bytes to move
+   * @returns the number of bytes moved, zero if there are no bytes available or no room.
+   * @throws DisconnectedException if either Channel is disconnected.
+   */
+  public int trySplice(Channel dst, int length) throws DisconnectedException {
+    if (dst == null || dst == this || length < 0)
+      throw new IllegalArgumentException(this.toString() + " trySplice : Illegal arguments");
+    if (spliceCarry == null)
+      spliceCarry = new byte[COPY_SIZE];
+    int moved = 0;
+    while (moved < length) {
+      if (spliceLength == 0) {
+        spliceOffset = 0;
+        spliceLength = tryRead(spliceCarry, 0, Math.min(spliceCarry.length, length - moved));
+        if (spliceLength == 0)
+          break;
+      }
+      int n = dst.tryWrite(spliceCarry, spliceOffset, Math.min(spliceLength, length - moved));
+      if (n == 0)
+        break;
+      spliceOffset += n;
+      spliceLength -= n;
+      moved += n;
+    }
+    return moved;
+  }
+
+  /**
+   * Forwards all the bytes received by this Channel to the given Channel, until either is
+   * disconnected, with a {@link ChannelRelay} run by a shared pool of threads.<br>
+   * The relay sets the {@link ReadyListener ReadyListeners} of both Channels.
+   *
+   * @param dst : the Channel to forward the bytes to
+   * @return The started relay
+   */
+  public ChannelRelay splice(Channel dst) {
+    return ChannelRelay.start(this, dst);
+  }
+
+  /**
+   * Listener told when a Channel may have become readable or writable.
+   */
+  public interface ReadyListener {
+    /**
+     * Called when the remote end wrote or read bytes, or when either end was disconnected.
+     * It is called by the thread operating on the Channel, so it must not block.
+     * A call may be spurious, the next tryRead() or tryWrite() telling.
+     */
+    void ready();
+  }
+
+  /**
+   * Thread-safe sets the listener told when this Channel may have become readable or writable.
+   * A thread calling tryRead() or tryWrite() until they return zero, then waiting for this
+   * listener, never misses bytes or room.
+   * 
+   * @param listener : the listener, null for none
+   */
+  public abstract void setReadyListener(ReadyListener listener);
+
   /**
    * Thread-safe disconnects this Channel, unblocking any thread 
    * blocked read or write operation.
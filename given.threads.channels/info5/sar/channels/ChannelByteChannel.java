@@ -0,0 +1,83 @@
+package info5.sar.channels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * NIO view of a Channel, as a blocking {@link java.nio.channels.ReadableByteChannel ReadableByteChannel}
+ * and {@link java.nio.channels.WritableByteChannel WritableByteChannel}.<br>
+ * <br>
+ * Buffers are read and written with {@link Channel#read(ByteBuffer)} and
+ * {@link Channel#write(ByteBuffer)}, copying straight between them and the
+ * channel when it supports it. A read blocks until some bytes are read and
+ * returns -1 once the channel is disconnected and its bytes are read; a write
+ * blocks until all the remaining bytes are written. The view is open until the
+ * channel is disconnected, closing it disconnects the channel.<br>
+ * <br>
+ * Like the Channel, this view is not thread-safe.
+ */
+public class ChannelByteChannel implements ByteChannel {
+
+  private final Channel channel;
+
+  /**
+   * @param channel : the viewed channel
+   */
+  public ChannelByteChannel(Channel channel) {
+    if (channel == null)
+      throw new IllegalArgumentException("ChannelByteChannel : Illegal channel");
+    this.channel = channel;
+  }
+
+  /**
+   * @return The viewed channel
+   */
+  public Channel getChannel() {
+    return channel;
+  }
+
+  /*
+   * Read at most the remaining bytes of the buffer with read() of the channel
+   * Return -1 if the channel is disconnected
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (dst.remaining() == 0)
+      return 0;
+    try {
+      return channel.read(dst);
+    } catch (DisconnectedException e) {
+      return -1;
+    }
+  }
+
+  /*
+   * Write all the remaining bytes of the buffer with write() of the channel
+   * Throw a ClosedChannelException if the channel is disconnected
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int written = src.remaining();
+    try {
+      while (src.hasRemaining())
+        channel.write(src);
+      return written;
+    } catch (DisconnectedException e) {
+      ClosedChannelException closed = new ClosedChannelException();
+      closed.initCause(e);
+      throw closed;
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !channel.disconnected();
+  }
+
+  @Override
+  public void close() {
+    channel.disconnect();
+  }
+}
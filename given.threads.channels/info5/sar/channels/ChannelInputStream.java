@@ -0,0 +1,140 @@
+package info5.sar.channels;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered InputStream reading from a Channel, to use the standard Java I/O
+ * (DataInputStream, decompression streams, object streams) on it.<br>
+ * <br>
+ * Small reads are served from an internal buffer, refilled by one channel read
+ * taking all the bytes available up to its size; reads at least as large as the
+ * buffer go straight to the channel. The end of the stream is reached once the
+ * channel is disconnected and its bytes are read. Closing the stream disconnects
+ * the channel.<br>
+ * <br>
+ * Like the Channel, this stream is not thread-safe.
+ */
+public class ChannelInputStream extends InputStream {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final Channel channel;
+  private final byte[] buffer;
+  // the bytes of the buffer not read yet, from index 'position' to index 'limit'
+  private int position, limit;
+  private boolean eos, closed;
+
+  /**
+   * @param channel : the channel to read from
+   */
+  public ChannelInputStream(Channel channel) {
+    this(channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel : the channel to read from
+   * @param size : the size of the internal buffer
+   * @throws IllegalArgumentException if the size is not strictly positive
+   */
+  public ChannelInputStream(Channel channel, int size) {
+    if (channel == null || size <= 0)
+      throw new IllegalArgumentException("ChannelInputStream : Illegal arguments");
+    this.channel = channel;
+    this.buffer = new byte[size];
+  }
+
+  /**
+   * @return The channel read by this stream
+   */
+  public Channel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == limit && !fill())
+      return -1;
+    return buffer[position++] & 0xFF;
+  }
+
+  /*
+   * If the buffer holds bytes, copy as many as possible
+   * Else if the length is at least the size of the buffer, read from the channel in the array
+   * Else fill the buffer and copy as many bytes as possible
+   * Return -1 at the end of the stream
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (b == null || off < 0 || len < 0 || off + len > b.length)
+      throw new IndexOutOfBoundsException();
+    ensureOpen();
+    if (len == 0)
+      return 0;
+    if (position == limit) {
+      if (len >= buffer.length)
+        return readChannel(b, off, len);
+      if (!fill())
+        return -1;
+    }
+    int n = Math.min(len, limit - position);
+    System.arraycopy(buffer, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  /**
+   * @return The number of bytes readable without blocking, those of the buffer
+   */
+  @Override
+  public int available() throws IOException {
+    ensureOpen();
+    return limit - position;
+  }
+
+  /*
+   * Drop the buffer and disconnect the channel
+   */
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    position = limit = 0;
+    channel.disconnect();
+  }
+
+  /**
+   * Refills the empty buffer with one channel read.
+   * @return False at the end of the stream
+   */
+  private boolean fill() throws IOException {
+    ensureOpen();
+    int n = readChannel(buffer, 0, buffer.length);
+    if (n < 0)
+      return false;
+    position = 0;
+    limit = n;
+    return true;
+  }
+
+  /**
+   * Reads from the channel, blocking until some bytes are read.
+   * @return The number of bytes read, -1 at the end of the stream
+   */
+  private int readChannel(byte[] b, int off, int len) {
+    if (eos)
+      return -1;
+    try {
+      return channel.read(b, off, len);
+    } catch (DisconnectedException e) {
+      eos = true;
+      return -1;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed)
+      throw new IOException("ChannelInputStream : Stream closed");
+  }
+}
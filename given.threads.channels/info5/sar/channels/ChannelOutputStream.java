@@ -0,0 +1,139 @@
+package info5.sar.channels;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered OutputStream writing to a Channel, to use the standard Java I/O
+ * (DataOutputStream, compression streams, object streams) on it.<br>
+ * <br>
+ * Small writes are coalesced in an internal buffer, written to the channel when
+ * full or on {@link #flush()}; writes at least as large as the buffer go straight
+ * to the channel after flushing it. Bytes left in the buffer are not sent until
+ * flushed. Closing the stream flushes it, then disconnects the channel.<br>
+ * <br>
+ * Like the Channel, this stream is not thread-safe.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final Channel channel;
+  private final byte[] buffer;
+  // the number of bytes in the buffer
+  private int count;
+  private boolean closed;
+
+  /**
+   * @param channel : the channel to write to
+   */
+  public ChannelOutputStream(Channel channel) {
+    this(channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel : the channel to write to
+   * @param size : the size of the internal buffer
+   * @throws IllegalArgumentException if the size is not strictly positive
+   */
+  public ChannelOutputStream(Channel channel, int size) {
+    if (channel == null || size <= 0)
+      throw new IllegalArgumentException("ChannelOutputStream : Illegal arguments");
+    this.channel = channel;
+    this.buffer = new byte[size];
+  }
+
+  /**
+   * @return The channel written by this stream
+   */
+  public Channel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == buffer.length)
+      flushBuffer();
+    buffer[count++] = (byte) b;
+  }
+
+  /*
+   * If the length is at least the size of the buffer, flush the buffer and write the array to the channel
+   * Else copy the bytes in the buffer, flushing it each time it is full
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (b == null || off < 0 || len < 0 || off + len > b.length)
+      throw new IndexOutOfBoundsException();
+    ensureOpen();
+    if (len >= buffer.length) {
+      flushBuffer();
+      writeChannel(b, off, len);
+      return;
+    }
+    while (len > 0) {
+      if (count == buffer.length)
+        flushBuffer();
+      int n = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Writes the buffered bytes to the channel, blocking until they are all written.
+   * @throws IOException if the channel is disconnected
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    flushBuffer();
+  }
+
+  /*
+   * Flush the buffer, then disconnect the channel, even if the flush failed
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    try {
+      flushBuffer();
+    } finally {
+      closed = true;
+      channel.disconnect();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      writeChannel(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Writes all the bytes to the channel.
+   * @throws IOException if the channel is disconnected
+   */
+  private void writeChannel(byte[] b, int off, int len) throws IOException {
+    try {
+      while (len > 0) {
+        int n = channel.write(b, off, len);
+        off += n;
+        len -= n;
+      }
+    } catch (DisconnectedException e) {
+      count = 0;
+      throw new IOException(e);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed)
+      throw new IOException("ChannelOutputStream : Stream closed");
+  }
+}
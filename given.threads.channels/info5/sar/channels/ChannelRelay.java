@@ -0,0 +1,226 @@
+package info5.sar.channels;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwarding of the bytes received by a Channel to another one, like a proxy or a gateway
+ * does, without a thread per relay.<br>
+ * <br>
+ * A relay is run by a small pool of threads shared by all the relays, when one of its
+ * Channels tells it is ready, and never blocks: it moves the bytes until the source has
+ * none left or the destination has no more room, then gives the thread back. The destination
+ * being full stops the relay, and so the source fills up in turn, which blocks its remote
+ * writer: the back-pressure goes through the relay. The bytes are moved with
+ * {@link Channel#trySplice(Channel, int) trySplice()}, straight from one Channel to the other
+ * when they support it, else through a bounded array of the source.<br>
+ * <br>
+ * The relay ends when either Channel is disconnected, disconnecting the other. The bytes
+ * already forwarded are still read by the remote end of the destination.
+ */
+public class ChannelRelay {
+
+  // the maximum number of bytes moved in a run, the relay being scheduled again after the others
+  private static final int BYTES_PER_RUN = 64 * 1024;
+  // the time an idle worker waits for a relay before stopping, in seconds
+  private static final long KEEP_ALIVE = 30;
+  private static final int IDLE = 0, SCHEDULED = 1, RUNNING = 2, SIGNALLED = 3;
+
+  // the number of created workers, to name them
+  private static final AtomicInteger workers = new AtomicInteger();
+  // the workers shared by all the relays, one per processor
+  private static final ExecutorService pool;
+
+  static {
+    int nworkers = Math.max(2, Runtime.getRuntime().availableProcessors());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(nworkers, nworkers, KEEP_ALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), r -> {
+          Thread worker = new Thread(r, "ChannelRelay-" + workers.incrementAndGet());
+          worker.setDaemon(true);
+          return worker;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    pool = executor;
+  }
+
+  private final Channel src, dst;
+  private final AtomicInteger state = new AtomicInteger(IDLE);
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final Runnable run = this::run;
+  private volatile long transferred;
+
+  private ChannelRelay(Channel src, Channel dst) {
+    if (src == null || dst == null || src == dst)
+      throw new IllegalArgumentException("ChannelRelay : Illegal channels");
+    this.src = src;
+    this.dst = dst;
+  }
+
+  /**
+   * Starts forwarding the bytes received by the source Channel to the destination Channel.<br>
+   * The relay sets the {@link Channel.ReadyListener ReadyListeners} of both Channels,
+   * use {@link #pipe(Channel, Channel)} to forward both ways.
+   *
+   * @param src : the Channel to read from
+   * @param dst : the Channel to write to
+   * @return The started relay
+   * @throws IllegalArgumentException if a Channel is null or both are the same
+   */
+  public static ChannelRelay start(Channel src, Channel dst) {
+    ChannelRelay relay = new ChannelRelay(src, dst);
+    src.setReadyListener(relay::signal);
+    dst.setReadyListener(relay::signal);
+    relay.signal();
+    return relay;
+  }
+
+  /**
+   * Starts forwarding the bytes received by each Channel to the other.<br>
+   * The relays set the {@link Channel.ReadyListener ReadyListeners} of both Channels.
+   *
+   * @param a : a Channel
+   * @param b : the other Channel
+   * @return The started relays, from a to b then from b to a
+   * @throws IllegalArgumentException if a Channel is null or both are the same
+   */
+  public static ChannelRelay[] pipe(Channel a, Channel b) {
+    ChannelRelay ab = new ChannelRelay(a, b);
+    ChannelRelay ba = new ChannelRelay(b, a);
+    Channel.ReadyListener listener = () -> {
+      ab.signal();
+      ba.signal();
+    };
+    a.setReadyListener(listener);
+    b.setReadyListener(listener);
+    ab.signal();
+    ba.signal();
+    return new ChannelRelay[] { ab, ba };
+  }
+
+  /**
+   * @return The Channel read by this relay
+   */
+  public Channel getSource() {
+    return src;
+  }
+
+  /**
+   * @return The Channel written by this relay
+   */
+  public Channel getDestination() {
+    return dst;
+  }
+
+  /**
+   * @return The number of bytes forwarded so far
+   */
+  public long getTransferred() {
+    return transferred;
+  }
+
+  /**
+   * @return True if this relay ended
+   */
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * Blocks until this relay ended.
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  public void await() throws InterruptedException {
+    done.await();
+  }
+
+  /**
+   * Blocks until this relay ended or the timeout elapsed.
+   * @param timeout : the maximum time to wait, in milliseconds
+   * @return True if this relay ended
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  public boolean await(long timeout) throws InterruptedException {
+    return done.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Thread-safe ends this relay, disconnecting both Channels.
+   */
+  public void close() {
+    src.disconnect();
+    dst.disconnect();
+  }
+
+  /*
+   * If idle, schedule this relay on the workers
+   * If running, flag it so it runs again once done
+   * Else do nothing, the scheduled run will see what was signalled
+   */
+  /**
+   * Asks for this relay to run, when one of its Channels may be ready.
+   * This is a thread-safe non-blocking method.
+   */
+  private void signal() {
+    while (true) {
+      int s = state.get();
+      if (s == IDLE) {
+        if (state.compareAndSet(IDLE, SCHEDULED)) {
+          pool.execute(run);
+          return;
+        }
+      } else if (s == RUNNING) {
+        if (state.compareAndSet(RUNNING, SIGNALLED))
+          return;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /*
+   * Set the state to running and call forward()
+   * If bytes are left or this relay was signalled meanwhile, schedule it again,
+   * else set the state back to idle
+   */
+  private void run() {
+    if (isDone())
+      return;
+    state.set(RUNNING);
+    boolean more = forward();
+    if (!more && state.compareAndSet(RUNNING, IDLE))
+      return;
+    state.set(SCHEDULED);
+    pool.execute(run);
+  }
+
+  /*
+   * Until BYTES_PER_RUN bytes are moved :
+   * - splice the bytes, stop if none moved
+   * If a Channel is disconnected, disconnect both and end the relay
+   */
+  /**
+   * Moves a bounded number of bytes, never blocking.
+   * @return True if bytes are left
+   */
+  private boolean forward() {
+    try {
+      int moved = 0;
+      while (moved < BYTES_PER_RUN) {
+        int n = src.trySplice(dst, BYTES_PER_RUN - moved);
+        if (n == 0)
+          return false;
+        moved += n;
+        transferred += n;
+      }
+      return true;
+    } catch (DisconnectedException e) {
+      close();
+      done.countDown();
+      return false;
+    }
+  }
+}
@@ -28,6 +28,16 @@ public class Task extends Thread {
       th.printStackTrace();
   }
 
+  /*
+   * A small stack size, enough for a task blocked in a
+   * channel or a queue, much less than the default stack
+   * of a thread. This only reserves less memory per task:
+   * a task is still a platform thread, the JDK 17 targeted
+   * having no virtual threads, so this is not a lightweight
+   * task mode and the virtual machine may ignore the size.
+   */
+  public static final long LIGHT_STACK_SIZE = 256 * 1024;
+
   protected Broker broker;
   protected Runnable boot;
   protected boolean alive;
@@ -43,6 +53,16 @@ public class Task extends Thread {
     this.broker = broker;
   }
 
+  /*
+   * Constructs a task with the given stack size, in bytes,
+   * see LIGHT_STACK_SIZE. The size is a hint, the virtual
+   * machine may round it or ignore it.
+   */
+  public Task(String name, Broker broker, long stackSize) {
+    super(null, null, name, stackSize);
+    this.broker = broker;
+  }
+
   public Broker getBroker() {
     return broker;
   }
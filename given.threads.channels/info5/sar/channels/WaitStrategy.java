@@ -0,0 +1,120 @@
+package info5.sar.channels;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How a thread blocked in a channel read or write waits, set per broker.<br>
+ * <br>
+ * Before parking, which costs the peer an unpark and a context switch to wake it,
+ * a waiting thread may spin a while, then yield a few times, watching for the
+ * peer's next operation. Spinning pays off when that operation is microseconds
+ * away, like in a ping-pong, and only burns processor time otherwise.
+ * <br>
+ * Each channel end tunes its own spin budget from its recent waits: a wait
+ * ending while spinning or yielding grows it, up to the strategy's maximum,
+ * and a wait ending parked halves it, down to a small floor so the channel
+ * notices when its traffic speeds up again. On a single processor the peer
+ * cannot run while the waiter spins or yields, so all the strategies park at once.
+ */
+public class WaitStrategy {
+
+  // initialized before the strategies, which use it
+  private static final boolean UNIPROCESSOR = Runtime.getRuntime().availableProcessors() == 1;
+
+  /**
+   * Spins long and yields before parking, for latency-critical traffic.
+   */
+  public static final WaitStrategy LATENCY = new WaitStrategy("latency", 1 << 14, 16);
+
+  /**
+   * Spins briefly before parking, the default.
+   */
+  public static final WaitStrategy BALANCED = new WaitStrategy("balanced", 1 << 10, 2);
+
+  /**
+   * Parks at once, never burning processor time.
+   */
+  public static final WaitStrategy CPU_SAVING = new WaitStrategy("cpu-saving", 0, 0);
+
+  private final String name;
+  private final int maxSpins;
+  private final int maxYields;
+
+  /**
+   * @param name : the name of the strategy
+   * @param maxSpins : the maximum number of spins before yielding
+   * @param maxYields : the number of yields before parking
+   * @throws IllegalArgumentException if a count is negative
+   */
+  public WaitStrategy(String name, int maxSpins, int maxYields) {
+    if (maxSpins < 0 || maxYields < 0)
+      throw new IllegalArgumentException("WaitStrategy : Illegal counts");
+    this.name = name;
+    this.maxSpins = UNIPROCESSOR ? 0 : maxSpins;
+    this.maxYields = UNIPROCESSOR ? 0 : maxYields;
+  }
+
+  /**
+   * @return True if this strategy parks at once, without spinning nor yielding
+   */
+  public boolean parksAtOnce() {
+    return maxSpins == 0 && maxYields == 0;
+  }
+
+  /**
+   * @return A new waiter following this strategy, for one channel end and direction
+   */
+  public Waiter newWaiter() {
+    return new Waiter();
+  }
+
+  @Override
+  public String toString() {
+    return "WaitStrategy[" + name + "]";
+  }
+
+  /**
+   * Spin-then-yield phase of the waits of a channel end, in one direction.
+   * Its budget is updated without synchronization, concurrent waiters only
+   * blur the tuning.
+   */
+  public class Waiter {
+    private int budget = maxSpins;
+
+    Waiter() {
+    }
+
+    /*
+     * Spin at most 'budget' times, then yield at most maxYields times,
+     * until the version changes.
+     * If it changed, grow the budget to twice the spins it took,
+     * else halve the budget.
+     */
+    /**
+     * Waits a while, without parking, for the version to change.
+     * Called without holding the lock guarding the version.
+     * @param version : the version of the buffer, changed by each operation
+     * @param seen : the version seen when the wait started
+     * @return True if the version changed, false if the thread should park
+     */
+    public boolean await(AtomicLong version, long seen) {
+      int spins = budget;
+      for (int i = 0; i < spins; i++) {
+        if (version.get() != seen) {
+          budget = Math.min(maxSpins, Math.max(budget, 2 * i));
+          return true;
+        }
+        Thread.onSpinWait();
+      }
+      for (int i = 0; i < maxYields; i++) {
+        Thread.yield();
+        if (version.get() != seen) {
+          budget = Math.min(maxSpins, Math.max(maxSpins >> 4, 2 * budget));
+          return true;
+        }
+      }
+      budget = Math.max(maxSpins >> 4, budget >> 1);
+      return false;
+    }
+  }
+}
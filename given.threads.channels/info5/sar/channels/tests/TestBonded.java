@@ -0,0 +1,362 @@
+package info5.sar.channels.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import info5.sar.channels.BondedBroker;
+import info5.sar.channels.BondedChannel;
+import info5.sar.channels.Broker;
+import info5.sar.channels.Channel;
+import info5.sar.channels.DisconnectedException;
+import info5.sar.channels.Task;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the bonded channels, striping one stream across several channels,
+ * see {@link BondedChannel} and {@link BondedBroker}.
+ *
+ * It checks that:
+ *
+ * - a stream written in pieces of random sizes on bonds of 1, 2 and 4 channels,
+ *   cut in small chunks, is read back whole and in order, both ways, and the
+ *   bytes written before disconnecting are read before the end of the stream.
+ * - bonds connected concurrently on the same port are each accepted whole.
+ * - a sub-channel claiming a rank already taken drops its bond, and a chunk
+ *   announced with an illegal length disconnects the bond, the peers being raw
+ *   Channels writing the handshake and the chunks.
+ * - illegal counts and chunk sizes are rejected.
+ *
+ * The default broker may be changed with the argument -broker: as with {@link Test}.
+ */
+public class TestBonded {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ClassName = "info5.sar.channels.CBroker";
+  static final String BROKER_OPTION = "-broker:";
+
+  private static final int CHUNK = 1000;
+  private static final int NBYTES = 200000;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(BROKER_OPTION))
+        ClassName = arg.substring(BROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Broker: " + ClassName);
+    System.out.println("--------------------------------------\n");
+
+    Broker server = newBroker("BondedServer");
+    Broker client = newBroker("BondedClient");
+    testIllegal(server, client);
+    int port = 80;
+    for (int count : new int[] { 1, 2, 4 })
+      testStream(server, client, port++, count);
+    testConcurrent(server, client, port++);
+    testDuplicateRank(server, client, port++);
+    testCorrupted(server, client, port++);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Checks illegal counts and chunk sizes are rejected.
+   */
+  private static void testIllegal(Broker server, Broker client) throws Exception {
+    try {
+      BondedChannel.connect(client, server.getName(), 79, 0);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, a bond has at least one channel
+    }
+    try {
+      new BondedBroker(client, 0);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, a bond has at least one channel
+    }
+    BondedChannel channels[] = connect(server, client, 79, 1);
+    for (int size : new int[] { 0, BondedChannel.MAX_CHUNK_SIZE + 1 }) {
+      try {
+        channels[0].setChunkSize(size);
+        ensure(false);
+      } catch (IllegalArgumentException e) {
+        // Nothing to do here, the chunk size is illegal
+      }
+    }
+    channels[0].disconnect();
+    channels[1].disconnect();
+    System.out.println("Illegal counts and chunk sizes: ok");
+  }
+
+  /*
+   * Connect a bond of the given count, with small chunks on both ends
+   * The client writes the stream in pieces of random sizes, then disconnects
+   * The server reads it in pieces of random sizes until the end of the stream,
+   * writing it back meanwhile, then disconnects once the client read it back
+   */
+  /**
+   * Echoes a stream on a bond of the given number of channels.
+   */
+  private static void testStream(Broker server, Broker client, int port, int count) throws Exception {
+    BondedChannel channels[] = connect(server, client, port, count);
+    ensure(channels[0].getChannelCount() == count && channels[1].getChannelCount() == count);
+    ensure(channels[1].getRemoteName().equals(client.getName()) && channels[1].getPort() == port);
+    channels[0].setChunkSize(CHUNK);
+    channels[1].setChunkSize(CHUNK);
+    byte stream[] = payload(NBYTES, count);
+
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        Random random = new Random(count);
+        byte bytes[] = new byte[5000];
+        int total = 0;
+        try {
+          while (true) {
+            int n = channels[1].read(bytes, 0, 1 + random.nextInt(bytes.length));
+            ensure(Arrays.equals(bytes, 0, n, stream, total, total + n));
+            total += n;
+            writeFully(channels[1], bytes, n);
+          }
+        } catch (DisconnectedException e) {
+          // Nothing to do here, the client disconnected at the end of the stream
+        }
+        ensure(total == NBYTES);
+      }
+    });
+    Task tc = new Task("Client", client);
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        Random random = new Random(-count);
+        try {
+          for (int offset = 0; offset < NBYTES;) {
+            int n = Math.min(NBYTES - offset, 1 + random.nextInt(5000));
+            writeFully(channels[0], Arrays.copyOfRange(stream, offset, offset + n), n);
+            offset += n;
+          }
+        } catch (DisconnectedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    byte echo[] = new byte[NBYTES];
+    readFully(channels[0], echo, NBYTES);
+    ensure(Arrays.equals(echo, stream));
+    tc.join();
+    channels[0].disconnect();
+    ensure(channels[0].disconnected());
+    ts.join();
+    ensure(channels[1].disconnected());
+    System.out.println(NBYTES + " bytes echoed on a bond of " + count + ": ok");
+  }
+
+  /**
+   * Connects bonds of different counts concurrently on the same port, each one writing
+   * its count then a stream, and checks each accepted bond gets the stream of its count.
+   */
+  private static void testConcurrent(Broker server, Broker client, int port) throws Exception {
+    int counts[] = { 2, 3, 5 };
+    Task readers[] = new Task[counts.length], connectors[] = new Task[counts.length];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < counts.length; i++) {
+          BondedChannel channel = BondedChannel.accept(server, port);
+          readers[i] = new Task("Reader", server);
+          readers[i].start(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                byte bytes[] = new byte[1 + NBYTES / 10];
+                readFully(channel, bytes, bytes.length);
+                ensure(bytes[0] == channel.getChannelCount());
+                ensure(Arrays.equals(Arrays.copyOfRange(bytes, 1, bytes.length), payload(NBYTES / 10, bytes[0])));
+                channel.disconnect();
+              } catch (DisconnectedException e) {
+                Panic.failStop(e);
+              }
+            }
+          });
+        }
+      }
+    });
+    for (int i = 0; i < counts.length; i++) {
+      int count = counts[i];
+      connectors[i] = new Task("Connector", client);
+      connectors[i].start(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            BondedChannel channel = BondedChannel.connect(client, server.getName(), port, count);
+            ensure(channel != null);
+            channel.setChunkSize(CHUNK);
+            writeFully(channel, new byte[] { (byte) count }, 1);
+            writeFully(channel, payload(NBYTES / 10, count), NBYTES / 10);
+            channel.disconnect();
+          } catch (DisconnectedException e) {
+            Panic.failStop(e);
+          }
+        }
+      });
+    }
+    for (Task connector : connectors)
+      connector.join();
+    ts.join();
+    for (Task reader : readers)
+      reader.join();
+    System.out.println(counts.length + " bonds accepted concurrently: ok");
+  }
+
+  /*
+   * Connect two raw Channels claiming the same rank of the same bond
+   * Check the acceptor disconnects both, then still accepts a valid bond
+   */
+  /**
+   * Checks a sub-channel claiming a rank already taken drops its bond.
+   */
+  private static void testDuplicateRank(Broker server, Broker client, int port) throws Exception {
+    BondedChannel accepted[] = new BondedChannel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = BondedChannel.accept(server, port);
+      }
+    });
+    Channel subs[] = new Channel[2];
+    for (int i = 0; i < subs.length; i++) {
+      subs[i] = client.connect(server.getName(), port);
+      writeFully(subs[i], handshake(42, 0, 2), 16);
+    }
+    for (Channel sub : subs) {
+      try {
+        sub.read(new byte[1], 0, 1);
+        ensure(false);
+      } catch (DisconnectedException e) {
+        // Nothing to do here, the acceptor dropped the bond
+      }
+      sub.disconnect();
+    }
+    ensure(accepted[0] == null);
+    BondedChannel channel = BondedChannel.connect(client, server.getName(), port, 2);
+    ts.join();
+    ensure(accepted[0] != null && accepted[0].getChannelCount() == 2);
+    writeFully(channel, payload(10, 1), 10);
+    byte bytes[] = new byte[10];
+    readFully(accepted[0], bytes, 10);
+    ensure(Arrays.equals(bytes, payload(10, 1)));
+    channel.disconnect();
+    accepted[0].disconnect();
+    System.out.println("Duplicate rank dropped: ok");
+  }
+
+  /*
+   * Connect a raw Channel as a bond of one channel
+   * Write a valid chunk and check the bond reads it
+   * Write a chunk announced with a zero length and check the bond is disconnected with its sub-channel
+   */
+  /**
+   * Checks a chunk announced with an illegal length disconnects the bond.
+   */
+  private static void testCorrupted(Broker server, Broker client, int port) throws Exception {
+    BondedChannel accepted[] = new BondedChannel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = BondedChannel.accept(server, port);
+      }
+    });
+    Channel sub = client.connect(server.getName(), port);
+    writeFully(sub, handshake(43, 0, 1), 16);
+    ts.join();
+    byte chunk[] = { 0, 0, 0, 3, 'a', 'b', 'c' };
+    writeFully(sub, chunk, chunk.length);
+    byte bytes[] = new byte[3];
+    readFully(accepted[0], bytes, 3);
+    ensure(Arrays.equals(bytes, new byte[] { 'a', 'b', 'c' }));
+    writeFully(sub, new byte[4], 4);
+    try {
+      accepted[0].read(bytes, 0, 1);
+      ensure(false);
+    } catch (DisconnectedException e) {
+      // Nothing to do here, the bond is disconnected
+    }
+    ensure(accepted[0].disconnected());
+    try {
+      sub.read(bytes, 0, 1);
+      ensure(false);
+    } catch (DisconnectedException e) {
+      // Nothing to do here, the sub-channel is disconnected
+    }
+    sub.disconnect();
+    System.out.println("Illegal chunk length: ok");
+  }
+
+  /**
+   * @return The handshake of a sub-channel : the bond identifier, its rank and the number of sub-channels
+   */
+  private static byte[] handshake(long id, int rank, int count) {
+    byte bytes[] = new byte[16];
+    for (int i = 0; i < 8; i++)
+      bytes[i] = (byte) (id >>> (56 - 8 * i));
+    for (int i = 0; i < 4; i++) {
+      bytes[8 + i] = (byte) (rank >>> (24 - 8 * i));
+      bytes[12 + i] = (byte) (count >>> (24 - 8 * i));
+    }
+    return bytes;
+  }
+
+  /**
+   * Connects a bond of the given count.
+   * @return The client end and the server end
+   */
+  private static BondedChannel[] connect(Broker server, Broker client, int port, int count) throws Exception {
+    BondedChannel accepted[] = new BondedChannel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = BondedChannel.accept(server, port);
+      }
+    });
+    BondedChannel channel = BondedChannel.connect(client, server.getName(), port, count);
+    ts.join();
+    ensure(channel != null && accepted[0] != null);
+    return new BondedChannel[] { channel, accepted[0] };
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  private static void readFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.read(bytes, offset, length - offset);
+  }
+
+  private static void writeFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.write(bytes, offset, length - offset);
+  }
+
+  private static Broker newBroker(String name) throws Exception {
+    Class<?> cls = Class.forName(ClassName);
+    return (Broker) cls.getConstructor(String.class).newInstance(name);
+  }
+}
@@ -0,0 +1,205 @@
+package info5.sar.channels.tests;
+
+import java.util.Arrays;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.CBroker;
+import info5.sar.channels.Channel;
+import info5.sar.channels.DisconnectedException;
+import info5.sar.channels.Task;
+import info5.sar.utils.Panic;
+import info5.sar.utils.Recycler;
+
+/**
+ * This test checks the reuse of the buffers of the disconnected channels,
+ * see {@link Recycler} and {@link CBroker#setChannelPoolSize(int)}.
+ *
+ * It checks that:
+ *
+ * - a recycler keeps the objects given back up to its capacity, dropping the
+ *   others, gives the last one kept first, and counts the reused and dropped ones.
+ * - changing the capacity of a recycler drops the objects beyond it, and
+ *   illegal capacities are rejected.
+ * - the channel pool size of a broker may be changed, illegal sizes being rejected.
+ * - channels connected again and again, each one disconnected with unread bytes
+ *   left, only read the bytes written on them, whole and in order, with or
+ *   without reusing buffers; an end still reads the bytes left once the other
+ *   end is disconnected, then sees the disconnection.
+ *
+ * The default broker may be changed with the argument -broker: as with {@link Test},
+ * the pool size being only checked with a {@link CBroker}.
+ */
+public class TestChannelPool {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ClassName = "info5.sar.channels.CBroker";
+  static final String BROKER_OPTION = "-broker:";
+
+  private static final int NBYTES = 100;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(BROKER_OPTION))
+        ClassName = arg.substring(BROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Broker: " + ClassName);
+    System.out.println("--------------------------------------\n");
+
+    testRecycler();
+    Broker server = newBroker("PoolServer");
+    Broker client = newBroker("PoolClient");
+    if (server instanceof CBroker)
+      testPoolSize((CBroker) server);
+    testReuse(server, client, 80, 200);
+    if (server instanceof CBroker) {
+      ((CBroker) server).setChannelPoolSize(0);
+      ((CBroker) client).setChannelPoolSize(0);
+      testReuse(server, client, 81, 50);
+    }
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Checks the capacity, the order and the counts of a recycler.
+   */
+  private static void testRecycler() {
+    try {
+      new Recycler<Integer>(-1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the capacity is illegal
+    }
+    Recycler<Integer> recycler = new Recycler<>(3);
+    ensure(recycler.getCapacity() == 3 && recycler.size() == 0 && recycler.poll() == null);
+    for (int i = 0; i < 5; i++)
+      ensure(recycler.offer(i) == i < 3);
+    ensure(recycler.size() == 3 && recycler.dropped() == 2);
+    ensure(recycler.poll() == 2 && recycler.poll() == 1);
+    ensure(recycler.reused() == 2 && recycler.size() == 1);
+    ensure(recycler.offer(5) && recycler.offer(6) && !recycler.offer(7));
+
+    recycler.setCapacity(2);
+    ensure(recycler.getCapacity() == 2 && recycler.size() == 2);
+    ensure(recycler.poll() == 5 && recycler.poll() == 0 && recycler.poll() == null);
+    try {
+      recycler.setCapacity(-1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the capacity is illegal
+    }
+    recycler.setCapacity(0);
+    ensure(!recycler.offer(8) && recycler.size() == 0 && recycler.poll() == null);
+    ensure(recycler.reused() == 4 && recycler.dropped() == 4);
+    System.out.println("Recycler: ok");
+  }
+
+  /**
+   * Checks the channel pool size of a broker.
+   */
+  private static void testPoolSize(CBroker broker) {
+    ensure(broker.getChannelPoolSize() == CBroker.DEFAULT_CHANNEL_POOL_SIZE);
+    try {
+      broker.setChannelPoolSize(-1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the size is illegal
+    }
+    broker.setChannelPoolSize(4);
+    ensure(broker.getChannelPoolSize() == 4);
+    System.out.println("Channel pool size: ok");
+  }
+
+  /*
+   * For each round, connect a pair of channels, write bytes both ways
+   * Read half of the bytes on each end, then disconnect the client end
+   * Check the server end reads the other half, then gets a DisconnectedException
+   * Write bytes the server end does not read, then disconnect it, so the buffers
+   * are given back with unread bytes
+   */
+  /**
+   * Connects channels again and again, checking they only read their own bytes.
+   */
+  private static void testReuse(Broker server, Broker client, int port, int nrounds) throws Exception {
+    for (int round = 0; round < nrounds; round++) {
+      Channel channels[] = connect(server, client, port);
+      byte sent[] = payload(NBYTES, round), echo[] = payload(NBYTES, -round);
+      writeFully(channels[0], sent, NBYTES);
+      writeFully(channels[1], echo, NBYTES);
+      byte read[] = new byte[NBYTES];
+      readFully(channels[1], read, NBYTES / 2);
+      ensure(Arrays.equals(Arrays.copyOf(read, NBYTES / 2), Arrays.copyOf(sent, NBYTES / 2)));
+      readFully(channels[0], read, NBYTES / 2);
+      ensure(Arrays.equals(Arrays.copyOf(read, NBYTES / 2), Arrays.copyOf(echo, NBYTES / 2)));
+
+      channels[0].disconnect();
+      ensure(channels[0].disconnected() && !channels[1].disconnected());
+      readFully(channels[1], read, NBYTES / 2);
+      ensure(Arrays.equals(Arrays.copyOf(read, NBYTES / 2), Arrays.copyOfRange(sent, NBYTES / 2, NBYTES)));
+      try {
+        channels[1].read(read, 0, 1);
+        ensure(false);
+      } catch (DisconnectedException e) {
+        // Nothing to do here, all the bytes were read
+      }
+      channels[1].disconnect();
+      try {
+        channels[0].write(sent, 0, 1);
+        ensure(false);
+      } catch (DisconnectedException e) {
+        // Nothing to do here, the channel is disconnected
+      }
+    }
+    System.out.println(nrounds + " channels connected and disconnected: ok");
+  }
+
+  /**
+   * Connects a pair of channels.
+   * @return The client end and the server end
+   */
+  private static Channel[] connect(Broker server, Broker client, int port) throws Exception {
+    Channel accepted[] = new Channel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    Channel channel = client.connect(server.getName(), port);
+    ts.join();
+    ensure(channel != null && accepted[0] != null);
+    return new Channel[] { channel, accepted[0] };
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  private static void readFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.read(bytes, offset, length - offset);
+  }
+
+  private static void writeFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.write(bytes, offset, length - offset);
+  }
+
+  private static Broker newBroker(String name) throws Exception {
+    Class<?> cls = Class.forName(ClassName);
+    return (Broker) cls.getConstructor(String.class).newInstance(name);
+  }
+}
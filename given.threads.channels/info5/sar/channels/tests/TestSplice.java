@@ -0,0 +1,298 @@
+package info5.sar.channels.tests;
+
+import java.util.Arrays;
+
+import info5.sar.channels.BondedChannel;
+import info5.sar.channels.Broker;
+import info5.sar.channels.Channel;
+import info5.sar.channels.ChannelRelay;
+import info5.sar.channels.DisconnectedException;
+import info5.sar.channels.Task;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the splicing of channels into each other,
+ * see {@link Channel#trySplice(Channel, int)} and {@link ChannelRelay}.
+ *
+ * It checks that:
+ *
+ * - trySplice() moves the bytes received by a channel to another one, never
+ *   more than asked nor than there is room for, returning 0 when there is
+ *   nothing to move, and rejects illegal arguments.
+ * - trySplice() between channels of different types, copying the bytes, keeps
+ *   them whole and in order, as a relay from and to a bonded channel.
+ * - a client echoing a stream with a server through a proxy piping two channels
+ *   gets it back whole, the relays counting the bytes they forwarded, and the
+ *   relays end once the client disconnects, disconnecting the other channels.
+ *
+ * The default broker may be changed with the argument -broker: as with {@link Test}.
+ */
+public class TestSplice {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  static String ClassName = "info5.sar.channels.CBroker";
+  static final String BROKER_OPTION = "-broker:";
+
+  // the maximum time waited for a relay to end, in milliseconds
+  private static final long TIMEOUT = 30 * 1000;
+  private static final int NBYTES = 300000;
+
+  static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(BROKER_OPTION))
+        ClassName = arg.substring(BROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Broker: " + ClassName);
+    System.out.println("--------------------------------------\n");
+
+    Broker server = newBroker("SpliceServer");
+    Broker proxy = newBroker("SpliceProxy");
+    Broker client = newBroker("SpliceClient");
+    testTrySplice(server, client, 80);
+    testAcrossTypes(server, proxy, client, 82);
+    testProxy(server, proxy, client, 85);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /*
+   * Connect two pairs of channels, write bytes on the first pair and splice them
+   * from its receiving end to the sending end of the second pair, in small and
+   * large steps, until all are read from the second pair
+   */
+  /**
+   * Checks trySplice() between two channels.
+   */
+  private static void testTrySplice(Broker server, Broker client, int port) throws Exception {
+    Channel first[] = connect(server, client, port), second[] = connect(server, client, port + 1);
+    Channel src = first[1], dst = second[0];
+    try {
+      src.trySplice(dst, -1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the length is illegal
+    }
+    try {
+      src.trySplice(src, 1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, a channel cannot splice into itself
+    }
+    ensure(src.trySplice(dst, 100) == 0);
+
+    byte stream[] = payload(NBYTES / 10, 1);
+    Task tw = writer(client, first[0], stream);
+    Task tr = new Task("Reader", server);
+    byte read[] = new byte[stream.length];
+    tr.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          readFully(second[1], read, read.length);
+        } catch (DisconnectedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    int moved = 0, step = 1;
+    while (moved < stream.length) {
+      int n = src.trySplice(dst, step);
+      ensure(n >= 0 && n <= step);
+      moved += n;
+      step = step % 1000 + 7;
+      if (n == 0)
+        Thread.yield();
+    }
+    tw.join();
+    tr.join();
+    ensure(Arrays.equals(read, stream));
+    ensure(src.trySplice(dst, 100) == 0);
+    for (Channel channel : new Channel[] { first[0], first[1], second[0], second[1] })
+      channel.disconnect();
+    try {
+      src.trySplice(dst, 100);
+      ensure(false);
+    } catch (DisconnectedException e) {
+      // Nothing to do here, the channels are disconnected
+    }
+    System.out.println(stream.length + " bytes spliced by steps: ok");
+  }
+
+  /*
+   * Relay a stream from a channel to a bonded channel, through a proxy,
+   * the bonded channel not splicing so the bytes are copied
+   * Then relay a stream the other way
+   */
+  /**
+   * Checks relays between channels of different types.
+   */
+  private static void testAcrossTypes(Broker server, Broker proxy, Broker client, int port) throws Exception {
+    Channel in[] = connect(proxy, client, port);
+    BondedChannel bond[] = bond(server, proxy, port + 1, 3);
+    ensure(!in[1].canSplice(bond[1]) && !bond[1].canSplice(in[1]));
+
+    byte stream[] = payload(NBYTES, 2);
+    ChannelRelay relay = ChannelRelay.start(in[1], bond[1]);
+    ensure(relay.getSource() == in[1] && relay.getDestination() == bond[1]);
+    Task tw = writer(client, in[0], stream);
+    byte read[] = new byte[NBYTES];
+    readFully(bond[0], read, NBYTES);
+    ensure(Arrays.equals(read, stream));
+    tw.join();
+    ensure(relay.getTransferred() == NBYTES);
+    in[0].disconnect();
+    ensure(relay.await(TIMEOUT) && relay.isDone());
+    ensure(bond[1].disconnected());
+    System.out.println(NBYTES + " bytes relayed to a bonded channel: ok");
+
+    in = connect(proxy, client, port + 2);
+    bond = bond(server, proxy, port + 3, 2);
+    stream = payload(NBYTES, 3);
+    relay = ChannelRelay.start(bond[1], in[1]);
+    tw = writer(server, bond[0], stream);
+    readFully(in[0], read, NBYTES);
+    ensure(Arrays.equals(read, stream));
+    tw.join();
+    ensure(relay.getTransferred() == NBYTES);
+    relay.close();
+    ensure(relay.await(TIMEOUT) && in[1].disconnected() && bond[1].disconnected());
+    System.out.println(NBYTES + " bytes relayed from a bonded channel: ok");
+  }
+
+  /*
+   * The client connects to the proxy, which connects to the server and pipes both channels
+   * The client writes a stream and reads it back, the server echoing it
+   * Once the client disconnects, check both relays end, and the server reaches the end of the stream
+   */
+  /**
+   * Echoes a stream through a proxy piping two channels.
+   */
+  private static void testProxy(Broker server, Broker proxy, Broker client, int port) throws Exception {
+    Channel front[] = connect(proxy, client, port), back[] = connect(server, proxy, port + 1);
+    ensure(front[1].canSplice(back[0]) && back[0].canSplice(front[1]));
+    ChannelRelay relays[] = ChannelRelay.pipe(front[1], back[0]);
+    byte stream[] = payload(NBYTES, 4);
+    boolean ended[] = new boolean[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        byte bytes[] = new byte[4096];
+        int total = 0;
+        try {
+          while (true) {
+            int n = back[1].read(bytes, 0, bytes.length);
+            total += n;
+            writeFully(back[1], bytes, n);
+          }
+        } catch (DisconnectedException e) {
+          ended[0] = total == NBYTES;
+        }
+      }
+    });
+    Task tw = writer(client, front[0], stream);
+    byte echo[] = new byte[NBYTES];
+    readFully(front[0], echo, NBYTES);
+    ensure(Arrays.equals(echo, stream));
+    tw.join();
+    ensure(relays[0].getTransferred() == NBYTES && relays[1].getTransferred() == NBYTES);
+
+    front[0].disconnect();
+    for (ChannelRelay relay : relays)
+      ensure(relay.await(TIMEOUT));
+    ensure(front[1].disconnected() && back[0].disconnected());
+    ts.join();
+    ensure(ended[0]);
+    System.out.println(NBYTES + " bytes echoed through a proxy: ok");
+  }
+
+  /**
+   * Starts a task writing the given stream on the channel, in pieces of various sizes.
+   */
+  private static Task writer(Broker broker, Channel channel, byte stream[]) {
+    Task tw = new Task("Writer", broker);
+    tw.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int offset = 0, size = 1; offset < stream.length; size = size % 5000 + 333) {
+            int n = Math.min(size, stream.length - offset);
+            offset += channel.write(stream, offset, n);
+          }
+        } catch (DisconnectedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    return tw;
+  }
+
+  /**
+   * Connects a pair of channels.
+   * @return The client end and the server end
+   */
+  private static Channel[] connect(Broker server, Broker client, int port) throws Exception {
+    Channel accepted[] = new Channel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    Channel channel = client.connect(server.getName(), port);
+    ts.join();
+    ensure(channel != null && accepted[0] != null);
+    return new Channel[] { channel, accepted[0] };
+  }
+
+  /**
+   * Connects a bond of the given count.
+   * @return The client end and the server end
+   */
+  private static BondedChannel[] bond(Broker server, Broker client, int port, int count) throws Exception {
+    BondedChannel accepted[] = new BondedChannel[1];
+    Task ts = new Task("Server", server);
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = BondedChannel.accept(server, port);
+      }
+    });
+    BondedChannel channel = BondedChannel.connect(client, server.getName(), port, count);
+    ts.join();
+    ensure(channel != null && accepted[0] != null);
+    return new BondedChannel[] { channel, accepted[0] };
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  private static void readFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.read(bytes, offset, length - offset);
+  }
+
+  private static void writeFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.write(bytes, offset, length - offset);
+  }
+
+  private static Broker newBroker(String name) throws Exception {
+    Class<?> cls = Class.forName(ClassName);
+    return (Broker) cls.getConstructor(String.class).newInstance(name);
+  }
+}
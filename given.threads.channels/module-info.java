@@ -5,4 +5,5 @@
  * 
  */
 module info5.sar_2324.given {
+	requires java.management;
 }
\ No newline at end of file
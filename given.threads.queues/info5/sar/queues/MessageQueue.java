@@ -16,13 +16,38 @@
  */
 package info5.sar.queues;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.PooledBuffer;
+
 /**
  * MessageQueue are there to permit to send and receive byte arrays called messages.<br>
  * <br>
  * MessageQueues are layouts of {@link info5.sar.channels.Channel Channels}.
  */
 public abstract class MessageQueue {
-	
+
+	/**
+	 * Default maximum size of a single frame on the wire. Messages larger than
+	 * this are sent as a sequence of frames.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+	/**
+	 * Suggested compression threshold, below which compressing a frame costs
+	 * more than sending it as is (see {@link info5.sar.queues.tests.CompressionBench}).
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+	/**
+	 * Compression threshold disabling compression, the default.
+	 */
+	public static final int NO_COMPRESSION = -1;
+
 	/**
 	 * @return The parent QueueBroker
 	 */
@@ -46,6 +71,88 @@ public abstract class MessageQueue {
 	 */
 	abstract public byte[] receive() throws ClosedException;
 
+	/**
+	 * Receives the next message in a pooled buffer instead of a new array, so a
+	 * receiver done with each message before the next one allocates no array.<br>
+	 * This is a thread-safe blocking FIFO method.
+	 * By default, the message returned by {@link #receive()} is copied in a buffer.
+	 * @return A single received message, its bytes in use from index 0, to be
+	 *         {@link PooledBuffer#release() released} by the caller once done
+	 * @throws ClosedException if the connection is closed
+	 */
+	public PooledBuffer receiveBuffer() throws ClosedException {
+		byte[] message = receive();
+		return BufferPool.DEFAULT.copyOf(message, 0, message.length);
+	}
+
+	/**
+	 * Sends the whole content of the given stream as a single message, until the
+	 * end of the stream is reached.<br>
+	 * The message is transferred as a sequence of frames of at most
+	 * {@link #getMaxFrameSize()} bytes, so only one frame is buffered at a time.<br>
+	 * This is a thread-safe blocking FIFO method: no other message can be sent
+	 * on this MessageQueue until the stream is fully sent.
+	 * @param in : the stream to send
+	 * @throws ClosedException if the connection is closed
+	 * @throws IOException if reading the given stream fails, the connection is then closed
+	 */
+	abstract public void sendStream(InputStream in) throws ClosedException, IOException;
+
+	/**
+	 * Same as {@link #sendStream(InputStream)} reading from a NIO channel.
+	 * @param in : the channel to send
+	 * @throws ClosedException if the connection is closed
+	 * @throws IOException if reading the given channel fails, the connection is then closed
+	 */
+	public void sendStream(ReadableByteChannel in) throws ClosedException, IOException {
+		sendStream(Channels.newInputStream(in));
+	}
+
+	/**
+	 * Receives the next message as a stream, reading its frames from the
+	 * connection as the returned stream is read, so a large message is never
+	 * held in memory as a whole.<br>
+	 * This is a thread-safe blocking FIFO method: any other receive is blocked
+	 * until the returned stream reaches its end or is closed. Closing the stream
+	 * skips the unread part of the message.<br>
+	 * Reading the returned stream throws an IOException if the connection is closed.
+	 * @return The next received message as a stream
+	 * @throws ClosedException if the connection is closed
+	 */
+	abstract public InputStream receiveStream() throws ClosedException;
+
+	/**
+	 * Sets the maximum size of a single frame, for both sending and receiving.
+	 * Receiving a frame announcing a larger size closes the connection instead of
+	 * allocating it, so both ends should use the same maximum size.
+	 * @param size : the maximum size of a frame in bytes, at least 1
+	 * @throws IllegalArgumentException if the size is not strictly positive
+	 */
+	abstract public void setMaxFrameSize(int size);
+
+	/**
+	 * @return The maximum size of a single frame in bytes
+	 */
+	abstract public int getMaxFrameSize();
+
+	/**
+	 * Enables the transparent compression of the frames sent on this MessageQueue.
+	 * Frames of at least 'size' bytes are compressed, unless compressing them does
+	 * not make them smaller. The receiver decompresses them before delivering the
+	 * message.<br>
+	 * Compression is only used if the peer announced it supports it when the
+	 * connection was established, and is disabled by default.
+	 * @param size : the minimum size of a compressed frame in bytes,
+	 *               or {@link #NO_COMPRESSION} to disable compression
+	 */
+	abstract public void setCompressionThreshold(int size);
+
+	/**
+	 * @return The minimum size of a compressed frame in bytes,
+	 *         or {@link #NO_COMPRESSION} if compression is disabled
+	 */
+	abstract public int getCompressionThreshold();
+
 	/**
 	 * Thread-safe closes this MessageQueue, unblocking any thread 
 	 * blocked in send() or receive() operation.
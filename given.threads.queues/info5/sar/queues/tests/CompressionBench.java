@@ -0,0 +1,228 @@
+package info5.sar.queues.tests;
+
+import java.util.Random;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.LZCodec;
+import info5.sar.utils.Panic;
+
+/**
+ * This benchmark measures the transparent compression of the message queues
+ * against the size of the payloads, to find the break-even point above which
+ * compressing a frame pays off.
+ *
+ * For each payload size, it measures:
+ *
+ * - the cost of the codec alone, compressing and decompressing a payload,
+ *   and the compression ratio.
+ * - the time to send a batch of messages from a client to a server
+ *   through the queues, without compression and with compression.
+ * - the link bandwidth below which compressing pays off, that is when the
+ *   time saved transferring fewer bytes exceeds the time spent in the codec.
+ *
+ * Two kinds of payloads are used: text-like payloads, which compress, and
+ * random payloads, which do not and show the cost of trying.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}, and the test controlled with:
+ *
+ *   -nmessages: the number of messages sent for each payload size.
+ *   -mbps: the link bandwidth in megabits per second used to compute
+ *          the break-even point, 100 by default.
+ */
+public class CompressionBench {
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+  private static final String NMESSAGES_OPTION = "-nmessages:";
+  private static final String MBPS_OPTION = "-mbps:";
+
+  private static final int SIZES[] = { 64, 128, 256, 512, 1024, 2048, 4096, 16384, 65536 };
+  private static final String WORDS[] = { "message", "queue", "channel", "broker", "frame", "header", "the",
+      "a", "of", "send", "receive", "connect", "accept", "port", "name", "event", "thread", "task", "\n", " " };
+
+  // minimum time spent measuring the codec for each payload
+  private static final long CODEC_NANOS = 200_000_000L;
+
+  private static int nmessages = 2000;
+  private static int mbps = 100;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+      if (arg.startsWith(NMESSAGES_OPTION))
+        nmessages = Integer.valueOf(arg.substring(NMESSAGES_OPTION.length()));
+      if (arg.startsWith(MBPS_OPTION))
+        mbps = Integer.valueOf(arg.substring(MBPS_OPTION.length()));
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("  nmessages=" + nmessages);
+    System.out.println("  link=" + mbps + " Mbit/s");
+    System.out.println("--------------------------------------\n");
+
+    // warm up the codec so that the measures are not taken while it is interpreted
+    for (int size : SIZES)
+      codecNanos(payload(size, true, new Random(size)));
+
+    QueueBroker server = newBrokers("Server");
+    QueueBroker client = newBrokers("Client");
+    int port = 80;
+    bench("text", true, server, client, port++);
+    bench("random", false, server, client, port++);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Runs the benchmark for one kind of payloads, printing one line per payload size
+   * and the smallest size from which compressing pays off, through the queues and on the link.
+   */
+  private static void bench(String kind, boolean text, QueueBroker server, QueueBroker client, int port) throws Exception {
+    System.out.println("Payloads: " + kind);
+    System.out.println(String.format("%8s %7s %10s %10s %10s %10s %12s", "size", "ratio", "codec(us)", "plain(ms)",
+        "lz(ms)", "speedup", "pays-off-below(Mbit/s)"));
+    int breakEven = -1, linkBreakEven = -1;
+    for (int size : SIZES) {
+      byte payload[] = payload(size, text, new Random(size));
+      LZCodec codec = LZCodec.get();
+      int compressed = codec.compress(payload, 0, payload.length);
+      int wire = compressed > 0 ? compressed : size;
+      double codecNanos = codecNanos(payload);
+      long plain = transfer(server, client, port, payload, MessageQueue.NO_COMPRESSION);
+      long lz = transfer(server, client, port, payload, 0);
+      // compressing pays off when the time to transfer the saved bytes exceeds the codec time
+      double saved = size - wire;
+      double payOffMbps = saved > 0 ? saved * 8 / (codecNanos / 1e9) / 1e6 : 0;
+      // below a 5% gain, the difference is noise
+      if (plain < lz * 1.05)
+        breakEven = -1;
+      else if (breakEven < 0)
+        breakEven = size;
+      if (payOffMbps <= mbps)
+        linkBreakEven = -1;
+      else if (linkBreakEven < 0)
+        linkBreakEven = size;
+      System.out.println(String.format("%8d %7.2f %10.2f %10.1f %10.1f %9.2fx %12.0f", size, (double) size / wire,
+          codecNanos / 1000, plain / 1e6, lz / 1e6, (double) plain / lz, payOffMbps));
+    }
+    System.out.println("Break-even through the queues: " + breakEven(breakEven));
+    System.out.println("Break-even on a " + mbps + " Mbit/s link: " + breakEven(linkBreakEven) + "\n");
+  }
+
+  private static String breakEven(int size) {
+    if (size < 0)
+      return "never, compression does not pay off";
+    return "payloads of " + size + " bytes and more";
+  }
+
+  /**
+   * @return The time in nanoseconds to compress and decompress the payload once, averaged
+   */
+  private static double codecNanos(byte payload[]) {
+    LZCodec codec = LZCodec.get();
+    byte data[] = new byte[payload.length];
+    long rounds = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      int n = codec.compress(payload, 0, payload.length);
+      if (n > 0)
+        LZCodec.decompress(codec.output(), 0, n, data, 0);
+      rounds++;
+    } while ((elapsed = System.nanoTime() - start) < CODEC_NANOS);
+    return (double) elapsed / rounds;
+  }
+
+  /**
+   * Sends the payload nmessages times from the client to the server through a new
+   * connection, the server checking each message and acknowledging the last one.
+   * @param threshold : the compression threshold of the client queue
+   * @return The time in nanoseconds until the acknowledgment is received
+   */
+  private static long transfer(QueueBroker server, QueueBroker client, int port, byte payload[], int threshold)
+      throws Exception {
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue mq = server.accept(port);
+          for (int i = 0; i < nmessages; i++) {
+            byte msg[] = mq.receive();
+            Panic.ensure(msg.length == payload.length && msg[msg.length - 1] == payload[payload.length - 1]);
+          }
+          mq.send(new byte[1], 0, 1);
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    long times[] = new long[1];
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue mq = client.connect("Server", port);
+          mq.setCompressionThreshold(threshold);
+          long start = System.nanoTime();
+          for (int i = 0; i < nmessages; i++)
+            mq.send(payload, 0, payload.length);
+          mq.receive();
+          times[0] = System.nanoTime() - start;
+          mq.close();
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    tc.join();
+    ts.join();
+    return times[0];
+  }
+
+  /**
+   * @return A payload of the given size, made of words or of random bytes
+   */
+  private static byte[] payload(int size, boolean text, Random random) {
+    byte payload[] = new byte[size];
+    if (!text) {
+      random.nextBytes(payload);
+      return payload;
+    }
+    int index = 0;
+    while (index < size) {
+      byte word[] = WORDS[random.nextInt(WORDS.length)].getBytes();
+      int n = Math.min(word.length, size - index);
+      System.arraycopy(word, 0, payload, index, n);
+      index += n;
+    }
+    return payload;
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
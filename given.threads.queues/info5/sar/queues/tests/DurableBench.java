@@ -0,0 +1,162 @@
+package info5.sar.queues.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.queues.durable.DurableQueue;
+import info5.sar.utils.MappedLog;
+import info5.sar.utils.Panic;
+
+/**
+ * This benchmark compares the throughput of messages sent directly on a
+ * MessageQueue with the throughput of the same messages sent through a
+ * DurableQueue, which appends them to a memory-mapped log and commits it
+ * before sending them.
+ *
+ * The logs are created in a temporary directory, deleted at the end.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}, and the benchmark controlled with:
+ *
+ *   -nmessages: the number of messages for each run.
+ *   -msize: the size of the messages.
+ */
+public class DurableBench {
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+  private static final String NMESSAGES_OPTION = "-nmessages:";
+  private static final String MSIZE_OPTION = "-msize:";
+
+  private static int nmessages = 50000;
+  private static int msize = 1024;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+      if (arg.startsWith(NMESSAGES_OPTION))
+        nmessages = Integer.valueOf(arg.substring(NMESSAGES_OPTION.length()));
+      if (arg.startsWith(MSIZE_OPTION))
+        msize = Integer.valueOf(arg.substring(MSIZE_OPTION.length()));
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("  nmessages=" + nmessages);
+    System.out.println("  msize=" + msize);
+    System.out.println("--------------------------------------\n");
+
+    Path dir = Files.createTempDirectory("durable-bench");
+    QueueBroker server = newBrokers("Server");
+    QueueBroker client = newBrokers("Client");
+    byte message[] = new byte[msize];
+
+    // warm-up, then the measured runs
+    for (int run = 0; run < 2; run++) {
+      int port = 80 + run * 2;
+      long raw = run(server, client, port, message, null);
+      long durable = run(server, client, port + 1, message, dir.resolve("run" + run));
+      if (run == 1) {
+        System.out.println(String.format("%10s %12s %10s", "", "msg/s", "MB/s"));
+        print("raw", raw);
+        print("durable", durable);
+        System.out.println(String.format("durable/raw: %.2f", (double) raw / durable));
+      }
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  private static void print(String name, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.println(String.format("%10s %12.0f %10.1f", name, nmessages / seconds,
+        (double) nmessages * msize / seconds / (1024 * 1024)));
+  }
+
+  /**
+   * Sends nmessages messages from the client to the server.
+   * @param dir : the directory of the logs, or null to send on the queue directly
+   * @return The time in nanoseconds until the server received all the messages
+   */
+  private static long run(QueueBroker server, QueueBroker client, int port, byte message[], Path dir) throws Exception {
+    long times[] = new long[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue queue = server.accept(port);
+          if (dir == null) {
+            for (int i = 0; i < nmessages; i++)
+              queue.receive();
+          } else {
+            DurableQueue durable = new DurableQueue(new MappedLog(dir.resolve("server"), MappedLog.DEFAULT_SEGMENT_SIZE, 0));
+            durable.attach(queue);
+            for (int i = 0; i < nmessages; i++)
+              durable.receive();
+            durable.close();
+          }
+          times[0] = System.nanoTime();
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    long start[] = new long[1];
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue queue = client.connect("Server", port);
+          if (dir == null) {
+            start[0] = System.nanoTime();
+            for (int i = 0; i < nmessages; i++)
+              queue.send(message, 0, message.length);
+          } else {
+            MappedLog log = new MappedLog(dir.resolve("client"), MappedLog.DEFAULT_SEGMENT_SIZE, 0);
+            DurableQueue durable = new DurableQueue(log);
+            durable.attach(queue);
+            start[0] = System.nanoTime();
+            for (int i = 0; i < nmessages; i++)
+              durable.send(message, 0, message.length);
+          }
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    tc.join();
+    ts.join();
+    return times[0] - start[0];
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,146 @@
+package info5.sar.queues.tests;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.queues.rpc.RpcClient;
+import info5.sar.queues.rpc.RpcServer;
+import info5.sar.utils.Panic;
+
+/**
+ * This benchmark measures the throughput of remote procedure calls on a single
+ * connection, with one call in flight at a time and with pipelined calls.
+ *
+ * The server echoes the requests after a short service time, simulating work
+ * done by its workers, so one call at a time is bounded by the round trip and
+ * the service time while pipelined calls keep all the workers busy.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}, and the benchmark controlled with:
+ *
+ *   -ncalls: the number of calls for each run.
+ *   -nworkers: the number of workers of the server.
+ *   -service: the service time of a call in microseconds.
+ *   -msize: the size of the requests.
+ */
+public class RpcBench {
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+  private static final String NCALLS_OPTION = "-ncalls:";
+  private static final String NWORKERS_OPTION = "-nworkers:";
+  private static final String SERVICE_OPTION = "-service:";
+  private static final String MSIZE_OPTION = "-msize:";
+  private static final int WINDOWS[] = { 1, 2, 4, 8, 16, 64 };
+
+  private static int ncalls = 2000;
+  private static int nworkers = 8;
+  private static int service = 200;
+  private static int msize = 64;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+      if (arg.startsWith(NCALLS_OPTION))
+        ncalls = Integer.valueOf(arg.substring(NCALLS_OPTION.length()));
+      if (arg.startsWith(NWORKERS_OPTION))
+        nworkers = Integer.valueOf(arg.substring(NWORKERS_OPTION.length()));
+      if (arg.startsWith(SERVICE_OPTION))
+        service = Integer.valueOf(arg.substring(SERVICE_OPTION.length()));
+      if (arg.startsWith(MSIZE_OPTION))
+        msize = Integer.valueOf(arg.substring(MSIZE_OPTION.length()));
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("  ncalls=" + ncalls);
+    System.out.println("  nworkers=" + nworkers);
+    System.out.println("  service=" + service + " us");
+    System.out.println("  msize=" + msize);
+    System.out.println("--------------------------------------\n");
+
+    QueueBroker server = newBrokers("Server");
+    QueueBroker client = newBrokers("Client");
+    RpcServer rpcServer = new RpcServer(server, new RpcServer.Handler() {
+      @Override
+      public byte[] handle(byte[] request) throws Exception {
+        long end = System.nanoTime() + service * 1000L;
+        while (System.nanoTime() < end)
+          Thread.sleep(0, 100_000);
+        return request;
+      }
+    }, nworkers);
+    rpcServer.bind(80);
+
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue queue = client.connect("Server", 80);
+          RpcClient rpc = new RpcClient(queue);
+          byte request[] = new byte[msize];
+          Arrays.fill(request, (byte) 7);
+          System.out.println(String.format("%8s %12s %10s", "in-flight", "calls/s", "speedup"));
+          double base = 0;
+          for (int window : WINDOWS) {
+            double rate = measure(rpc, request, window);
+            if (window == 1)
+              base = rate;
+            System.out.println(String.format("%8d %12.0f %9.2fx", window, rate, rate / base));
+          }
+          rpc.close();
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    tc.join();
+    rpcServer.close();
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Makes ncalls calls, keeping at most 'window' calls in flight.
+   * @return The number of calls per second
+   */
+  private static double measure(RpcClient rpc, byte request[], int window) throws Exception {
+    ArrayDeque<CompletableFuture<byte[]>> inflight = new ArrayDeque<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < ncalls; i++) {
+      if (inflight.size() == window)
+        Panic.ensure(inflight.poll().get().length == request.length);
+      inflight.add(rpc.call(request));
+    }
+    while (!inflight.isEmpty())
+      Panic.ensure(inflight.poll().get().length == request.length);
+    return ncalls / ((System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,261 @@
+package info5.sar.queues.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.Panic;
+import info5.sar.utils.PooledBuffer;
+
+/**
+ * This test checks the pooled buffers and their use by the message queues,
+ * see {@link BufferPool}, {@link PooledBuffer} and {@link MessageQueue#receiveBuffer()}.
+ *
+ * It checks that:
+ *
+ * - a buffer is allocated in its size class with a reference count of 1, each
+ *   retain() needing a release(), the last one giving it back to be reused,
+ *   and an extra release() or a retain() after the last release failing.
+ * - the buffers collected without having been released, and only them, are
+ *   reported as leaks to the LeakListener, with where they were allocated.
+ * - messages received in pooled buffers, single or multi-frame, hold the sent
+ *   bytes, and a sustained exchange creates almost no new arrays nor leaks.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestBuffers {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the garbage collector, in milliseconds
+  private static final long TIMEOUT = 30 * 1000;
+  private static final int FRAME = 1024;
+  // the frames of the largest message fit in the buffers kept by the default pool
+  private static final int SIZES[] = { 1, 64, 65, FRAME, FRAME + 1, 5000, 50000 };
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    testRefCount();
+    testLeaks();
+    QueueBroker server = newBrokers("BuffersServer");
+    QueueBroker client = newBrokers("BuffersClient");
+    testQueue(server, client, 80);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Checks the size classes, the reference counts and the reuse of the buffers of a pool.
+   */
+  private static void testRefCount() {
+    BufferPool pool = new BufferPool(4, 4);
+    PooledBuffer buffer = pool.allocate(100);
+    ensure(buffer.length() == 100 && buffer.capacity() == 128 && buffer.refCount() == 1);
+    PooledBuffer large = pool.allocate(BufferPool.MAX_CLASS_SIZE + 1);
+    ensure(large.capacity() == BufferPool.MAX_CLASS_SIZE + 1 && pool.created() == 2);
+    ensure(large.release());
+
+    ensure(buffer.retain() == buffer && buffer.refCount() == 2);
+    ensure(!buffer.release() && buffer.refCount() == 1);
+    ensure(buffer.release() && buffer.refCount() == 0);
+    try {
+      buffer.release();
+      ensure(false);
+    } catch (IllegalStateException e) {
+      // Nothing to do here, the buffer was already released
+    }
+    try {
+      buffer.retain();
+      ensure(false);
+    } catch (IllegalStateException e) {
+      // Nothing to do here, the buffer was already released
+    }
+    PooledBuffer reused = pool.allocate(120);
+    ensure(reused == buffer && reused.length() == 120 && reused.refCount() == 1 && pool.created() == 2);
+    try {
+      reused.setLength(reused.capacity() + 1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the length exceeds the capacity
+    }
+
+    List<PooledBuffer> parts = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      parts.add(pool.copyOf(payload(50 + i, i), 0, 50 + i));
+    PooledBuffer all = pool.concat(parts);
+    byte expected[] = new byte[150 + 3];
+    for (int i = 0, offset = 0; i < 3; offset += 50 + i, i++)
+      System.arraycopy(payload(50 + i, i), 0, expected, offset, 50 + i);
+    ensure(all.length() == expected.length && Arrays.equals(Arrays.copyOf(all.array(), all.length()), expected));
+    for (PooledBuffer part : parts)
+      ensure(part.refCount() == 0);
+    ensure(all.release() && reused.release());
+    System.out.println("Reference counts and reuse: ok");
+  }
+
+  /*
+   * Allocate buffers from a new pool, releasing them, then drop the pool and collect the garbage
+   * Allocate buffers from another pool, not releasing them, then drop them and collect the garbage
+   * Check only the latter are reported, with where they were allocated
+   */
+  /**
+   * Checks the leaks reported by the leak detection.
+   */
+  private static void testLeaks() throws Exception {
+    int nbuffers = 10;
+    AtomicInteger reported = new AtomicInteger(), traced = new AtomicInteger();
+    BufferPool.setLeakDetection(true);
+    BufferPool.setLeakTracing(true);
+    BufferPool.setLeakListener(new BufferPool.LeakListener() {
+      @Override
+      public void leaked(Throwable allocation) {
+        reported.incrementAndGet();
+        if (allocation != null)
+          traced.incrementAndGet();
+      }
+    });
+    long before = BufferPool.leaks();
+    released(nbuffers);
+    leaked(nbuffers);
+    waitFor(() -> {
+      System.gc();
+      return reported.get() >= nbuffers;
+    });
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    ensure(reported.get() == nbuffers && traced.get() == nbuffers);
+    ensure(BufferPool.leaks() - before == nbuffers);
+    BufferPool.setLeakListener(null);
+    BufferPool.setLeakTracing(false);
+    System.out.println(nbuffers + " leaked buffers reported: ok");
+  }
+
+  private static void released(int nbuffers) {
+    BufferPool pool = new BufferPool(1, 1);
+    for (int i = 0; i < nbuffers; i++)
+      pool.allocate(1000).release();
+  }
+
+  private static void leaked(int nbuffers) {
+    BufferPool pool = new BufferPool(1, 1);
+    for (int i = 0; i < nbuffers; i++)
+      pool.allocate(1000);
+  }
+
+  /*
+   * Send rounds of messages of all sizes, spanning one or several frames, and receive them in pooled buffers
+   * The first round warming up the pools, check the next rounds create almost no arrays
+   */
+  /**
+   * Receives messages in pooled buffers.
+   */
+  private static void testQueue(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nrounds = 50;
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    MessageQueue queue = client.connect(server.getName(), port);
+    ts.join();
+    ensure(queue != null && accepted[0] != null);
+    queue.setMaxFrameSize(FRAME);
+    accepted[0].setMaxFrameSize(FRAME);
+    long leaks = BufferPool.leaks(), created = 0;
+
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int round = 0; round < nrounds; round++)
+            for (int i = 0; i < SIZES.length; i++)
+              queue.send(payload(SIZES[i], i), 0, SIZES[i]);
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    for (int round = 0; round < nrounds; round++) {
+      if (round == 1)
+        created = BufferPool.DEFAULT.created();
+      for (int i = 0; i < SIZES.length; i++) {
+        PooledBuffer buffer = accepted[0].receiveBuffer();
+        ensure(buffer.refCount() == 1 && buffer.length() == SIZES[i]);
+        ensure(Arrays.equals(Arrays.copyOf(buffer.array(), buffer.length()), payload(SIZES[i], i)));
+        ensure(buffer.release());
+      }
+    }
+    tc.join();
+    long more = BufferPool.DEFAULT.created() - created;
+    ensure(more < nrounds);
+    System.gc();
+    ensure(BufferPool.leaks() == leaks);
+    queue.close();
+    accepted[0].close();
+    System.out.println((nrounds - 1) * SIZES.length + " messages received in pooled buffers, " + more
+        + " arrays created: ok");
+  }
+
+  private static void waitFor(BooleanSupplier cond) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!cond.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        Panic.failStop("TestBuffers : timeout");
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
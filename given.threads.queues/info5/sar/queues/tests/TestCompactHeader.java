@@ -0,0 +1,217 @@
+package info5.sar.queues.tests;
+
+import java.util.Arrays;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Channel;
+import info5.sar.channels.DisconnectedException;
+import info5.sar.channels.Task;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.FrameCodec;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the frame formats of the message queues and their negotiation
+ * when the connection is established, see {@link FrameCodec}.
+ *
+ * It checks that:
+ *
+ * - the headers of both versions decode to the encoded size and flags, a frame
+ *   of less than 64 bytes without flags having a 1 byte compact header.
+ * - messages of sizes around the varint boundaries go through two queues whole
+ *   and in order.
+ * - a queue talking to a peer announcing no version uses the legacy 4 bytes
+ *   headers, and to a peer announcing the compact version uses varint headers,
+ *   the peers being raw Channels checking the bytes on the wire.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestCompactHeader {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  private static final int SIZES[] = { 0, 1, 63, 64, 127, 8191, 8192, 70000, 1 << 20 };
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    testCodec();
+    QueueBroker server = newBrokers("HeaderServer");
+    QueueBroker client = newBrokers("HeaderClient");
+    testQueues(server, client, 80);
+    testPeer(server, client.getBroker(), 81, FrameCodec.LEGACY_VERSION);
+    testPeer(server, client.getBroker(), 82, FrameCodec.COMPACT_VERSION);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Encodes and decodes headers of both versions, with and without flags.
+   */
+  private static void testCodec() {
+    byte header[] = new byte[FrameCodec.MAX_HEADER_SIZE];
+    int flagsList[] = { 0, FrameCodec.MORE, FrameCodec.MORE | FrameCodec.COMPRESSED | FrameCodec.PRIORITY };
+    int versions[] = { FrameCodec.LEGACY_VERSION, FrameCodec.COMPACT_VERSION };
+    for (int version : versions) {
+      FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(version);
+      for (int size : SIZES) {
+        for (int flags : flagsList) {
+          if (version == FrameCodec.LEGACY_VERSION && (flags & ~FrameCodec.MORE) != 0)
+            continue;
+          int n = FrameCodec.encodeHeader(version, size, flags, header, 0);
+          ensure(n == FrameCodec.headerSize(version, size, flags) && n <= FrameCodec.MAX_HEADER_SIZE);
+          decoder.reset();
+          for (int i = 0; i < n; i++)
+            ensure(decoder.feed(header[i]) == (i == n - 1));
+          ensure(decoder.size() == size && decoder.flags() == flags);
+        }
+      }
+    }
+    ensure(FrameCodec.headerSize(FrameCodec.COMPACT_VERSION, 63, 0) == 1);
+    ensure(FrameCodec.headerSize(FrameCodec.COMPACT_VERSION, 64, 0) == 2);
+    ensure(FrameCodec.headerSize(FrameCodec.LEGACY_VERSION, 1, 0) == 4);
+    ensure(FrameCodec.negotiate(FrameCodec.LEGACY_VERSION) == FrameCodec.LEGACY_VERSION);
+    ensure(FrameCodec.negotiate(FrameCodec.VERSION + 1) == FrameCodec.VERSION);
+    System.out.println("Header codec: ok");
+  }
+
+  /**
+   * Sends messages of sizes around the varint boundaries between two queues.
+   */
+  private static void testQueues(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    MessageQueue queue = client.connect(server.getName(), port);
+    ts.join();
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < SIZES.length; i++)
+            queue.send(payload(SIZES[i], i), 0, SIZES[i]);
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    for (int i = 0; i < SIZES.length; i++)
+      ensure(Arrays.equals(accepted[0].receive(), payload(SIZES[i], i)));
+    tc.join();
+    queue.close();
+    accepted[0].close();
+    System.out.println("Messages around the varint boundaries: ok");
+  }
+
+  /*
+   * Connect a raw Channel to a queue accepted by the server
+   * Read the hello of the queue, framed with a legacy header
+   * Answer with an empty hello for the legacy version, or a hello announcing
+   * the compact version and no feature
+   * Check the header of a small and a larger message sent by the queue,
+   * then send a message with a header of the agreed version
+   */
+  /**
+   * Checks the frames of a queue talking to a raw peer announcing the given version.
+   */
+  private static void testPeer(QueueBroker server, Broker peer, int port, int version) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    Channel channel = peer.connect(server.getName(), port);
+    ensure(channel != null);
+    byte hello[] = new byte[Integer.BYTES + 2];
+    readFully(channel, hello, hello.length);
+    ensure(hello[3] == 2 && hello[4] >= FrameCodec.COMPACT_VERSION);
+    byte answer[] = version == FrameCodec.LEGACY_VERSION ? new byte[] { 0, 0, 0, 0 }
+        : new byte[] { 0, 0, 0, 1, (byte) version };
+    writeFully(channel, answer, answer.length);
+    ts.join();
+    MessageQueue queue = accepted[0];
+
+    FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(version);
+    for (int size : new int[] { 10, 200 }) {
+      queue.send(payload(size, size), 0, size);
+      int expected = FrameCodec.headerSize(version, size, 0);
+      byte frame[] = new byte[expected + size];
+      readFully(channel, frame, frame.length);
+      decoder.reset();
+      for (int i = 0; i < expected; i++)
+        ensure(decoder.feed(frame[i]) == (i == expected - 1));
+      ensure(decoder.size() == size && decoder.flags() == 0);
+      ensure(Arrays.equals(Arrays.copyOfRange(frame, expected, frame.length), payload(size, size)));
+    }
+    byte message[] = payload(5, 5);
+    byte header[] = new byte[FrameCodec.MAX_HEADER_SIZE];
+    int n = FrameCodec.encodeHeader(version, message.length, 0, header, 0);
+    writeFully(channel, header, n);
+    writeFully(channel, message, message.length);
+    ensure(Arrays.equals(queue.receive(), message));
+    channel.disconnect();
+    queue.close();
+    System.out.println("Peer announcing " + (version == FrameCodec.LEGACY_VERSION ? "no version" : "the compact version")
+        + ": ok");
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  private static void readFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.read(bytes, offset, length - offset);
+  }
+
+  private static void writeFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.write(bytes, offset, length - offset);
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,283 @@
+package info5.sar.queues.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Channel;
+import info5.sar.channels.DisconnectedException;
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.FrameCodec;
+import info5.sar.utils.LZCodec;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the transparent compression of the message queues,
+ * see {@link MessageQueue#setCompressionThreshold(int)}.
+ *
+ * It checks that:
+ *
+ * - text-like and random messages, below and above the threshold and the
+ *   maximum frame size, go both ways through two queues whole and in order,
+ *   each end having its own threshold, as well as a compressed stream.
+ * - a queue compresses the frames above its threshold only for a peer announcing
+ *   the compression feature, the peer being a raw Channel checking the bytes on
+ *   the wire.
+ * - a malformed compressed frame closes the receiving queue.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestCompression {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  private static final int SIZES[] = { 1, 100, 511, 512, 4096, 70000, 300000 };
+  private static final String WORDS[] = { "message", "queue", "channel", "broker", "frame", "the", "a", " ", "\n" };
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    QueueBroker server = newBrokers("CompressionServer");
+    QueueBroker client = newBrokers("CompressionClient");
+    testRoundTrip(server, client, 80);
+    testPeer(server, client.getBroker(), 81, true);
+    testPeer(server, client.getBroker(), 82, false);
+    testMalformed(server, client.getBroker(), 83);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Echoes text-like and random messages of all sizes, compressed with a
+   * different threshold each way, then a compressed stream.
+   */
+  private static void testRoundTrip(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MessageQueue queue = server.accept(port);
+          queue.setCompressionThreshold(0);
+          accepted[0] = queue;
+          for (int i = 0; i < 2 * SIZES.length; i++) {
+            byte message[] = queue.receive();
+            queue.send(message, 0, message.length);
+          }
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    MessageQueue queue = client.connect(server.getName(), port);
+    ensure(queue != null);
+    queue.setCompressionThreshold(MessageQueue.DEFAULT_COMPRESSION_THRESHOLD);
+    ensure(queue.getCompressionThreshold() == MessageQueue.DEFAULT_COMPRESSION_THRESHOLD);
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < SIZES.length; i++) {
+            byte text[] = payload(SIZES[i], true, i), random[] = payload(SIZES[i], false, i);
+            queue.send(text, 0, text.length);
+            queue.send(random, 0, random.length);
+          }
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    for (int i = 0; i < SIZES.length; i++) {
+      ensure(Arrays.equals(queue.receive(), payload(SIZES[i], true, i)));
+      ensure(Arrays.equals(queue.receive(), payload(SIZES[i], false, i)));
+    }
+    tc.join();
+    ts.join();
+    byte stream[] = payload(200000, true, 7);
+    tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.sendStream(new ByteArrayInputStream(stream));
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    try (InputStream in = accepted[0].receiveStream()) {
+      ensure(Arrays.equals(in.readAllBytes(), stream));
+    }
+    tc.join();
+    queue.close();
+    accepted[0].close();
+    System.out.println("Round trip of " + 2 * SIZES.length + " messages and a stream: ok");
+  }
+
+  /*
+   * Connect a raw Channel to a queue accepted by the server, compressing from 0 bytes
+   * Answer its hello with the compact version, with or without the compression feature
+   * Check the frame of a compressible message sent by the queue is flagged COMPRESSED
+   * and decompresses to the message if the feature was announced, else is sent as is
+   */
+  /**
+   * Checks the frames of a queue talking to a raw peer supporting compression or not.
+   */
+  private static void testPeer(QueueBroker server, Broker peer, int port, boolean compression) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    Channel channel = peer.connect(server.getName(), port);
+    ensure(channel != null);
+    byte hello[] = new byte[Integer.BYTES + 2];
+    readFully(channel, hello, hello.length);
+    ensure((hello[5] & FrameCodec.FEATURE_COMPRESSION) != 0);
+    byte answer[] = { 0, 0, 0, 2, FrameCodec.COMPACT_VERSION, (byte) (compression ? FrameCodec.FEATURE_COMPRESSION : 0) };
+    writeFully(channel, answer, answer.length);
+    ts.join();
+    MessageQueue queue = accepted[0];
+    queue.setCompressionThreshold(0);
+
+    byte message[] = payload(4096, true, 3);
+    Task tq = new Task("Server", server.getBroker());
+    tq.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.send(message, 0, message.length);
+        } catch (ClosedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(FrameCodec.COMPACT_VERSION);
+    byte b[] = new byte[1];
+    do {
+      readFully(channel, b, 1);
+    } while (!decoder.feed(b[0]));
+    byte frame[] = new byte[decoder.size()];
+    readFully(channel, frame, frame.length);
+    if (compression) {
+      ensure(decoder.flags() == FrameCodec.COMPRESSED && frame.length < message.length);
+      byte data[] = new byte[LZCodec.decompressedLength(frame, 0, frame.length)];
+      LZCodec.decompress(frame, 0, frame.length, data, 0);
+      ensure(Arrays.equals(data, message));
+    } else {
+      ensure(decoder.flags() == 0 && Arrays.equals(frame, message));
+    }
+    tq.join();
+    channel.disconnect();
+    queue.close();
+    System.out.println("Peer " + (compression ? "supporting" : "not supporting") + " compression: ok");
+  }
+
+  /**
+   * Sends a frame flagged COMPRESSED whose bytes are not a compressed block,
+   * and checks the receiving queue closes.
+   */
+  private static void testMalformed(QueueBroker server, Broker peer, int port) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    Channel channel = peer.connect(server.getName(), port);
+    ensure(channel != null);
+    byte hello[] = new byte[Integer.BYTES + 2];
+    readFully(channel, hello, hello.length);
+    byte answer[] = { 0, 0, 0, 2, FrameCodec.COMPACT_VERSION, FrameCodec.FEATURE_COMPRESSION };
+    writeFully(channel, answer, answer.length);
+    ts.join();
+    byte garbage[] = new byte[64];
+    Arrays.fill(garbage, (byte) 0xFF);
+    byte header[] = new byte[FrameCodec.MAX_HEADER_SIZE];
+    int n = FrameCodec.encodeHeader(FrameCodec.COMPACT_VERSION, garbage.length, FrameCodec.COMPRESSED, header, 0);
+    writeFully(channel, header, n);
+    writeFully(channel, garbage, garbage.length);
+    try {
+      accepted[0].receive();
+      ensure(false);
+    } catch (ClosedException e) {
+      ensure(accepted[0].closed());
+    }
+    channel.disconnect();
+    System.out.println("Malformed compressed frame: ok");
+  }
+
+  /**
+   * @return A text-like payload, which compresses, or a random one, which does not
+   */
+  private static byte[] payload(int size, boolean text, int seed) {
+    Random random = new Random(seed);
+    byte bytes[] = new byte[size];
+    if (!text) {
+      random.nextBytes(bytes);
+      return bytes;
+    }
+    int i = 0;
+    while (i < size) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      for (int j = 0; j < word.length() && i < size; j++)
+        bytes[i++] = (byte) word.charAt(j);
+    }
+    return bytes;
+  }
+
+  private static void readFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.read(bytes, offset, length - offset);
+  }
+
+  private static void writeFully(Channel channel, byte bytes[], int length) throws DisconnectedException {
+    for (int offset = 0; offset < length;)
+      offset += channel.write(bytes, offset, length - offset);
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,243 @@
+package info5.sar.queues.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.queues.durable.DurableQueue;
+import info5.sar.utils.MappedLog;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the durable queues and their logs,
+ * see {@link DurableQueue} and {@link MappedLog}.
+ *
+ * It checks that:
+ *
+ * - messages sent while the connection is lost are received once a new one
+ *   is attached, each message whole, once and in order.
+ * - the committed messages of a closed log are recovered when it is reopened,
+ *   and sent to the peer by a new DurableQueue, the messages the peer already
+ *   received not being received again.
+ * - the acknowledged segments are deleted, and a closed DurableQueue refuses
+ *   to send and receive.
+ *
+ * The logs are created in a temporary directory, deleted at the end.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestDurable {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the acknowledgments, in milliseconds
+  private static final long TIMEOUT = 30 * 1000;
+  // small segments, so the messages span several of them
+  private static final int SEGMENT_SIZE = 16 * 1024;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    Path dir = Files.createTempDirectory("durable-test");
+    QueueBroker server = newBrokers("DurableServer");
+    QueueBroker client = newBrokers("DurableClient");
+    testReconnect(server, client, 80, dir.resolve("reconnect"));
+    testReopen(server, client, 83, dir.resolve("reopen"));
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /*
+   * Attach a client and a server DurableQueue over a first connection
+   * Send messages, receive half of them and close the connection under the DurableQueues
+   * Send more messages while detached, then attach both to a second connection
+   * Check all the messages are received once and in order, then acknowledged
+   */
+  /**
+   * Sends messages across a lost connection.
+   */
+  private static void testReconnect(QueueBroker server, QueueBroker client, int port, Path dir) throws Exception {
+    int nmessages = 300;
+    MappedLog clientLog = new MappedLog(dir.resolve("client"), SEGMENT_SIZE, 0);
+    DurableQueue sender = new DurableQueue(clientLog);
+    DurableQueue receiver = new DurableQueue(new MappedLog(dir.resolve("server"), SEGMENT_SIZE, 0));
+
+    MessageQueue first[] = attach(server, client, port, receiver, sender);
+    for (int i = 1; i <= nmessages; i++)
+      ensure(sender.send(payload(i), 0, payload(i).length) == i);
+    for (int i = 1; i <= nmessages / 2; i++)
+      ensure(Arrays.equals(receiver.receive(), payload(i)));
+    first[0].close();
+    waitFor(() -> !sender.attached() && !receiver.attached());
+
+    for (int i = nmessages + 1; i <= 2 * nmessages; i++)
+      ensure(sender.send(payload(i), 0, payload(i).length) == i);
+    attach(server, client, port + 1, receiver, sender);
+    for (int i = nmessages / 2 + 1; i <= 2 * nmessages; i++)
+      ensure(Arrays.equals(receiver.receive(), payload(i)));
+    waitFor(() -> sender.pendingMessages() == 0);
+    ensure(clientLog.acknowledgedSequence() == 2 * nmessages && clientLog.segments() == 1);
+
+    sender.close();
+    receiver.close();
+    try {
+      sender.send(new byte[1], 0, 1);
+      ensure(false);
+    } catch (ClosedException e) {
+      // Nothing to do here, a closed DurableQueue refuses to send
+    }
+    try {
+      receiver.receive();
+      ensure(false);
+    } catch (ClosedException e) {
+      // Nothing to do here, all the received messages were taken
+    }
+    clientLog.close();
+    System.out.println(2 * nmessages + " messages across a lost connection: ok");
+  }
+
+  /*
+   * Send messages on a client DurableQueue never attached, commit its log and close it
+   * Reopen the log, check its records, and attach a new DurableQueue of it to a server
+   * Check the server receives the messages, then more ones, once acknowledged
+   * Reopen the log again, its last segment still holding acknowledged records,
+   * and check the server receives a new message next, not these records
+   */
+  /**
+   * Replays the messages of a reopened log.
+   */
+  private static void testReopen(QueueBroker server, QueueBroker client, int port, Path dir) throws Exception {
+    int nmessages = 100;
+    Path clientDir = dir.resolve("client");
+    MappedLog clientLog = new MappedLog(clientDir, SEGMENT_SIZE, 0);
+    DurableQueue sender = new DurableQueue(clientLog);
+    for (int i = 1; i <= nmessages; i++)
+      sender.send(payload(i), 0, payload(i).length);
+    sender.close();
+    clientLog.commit(clientLog.lastSequence());
+    clientLog.close();
+
+    clientLog = new MappedLog(clientDir, SEGMENT_SIZE, 0);
+    ensure(clientLog.lastSequence() == nmessages && clientLog.segments() > 1);
+    MappedLog.Cursor cursor = clientLog.cursor(1);
+    for (int i = 1; i <= nmessages; i++) {
+      byte record[] = cursor.next(), expected[] = payload(i);
+      ensure(Arrays.equals(Arrays.copyOfRange(record, record.length - expected.length, record.length), expected));
+    }
+    ensure(cursor.next() == null);
+
+    DurableQueue receiver = new DurableQueue(new MappedLog(dir.resolve("server"), SEGMENT_SIZE, 0));
+    DurableQueue replayer = new DurableQueue(clientLog);
+    attach(server, client, port, receiver, replayer);
+    for (int i = nmessages + 1; i <= 2 * nmessages; i++)
+      replayer.send(payload(i), 0, payload(i).length);
+    for (int i = 1; i <= 2 * nmessages; i++)
+      ensure(Arrays.equals(receiver.receive(), payload(i)));
+    MappedLog log = clientLog;
+    waitFor(() -> log.acknowledgedSequence() == 2 * nmessages);
+    replayer.close();
+    clientLog.close();
+
+    clientLog = new MappedLog(clientDir, SEGMENT_SIZE, 0);
+    ensure(clientLog.acknowledgedSequence() < 2 * nmessages);
+    replayer = new DurableQueue(clientLog);
+    attach(server, client, port + 1, receiver, replayer);
+    byte last[] = payload(2 * nmessages + 1);
+    replayer.send(last, 0, last.length);
+    ensure(Arrays.equals(receiver.receive(), last));
+    replayer.close();
+    receiver.close();
+    clientLog.close();
+    System.out.println(nmessages + " messages replayed from a reopened log: ok");
+  }
+
+  /**
+   * Connects the client to the server on the given port, and attaches the given DurableQueues
+   * to both ends of the connection.
+   * @return The client queue and the server queue
+   */
+  private static MessageQueue[] attach(QueueBroker server, QueueBroker client, int port, DurableQueue receiver,
+      DurableQueue sender) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          accepted[0] = server.accept(port);
+          receiver.attach(accepted[0]);
+        } catch (ClosedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    MessageQueue queue = client.connect(server.getName(), port);
+    ensure(queue != null);
+    sender.attach(queue);
+    ts.join();
+    ensure(sender.attached() && receiver.attached());
+    return new MessageQueue[] { queue, accepted[0] };
+  }
+
+  private static void waitFor(BooleanSupplier cond) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!cond.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        Panic.failStop("TestDurable : timeout");
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * @return The payload of the message of the given sequence number, its size depending on it
+   */
+  private static byte[] payload(int sequence) {
+    byte bytes[] = new byte[1 + sequence * 37 % 900];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) (i * 31 + sequence);
+    return bytes;
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,310 @@
+package info5.sar.queues.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.PooledQueueBroker;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.IdlePool;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the pool of idle connections and its use by a broker reusing them,
+ * see {@link IdlePool} and {@link PooledQueueBroker}.
+ *
+ * It checks that:
+ *
+ * - illegal limits are rejected.
+ * - an idle pool gives the last object given back first, keeps at most the maximum
+ *   number of objects for a key, closing the oldest ones, and closes the objects
+ *   found invalid when taken, those idle for too long, and all of them when cleared,
+ *   an object removed being not closed.
+ * - sessions connecting one after the other reuse a single connection, the
+ *   messages echoed being whole and in order, and a queue closed by its user
+ *   refusing to be used.
+ * - concurrent sessions get their own connections, those idle beyond the maximum
+ *   being closed, the connections closed by the peer while idle being dropped, and
+ *   the discarded and cleared connections being closed.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestIdlePool {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the server, in milliseconds
+  private static final long TIMEOUT = 30 * 1000;
+  private static final long IDLE_TIMEOUT = 100;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    testLimits();
+    testIdlePool();
+    testEviction();
+    QueueBroker server = newBrokers("IdlePoolServer");
+    QueueBroker client = newBrokers("IdlePoolClient");
+    testBroker(server, client, 80);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Checks that illegal limits are rejected.
+   */
+  private static void testLimits() {
+    List<String> closed = new ArrayList<>();
+    long illegal[][] = { { -1, 0 }, { 0, -1 } };
+    for (long limits[] : illegal) {
+      try {
+        new IdlePool<String>((int) limits[0], limits[1], closed::add);
+        ensure(false);
+      } catch (IllegalArgumentException e) {
+        // Nothing to do here, the limits are illegal
+      }
+    }
+    try {
+      new IdlePool<String>(1, 0, null);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the closer is missing
+    }
+    IdlePool<String> pool = new IdlePool<>(2, 1000, closed::add);
+    ensure(pool.getMaxIdle() == 2 && pool.getIdleTimeout() == 1000);
+    try {
+      pool.setMaxIdle(-1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the maximum number is illegal
+    }
+    try {
+      pool.setIdleTimeout(-1);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the timeout is illegal
+    }
+    pool.setMaxIdle(3);
+    pool.setIdleTimeout(2000);
+    ensure(pool.getMaxIdle() == 3 && pool.getIdleTimeout() == 2000 && closed.isEmpty());
+    System.out.println("Idle pool limits: ok");
+  }
+
+  /**
+   * Checks the order, the limits and the counts of an idle pool.
+   */
+  private static void testIdlePool() {
+    List<String> closed = new ArrayList<>();
+    IdlePool<String> pool = new IdlePool<>(2, TIMEOUT, closed::add);
+    ensure(pool.poll("a", s -> true) == null && pool.size() == 0);
+    ensure(pool.offer("a", "a1") && pool.offer("a", "a2") && pool.offer("b", "b1"));
+    // the oldest idle object of the key is closed
+    ensure(pool.offer("a", "a3") && closed.equals(Arrays.asList("a1")));
+    ensure(pool.size() == 3 && pool.evicted() == 1);
+
+    ensure(pool.poll("a", s -> true).equals("a3") && pool.reused() == 1);
+    // an invalid object is closed, the next one being taken
+    ensure(pool.poll("a", s -> false) == null && closed.equals(Arrays.asList("a1", "a2")));
+    ensure(pool.size() == 1 && pool.evicted() == 2 && pool.reused() == 1);
+
+    ensure(pool.remove("b", "b1") && !pool.remove("b", "b1") && !pool.remove("c", "c1"));
+    ensure(pool.size() == 0 && pool.evicted() == 2 && closed.size() == 2);
+
+    pool.setMaxIdle(0);
+    ensure(!pool.offer("a", "a4") && closed.get(2).equals("a4") && pool.size() == 0);
+    pool.setMaxIdle(2);
+    ensure(pool.offer("a", "a5") && pool.offer("b", "b2"));
+    pool.clear();
+    ensure(pool.size() == 0 && pool.evicted() == 5 && closed.size() == 5);
+    ensure(closed.containsAll(Arrays.asList("a5", "b2")) && pool.poll("a", s -> true) == null);
+    System.out.println("Idle pool order and limits: ok");
+  }
+
+  /*
+   * Give back objects, then wait for longer than the idle timeout
+   * Give back another one, which evicts the others first
+   * Check an explicit eviction keeps the recent one
+   */
+  /**
+   * Checks the eviction of the objects idle for too long.
+   */
+  private static void testEviction() throws Exception {
+    List<String> closed = Collections.synchronizedList(new ArrayList<>());
+    IdlePool<String> pool = new IdlePool<>(4, IDLE_TIMEOUT, closed::add);
+    ensure(pool.offer("a", "a1") && pool.offer("a", "a2") && pool.offer("b", "b1"));
+    Thread.sleep(2 * IDLE_TIMEOUT);
+    ensure(pool.offer("c", "c1"));
+    ensure(closed.size() == 3 && closed.containsAll(Arrays.asList("a1", "a2", "b1")));
+    pool.evictIdle();
+    ensure(pool.size() == 1 && pool.evicted() == 3);
+    ensure(pool.poll("c", s -> true).equals("c1") && pool.size() == 0 && closed.size() == 3);
+    System.out.println("Idle pool eviction: ok");
+  }
+
+  /*
+   * The server accepts connections, echoing the messages of each one in its own task
+   * Open sessions one after the other, then concurrent ones
+   * Close the server end of the idle connections, then discard and clear the others,
+   * checking the connections the server sees and those it sees closed
+   */
+  /**
+   * Echoes messages in sessions of a broker reusing its connections.
+   */
+  private static void testBroker(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int nsessions = 20;
+    List<MessageQueue> accepted = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger ended = new AtomicInteger();
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          MessageQueue queue = server.accept(port);
+          accepted.add(queue);
+          new Task("Echo", server.getBroker()).start(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                while (true) {
+                  byte msg[] = queue.receive();
+                  queue.send(msg, 0, msg.length);
+                }
+              } catch (ClosedException e) {
+                ended.incrementAndGet();
+              }
+            }
+          });
+        }
+      }
+    });
+    PooledQueueBroker pooled = new PooledQueueBroker(client);
+    IdlePool<MessageQueue> idle = pooled.getIdlePool();
+    ensure(idle.getMaxIdle() == PooledQueueBroker.DEFAULT_MAX_IDLE);
+    ensure(idle.getIdleTimeout() == PooledQueueBroker.DEFAULT_IDLE_TIMEOUT);
+
+    for (int i = 0; i < nsessions; i++) {
+      MessageQueue queue = pooled.connect(server.getName(), port);
+      ensure(queue.broker() == pooled);
+      exchange(queue, i);
+      queue.close();
+      ensure(queue.closed());
+      try {
+        queue.send(new byte[1], 0, 1);
+        ensure(false);
+      } catch (ClosedException e) {
+        // Nothing to do here, the queue is closed
+      }
+    }
+    waitFor(() -> accepted.size() == 1);
+    ensure(idle.reused() == nsessions - 1 && idle.size() == 1 && ended.get() == 0);
+    System.out.println(nsessions + " sessions on a single connection: ok");
+
+    MessageQueue queues[] = new MessageQueue[3];
+    for (int i = 0; i < queues.length; i++)
+      queues[i] = pooled.connect(server.getName(), port);
+    for (int i = 0; i < queues.length; i++)
+      exchange(queues[i], i);
+    waitFor(() -> accepted.size() == 3);
+    idle.setMaxIdle(2);
+    for (MessageQueue queue : queues)
+      queue.close();
+    ensure(idle.size() == 2 && idle.evicted() == 1);
+    waitFor(() -> ended.get() == 1);
+    System.out.println(queues.length + " concurrent sessions, one idle connection closed: ok");
+
+    synchronized (accepted) {
+      for (MessageQueue queue : accepted)
+        queue.close();
+    }
+    waitFor(() -> ended.get() == 3);
+    MessageQueue queue = pooled.connect(server.getName(), port);
+    ensure(idle.size() == 0 && idle.evicted() == 3);
+    exchange(queue, 0);
+    waitFor(() -> accepted.size() == 4);
+    queue.close();
+    ensure(idle.size() == 1);
+    System.out.println("Connections closed by the peer dropped: ok");
+
+    queue = pooled.connect(server.getName(), port);
+    exchange(queue, 1);
+    ((PooledQueueBroker.PooledQueue) queue).discard();
+    ensure(queue.closed() && idle.size() == 0);
+    waitFor(() -> ended.get() == 4);
+    queue = pooled.connect(server.getName(), port);
+    exchange(queue, 2);
+    waitFor(() -> accepted.size() == 5);
+    queue.close();
+    ensure(idle.size() == 1);
+    pooled.clear();
+    ensure(idle.size() == 0);
+    waitFor(() -> ended.get() == 5);
+    System.out.println("Discarded and cleared connections closed: ok");
+  }
+
+  /**
+   * Sends messages one at a time, checking each one is echoed whole.
+   */
+  private static void exchange(MessageQueue queue, int session) throws ClosedException {
+    for (int i = 0; i < 10; i++) {
+      byte msg[] = payload(1 + 37 * i, session * 10 + i);
+      queue.send(msg, 0, msg.length);
+      ensure(Arrays.equals(queue.receive(), msg));
+    }
+  }
+
+  private static void waitFor(BooleanSupplier cond) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!cond.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        Panic.failStop("TestIdlePool : timeout");
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
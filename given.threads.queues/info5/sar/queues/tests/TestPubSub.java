@@ -0,0 +1,264 @@
+package info5.sar.queues.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.queues.pubsub.PubSubBroker;
+import info5.sar.queues.pubsub.PubSubClient;
+import info5.sar.utils.Panic;
+import info5.sar.utils.TopicFilter;
+
+/**
+ * This test checks the publish/subscribe layer over the message queues,
+ * see {@link PubSubBroker} and {@link PubSubClient}.
+ *
+ * It checks that:
+ *
+ * - messages published by a client are fanned out whole and in publish order
+ *   to the subscribers with a matching filter, exact or with wildcards, and
+ *   only to them.
+ * - an unsubscribed filter no longer receives, and an illegal filter is rejected.
+ * - a client closing leaves the broker, and closing the broker disconnects the
+ *   remaining clients.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}.
+ */
+public class TestPubSub {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+
+  // the maximum time waited for the broker, in milliseconds
+  private static final long TIMEOUT = 30 * 1000;
+  private static final String SERVER = "PubSubServer";
+  private static final int PORT = 80;
+
+  private static final String TOPICS[] = { "sensors/kitchen/temperature", "sensors/garage/temperature",
+      "sensors/kitchen/humidity", "sensors", "other/kitchen/temperature" };
+  private static final String FILTERS[] = { "sensors/kitchen/temperature", "sensors/+/temperature", "sensors/#",
+      "+/kitchen/#" };
+  private static final String END = "end";
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("--------------------------------------\n");
+
+    QueueBroker server = newBrokers(SERVER);
+    QueueBroker client = newBrokers("PubSubClient");
+    PubSubBroker pubsub = new PubSubBroker(server, PubSubBroker.DEFAULT_BACKLOG, PubSubBroker.OverflowPolicy.DROP);
+    pubsub.bind(PORT);
+    testFanOut(pubsub, client);
+    testUnsubscribe(pubsub, client);
+    testClose(pubsub, client);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /*
+   * Connect a subscriber per filter, each one also subscribing to END, and wait for their subscriptions
+   * Publish messages on all the topics from a client, then END
+   * Check each subscriber receives exactly the messages matching its filter, in order, then END
+   */
+  /**
+   * Fans out messages of random sizes from a client to subscribers with different filters.
+   */
+  private static void testFanOut(PubSubBroker pubsub, QueueBroker client) throws Exception {
+    int nmessages = 200;
+    Random random = new Random(31);
+    String topics[] = new String[nmessages];
+    byte payloads[][] = new byte[nmessages][];
+    for (int i = 0; i < nmessages; i++) {
+      topics[i] = TOPICS[random.nextInt(TOPICS.length)];
+      payloads[i] = payload(random.nextInt(8) == 0 ? random.nextInt(20000) : random.nextInt(100), i);
+    }
+
+    Task subscribers[] = new Task[FILTERS.length];
+    for (int s = 0; s < FILTERS.length; s++) {
+      String filter = FILTERS[s];
+      PubSubClient subscriber = connect(client);
+      subscriber.subscribe(filter);
+      subscriber.subscribe(END);
+      ready(pubsub, subscriber, s);
+      subscribers[s] = new Task("Subscriber-" + s, client.getBroker());
+      subscribers[s].start(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            TopicFilter compiled = new TopicFilter(filter);
+            for (int i = 0; i < nmessages; i++) {
+              if (!compiled.matches(topics[i]))
+                continue;
+              PubSubClient.Message message = subscriber.receive();
+              ensure(message.topic().equals(topics[i]));
+              ensure(Arrays.equals(message.payload(), payloads[i]));
+            }
+            ensure(subscriber.receive().topic().equals(END));
+            subscriber.close();
+          } catch (ClosedException e) {
+            Panic.failStop(e);
+          }
+        }
+      });
+    }
+
+    PubSubClient publisher = connect(client);
+    Task tp = new Task("Publisher", client.getBroker());
+    tp.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < nmessages; i++)
+            publisher.publish(topics[i], payloads[i]);
+          publisher.publish(END, new byte[0]);
+        } catch (ClosedException e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    tp.join();
+    for (Task subscriber : subscribers)
+      subscriber.join();
+    publisher.close();
+    waitFor(() -> pubsub.subscribers() == 0);
+    ensure(pubsub.dropped() == 0);
+    System.out.println(nmessages + " messages fanned out to " + FILTERS.length + " subscribers: ok");
+  }
+
+  /**
+   * Checks an unsubscribed filter no longer matches, and an illegal filter is rejected.
+   */
+  private static void testUnsubscribe(PubSubBroker pubsub, QueueBroker client) throws Exception {
+    PubSubClient subscriber = connect(client);
+    subscriber.subscribe("news/#");
+    ready(pubsub, subscriber, 0);
+    ensure(pubsub.publish("news/sports", payload(10, 1)) == 1);
+    PubSubClient.Message message = subscriber.receive();
+    ensure(message.topic().equals("news/sports") && Arrays.equals(message.payload(), payload(10, 1)));
+
+    subscriber.unsubscribe("news/#");
+    ready(pubsub, subscriber, 1);
+    ensure(pubsub.publish("news/sports", payload(10, 2)) == 0);
+    try {
+      subscriber.subscribe("news/#/sports");
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, the multi-level wildcard must be last
+    }
+    try {
+      pubsub.publish("news/+", new byte[0]);
+      ensure(false);
+    } catch (IllegalArgumentException e) {
+      // Nothing to do here, a topic has no wildcards
+    }
+    subscriber.close();
+    waitFor(() -> pubsub.subscribers() == 0);
+    System.out.println("Unsubscribe and illegal filters: ok");
+  }
+
+  /**
+   * Closes a client, then the broker, and checks the clients are disconnected.
+   */
+  private static void testClose(PubSubBroker pubsub, QueueBroker client) throws Exception {
+    PubSubClient first = connect(client), second = connect(client);
+    first.subscribe("a");
+    second.subscribe("a");
+    ready(pubsub, first, 0);
+    ready(pubsub, second, 1);
+    ensure(pubsub.subscribers() == 2);
+
+    first.close();
+    waitFor(() -> pubsub.subscribers() == 1);
+    ensure(pubsub.publish("a", payload(5, 5)) == 1);
+    try {
+      first.receive();
+      ensure(false);
+    } catch (ClosedException e) {
+      // Nothing to do here, the client is closed
+    }
+    ensure(Arrays.equals(second.receive().payload(), payload(5, 5)));
+
+    pubsub.close();
+    ensure(pubsub.subscribers() == 0);
+    try {
+      second.receive();
+      ensure(false);
+    } catch (ClosedException e) {
+      // Nothing to do here, the broker disconnected the client
+    }
+    System.out.println("Close of a client and of the broker: ok");
+  }
+
+  /*
+   * Subscribe the client to a topic of its own, then publish on it from the broker until a message is queued
+   * Receive that single message
+   */
+  /**
+   * Waits until the broker handled the previous requests of the given client.
+   */
+  private static void ready(PubSubBroker pubsub, PubSubClient client, int rank) throws Exception {
+    String topic = "ready/" + rank;
+    client.subscribe(topic);
+    waitFor(() -> pubsub.publish(topic, new byte[0]) == 1);
+    ensure(client.receive().topic().equals(topic));
+    client.unsubscribe(topic);
+  }
+
+  private static void waitFor(BooleanSupplier cond) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!cond.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline)
+        Panic.failStop("TestPubSub : timeout");
+      Thread.sleep(1);
+    }
+  }
+
+  private static PubSubClient connect(QueueBroker client) {
+    MessageQueue queue = client.connect(SERVER, PORT);
+    ensure(queue != null);
+    return new PubSubClient(queue);
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
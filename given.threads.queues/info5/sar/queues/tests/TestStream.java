@@ -0,0 +1,252 @@
+package info5.sar.queues.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+
+import info5.sar.channels.Broker;
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.Panic;
+
+/**
+ * This test checks the streaming of large messages through the message queues,
+ * with {@link MessageQueue#sendStream(InputStream)} and {@link MessageQueue#receiveStream()}.
+ *
+ * It checks that:
+ *
+ * - streams of sizes around the maximum frame size, interleaved with plain
+ *   messages, are received whole and in order.
+ * - a stream read in small pieces, or closed before its end, leaves the queue
+ *   on the next message.
+ * - closing the queue wakes a receive() waiting behind an unfinished stream
+ *   with a ClosedException, the stream then failing with an IOException.
+ *
+ * The default brokers may be changed with the arguments -cbroker: and -qbroker:
+ * as with {@link Test}, and the test controlled with:
+ *
+ *   -frame: the maximum frame size of the queues.
+ */
+public class TestStream {
+
+  static void ensure(boolean cond) {
+    Panic.ensure(cond);
+  }
+
+  private static String ChannelBrokerClassName = "info5.sar.channels.CBroker";
+  private static String QueueBrokerClassName = "info5.sar.queues.CQueueBroker";
+  private static final String CBROKER_OPTION = "-cbroker:";
+  private static final String QBROKER_OPTION = "-qbroker:";
+  private static final String FRAME_OPTION = "-frame:";
+
+  private static int frame = 4096;
+
+  private static void parseArgs(String args[]) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(CBROKER_OPTION))
+        ChannelBrokerClassName = arg.substring(CBROKER_OPTION.length());
+      if (arg.startsWith(QBROKER_OPTION))
+        QueueBrokerClassName = arg.substring(QBROKER_OPTION.length());
+      if (arg.startsWith(FRAME_OPTION))
+        frame = Integer.valueOf(arg.substring(FRAME_OPTION.length()));
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    parseArgs(args);
+    System.out.println("--------------------------------------");
+    System.out.println("Using Channel Broker: " + ChannelBrokerClassName);
+    System.out.println("Using Queue Broker: " + QueueBrokerClassName);
+    System.out.println("  frame=" + frame);
+    System.out.println("--------------------------------------\n");
+
+    QueueBroker server = newBrokers("StreamServer");
+    QueueBroker client = newBrokers("StreamClient");
+    testRoundTrip(server, client, 80);
+    testPartialReads(server, client, 81);
+    testClose(server, client, 82);
+    System.out.println("\n\nThat's all folks...");
+    System.exit(0);
+  }
+
+  /**
+   * Sends streams of sizes around the frame size, each one preceded by a plain
+   * message telling its number, and checks they are received whole and in order.
+   */
+  private static void testRoundTrip(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int sizes[] = { 0, 1, frame - 1, frame, frame + 1, 3 * frame, 256 * 1024 };
+    MessageQueue queues[] = connect(server, client, port);
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < sizes.length; i++) {
+            queues[0].send(new byte[] { (byte) i }, 0, 1);
+            queues[0].sendStream(new ByteArrayInputStream(payload(sizes[i], i)));
+          }
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    for (int i = 0; i < sizes.length; i++) {
+      byte tag[] = queues[1].receive();
+      ensure(tag.length == 1 && tag[0] == (byte) i);
+      try (InputStream in = queues[1].receiveStream()) {
+        ensure(Arrays.equals(in.readAllBytes(), payload(sizes[i], i)));
+      }
+    }
+    tc.join();
+    close(queues);
+    System.out.println("Round trip of " + sizes.length + " streams: ok");
+  }
+
+  /**
+   * Reads a stream byte by byte, then skips most of another by closing it,
+   * and checks the plain messages sent after them are received.
+   */
+  private static void testPartialReads(QueueBroker server, QueueBroker client, int port) throws Exception {
+    int size = 2 * frame + 7;
+    MessageQueue queues[] = connect(server, client, port);
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queues[0].sendStream(new ByteArrayInputStream(payload(size, 1)));
+          queues[0].sendStream(new ByteArrayInputStream(payload(size, 2)));
+          queues[0].send(new byte[] { 3 }, 0, 1);
+        } catch (Exception e) {
+          Panic.failStop(e);
+        }
+      }
+    });
+    byte expected[] = payload(size, 1);
+    InputStream in = queues[1].receiveStream();
+    for (int i = 0; i < size; i++)
+      ensure(in.read() == (expected[i] & 0xFF));
+    ensure(in.read() == -1);
+    in = queues[1].receiveStream();
+    ensure(in.read() == (payload(size, 2)[0] & 0xFF));
+    in.close();
+    byte last[] = queues[1].receive();
+    ensure(last.length == 1 && last[0] == 3);
+    tc.join();
+    close(queues);
+    System.out.println("Partial reads: ok");
+  }
+
+  /**
+   * Starts a stream that never ends, then closes the receiving queue while a
+   * receive() waits behind the stream.
+   */
+  private static void testClose(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue queues[] = connect(server, client, port);
+    PipedOutputStream source = new PipedOutputStream();
+    PipedInputStream sink = new PipedInputStream(source);
+    Task tc = new Task("Client", client.getBroker());
+    tc.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queues[0].sendStream(sink);
+        } catch (ClosedException | IOException e) {
+          // Nothing to do here, the receiver closed the connection
+        }
+      }
+    });
+    source.write(payload(frame, 4));
+    source.flush();
+    InputStream in = queues[1].receiveStream();
+    ensure(in.read() == (payload(frame, 4)[0] & 0xFF));
+    boolean woken[] = new boolean[1];
+    Task tr = new Task("Receiver", server.getBroker());
+    tr.start(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queues[1].receive();
+        } catch (ClosedException e) {
+          woken[0] = true;
+        }
+      }
+    });
+    Thread.sleep(100);
+    ensure(tr.alive());
+    queues[1].close();
+    tr.join(5000);
+    ensure(woken[0]);
+    try {
+      in.readAllBytes();
+      ensure(false);
+    } catch (IOException e) {
+      // Nothing to do here, the stream fails once the queue is closed
+    }
+    try {
+      queues[1].send(new byte[1], 0, 1);
+      ensure(false);
+    } catch (ClosedException e) {
+      // Nothing to do here, a closed queue refuses to send
+    }
+    source.close();
+    queues[0].close();
+    tc.join();
+    System.out.println("Close while streaming: ok");
+  }
+
+  /**
+   * @return The payload of the given size and seed, each byte depending on both
+   */
+  private static byte[] payload(int size, int seed) {
+    byte bytes[] = new byte[size];
+    for (int i = 0; i < size; i++)
+      bytes[i] = (byte) (i * 31 + seed);
+    return bytes;
+  }
+
+  /**
+   * Connects the client to the server on the given port, with the maximum frame size set on both queues.
+   * @return The client queue and the server queue
+   */
+  private static MessageQueue[] connect(QueueBroker server, QueueBroker client, int port) throws Exception {
+    MessageQueue accepted[] = new MessageQueue[1];
+    Task ts = new Task("Server", server.getBroker());
+    ts.start(new Runnable() {
+      @Override
+      public void run() {
+        accepted[0] = server.accept(port);
+      }
+    });
+    MessageQueue queue = client.connect(server.getName(), port);
+    ts.join();
+    ensure(queue != null && accepted[0] != null);
+    queue.setMaxFrameSize(frame);
+    accepted[0].setMaxFrameSize(frame);
+    return new MessageQueue[] { queue, accepted[0] };
+  }
+
+  private static void close(MessageQueue queues[]) {
+    for (MessageQueue queue : queues) {
+      queue.close();
+      ensure(queue.closed());
+    }
+  }
+
+  /**
+   * Creates a pair of channel broker and queue broker,
+   * both with the same name.
+   */
+  private static QueueBroker newBrokers(String name) throws Exception {
+    Class<?> cbroker_cls = Class.forName(ChannelBrokerClassName);
+    Class<?> qbroker_cls = Class.forName(QueueBrokerClassName);
+    Broker cb = (Broker) cbroker_cls.getConstructor(String.class).newInstance(name);
+    return (QueueBroker) qbroker_cls.getConstructor(Broker.class).newInstance(cb);
+  }
+}
@@ -0,0 +1,288 @@
+package info5.sar.utils;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of {@link PooledBuffer PooledBuffers}, shared by the channel and queue layers.<br>
+ * <br>
+ * Buffers are sorted in size classes, the powers of two from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}; larger buffers are not pooled. Each thread keeps a small cache
+ * per size class, and the buffers that do not fit in it go to a bounded pool shared by all
+ * the threads, so a buffer allocated by a thread and released by another one is reused.<br>
+ * <br>
+ * Leak detection, enabled by default, reports the buffers collected by the garbage collector
+ * without having been released, through {@link #leaks()} and the {@link LeakListener} set by
+ * {@link #setLeakListener(LeakListener)}. It costs a registration when a buffer is created, not
+ * when it is reused. Leak tracing also records where each leaked buffer was allocated, which costs
+ * a stack trace per allocation and is meant for debugging: without a LeakListener, the leaks are
+ * then printed on the standard error. Both can be set with the system properties
+ * {@code info5.sar.buffers.leakDetection} and {@code info5.sar.buffers.leakTracing}.
+ */
+public class BufferPool {
+
+	public static final int MIN_CLASS_SIZE = 64;
+	public static final int MAX_CLASS_SIZE = 1024 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_SHIFT + 1;
+	// size classes above this one keep fewer buffers, they weigh more
+	private static final int LARGE_CLASS_SIZE = 64 * 1024;
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private static volatile boolean leakDetection = !"false".equals(System.getProperty("info5.sar.buffers.leakDetection"));
+	private static volatile boolean leakTracing = "true".equals(System.getProperty("info5.sar.buffers.leakTracing"));
+	private static final AtomicLong leaks = new AtomicLong();
+	private static volatile LeakListener leakListener;
+
+	/**
+	 * The pool shared by the channel and queue layers, created after the constants it uses.
+	 */
+	public static final BufferPool DEFAULT = new BufferPool(16, 64);
+
+	// the number of buffers kept by each thread cache and by the shared pool, per size class
+	private final int[] cacheSizes = new int[CLASSES], sharedSizes = new int[CLASSES];
+	private final List<ConcurrentLinkedQueue<PooledBuffer>> shared = new ArrayList<>(CLASSES);
+	private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+	private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+	// the number of arrays created
+	private final AtomicLong created = new AtomicLong();
+
+	/**
+	 * @param cacheSize : the number of buffers of a size class kept by each thread
+	 * @param sharedSize : the number of buffers of a size class kept in the shared pool
+	 */
+	public BufferPool(int cacheSize, int sharedSize) {
+		for (int c = 0; c < CLASSES; c++) {
+			boolean large = classSize(c) > LARGE_CLASS_SIZE;
+			cacheSizes[c] = large ? Math.min(cacheSize, 2) : cacheSize;
+			sharedSizes[c] = large ? Math.min(sharedSize, 8) : sharedSize;
+			shared.add(new ConcurrentLinkedQueue<>());
+			sharedCounts[c] = new AtomicInteger();
+		}
+	}
+
+	/*
+	 * Take a buffer of the size class from the cache of the thread, else from the shared pool,
+	 * else create one, tracked if leak detection is enabled
+	 * Reset it with the given length
+	 */
+	/**
+	 * Allocates a buffer of at least the given length.
+	 * This is a thread-safe method.
+	 * @param length : the number of bytes in use
+	 * @return A buffer with a reference count of 1
+	 */
+	public PooledBuffer allocate(int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("BufferPool : Illegal length");
+		int c = sizeClass(length);
+		PooledBuffer buffer = null;
+		if (c < CLASSES) {
+			buffer = caches.get().poll(c);
+			if (buffer == null) {
+				buffer = shared.get(c).poll();
+				if (buffer != null)
+					sharedCounts[c].decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			buffer = new PooledBuffer(c < CLASSES ? this : null, c, c < CLASSES ? classSize(c) : length);
+			created.incrementAndGet();
+			if (leakDetection) {
+				Tracker tracker = new Tracker();
+				buffer.tracker = tracker;
+				CLEANER.register(buffer, tracker);
+			}
+		}
+		buffer.reset(length);
+		if (buffer.tracker != null) {
+			buffer.tracker.live = true;
+			buffer.tracker.allocation = leakTracing ? new Throwable("PooledBuffer allocated here") : null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Allocates a buffer holding a copy of the given bytes.
+	 * This is a thread-safe method.
+	 * @param bytes : the array containing the bytes
+	 * @param offset : the starting index of the bytes in the array
+	 * @param length : the number of bytes
+	 * @return A buffer with a reference count of 1
+	 */
+	public PooledBuffer copyOf(byte[] bytes, int offset, int length) {
+		PooledBuffer buffer = allocate(length);
+		System.arraycopy(bytes, offset, buffer.array(), 0, length);
+		return buffer;
+	}
+
+	/*
+	 * If there is a single buffer, return it
+	 * Else allocate a buffer of their total length, copy them in order and release them
+	 */
+	/**
+	 * Gathers the given buffers in a single one, like the frames of a message.
+	 * This is a thread-safe method.
+	 * @param buffers : the buffers, at least one, released by this method
+	 * @return A buffer holding their bytes in order, with a reference count of 1
+	 */
+	public PooledBuffer concat(List<PooledBuffer> buffers) {
+		if (buffers.size() == 1)
+			return buffers.get(0);
+		int length = 0;
+		for (PooledBuffer buffer : buffers)
+			length += buffer.length();
+		PooledBuffer all = allocate(length);
+		int index = 0;
+		for (PooledBuffer buffer : buffers) {
+			System.arraycopy(buffer.array(), 0, all.array(), index, buffer.length());
+			index += buffer.length();
+			buffer.release();
+		}
+		return all;
+	}
+
+	/*
+	 * Mark the buffer as released, then give it to the cache of the thread,
+	 * else to the shared pool, else let the garbage collector take it
+	 */
+	/**
+	 * Takes back a buffer whose last holder released it.
+	 * @param buffer : the released buffer
+	 */
+	void recycle(PooledBuffer buffer) {
+		if (buffer.tracker != null) {
+			buffer.tracker.live = false;
+			buffer.tracker.allocation = null;
+		}
+		int c = buffer.sizeClass;
+		if (caches.get().offer(buffer))
+			return;
+		if (sharedCounts[c].incrementAndGet() <= sharedSizes[c])
+			shared.get(c).offer(buffer);
+		else
+			sharedCounts[c].decrementAndGet();
+	}
+
+	/**
+	 * @return The number of arrays created by this pool, a steady state creating none
+	 */
+	public long created() {
+		return created.get();
+	}
+
+	/**
+	 * @return The number of buffers collected without having been released, in all the pools
+	 */
+	public static long leaks() {
+		return leaks.get();
+	}
+
+	/**
+	 * @param enabled : true to report the buffers collected without having been released
+	 */
+	public static void setLeakDetection(boolean enabled) {
+		leakDetection = enabled;
+	}
+
+	/**
+	 * @param enabled : true to record where each buffer is allocated, for the leak reports
+	 */
+	public static void setLeakTracing(boolean enabled) {
+		leakTracing = enabled;
+	}
+
+	/**
+	 * @param listener : the listener told of each leaked buffer, null to only count them
+	 */
+	public static void setLeakListener(LeakListener listener) {
+		leakListener = listener;
+	}
+
+	/**
+	 * Listener told when a buffer is collected without having been released.
+	 * It is called by the thread of the cleaner and must not block.
+	 */
+	public interface LeakListener {
+		/**
+		 * @param allocation : where the buffer was allocated, null if leak tracing was off
+		 */
+		void leaked(Throwable allocation);
+	}
+
+	/**
+	 * @param length : a length
+	 * @return The index of the smallest size class holding this length, CLASSES if none
+	 */
+	private static int sizeClass(int length) {
+		if (length <= MIN_CLASS_SIZE)
+			return 0;
+		if (length > MAX_CLASS_SIZE)
+			return CLASSES;
+		return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+	}
+
+	private static int classSize(int c) {
+		return 1 << (c + MIN_SHIFT);
+	}
+
+	/**
+	 * Cache of buffers of a thread, used by this thread only.
+	 */
+	private class Cache {
+		final PooledBuffer[][] stacks = new PooledBuffer[CLASSES][];
+		final int[] sizes = new int[CLASSES];
+
+		Cache() {
+			for (int c = 0; c < CLASSES; c++)
+				stacks[c] = new PooledBuffer[cacheSizes[c]];
+		}
+
+		PooledBuffer poll(int c) {
+			if (sizes[c] == 0)
+				return null;
+			PooledBuffer buffer = stacks[c][--sizes[c]];
+			stacks[c][sizes[c]] = null;
+			return buffer;
+		}
+
+		boolean offer(PooledBuffer buffer) {
+			int c = buffer.sizeClass;
+			if (sizes[c] == stacks[c].length)
+				return false;
+			stacks[c][sizes[c]++] = buffer;
+			return true;
+		}
+	}
+
+	/**
+	 * Leak tracking state of a buffer, run by the cleaner once the buffer is collected.
+	 * It must not refer to the buffer.
+	 */
+	static class Tracker implements Runnable {
+		// true while the buffer is held
+		volatile boolean live;
+		// where the buffer was allocated, if leak tracing is enabled
+		volatile Throwable allocation;
+
+		@Override
+		public void run() {
+			if (!live)
+				return;
+			leaks.incrementAndGet();
+			LeakListener listener = leakListener;
+			if (listener != null) {
+				listener.leaked(allocation);
+			} else if (allocation != null) {
+				// leak tracing is meant for debugging, the report is printed
+				System.err.println("LEAK: a PooledBuffer was collected without having been released");
+				allocation.printStackTrace();
+			}
+		}
+	}
+}
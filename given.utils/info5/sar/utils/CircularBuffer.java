@@ -16,6 +16,8 @@
  */
 package info5.sar.utils;
 
+import java.nio.ByteBuffer;
+
 /**
  * This circular buffer of bytes can be used to pass bytes between two threads:
  * one thread pushing bytes in the buffer and the other pulling bytes from the
@@ -30,6 +32,13 @@ public class CircularBuffer {
     m_tail = m_head = 0;
   }
 
+  /**
+   * Empties this buffer, to reuse it.
+   */
+  public void clear() {
+    m_tail = m_head = 0;
+  }
+
   /**
    * @return true if this buffer is full, false otherwise
    */
@@ -71,4 +80,120 @@ public class CircularBuffer {
     return bits;
   }
 
+  /**
+   * Pushes as many bytes as there is room for, with bulk copies.
+   * @param bytes: the array to push from
+   * @param offset: the index of the first byte to push
+   * @param length: the maximum number of bytes to push
+   * @return the number of bytes pushed, zero if full
+   */
+  public int push(byte bytes[], int offset, int length) {
+    int n = 0;
+    while (n < length) {
+      int len = Math.min(length - n, room());
+      if (len == 0)
+        break;
+      System.arraycopy(bytes, offset + n, m_bytes, m_head, len);
+      m_head = (m_head + len) % m_bytes.length;
+      n += len;
+    }
+    return n;
+  }
+
+  /**
+   * Pulls as many bytes as available, with bulk copies.
+   * @param bytes: the array to pull in
+   * @param offset: the index of the first byte to pull in
+   * @param length: the maximum number of bytes to pull
+   * @return the number of bytes pulled, zero if empty
+   */
+  public int pull(byte bytes[], int offset, int length) {
+    int n = 0;
+    while (n < length) {
+      int len = Math.min(length - n, available());
+      if (len == 0)
+        break;
+      System.arraycopy(m_bytes, m_tail, bytes, offset + n, len);
+      m_tail = (m_tail + len) % m_bytes.length;
+      n += len;
+    }
+    return n;
+  }
+
+  /**
+   * Pushes as many remaining bytes of the given buffer as there is room for,
+   * with bulk copies, advancing its position.
+   * @param src: the buffer to push from
+   * @return the number of bytes pushed, zero if full
+   */
+  public int push(ByteBuffer src) {
+    int n = 0;
+    while (src.hasRemaining()) {
+      int len = Math.min(src.remaining(), room());
+      if (len == 0)
+        break;
+      src.get(m_bytes, m_head, len);
+      m_head = (m_head + len) % m_bytes.length;
+      n += len;
+    }
+    return n;
+  }
+
+  /**
+   * Pulls as many bytes as available in the remaining space of the given buffer,
+   * with bulk copies, advancing its position.
+   * @param dst: the buffer to pull in
+   * @return the number of bytes pulled, zero if empty
+   */
+  public int pull(ByteBuffer dst) {
+    int n = 0;
+    while (dst.hasRemaining()) {
+      int len = Math.min(dst.remaining(), available());
+      if (len == 0)
+        break;
+      dst.put(m_bytes, m_tail, len);
+      m_tail = (m_tail + len) % m_bytes.length;
+      n += len;
+    }
+    return n;
+  }
+
+  /**
+   * Moves as many bytes as available to the given buffer, as many as it has room for,
+   * with bulk copies from one array to the other, without any intermediate array.
+   * @param dst: the buffer to push the bytes in, other than this one
+   * @param length: the maximum number of bytes to move
+   * @return the number of bytes moved, zero if this buffer is empty or the other is full
+   */
+  public int pull(CircularBuffer dst, int length) {
+    int n = 0;
+    while (n < length) {
+      int len = Math.min(length - n, Math.min(available(), dst.room()));
+      if (len == 0)
+        break;
+      System.arraycopy(m_bytes, m_tail, dst.m_bytes, dst.m_head, len);
+      m_tail = (m_tail + len) % m_bytes.length;
+      dst.m_head = (dst.m_head + len) % dst.m_bytes.length;
+      n += len;
+    }
+    return n;
+  }
+
+  /**
+   * @return the number of bytes that can be pulled in one copy, from the tail
+   */
+  private int available() {
+    return (m_head >= m_tail ? m_head : m_bytes.length) - m_tail;
+  }
+
+  /**
+   * @return the number of bytes that can be pushed in one copy, from the head,
+   *         one slot being always left free to tell a full buffer from an empty one
+   */
+  private int room() {
+    if (m_head < m_tail)
+      return m_tail - 1 - m_head;
+    return (m_tail == 0 ? m_bytes.length - 1 : m_bytes.length) - m_head;
+  }
+
 }
@@ -40,6 +40,30 @@ public class CircularBufferEvent {
 		this.outListener = outListener;
 	}
 
+	/**
+	 * Sets the listener notified when bytes become available, on the reading side.
+	 * @param inListener : the listener to use
+	 */
+	public void setInListener(InListener inListener) {
+		this.inListener = inListener;
+	}
+
+	/**
+	 * Sets the listener notified when space is freed, on the writing side.
+	 * @param outListener : the listener to use
+	 */
+	public void setOutListener(OutListener outListener) {
+		this.outListener = outListener;
+	}
+
+	/**
+	 * Empties this buffer, to reuse it with new listeners.
+	 * The notifications already posted still call the listeners set when they run.
+	 */
+	public void clear() {
+		m_tail = m_head = 0;
+	}
+
 	/**
 	 * @return true if this buffer is full, false otherwise
 	 */
@@ -101,6 +125,119 @@ public class CircularBufferEvent {
 		return bits;
 	}
 	
+	/**
+	 * @return the number of bytes that can be pulled
+	 */
+	public int available() {
+		return (m_head - m_tail + m_bytes.length) % m_bytes.length;
+	}
+
+	/**
+	 * @return the number of bytes that can be pushed
+	 */
+	public int space() {
+		return m_bytes.length - 1 - available();
+	}
+
+	/**
+	 * Pushes as many of the given bytes as there is space for, with at most two array copies.
+	 * The in listener is notified once, if the buffer was empty.
+	 * @param bytes: the array containing the bytes
+	 * @param offset: the starting index of the bytes in the array
+	 * @param length: the number of bytes to push
+	 * @return the number of bytes pushed, 0 if full
+	 */
+	public int push(byte[] bytes, int offset, int length) {
+		boolean wasEmpty = empty();
+		int n = Math.min(length, space());
+		int first = Math.min(n, m_bytes.length - m_head);
+		System.arraycopy(bytes, offset, m_bytes, m_head, first);
+		System.arraycopy(bytes, offset + first, m_bytes, 0, n - first);
+		m_head = (m_head + n) % m_bytes.length;
+		if(n>0 && wasEmpty && inListener!=null) {
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					inListener.bytesAvailable();
+				}
+			};
+			executor.post(r);
+		}
+		return n;
+	}
+
+	/**
+	 * Pulls as many bytes as available, up to the given length, with at most two array copies.
+	 * The out listener is notified once, if the buffer was full.
+	 * @param bytes: the array to pull the bytes in
+	 * @param offset: the starting index in the array
+	 * @param length: the maximum number of bytes to pull
+	 * @return the number of bytes pulled, 0 if empty
+	 */
+	public int pull(byte[] bytes, int offset, int length) {
+		boolean wasFull = full();
+		int n = Math.min(length, available());
+		int first = Math.min(n, m_bytes.length - m_tail);
+		System.arraycopy(m_bytes, m_tail, bytes, offset, first);
+		System.arraycopy(m_bytes, 0, bytes, offset + first, n - first);
+		m_tail = (m_tail + n) % m_bytes.length;
+		if(n>0 && wasFull && outListener!=null) {
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					outListener.spaceFreed();
+				}
+			};
+			executor.post(r);
+		}
+		return n;
+	}
+
+	/**
+	 * Moves as many bytes as available to the given buffer, as many as it has space for,
+	 * copying them from one array to the other without any intermediate array.
+	 * The out listener of this buffer is notified once if it was full, and the in listener
+	 * of the given buffer once if it was empty.
+	 * @param dst: the buffer to push the bytes in, other than this one
+	 * @param length: the maximum number of bytes to move
+	 * @return the number of bytes moved, 0 if this buffer is empty or the other is full
+	 */
+	public int pull(CircularBufferEvent dst, int length) {
+		boolean wasFull = full();
+		boolean dstWasEmpty = dst.empty();
+		int n = 0;
+		while (n < length) {
+			int len = Math.min(length - n, Math.min(available(), dst.space()));
+			// one copy at most between the end of either array and the start
+			len = Math.min(len, Math.min(m_bytes.length - m_tail, dst.m_bytes.length - dst.m_head));
+			if (len == 0)
+				break;
+			System.arraycopy(m_bytes, m_tail, dst.m_bytes, dst.m_head, len);
+			m_tail = (m_tail + len) % m_bytes.length;
+			dst.m_head = (dst.m_head + len) % dst.m_bytes.length;
+			n += len;
+		}
+		if(n>0 && wasFull && outListener!=null) {
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					outListener.spaceFreed();
+				}
+			};
+			executor.post(r);
+		}
+		if(n>0 && dstWasEmpty && dst.inListener!=null) {
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					dst.inListener.bytesAvailable();
+				}
+			};
+			dst.executor.post(r);
+		}
+		return n;
+	}
+
 	public interface InListener {
 		public void bytesAvailable();
 	}
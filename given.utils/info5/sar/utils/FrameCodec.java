@@ -0,0 +1,231 @@
+package info5.sar.utils;
+
+/**
+ * Encoding of the frame headers used by the message queues to frame messages
+ * over a stream of bytes.<br>
+ * <br>
+ * Two versions of the frame format exist, agreed on by the peers when the
+ * connection is established (see {@link #negotiate(int)}) :
+ * <ul>
+ * <li>{@link #LEGACY_VERSION} : the size of the frame on 4 bytes, big-endian,
+ * its highest bit being set when more frames of the same message follow.
+ * Only the {@link #MORE} flag can be encoded.</li>
+ * <li>{@link #COMPACT_VERSION} : the size of the frame shifted left by one bit
+ * as an unsigned varint (7 bits per byte, least significant first, the highest bit
+ * set when another byte follows). The lowest bit of the varint is set when a
+ * flags byte follows the varint. A frame of less than 64 bytes without flags thus
+ * has a 1 byte header.</li>
+ * </ul>
+ */
+public class FrameCodec {
+
+	// versions of the frame format
+	public static final int LEGACY_VERSION = 1, COMPACT_VERSION = 2;
+	// the latest version of the frame format supported
+	public static final int VERSION = COMPACT_VERSION;
+	// frame flags
+	public static final int MORE = 0x01, COMPRESSED = 0x02, PRIORITY = 0x04;
+	// maximum size of a header, whatever the version
+	public static final int MAX_HEADER_SIZE = 6;
+	// optional features announced by the peers along with their version
+	public static final int FEATURE_COMPRESSION = 0x01;
+
+	// legacy header bit set on every frame but the last one of a message
+	private static final int LEGACY_MORE = 0x80000000;
+
+	/**
+	 * @param peerVersion : the latest version supported by the peer
+	 * @return The version to use with this peer
+	 */
+	public static int negotiate(int peerVersion) {
+		return Math.max(LEGACY_VERSION, Math.min(VERSION, peerVersion));
+	}
+
+	/**
+	 * @param version : the version agreed on with the peer
+	 * @param features : the features supported here
+	 * @param peerFeatures : the features announced by the peer
+	 * @return The features to use with this peer, the flags they need being
+	 *         only encoded by the compact version
+	 */
+	public static int negotiateFeatures(int version, int features, int peerFeatures) {
+		return version >= COMPACT_VERSION ? features & peerFeatures : 0;
+	}
+
+	/**
+	 * @param version : the version of the frame format
+	 * @param size : the size of the frame
+	 * @param flags : the flags of the frame
+	 * @return The size of the header of such a frame
+	 */
+	public static int headerSize(int version, int size, int flags) {
+		if (version == LEGACY_VERSION)
+			return Integer.BYTES;
+		long value = ((long) size << 1) | (flags != 0 ? 1 : 0);
+		int n = 1;
+		while ((value >>>= 7) != 0)
+			n++;
+		return flags != 0 ? n + 1 : n;
+	}
+
+	/**
+	 * Encodes a frame header directly in the given array.
+	 * @param version : the version of the frame format
+	 * @param size : the size of the frame
+	 * @param flags : the flags of the frame
+	 * @param dst : the array to write on, with at least {@link #headerSize(int, int, int)} bytes from the offset
+	 * @param offset : the starting index in the array
+	 * @return The size of the encoded header
+	 * @throws IllegalArgumentException if the flags cannot be encoded in the given version
+	 */
+	public static int encodeHeader(int version, int size, int flags, byte[] dst, int offset) {
+		if (size < 0)
+			throw new IllegalArgumentException("FrameCodec : negative size");
+		if (version == LEGACY_VERSION) {
+			if ((flags & ~MORE) != 0)
+				throw new IllegalArgumentException("FrameCodec : flags not supported by the legacy frame format");
+			int header = (flags & MORE) != 0 ? (size | LEGACY_MORE) : size;
+			dst[offset] = (byte) (header >>> 24);
+			dst[offset + 1] = (byte) (header >>> 16);
+			dst[offset + 2] = (byte) (header >>> 8);
+			dst[offset + 3] = (byte) header;
+			return Integer.BYTES;
+		}
+		long value = ((long) size << 1) | (flags != 0 ? 1 : 0);
+		int index = offset;
+		while ((value & ~0x7FL) != 0) {
+			dst[index++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[index++] = (byte) value;
+		if (flags != 0)
+			dst[index++] = (byte) flags;
+		return index - offset;
+	}
+
+	/**
+	 * Incremental decoder of frame headers, fed byte by byte.<br>
+	 * This is not thread-safe.
+	 */
+	public static class HeaderDecoder {
+		private int version;
+		// number of bytes fed since the last reset
+		private int position;
+		// the value decoded so far
+		private long value;
+		// true when a flags byte follows the varint
+		private boolean hasFlags;
+		// true when the varint is fully decoded
+		private boolean varintDone;
+		private boolean complete;
+		private int size, flags;
+
+		/**
+		 * @param version : the version of the frame format to decode
+		 */
+		public HeaderDecoder(int version) {
+			setVersion(version);
+		}
+
+		/**
+		 * Changes the version of the frame format to decode, resetting this decoder.
+		 * @param version : the version of the frame format to decode
+		 */
+		public void setVersion(int version) {
+			this.version = version;
+			reset();
+		}
+
+		/**
+		 * @return The version of the frame format decoded
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Prepares this decoder to decode a new header.
+		 */
+		public void reset() {
+			position = 0;
+			value = 0;
+			hasFlags = false;
+			varintDone = false;
+			complete = false;
+			size = 0;
+			flags = 0;
+		}
+
+		/**
+		 * @return The minimum number of bytes still needed to complete the header,
+		 *         feeding more bytes than this may read past the header.
+		 */
+		public int remaining() {
+			if (complete)
+				return 0;
+			if (version == LEGACY_VERSION)
+				return Integer.BYTES - position;
+			return 1;
+		}
+
+		/**
+		 * Feeds the next byte of the header.
+		 * @param b : the next byte
+		 * @return True if the header is complete
+		 * @throws IllegalStateException if the header is already complete or is malformed
+		 */
+		public boolean feed(byte b) {
+			if (complete)
+				throw new IllegalStateException("FrameCodec : header already complete");
+			if (version == LEGACY_VERSION) {
+				value = (value << 8) | (b & 0xFF);
+				if (++position == Integer.BYTES) {
+					int header = (int) value;
+					size = header & ~LEGACY_MORE;
+					flags = (header & LEGACY_MORE) != 0 ? MORE : 0;
+					complete = true;
+				}
+				return complete;
+			}
+			if (varintDone) {
+				flags = b & 0xFF;
+				complete = true;
+				return true;
+			}
+			if (position == 5)
+				throw new IllegalStateException("FrameCodec : malformed header");
+			value |= (long) (b & 0x7F) << (7 * position++);
+			if ((b & 0x80) == 0) {
+				varintDone = true;
+				hasFlags = (value & 1) != 0;
+				long s = value >>> 1;
+				if (s > Integer.MAX_VALUE)
+					throw new IllegalStateException("FrameCodec : malformed header");
+				size = (int) s;
+				complete = !hasFlags;
+			}
+			return complete;
+		}
+
+		/**
+		 * @return True if the header is complete
+		 */
+		public boolean complete() {
+			return complete;
+		}
+
+		/**
+		 * @return The size of the frame, once the header is complete
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return The flags of the frame, once the header is complete
+		 */
+		public int flags() {
+			return flags;
+		}
+	}
+}
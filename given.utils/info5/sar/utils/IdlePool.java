@@ -0,0 +1,279 @@
+package info5.sar.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Pool of idle connections, like message queues kept open to be reused, sorted by key.<br>
+ * <br>
+ * Each key keeps at most a maximum number of idle objects, the oldest one being closed
+ * when another one comes back. The last object given back is the first one taken, so the
+ * others stay idle long enough to be evicted when the load drops. The objects idle for
+ * longer than the idle timeout are closed by {@link #evictIdle()}, called by the pool
+ * itself from time to time when it is used.
+ *
+ * @param <T> : the type of the pooled objects
+ */
+public class IdlePool<T> {
+
+	// the objects kept idle for each key, the last one given back first
+	private final Map<String, ArrayDeque<Idle<T>>> idle = new HashMap<>();
+	// called on the objects evicted from the pool
+	private final Consumer<T> closer;
+	private int maxIdle;
+	private long idleTimeout;
+	// the time of the last eviction of the objects idle for too long, in nanoseconds
+	private long lastEviction = System.nanoTime();
+	// the number of idle objects, of those taken again, and of those evicted
+	private int size;
+	private long reused, evicted;
+
+	/**
+	 * @param maxIdle : the maximum number of idle objects kept for a key
+	 * @param idleTimeout : the time an object is kept idle before being closed, in milliseconds
+	 * @param closer : closes the objects evicted from the pool
+	 * @throws IllegalArgumentException if the maximum number or the timeout is negative
+	 */
+	public IdlePool(int maxIdle, long idleTimeout, Consumer<T> closer) {
+		if (maxIdle < 0 || idleTimeout < 0 || closer == null)
+			throw new IllegalArgumentException("IdlePool : Illegal arguments");
+		this.maxIdle = maxIdle;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.closer = closer;
+	}
+
+	/*
+	 * Evict the objects idle for too long if not done for half the idle timeout
+	 * Take the last objects given back for the key until one is valid, closing the others
+	 */
+	/**
+	 * Takes a valid idle object of the given key.
+	 * This is a thread-safe method.
+	 * @param key : the key of the object
+	 * @param valid : tells if an object can be used, called without holding the pool
+	 * @return An idle object checked valid, null if there is none
+	 */
+	public T poll(String key, Predicate<T> valid) {
+		maybeEvict();
+		while (true) {
+			T object;
+			synchronized (this) {
+				ArrayDeque<Idle<T>> objects = idle.get(key);
+				if (objects == null)
+					return null;
+				object = objects.pollFirst().object;
+				if (objects.isEmpty())
+					idle.remove(key);
+				size--;
+			}
+			if (valid.test(object)) {
+				synchronized (this) {
+					reused++;
+				}
+				return object;
+			}
+			evict(object);
+		}
+	}
+
+	/*
+	 * Evict the objects idle for too long if not done for half the idle timeout
+	 * If no object is kept idle, close the object
+	 * Else put it first in the objects of the key, closing the last one if there are too many
+	 */
+	/**
+	 * Gives back an idle object of the given key, which is closed if the pool keeps none.
+	 * This is a thread-safe method.
+	 * @param key : the key of the object
+	 * @param object : the object, not used anymore
+	 * @return True if the object is kept idle
+	 */
+	public boolean offer(String key, T object) {
+		maybeEvict();
+		T oldest = null;
+		synchronized (this) {
+			if (maxIdle > 0) {
+				ArrayDeque<Idle<T>> objects = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+				objects.addFirst(new Idle<>(object, System.nanoTime()));
+				size++;
+				if (objects.size() > maxIdle) {
+					oldest = objects.pollLast().object;
+					size--;
+				}
+				object = null;
+			}
+		}
+		if (object != null)
+			evict(object);
+		if (oldest != null)
+			evict(oldest);
+		return object == null;
+	}
+
+	/**
+	 * Removes an idle object of the given key, without closing it, like one closed by the peer.
+	 * This is a thread-safe method.
+	 * @param key : the key of the object
+	 * @param object : the object
+	 * @return True if the object was idle
+	 */
+	public synchronized boolean remove(String key, T object) {
+		ArrayDeque<Idle<T>> objects = idle.get(key);
+		if (objects == null)
+			return false;
+		for (Iterator<Idle<T>> it = objects.iterator(); it.hasNext();) {
+			if (it.next().object == object) {
+				it.remove();
+				if (objects.isEmpty())
+					idle.remove(key);
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Holding the pool, remove the objects idle for longer than the idle timeout,
+	 * the oldest ones being the last of each key
+	 * Close them
+	 */
+	/**
+	 * Closes the objects idle for longer than the idle timeout.
+	 * This is a thread-safe method.
+	 */
+	public void evictIdle() {
+		List<T> expired = new ArrayList<>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			lastEviction = now;
+			for (Iterator<ArrayDeque<Idle<T>>> it = idle.values().iterator(); it.hasNext();) {
+				ArrayDeque<Idle<T>> objects = it.next();
+				while (!objects.isEmpty() && now - objects.peekLast().since >= idleTimeout) {
+					expired.add(objects.pollLast().object);
+					size--;
+				}
+				if (objects.isEmpty())
+					it.remove();
+			}
+		}
+		for (T object : expired)
+			evict(object);
+	}
+
+	/**
+	 * Closes all the idle objects.
+	 * This is a thread-safe method.
+	 */
+	public void clear() {
+		List<T> all = new ArrayList<>();
+		synchronized (this) {
+			for (ArrayDeque<Idle<T>> objects : idle.values())
+				for (Idle<T> object : objects)
+					all.add(object.object);
+			idle.clear();
+			size = 0;
+		}
+		for (T object : all)
+			evict(object);
+	}
+
+	/**
+	 * @return The number of idle objects
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of idle objects taken again
+	 */
+	public synchronized long reused() {
+		return reused;
+	}
+
+	/**
+	 * @return The number of objects closed by the pool
+	 */
+	public synchronized long evicted() {
+		return evicted;
+	}
+
+	/**
+	 * @return The maximum number of idle objects kept for a key
+	 */
+	public synchronized int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/**
+	 * Sets the maximum number of idle objects kept for a key, the extra ones being
+	 * closed when given back.
+	 * @param maxIdle : the maximum number, 0 to keep none
+	 * @throws IllegalArgumentException if the maximum number is negative
+	 */
+	public synchronized void setMaxIdle(int maxIdle) {
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("IdlePool : Illegal maximum number");
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return The time an object is kept idle before being closed, in milliseconds
+	 */
+	public synchronized long getIdleTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(idleTimeout);
+	}
+
+	/**
+	 * @param idleTimeout : the time an object is kept idle before being closed, in milliseconds
+	 * @throws IllegalArgumentException if the timeout is negative
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 0)
+			throw new IllegalArgumentException("IdlePool : Illegal timeout");
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Evicts the objects idle for too long if it was not done for half the idle timeout.
+	 */
+	private void maybeEvict() {
+		boolean due;
+		synchronized (this) {
+			due = size > 0 && System.nanoTime() - lastEviction >= idleTimeout / 2;
+		}
+		if (due)
+			evictIdle();
+	}
+
+	/**
+	 * Closes an object taken out of the pool.
+	 */
+	private void evict(T object) {
+		synchronized (this) {
+			evicted++;
+		}
+		closer.accept(object);
+	}
+
+	/**
+	 * Idle object, with the time it was given back.
+	 */
+	private static class Idle<T> {
+		final T object;
+		final long since;
+
+		Idle(T object, long since) {
+			this.object = object;
+			this.since = since;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package info5.sar.utils;
+
+/**
+ * Fast LZ block compression, following the LZ4 block format.<br>
+ * <br>
+ * A compressed block is the size of the uncompressed data as an unsigned varint,
+ * followed by sequences made of a token (4 bits of literal length, 4 bits of
+ * match length minus 4), the literals, and the match as a 2 bytes little-endian
+ * offset. Lengths of 15 or more continue on the following bytes, 255 at a time.
+ * The last sequence only has literals.<br>
+ * <br>
+ * A codec holds a hash table and an output buffer reused from one block to the
+ * next, so compressing does not allocate once the buffer is large enough.
+ * A codec is not thread-safe, use {@link #get()} to get the one of the current thread.
+ */
+public class LZCodec {
+
+	private static final int MIN_MATCH = 4;
+	// the last bytes of a block are always literals
+	private static final int LAST_LITERALS = 5;
+	// no match starts in the last bytes of a block
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 0xFFFF;
+	private static final int HASH_LOG = 12;
+	// skip faster through data that does not compress
+	private static final int SKIP_TRIGGER = 6;
+
+	private static final ThreadLocal<LZCodec> CODECS = new ThreadLocal<LZCodec>() {
+		@Override
+		protected LZCodec initialValue() {
+			return new LZCodec();
+		}
+	};
+
+	// positions of the last 4 bytes sequences seen, offset by the base field
+	private int[] table = new int[1 << HASH_LOG];
+	// entries of the table below this base belong to previous blocks
+	private int base = 1;
+	// the reused output buffer
+	private byte[] output = new byte[0];
+
+	/**
+	 * @return The codec of the current thread
+	 */
+	public static LZCodec get() {
+		return CODECS.get();
+	}
+
+	/**
+	 * @param length : the size of the data to compress
+	 * @return The maximum size of the compressed block
+	 */
+	public static int maxCompressedLength(int length) {
+		return 5 + length + length / 255 + 16;
+	}
+
+	/**
+	 * @return The output buffer holding the last compressed block,
+	 *         valid until the next call to compress() on this codec
+	 */
+	public byte[] output() {
+		return output;
+	}
+
+	/**
+	 * Compresses the given data in the output buffer of this codec.
+	 * @param src : the array containing the data
+	 * @param offset : the starting index of the data
+	 * @param length : the size of the data
+	 * @return The size of the compressed block in {@link #output()},
+	 *         or -1 if the block would not be smaller than the data
+	 */
+	public int compress(byte[] src, int offset, int length) {
+		if (src == null || offset < 0 || length < 0 || offset + length > src.length)
+			throw new IllegalArgumentException("LZCodec : Illegal arguments");
+		int max = maxCompressedLength(length);
+		if (output.length < max)
+			output = new byte[max];
+		if (base > Integer.MAX_VALUE - length - MAX_OFFSET - 1) {
+			java.util.Arrays.fill(table, 0);
+			base = 1;
+		}
+		byte[] dst = output;
+		int op = writeVarint(dst, 0, length);
+		int end = offset + length;
+		int anchor = offset;
+		if (length >= MF_LIMIT + 1) {
+			int matchLimit = end - LAST_LITERALS;
+			int mfLimit = end - MF_LIMIT;
+			int ip = offset;
+			table[hash(readInt(src, ip))] = base;
+			ip++;
+			int searched = 1 << SKIP_TRIGGER;
+			while (ip < mfLimit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int entry = table[h];
+				table[h] = ip - offset + base;
+				int ref = entry - base + offset;
+				if (entry < base || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					ip += searched++ >>> SKIP_TRIGGER;
+					continue;
+				}
+				searched = 1 << SKIP_TRIGGER;
+				// extend the match backwards, then forwards
+				while (ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength])
+					matchLength++;
+				op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+				if (op >= length)
+					return -1;
+				ip += matchLength;
+				anchor = ip;
+				if (ip < mfLimit)
+					table[hash(readInt(src, ip - 2))] = ip - 2 - offset + base;
+			}
+		}
+		op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op);
+		base += length + MAX_OFFSET + 1;
+		return op < length ? op : -1;
+	}
+
+	/**
+	 * @param src : the array containing the compressed block
+	 * @param offset : the starting index of the block
+	 * @param length : the size of the block
+	 * @return The size of the data once decompressed
+	 * @throws IllegalArgumentException if the block is malformed
+	 */
+	public static int decompressedLength(byte[] src, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < 5 && i < length; i++) {
+			byte b = src[offset + i];
+			value |= (long) (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0) {
+				if (value > Integer.MAX_VALUE)
+					break;
+				return (int) value;
+			}
+		}
+		throw new IllegalArgumentException("LZCodec : malformed block");
+	}
+
+	/**
+	 * Decompresses the given block.
+	 * @param src : the array containing the compressed block
+	 * @param offset : the starting index of the block
+	 * @param length : the size of the block
+	 * @param dst : the array to write on, with at least {@link #decompressedLength(byte[], int, int)}
+	 *              bytes from the given index
+	 * @param dstOffset : the starting index in the array to write on
+	 * @return The size of the decompressed data
+	 * @throws IllegalArgumentException if the block is malformed
+	 */
+	public static int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+		int size = decompressedLength(src, offset, length);
+		if (dst.length - dstOffset < size)
+			throw new IllegalArgumentException("LZCodec : destination too small");
+		int ip = offset;
+		while ((src[ip++] & 0x80) != 0)
+			;
+		int end = offset + length;
+		int op = dstOffset;
+		int oend = dstOffset + size;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+				// literals
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				if (literals > end - ip || literals > oend - op)
+					throw new IllegalArgumentException("LZCodec : malformed block");
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == end)
+					break;
+				// match
+				int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = op - matchOffset;
+				if (matchOffset == 0 || ref < dstOffset || matchLength > oend - op)
+					throw new IllegalArgumentException("LZCodec : malformed block");
+				if (matchOffset >= matchLength) {
+					System.arraycopy(dst, ref, dst, op, matchLength);
+					op += matchLength;
+				} else {
+					// overlapping match, repeating the last bytes
+					for (int i = 0; i < matchLength; i++)
+						dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("LZCodec : malformed block");
+		}
+		if (op != oend)
+			throw new IllegalArgumentException("LZCodec : malformed block");
+		return size;
+	}
+
+	/**
+	 * Writes a sequence of literals followed by a match, or by nothing if the match length is 0.
+	 * @return The index following the sequence in the output
+	 */
+	private static int writeSequence(byte[] src, int anchor, int literals, int matchOffset, int matchLength, byte[] dst, int op) {
+		int tokenIndex = op++;
+		int token = Math.min(literals, 15) << 4;
+		if (literals >= 15)
+			op = writeLength(dst, op, literals - 15);
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+		if (matchLength > 0) {
+			dst[op++] = (byte) matchOffset;
+			dst[op++] = (byte) (matchOffset >>> 8);
+			int length = matchLength - MIN_MATCH;
+			token |= Math.min(length, 15);
+			if (length >= 15)
+				op = writeLength(dst, op, length - 15);
+		}
+		dst[tokenIndex] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int writeVarint(byte[] dst, int op, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst[op++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[op++] = (byte) value;
+		return op;
+	}
+
+	private static int readInt(byte[] src, int index) {
+		return (src[index] & 0xFF) | (src[index + 1] & 0xFF) << 8 | (src[index + 2] & 0xFF) << 16 | (src[index + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
@@ -0,0 +1,424 @@
+package info5.sar.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records, stored in memory-mapped segment files.<br>
+ * <br>
+ * Each record gets the next sequence number, starting at 1, and is stored as :
+ * [length (4 bytes)] + [sequence (8 bytes)] + [CRC32 of the record (4 bytes)] + [record]<br>
+ * A segment file is named after the sequence number of its first record, and a new one is
+ * started when a record does not fit in the current one. Appending only copies the record
+ * in the mapped memory; {@link #commit(long)} forces the appended records to the storage,
+ * the callers waiting for the same commit sharing a single force (group commit).<br>
+ * <br>
+ * Records are acknowledged with {@link #acknowledge(long)} once they are not needed anymore.
+ * The segments whose records are all acknowledged are deleted, but the last 'retained' ones,
+ * and the segment being appended to is never deleted.<br>
+ * <br>
+ * When opened, the log recovers the records of its existing segments, up to the first
+ * missing or corrupted one, so a crash loses at most the records not committed yet.
+ */
+public class MappedLog implements Closeable {
+
+	/**
+	 * Default size of a segment file.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String SUFFIX = ".log";
+	private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	// the directory of the segment files
+	private final Path dir;
+	// the size of the new segment files
+	private final int segmentSize;
+	// the number of fully acknowledged segments kept
+	private final int retained;
+	// the segments, by increasing sequence numbers, guarded by this log
+	private final List<Segment> segments = new ArrayList<>();
+	// the sequence number of the last appended record, guarded by this log
+	private long last;
+	// the highest acknowledged sequence number, guarded by this log
+	private long acknowledged;
+	// the checksum of the records, guarded by this log
+	private final CRC32 crc = new CRC32();
+	// set once closed, guarded by this log
+	private boolean closed = false;
+
+	// guards the fields of the group commit
+	private final Object commitLock = new Object();
+	// the sequence number of the last committed record
+	private long committed;
+	// true while a caller forces the appended records for the others
+	private boolean committing = false;
+
+	/*
+	 * Create the directory if needed
+	 * Open the existing segment files, by increasing sequence numbers, recovering their records
+	 * Start a new segment if there is none
+	 */
+	/**
+	 * Opens the log stored in the given directory, creating it if needed.
+	 * @param dir : the directory of the segment files
+	 * @param segmentSize : the size of the new segment files
+	 * @param retained : the number of fully acknowledged segments kept
+	 * @throws IOException if the segment files cannot be opened
+	 */
+	public MappedLog(Path dir, int segmentSize, int retained) throws IOException {
+		if (segmentSize <= HEADER_SIZE || retained < 0)
+			throw new IllegalArgumentException("MappedLog : Illegal arguments");
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.retained = retained;
+		Files.createDirectories(dir);
+		List<Long> bases = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Nothing to do here, not a segment
+				}
+			}
+		}
+		bases.sort(null);
+		for (long base : bases) {
+			Segment segment = new Segment(base, 0);
+			if (!segments.isEmpty() && base != last + 1) {
+				// a gap, the following segments cannot be trusted
+				segment.delete();
+				continue;
+			}
+			segment.recover();
+			segments.add(segment);
+			last = segment.last;
+		}
+		if (segments.isEmpty())
+			segments.add(new Segment(1, segmentSize));
+		else
+			last = segments.get(segments.size() - 1).last;
+		acknowledged = segments.get(0).base - 1;
+		committed = last;
+	}
+
+	/*
+	 * Start a new segment after the last one if the record does not fit in it,
+	 * large enough for the record
+	 * Write the header and copy the record at the end of the last segment
+	 */
+	/**
+	 * Appends a record, which is not forced to the storage until committed.
+	 * This is a thread-safe method.
+	 * @param bytes : the array containing the record
+	 * @param offset : the starting index of the record in the array
+	 * @param length : the length of the record
+	 * @return The sequence number of the record
+	 * @throws IllegalArgumentException if the record is empty
+	 * @throws IOException if a new segment file cannot be created
+	 */
+	public synchronized long append(byte[] bytes, int offset, int length) throws IOException {
+		if (length <= 0)
+			throw new IllegalArgumentException("MappedLog : empty record");
+		if (closed)
+			throw new IOException("MappedLog : closed");
+		Segment segment = segments.get(segments.size() - 1);
+		if (segment.position + HEADER_SIZE + length > segment.size) {
+			segment = new Segment(last + 1, Math.max(segmentSize, HEADER_SIZE + length));
+			segments.add(segment);
+		}
+		crc.reset();
+		crc.update(bytes, offset, length);
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.position;
+		buffer.putLong(position + Integer.BYTES, last + 1);
+		buffer.putInt(position + Integer.BYTES + Long.BYTES, (int) crc.getValue());
+		buffer.put(position + HEADER_SIZE, bytes, offset, length);
+		// the length is written last, a record is only valid once complete
+		buffer.putInt(position, length);
+		segment.position += HEADER_SIZE + length;
+		segment.last = ++last;
+		return last;
+	}
+
+	/*
+	 * Return if the record is already committed
+	 * Wait while another caller is committing, checking again once it is done
+	 * Else become the committing caller :
+	 * - note the last appended record and the dirty ranges of the segments
+	 * - force them out of the lock, so the others can append meanwhile (only the committing
+	 *   caller changes the forced ranges)
+	 * - update the committed field and wake up the waiting callers
+	 */
+	/**
+	 * Forces the records up to the given one to the storage, along with all the records
+	 * appended meanwhile, waiting for the commit in progress if it includes them.
+	 * This is a thread-safe blocking method.
+	 * @param sequence : the sequence number of the last record to commit
+	 * @throws IOException if the records cannot be forced
+	 */
+	public void commit(long sequence) throws IOException {
+		synchronized (commitLock) {
+			while (committed < sequence && committing) {
+				try {
+					commitLock.wait();
+				} catch (InterruptedException e) {
+					// Nothing to do here
+				}
+			}
+			if (committed >= sequence)
+				return;
+			committing = true;
+		}
+		long done = 0;
+		try {
+			List<Segment> dirty = new ArrayList<>();
+			List<int[]> ranges = new ArrayList<>();
+			long upTo;
+			synchronized (this) {
+				upTo = last;
+				for (Segment segment : segments) {
+					if (segment.forced < segment.position) {
+						dirty.add(segment);
+						ranges.add(new int[] { segment.forced, segment.position });
+					}
+				}
+			}
+			for (int i = 0; i < dirty.size(); i++) {
+				int[] range = ranges.get(i);
+				dirty.get(i).buffer.force(range[0], range[1] - range[0]);
+				synchronized (this) {
+					dirty.get(i).forced = range[1];
+				}
+			}
+			done = upTo;
+		} finally {
+			synchronized (commitLock) {
+				committing = false;
+				committed = Math.max(committed, done);
+				commitLock.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Update the acknowledged field
+	 * Delete the first segments as long as their records are all acknowledged,
+	 * keeping the 'retained' last ones of them and the segment being appended to
+	 */
+	/**
+	 * Acknowledges the records up to the given one, which may then be deleted.
+	 * This is a thread-safe method.
+	 * @param sequence : the sequence number of the last acknowledged record
+	 */
+	public synchronized void acknowledge(long sequence) {
+		if (sequence <= acknowledged)
+			return;
+		acknowledged = Math.min(sequence, last);
+		int done = 0;
+		while (done < segments.size() - 1 && segments.get(done).last <= acknowledged)
+			done++;
+		for (int i = 0; i < done - retained; i++)
+			segments.remove(0).delete();
+	}
+
+	/**
+	 * @return The sequence number of the last appended record, 0 if none
+	 */
+	public synchronized long lastSequence() {
+		return last;
+	}
+
+	/**
+	 * @return The sequence number of the last committed record
+	 */
+	public long committedSequence() {
+		synchronized (commitLock) {
+			return committed;
+		}
+	}
+
+	/**
+	 * @return The highest acknowledged sequence number
+	 */
+	public synchronized long acknowledgedSequence() {
+		return acknowledged;
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public synchronized int segments() {
+		return segments.size();
+	}
+
+	/**
+	 * @param sequence : the sequence number of the first record to read
+	 * @return A new cursor reading the records from the given one,
+	 *         or from the first record still stored if it was deleted
+	 */
+	public Cursor cursor(long sequence) {
+		return new Cursor(sequence);
+	}
+
+	/**
+	 * Closes the log, the appended records being lost unless committed.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (Segment segment : segments)
+			segment.close();
+	}
+
+	/**
+	 * Reads the records of the log in order, following the appended ones.
+	 */
+	public class Cursor {
+		// the sequence number of the next record to read
+		private long next;
+		// the segment and position of the next record, if located
+		private Segment segment;
+		private int position;
+
+		private Cursor(long next) {
+			this.next = Math.max(next, 1);
+		}
+
+		/*
+		 * Return null if the next record is not appended yet
+		 * Locate the next record if the segment was not located yet, or deleted,
+		 * or fully read, skipping to the first stored record if it was deleted
+		 * Copy the record and move to the following one
+		 */
+		/**
+		 * Reads the next record.
+		 * This is a thread-safe method.
+		 * @return A copy of the next record, or null if it is not appended yet
+		 */
+		public byte[] next() {
+			synchronized (MappedLog.this) {
+				if (closed || next > last)
+					return null;
+				if (segment == null || segment.closed || next > segment.last)
+					locate();
+				MappedByteBuffer buffer = segment.buffer;
+				int length = buffer.getInt(position);
+				byte[] record = new byte[length];
+				buffer.get(position + HEADER_SIZE, record);
+				position += HEADER_SIZE + length;
+				next++;
+				return record;
+			}
+		}
+
+		/**
+		 * @return The sequence number of the next record to read
+		 */
+		public long sequence() {
+			synchronized (MappedLog.this) {
+				return next;
+			}
+		}
+
+		/**
+		 * Locates the next record, guarded by the log.
+		 */
+		private void locate() {
+			Segment first = segments.get(0);
+			if (next < first.base)
+				next = first.base;
+			for (Segment s : segments) {
+				if (next <= s.last) {
+					segment = s;
+					position = 0;
+					for (long seq = s.base; seq < next; seq++)
+						position += HEADER_SIZE + s.buffer.getInt(position);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A segment file, mapped in memory.
+	 */
+	private class Segment {
+		// the sequence number of the first record
+		final long base;
+		// the sequence number of the last record, base-1 if empty
+		long last;
+		final Path file;
+		FileChannel channel;
+		MappedByteBuffer buffer;
+		int size;
+		// the end of the records
+		int position;
+		// the end of the records forced to the storage
+		int forced;
+		boolean closed = false;
+
+		/*
+		 * Open or create the file and map it, extending it to the given size
+		 */
+		Segment(long base, int size) throws IOException {
+			this.base = base;
+			this.last = base - 1;
+			this.file = dir.resolve(String.format("%020d", base) + SUFFIX);
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			this.size = (int) Math.max(size, channel.size());
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+		}
+
+		/*
+		 * Scan the records from the start of the file, up to the first missing
+		 * or corrupted one, and move the position after the last valid one
+		 */
+		void recover() {
+			CRC32 check = new CRC32();
+			while (position + HEADER_SIZE <= size) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || position + HEADER_SIZE + length > size
+						|| buffer.getLong(position + Integer.BYTES) != last + 1)
+					break;
+				check.reset();
+				check.update(buffer.slice(position + HEADER_SIZE, length));
+				if ((int) check.getValue() != buffer.getInt(position + Integer.BYTES + Long.BYTES))
+					break;
+				position += HEADER_SIZE + length;
+				last++;
+			}
+			forced = position;
+		}
+
+		void close() {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing to do here
+			}
+		}
+
+		void delete() {
+			close();
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// Nothing to do here, its records are not needed anymore
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package info5.sar.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Reference-counted byte array, allocated by a {@link BufferPool}.<br>
+ * <br>
+ * A buffer is allocated with a reference count of 1. Each holder sharing it calls
+ * {@link #retain()}, and each holder done with it calls {@link #release()}: the last
+ * release gives the array back to its pool, so it must not be used afterwards.<br>
+ * <br>
+ * The array may be larger than requested, {@link #length()} being the number of bytes
+ * in use, from index 0.
+ */
+public final class PooledBuffer {
+
+	private static final AtomicIntegerFieldUpdater<PooledBuffer> REFS = AtomicIntegerFieldUpdater
+			.newUpdater(PooledBuffer.class, "refs");
+
+	// the pool to give the array back to, null if not pooled
+	final BufferPool pool;
+	// the size class of the array in the pool
+	final int sizeClass;
+	final byte[] array;
+	private int length;
+	private volatile int refs;
+	// the leak tracking state, null if leak detection is off
+	BufferPool.Tracker tracker;
+
+	PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.array = new byte[capacity];
+	}
+
+	/**
+	 * Prepares this buffer for a new holder, called by the pool.
+	 * @param length : the number of bytes in use
+	 */
+	void reset(int length) {
+		this.length = length;
+		REFS.set(this, 1);
+	}
+
+	/**
+	 * @return The backing array, valid until the last release
+	 */
+	public byte[] array() {
+		return array;
+	}
+
+	/**
+	 * @return The length of the backing array
+	 */
+	public int capacity() {
+		return array.length;
+	}
+
+	/**
+	 * @return The number of bytes in use
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @param length : the number of bytes in use
+	 * @throws IllegalArgumentException if the length exceeds the capacity
+	 */
+	public void setLength(int length) {
+		if (length < 0 || length > array.length)
+			throw new IllegalArgumentException("PooledBuffer : Illegal length");
+		this.length = length;
+	}
+
+	/**
+	 * Adds a holder of this buffer.
+	 * @return This buffer
+	 * @throws IllegalStateException if this buffer was already released
+	 */
+	public PooledBuffer retain() {
+		int refs;
+		do {
+			refs = this.refs;
+			if (refs <= 0)
+				throw new IllegalStateException("PooledBuffer : retained after release");
+		} while (!REFS.compareAndSet(this, refs, refs + 1));
+		return this;
+	}
+
+	/**
+	 * Removes a holder of this buffer, giving it back to its pool if it was the last one.
+	 * @return True if the buffer was given back
+	 * @throws IllegalStateException if this buffer was already released
+	 */
+	public boolean release() {
+		int refs = REFS.decrementAndGet(this);
+		if (refs > 0)
+			return false;
+		if (refs < 0) {
+			REFS.set(this, 0);
+			throw new IllegalStateException("PooledBuffer : released too many times");
+		}
+		if (pool != null)
+			pool.recycle(this);
+		else if (tracker != null)
+			tracker.live = false;
+		return true;
+	}
+
+	/**
+	 * @return The number of holders of this buffer
+	 */
+	public int refCount() {
+		return refs;
+	}
+}
@@ -0,0 +1,111 @@
+package info5.sar.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of the messages exchanged by the publish/subscribe clients and brokers over the message queues.<br>
+ * <br>
+ * Each message is a header followed by the payload :
+ * [kind (1 byte)] + [topic length (2 bytes, big-endian)] + [topic in UTF-8] + [payload]
+ * <ul>
+ * <li>{@link #SUBSCRIBE} : subscribes the client to the topics matching the filter in the topic field.</li>
+ * <li>{@link #UNSUBSCRIBE} : cancels a previous subscription with the same filter.</li>
+ * <li>{@link #PUBLISH} : publishes the payload on the topic.</li>
+ * <li>{@link #MESSAGE} : a message published on the topic, delivered to a subscriber.</li>
+ * </ul>
+ * A published message only differs from the delivered one by its kind, so a broker can turn
+ * the array it received into the message delivered to all the subscribers without copying it.
+ */
+public class PubSubCodec {
+
+	// kinds of messages
+	public static final byte SUBSCRIBE = 0, UNSUBSCRIBE = 1, PUBLISH = 2, MESSAGE = 3;
+	// size of the fixed part of the header
+	public static final int HEADER_SIZE = 1 + Short.BYTES;
+	// maximum length of an encoded topic
+	public static final int MAX_TOPIC_LENGTH = 0xFFFF;
+
+	/**
+	 * @param kind : the kind of the message
+	 * @param topic : the topic, or the filter of a subscription
+	 * @param payload : the payload
+	 * @return The encoded message
+	 * @throws IllegalArgumentException if the topic is too long
+	 */
+	public static byte[] encode(byte kind, String topic, byte[] payload) {
+		byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_TOPIC_LENGTH)
+			throw new IllegalArgumentException("PubSubCodec : topic too long");
+		byte[] message = new byte[HEADER_SIZE + name.length + payload.length];
+		message[0] = kind;
+		message[1] = (byte) (name.length >>> 8);
+		message[2] = (byte) name.length;
+		System.arraycopy(name, 0, message, HEADER_SIZE, name.length);
+		System.arraycopy(payload, 0, message, HEADER_SIZE + name.length, payload.length);
+		return message;
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return The kind of the message
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static byte kind(byte[] message) {
+		check(message, topicLength(message));
+		return message[0];
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return The topic of the message, or the filter of a subscription
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static String topic(byte[] message) {
+		int length = topicLength(message);
+		check(message, length);
+		return new String(message, HEADER_SIZE, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return A copy of the payload of the message
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static byte[] payload(byte[] message) {
+		int offset = offset(message);
+		byte[] payload = new byte[message.length - offset];
+		System.arraycopy(message, offset, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * Turns a received published message into the message delivered to the subscribers, in place.
+	 * @param message : an encoded {@link #PUBLISH} message
+	 * @return The same array, of kind {@link #MESSAGE}
+	 */
+	public static byte[] toMessage(byte[] message) {
+		check(message, topicLength(message));
+		message[0] = MESSAGE;
+		return message;
+	}
+
+	/**
+	 * @return The index of the payload in the message
+	 */
+	private static int offset(byte[] message) {
+		int length = topicLength(message);
+		check(message, length);
+		return HEADER_SIZE + length;
+	}
+
+	private static int topicLength(byte[] message) {
+		if (message.length < HEADER_SIZE)
+			throw new IllegalArgumentException("PubSubCodec : message too short");
+		return (message[1] & 0xFF) << 8 | (message[2] & 0xFF);
+	}
+
+	private static void check(byte[] message, int topicLength) {
+		if (message.length < HEADER_SIZE + topicLength)
+			throw new IllegalArgumentException("PubSubCodec : message too short");
+	}
+}
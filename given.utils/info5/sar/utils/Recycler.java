@@ -0,0 +1,112 @@
+package info5.sar.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of objects to reuse, like the buffers of the channels of a broker.<br>
+ * <br>
+ * The objects given back are kept up to the capacity of the pool, the others are left
+ * to the garbage collector. The last object given back is the first one taken, its memory
+ * being the most likely to be in the caches. Giving back and taking an object allocates
+ * nothing; the objects must be reset by their users.
+ *
+ * @param <T> : the type of the pooled objects
+ */
+public class Recycler<T> {
+
+	private Object[] objects;
+	// the number of objects kept, from index 0
+	private int size;
+	// the number of objects taken from the pool, and given back but not kept
+	private final AtomicLong reused = new AtomicLong(), dropped = new AtomicLong();
+
+	/**
+	 * @param capacity : the maximum number of objects kept
+	 * @throws IllegalArgumentException if the capacity is negative
+	 */
+	public Recycler(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Recycler : Illegal capacity");
+		this.objects = new Object[capacity];
+	}
+
+	/**
+	 * Takes an object from this pool.
+	 * This is a thread-safe method.
+	 * @return The last object given back, null if the pool is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		T object;
+		synchronized (this) {
+			if (size == 0)
+				return null;
+			object = (T) objects[--size];
+			objects[size] = null;
+		}
+		reused.incrementAndGet();
+		return object;
+	}
+
+	/**
+	 * Gives an object back to this pool, which keeps it if not full.
+	 * This is a thread-safe method.
+	 * @param object : the object to give back, not used anymore
+	 * @return True if the object is kept
+	 */
+	public boolean offer(T object) {
+		synchronized (this) {
+			if (size < objects.length) {
+				objects[size++] = object;
+				return true;
+			}
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return The maximum number of objects kept
+	 */
+	public synchronized int getCapacity() {
+		return objects.length;
+	}
+
+	/*
+	 * Copy the objects kept in a new array of the given capacity, dropping those beyond
+	 */
+	/**
+	 * Sets the maximum number of objects kept, dropping those beyond.
+	 * @param capacity : the maximum number of objects kept, 0 to keep none
+	 * @throws IllegalArgumentException if the capacity is negative
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Recycler : Illegal capacity");
+		Object[] kept = new Object[capacity];
+		size = Math.min(size, capacity);
+		System.arraycopy(objects, 0, kept, 0, size);
+		objects = kept;
+	}
+
+	/**
+	 * @return The number of objects kept
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of objects taken from this pool, each one not allocated
+	 */
+	public long reused() {
+		return reused.get();
+	}
+
+	/**
+	 * @return The number of objects given back but not kept, the pool being full
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+}
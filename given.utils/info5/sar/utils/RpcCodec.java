@@ -0,0 +1,97 @@
+package info5.sar.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of the messages exchanged by the RPC clients and servers over the message queues.<br>
+ * <br>
+ * Each message is a header followed by the payload :
+ * [kind (1 byte)] + [correlation id (4 bytes, big-endian)] + [payload]
+ * <ul>
+ * <li>{@link #REQUEST} : a call, the payload being the request.</li>
+ * <li>{@link #RESPONSE} : the result of the call with the same correlation id.</li>
+ * <li>{@link #ERROR} : the failure of the call with the same correlation id,
+ * the payload being the message of the error in UTF-8.</li>
+ * </ul>
+ * Responses may be sent in any order, the correlation id tying them to their request.
+ */
+public class RpcCodec {
+
+	// kinds of messages
+	public static final byte REQUEST = 0, RESPONSE = 1, ERROR = 2;
+	// size of the header
+	public static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+	/**
+	 * @param kind : the kind of the message
+	 * @param id : the correlation id
+	 * @param payload : the payload
+	 * @return The encoded message
+	 */
+	public static byte[] encode(byte kind, int id, byte[] payload) {
+		byte[] message = new byte[HEADER_SIZE + payload.length];
+		message[0] = kind;
+		message[1] = (byte) (id >>> 24);
+		message[2] = (byte) (id >>> 16);
+		message[3] = (byte) (id >>> 8);
+		message[4] = (byte) id;
+		System.arraycopy(payload, 0, message, HEADER_SIZE, payload.length);
+		return message;
+	}
+
+	/**
+	 * @param id : the correlation id
+	 * @param error : the error to report
+	 * @return The encoded error message
+	 */
+	public static byte[] encodeError(int id, Throwable error) {
+		String text = error.getMessage() != null ? error.getMessage() : error.toString();
+		return encode(ERROR, id, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return The kind of the message
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static byte kind(byte[] message) {
+		check(message);
+		return message[0];
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return The correlation id of the message
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static int id(byte[] message) {
+		check(message);
+		return (message[1] & 0xFF) << 24 | (message[2] & 0xFF) << 16 | (message[3] & 0xFF) << 8 | (message[4] & 0xFF);
+	}
+
+	/**
+	 * @param message : an encoded message
+	 * @return A copy of the payload of the message
+	 * @throws IllegalArgumentException if the message is too short to be valid
+	 */
+	public static byte[] payload(byte[] message) {
+		check(message);
+		byte[] payload = new byte[message.length - HEADER_SIZE];
+		System.arraycopy(message, HEADER_SIZE, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * @param message : an encoded error message
+	 * @return The message of the error
+	 */
+	public static String error(byte[] message) {
+		check(message);
+		return new String(message, HEADER_SIZE, message.length - HEADER_SIZE, StandardCharsets.UTF_8);
+	}
+
+	private static void check(byte[] message) {
+		if (message.length < HEADER_SIZE)
+			throw new IllegalArgumentException("RpcCodec : message too short");
+	}
+}
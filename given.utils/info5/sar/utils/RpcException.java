@@ -0,0 +1,16 @@
+package info5.sar.utils;
+
+/**
+ * Exception reporting that a remote procedure call failed on the server side.
+ */
+public class RpcException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message : the message of the error reported by the server
+	 */
+	public RpcException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,109 @@
+package info5.sar.utils;
+
+/**
+ * Filter of publish/subscribe topics, with wildcards.<br>
+ * <br>
+ * Topics are made of levels separated by '/', such as "sensors/kitchen/temperature".
+ * A filter has the same levels, where :
+ * <ul>
+ * <li>'+' as a whole level matches any single level, as in "sensors/+/temperature".</li>
+ * <li>'#' as the whole last level matches any number of levels, including none,
+ * as in "sensors/#" matching "sensors" and "sensors/kitchen/temperature".</li>
+ * </ul>
+ * A filter is compiled once, and topics are split once with {@link #levels(String)}
+ * to be matched against many filters.
+ */
+public class TopicFilter {
+
+	public static final String SEPARATOR = "/";
+	public static final String SINGLE_LEVEL = "+";
+	public static final String MULTI_LEVEL = "#";
+
+	private final String filter;
+	// the levels of the filter, without the final multi-level wildcard
+	private final String[] levels;
+	// true if the filter ends with the multi-level wildcard
+	private final boolean multi;
+
+	/**
+	 * @param filter : the filter
+	 * @throws IllegalArgumentException if the filter is empty or uses wildcards in a level with other characters,
+	 *         or the multi-level wildcard before the last level
+	 */
+	public TopicFilter(String filter) {
+		String[] levels = levels(filter);
+		for (int i = 0; i < levels.length; i++) {
+			String level = levels[i];
+			if (level.equals(MULTI_LEVEL) ? i != levels.length - 1
+					: !level.equals(SINGLE_LEVEL) && (level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL)))
+				throw new IllegalArgumentException("TopicFilter : Illegal filter " + filter);
+		}
+		this.filter = filter;
+		this.multi = levels[levels.length - 1].equals(MULTI_LEVEL);
+		if (multi) {
+			this.levels = new String[levels.length - 1];
+			System.arraycopy(levels, 0, this.levels, 0, this.levels.length);
+		} else {
+			this.levels = levels;
+		}
+	}
+
+	/**
+	 * @param levels : the levels of a topic, as returned by {@link #levels(String)}
+	 * @return True if the topic matches this filter
+	 */
+	public boolean matches(String[] levels) {
+		if (multi ? levels.length < this.levels.length : levels.length != this.levels.length)
+			return false;
+		for (int i = 0; i < this.levels.length; i++)
+			if (!this.levels[i].equals(SINGLE_LEVEL) && !this.levels[i].equals(levels[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param topic : a topic
+	 * @return True if the topic matches this filter
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public boolean matches(String topic) {
+		return matches(topicLevels(topic));
+	}
+
+	/**
+	 * @param topic : a topic or a filter
+	 * @return The levels of the topic
+	 * @throws IllegalArgumentException if the topic is empty
+	 */
+	public static String[] levels(String topic) {
+		if (topic.isEmpty())
+			throw new IllegalArgumentException("TopicFilter : empty topic");
+		return topic.split(SEPARATOR, -1);
+	}
+
+	/**
+	 * @param topic : a topic a message is published on
+	 * @return The levels of the topic
+	 * @throws IllegalArgumentException if the topic is empty or contains wildcards
+	 */
+	public static String[] topicLevels(String topic) {
+		if (topic.contains(SINGLE_LEVEL) || topic.contains(MULTI_LEVEL))
+			throw new IllegalArgumentException("TopicFilter : wildcards in topic " + topic);
+		return levels(topic);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof TopicFilter && ((TopicFilter) o).filter.equals(filter);
+	}
+
+	@Override
+	public int hashCode() {
+		return filter.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return filter;
+	}
+}
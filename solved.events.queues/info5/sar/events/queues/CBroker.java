@@ -1,21 +1,24 @@
 package info5.sar.events.queues;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 
 import info5.sar.events.channels.Broker;
+import info5.sar.utils.CircularBufferEvent;
 import info5.sar.utils.Executor;
+import info5.sar.utils.Recycler;
 
 public class CBroker extends Broker {
-	
-	// map storing the accept listeners on accepting ports
-	private Map<Integer, AcceptListener> acceptingPorts = new HashMap<>();
-	// map storing connect listeners waiting for an accept on the ports
-	private Map<Integer, List<ConnectListener>> connectingPorts = new HashMap<>();
+
+	// default number of channels whose buffers are kept for reuse
+	public static final int DEFAULT_CHANNEL_POOL_SIZE = 16;
+
+	// the rendez-vous of each port, created on first use and never removed
+	private final ConcurrentHashMap<Integer, Port> ports = new ConcurrentHashMap<>();
 	// the event executor pump
 	private Executor executor;
+	// the buffers of the disconnected channels created by this broker, two per channel
+	private final Recycler<CircularBufferEvent> buffers = new Recycler<>(2 * DEFAULT_CHANNEL_POOL_SIZE);
 
 	public CBroker(String name, Executor executor) {
 		super(name);
@@ -24,97 +27,144 @@ public class CBroker extends Broker {
 	}
 
 	/*
-	 * If the acceptingPorts map is storing an AcceptListeler on the given port, throw a IllegalArgumentException
-	 * If the connectingPorts map has listener(s) on the given port :
-	 * - retrieve the first ConnectListener of the list and remove it from the list.
-	 * - create 2 new linked CChannels
-	 * - create a new Runnable calling the accepted() method of the given listener with one of the channels from its run() method.
-	 * - create another new Runnable calling the connected() method of the retrieved ConnectListener with the other channel from its run() method.
-	 * - post these 2 Runnable to the executor
-	 * Else :
-	 * - Add the given listener to the acceptingPorts map on the given port
+	 * Retrieve the rendez-vous of the given port
+	 * In a synchronized block on the rendez-vous :
+	 * | If an AcceptListener is already waiting on the port, throw a IllegalArgumentException
+	 * | Retrieve the first waiting ConnectListener, if any
+	 * | If there is none, set the given listener as the waiting AcceptListener and return
+	 * Create 2 new linked CChannels
+	 * Post a Runnable calling the accepted() method of the given listener with one of the channels
+	 * Post another Runnable calling the connected() method of the retrieved ConnectListener with the other channel
 	 */
 	@Override
-	public synchronized void accept(int port, AcceptListener listener) {
-		if(acceptingPorts.get(port)!=null) throw new IllegalArgumentException(this.toString()+" accept : invalid port");
-		if(connectingPorts.get(port)!=null && connectingPorts.get(port).size()>0) {
-			ConnectListener connectListener = connectingPorts.get(port).get(0);
-			connectingPorts.get(port).remove(connectListener);
-			if(connectingPorts.get(port).size()==0) connectingPorts.remove(port);
-			CChannel acceptChannel = new CChannel(this, port, executor);
-			CChannel connectChannel = new CChannel(this, port, acceptChannel, executor);
-			Runnable runnableAccept = new Runnable() {
-				@Override
-				public void run() {
-					listener.accepted(acceptChannel);
-				}
-			};
-			Runnable runnableConnect = new Runnable() {
-				@Override
-				public void run() {
-					connectListener.connected(connectChannel);
-				}
-			};
-			executor.post(runnableAccept);
-			executor.post(runnableConnect);
-		} else {
-			acceptingPorts.put(port, listener);
+	public void accept(int port, AcceptListener listener) {
+		Port rdv = port(port);
+		ConnectListener connectListener;
+		synchronized(rdv) {
+			if(rdv.acceptor!=null)
+				throw new IllegalArgumentException(this.toString()+" accept : invalid port");
+			connectListener = rdv.connectors.pollFirst();
+			if(connectListener==null) {
+				rdv.acceptor = listener;
+				return;
+			}
 		}
+		CChannel acceptChannel = new CChannel(this, port, executor);
+		CChannel connectChannel = new CChannel(this, port, acceptChannel, executor);
+		Runnable runnableAccept = new Runnable() {
+			@Override
+			public void run() {
+				listener.accepted(acceptChannel);
+			}
+		};
+		Runnable runnableConnect = new Runnable() {
+			@Override
+			public void run() {
+				connectListener.connected(connectChannel);
+			}
+		};
+		executor.post(runnableAccept);
+		executor.post(runnableConnect);
 	}
 
 	/*
 	 * Retrieve the distant broker and return false if it's null.
-	 * In a synchronized block on the retrieved broker object :
-	 * | If the acceptingPorts map is storing an AcceptListeler on the given port :
-	 * | - retrieve the AcceptListener of the distant map and remove it after
-	 * | - create 2 new linked CChannels
-	 * | - create a new Runnable calling the accepted() method of the retrieved AcceptListener with one of the channels from its run() method.
-	 * | - create another new Runnable calling the connected() method of the given listener with the other channel from its run() method.
-	 * | - post these 2 Runnable to the executor
-	 * | Else :
-	 * | - If the distant ConnectListener list in the map is not initialized, initialize it
-	 * | - Add the given listener to the lift of the distant map on the given port
+	 * Retrieve the rendez-vous of the given port on the distant broker
+	 * In a synchronized block on the rendez-vous :
+	 * | Retrieve the waiting AcceptListener and clear it
+	 * | If there is none, add the given listener to the waiting ConnectListeners and return true
+	 * Create 2 new linked CChannels
+	 * Post a Runnable calling the connected() method of the given listener with one of the channels
+	 * Post another Runnable calling the accepted() method of the retrieved AcceptListener with the other channel
 	 * Return true
 	 */
 	@Override
 	public boolean connect(String name, int port, ConnectListener listener) {
 		CBroker broker = BrokerManager.getBroker(name);
 		if(broker==null) return false;
-		synchronized(broker) {
-			if(broker.acceptingPorts.get(port)!=null) {
-				AcceptListener acceptListener = broker.acceptingPorts.get(port);
-				broker.acceptingPorts.remove(port);
-				CChannel connectChannel = new CChannel(this, port, executor);
-				CChannel acceptChannel = new CChannel(this, port, connectChannel, executor);
-				Runnable runnableConnect = new Runnable() {
-					@Override
-					public void run() {
-						listener.connected(connectChannel);
-					}
-				};
-				Runnable runnableAccept = new Runnable() {
-					@Override
-					public void run() {
-						acceptListener.accepted(acceptChannel);
-					}
-				};
-				executor.post(runnableConnect);
-				executor.post(runnableAccept);
-			}else {
-				if(broker.connectingPorts.get(port)==null) {
-					ArrayList<ConnectListener> list = new ArrayList<>();
-					broker.connectingPorts.put(port, list);
-				}
-				broker.connectingPorts.get(port).add(listener);
+		Port rdv = broker.port(port);
+		AcceptListener acceptListener;
+		synchronized(rdv) {
+			acceptListener = rdv.acceptor;
+			if(acceptListener==null) {
+				rdv.connectors.addLast(listener);
+				return true;
 			}
+			rdv.acceptor = null;
 		}
+		CChannel connectChannel = new CChannel(this, port, executor);
+		CChannel acceptChannel = new CChannel(this, port, connectChannel, executor);
+		Runnable runnableConnect = new Runnable() {
+			@Override
+			public void run() {
+				listener.connected(connectChannel);
+			}
+		};
+		Runnable runnableAccept = new Runnable() {
+			@Override
+			public void run() {
+				acceptListener.accepted(acceptChannel);
+			}
+		};
+		executor.post(runnableConnect);
+		executor.post(runnableAccept);
 		return true;
 	}
-	
+
+	/**
+	 * @return The rendez-vous of the given port, created if needed
+	 */
+	private Port port(int port) {
+		return ports.computeIfAbsent(port, p -> new Port());
+	}
+
+	/*
+	 * Return half the capacity of the buffer recycler
+	 */
+	/**
+	 * @return The maximum number of channels whose buffers are kept for reuse
+	 */
+	public int getChannelPoolSize() {
+		return buffers.getCapacity() / 2;
+	}
+
+	/*
+	 * Throw a IllegalArgumentException if the size is negative
+	 * Set the capacity of the buffer recycler to twice the size
+	 */
+	/**
+	 * Sets the maximum number of channels whose buffers are kept for reuse, once both ends
+	 * of a channel created by this broker are disconnected.
+	 * @param size : the number of channels, {@link #DEFAULT_CHANNEL_POOL_SIZE} by default, 0 for none
+	 * @throws IllegalArgumentException if the size is negative
+	 */
+	public void setChannelPoolSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException(this.toString() + " setChannelPoolSize : Illegal size");
+		buffers.setCapacity(2 * size);
+	}
+
+	/**
+	 * @return The recycler of the buffers of the channels created by this broker
+	 */
+	Recycler<CircularBufferEvent> getBufferRecycler() {
+		return buffers;
+	}
+
 	@Override
 	public String toString() {
 		return "[CBroker "+this.getName()+"]";
 	}
 
+	/**
+	 * Rendez-vous of a port, its own lock, so the ports of a broker do not contend.
+	 */
+	private static class Port {
+		// the accept listener waiting on the port, null if none
+		AcceptListener acceptor;
+		// the connect listeners waiting for an accept on the port, in order
+		final ArrayDeque<ConnectListener> connectors = new ArrayDeque<>();
+	}
+
 
 }
@@ -1,17 +1,25 @@
 package info5.sar.events.queues;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import info5.sar.channels.DisconnectedException;
 import info5.sar.events.channels.Broker;
 import info5.sar.events.channels.Channel;
 import info5.sar.utils.CircularBufferEvent;
 import info5.sar.utils.Executor;
+import info5.sar.utils.Recycler;
 
 public class CChannel extends Channel {
 
+	// capacity of the input and output buffers
+	private static final int BUFFER_CAPACITY = 256;
+	// maximum number of requests completed in a single executor turn, the next one being posted
+	private static final int REQUESTS_PER_TURN = 32;
+	// Buffer of the channels whose buffers were recycled, always empty and full
+	private static final CircularBufferEvent RELEASED = new CircularBufferEvent(1, null);
+
 	// Input and output buffers
 	private CircularBufferEvent in, out;
 	// Disconnection state flag
@@ -29,11 +37,22 @@ public class CChannel extends Channel {
 	
 	// Using to know if we are writing or reading on the channel
 	private boolean writing=false, reading=false;
+	// Run when the 'distant' channel disconnects this one, may be null
+	private Runnable disconnectListener;
+	// The relay forwarding the bytes of this channel, and the one forwarding bytes to it, may be null
+	private volatile Relay spliceTo, spliceFrom;
+	// The recycler the buffers are taken from and given back to, shared with the 'distant' channel, may be null
+	private Recycler<CircularBufferEvent> recycler;
+	// The bits of the ends not disconnected yet, shared with the 'distant' channel, and the bit of this end
+	private AtomicInteger connectedEnds;
+	private int end;
 
 	/*
 	 * Call the super() constructor with the given broker.
 	 * Store the given port in the field.
-	 * Initialize the in and out buffers in field with two different CircularBuffer : 
+	 * If the broker is a CBroker, store its buffer recycler in the field
+	 * Initialize the in and out buffers in field with two different CircularBuffer, reused if possible,
+	 * and set their listeners :
 	 * 
 	 * Synchronize readRequests and check if there is a new Request and if we are and if we're not already reading :
 	 * --- if true : the executor works on the first request
@@ -50,31 +69,15 @@ public class CChannel extends Channel {
 	protected CChannel(Broker broker, int port, Executor executor) {
 		super(broker);
 		this.port = port;
-		this.in = new CircularBufferEvent(256, executor, new CircularBufferEvent.InListener() {
-			@Override
-			public void bytesAvailable() {
-				synchronized(readRequests) {
-					if(readRequests.size()>0 && !reading) {
-						executor.post(readRequests.get(0));
-						reading = true;
-					}
-				}
-				
-			}
-		});
-		this.out = new CircularBufferEvent(256, executor, new CircularBufferEvent.OutListener() {
-			@Override
-			public void spaceFreed() {
-				synchronized(writeRequests) {
-					if(writeRequests.size()>0 && !writing) {
-						executor.post(writeRequests.get(0));
-						writing = true;
-					}
-						
-				}
-			}
-		});
 		this.executor = executor;
+		if (broker instanceof CBroker)
+			this.recycler = ((CBroker) broker).getBufferRecycler();
+		this.in = newBuffer();
+		this.out = newBuffer();
+		this.in.setInListener(newInListener());
+		this.out.setOutListener(newOutListener());
+		this.connectedEnds = new AtomicInteger(3);
+		this.end = 1;
 	}
 
 	/*
@@ -85,6 +88,8 @@ public class CChannel extends Channel {
 	 * Store the in buffer of the given channel in your out field.
 	 * Store the out buffer of the given channel in your in field.
 	 * Store the given executor in the field. 
+	 * Set your listeners on the shared buffers, so this end is notified too.
+	 * Share the recycler and the connected ends of the given channel, this end being the second bit
 	 */
 	/**
 	 * Creates a fully connected Channel.<br>
@@ -102,6 +107,78 @@ public class CChannel extends Channel {
 		this.in = channel.getOutBuffer();
 		this.out = channel.getInBuffer();
 		this.executor = executor;
+		this.in.setInListener(newInListener());
+		this.out.setOutListener(newOutListener());
+		this.recycler = channel.recycler;
+		this.connectedEnds = channel.connectedEnds;
+		this.end = 2;
+	}
+
+	/*
+	 * Take a buffer from the recycler and clear it, its listeners being set by the channels
+	 * If there is none, create a new one
+	 */
+	/**
+	 * @return An empty buffer, reused if the recycler has one
+	 */
+	private CircularBufferEvent newBuffer() {
+		CircularBufferEvent buffer = recycler != null ? recycler.poll() : null;
+		if (buffer == null)
+			return new CircularBufferEvent(BUFFER_CAPACITY, executor);
+		buffer.clear();
+		return buffer;
+	}
+
+	/*
+	 * If this channel is spliced, run the relay
+	 * Else synchronize readRequests and if there is a pending request and we're not already reading :
+	 * --- the executor works on the first request
+	 */
+	/**
+	 * @return A listener resuming the pending read requests when bytes are available
+	 */
+	private CircularBufferEvent.InListener newInListener() {
+		return new CircularBufferEvent.InListener() {
+			@Override
+			public void bytesAvailable() {
+				Relay relay = spliceTo;
+				if (relay != null) {
+					relay.run();
+					return;
+				}
+				synchronized(readRequests) {
+					if(readRequests.size()>0 && !reading) {
+						executor.post(readRequests.get(0));
+						reading = true;
+					}
+				}
+			}
+		};
+	}
+
+	/*
+	 * If bytes are spliced to this channel, run the relay
+	 * Synchronize writeRequests and if there is a pending request and we're not already writing :
+	 * --- the executor works on the first request
+	 */
+	/**
+	 * @return A listener resuming the pending write requests when space is freed
+	 */
+	private CircularBufferEvent.OutListener newOutListener() {
+		return new CircularBufferEvent.OutListener() {
+			@Override
+			public void spaceFreed() {
+				Relay relay = spliceFrom;
+				if (relay != null)
+					relay.run();
+				synchronized(writeRequests) {
+					if(writeRequests.size()>0 && !writing) {
+						executor.post(writeRequests.get(0));
+						writing = true;
+					}
+				}
+			}
+		};
 	}
 
 	@Override
@@ -153,6 +230,8 @@ public class CChannel extends Channel {
 	 * Synchronization on the list of the writeRequests and if we are not already writing : 
 	 * --- The executor works on the first request 
 	 * --- The write flag changes to true
+	 * The listener is called once all the bytes are written, so the bytes of two
+	 * writes are never interleaved
 	 */
 	@Override
 	public void write(byte[] bytes, int offset, int length, WriteListener listener) throws DisconnectedException {
@@ -172,11 +251,130 @@ public class CChannel extends Channel {
 		}
 	}
 	
-	/* The field disconnected changes to true */
+	/*
+	 * Throw a IllegalStateException if this or dst is not linked
+	 * Throw a IllegalArgumentException if dst is not a CChannel of the same executor,
+	 * or if its out buffer is the in buffer of this channel
+	 * Throw a DisconnectedException if this or dst is disconnected
+	 * Synchronization on the list of the readRequests, then on the list of the writeRequests of dst :
+	 * --- Throw a IllegalStateException if this is spliced, if dst is spliced to, or if we are reading
+	 * --- Set a new Relay as the relay of both channels
+	 * The executor runs the relay, for the bytes already received
+	 */
+	@Override
+	public void splice(Channel dst, SpliceListener listener) throws DisconnectedException {
+		if (!this.isLinked())
+			throw new IllegalStateException("CChannel[" + this.getBroker().getName() + ":" + port + "] splice : not linked");
+		if (!(dst instanceof CChannel))
+			throw new IllegalArgumentException(this.toString() + " splice : Illegal arguments");
+		CChannel to = (CChannel) dst;
+		if (!to.isLinked())
+			throw new IllegalStateException(to.toString() + " splice : not linked");
+		if (to.executor != executor || to.out == in)
+			throw new IllegalArgumentException(this.toString() + " splice : Illegal arguments");
+		if (disconnected() || to.disconnected())
+			throw new DisconnectedException(this.toString() + " splice : Disconnected channel");
+		Relay relay = new Relay(to, listener);
+		synchronized(readRequests) {
+			synchronized(to.writeRequests) {
+				if (spliceTo != null || to.spliceFrom != null || reading || !readRequests.isEmpty())
+					throw new IllegalStateException(this.toString() + " splice : Already reading");
+				spliceTo = relay;
+				to.spliceFrom = relay;
+			}
+		}
+		executor.post(relay);
+	}
 
+	/*
+	 * Return if already disconnected
+	 * The field disconnected changes to true
+	 * If linked, post the remoteDisconnected() method of the linked channel,
+	 * so it notices the disconnection even without pending requests
+	 * Post the relays of this channel, if any, so they end
+	 * Clear the bit of this end in the connected ends, if the other one was already cleared, post release()
+	 */
 	@Override
 	public void disconnect() {
+		if (this.disconnected)
+			return;
 		this.disconnected = true;
+		CChannel linked = this.linkedChannel;
+		if (linked != null)
+			executor.post(linked::remoteDisconnected);
+		Relay relay = spliceTo;
+		if (relay != null)
+			executor.post(relay);
+		relay = spliceFrom;
+		if (relay != null)
+			executor.post(relay);
+		if (connectedEnds.getAndUpdate(ends -> ends & ~end) == end)
+			executor.post(this::release);
+	}
+
+	/*
+	 * Replace the buffers of both ends with the RELEASED buffer
+	 * Give the buffers back to the recycler, if any
+	 */
+	/**
+	 * Recycles the buffers once both ends are disconnected. Run by the executor, so the
+	 * requests still posted find the RELEASED buffer, empty and full, and see the disconnection.
+	 */
+	private void release() {
+		CircularBufferEvent a = in, b = out;
+		in = out = RELEASED;
+		linkedChannel.in = linkedChannel.out = RELEASED;
+		if (recycler != null) {
+			recycler.offer(a);
+			recycler.offer(b);
+		}
+	}
+
+	/*
+	 * Store the given Runnable in the disconnectListener field
+	 */
+	/**
+	 * Sets the Runnable posted when this channel is disconnected because the
+	 * 'distant' channel was, once all the bytes it wrote are read.
+	 * @param listener : the Runnable to post
+	 */
+	void setDisconnectListener(Runnable listener) {
+		this.disconnectListener = listener;
+	}
+
+	/*
+	 * If bytes are spliced to this channel, run the relay so it ends, nobody reading them anymore
+	 * Return if this channel is already disconnected, or if there are still bytes to read
+	 * (the read requests and the relay call this method again once they are read)
+	 * Disconnect this channel, clear the request lists
+	 * and post the disconnectListener if there is one
+	 */
+	/**
+	 * Disconnects this channel once the 'distant' channel is disconnected and
+	 * all the bytes it wrote are read. Run by the executor.
+	 */
+	private void remoteDisconnected() {
+		Relay relay = spliceFrom;
+		if (relay != null)
+			relay.run();
+		if (disconnected() || !in.empty())
+			return;
+		disconnect();
+		readRequests.clear();
+		writeRequests.clear();
+		Runnable listener = disconnectListener;
+		if (listener != null)
+			executor.post(listener);
+	}
+
+	/*
+	 * Return the number of bytes available in the in buffer
+	 */
+	/**
+	 * @return The number of received bytes not read yet
+	 */
+	int available() {
+		return in.available();
 	}
 
 	/* 
@@ -225,14 +423,20 @@ public class CChannel extends Channel {
 	 * If the channel is disconnected the writeRequests list is cleaned
 	 * If the outCircularBuffer is not full :
 	 * -- if the remote channel is disconnected and there is nothing to read in the InCircularBuffer :
-	 * -------- The channel is disconnected and the writeRequests list is cleaned
-	 * -- As long as we can, we write in the outCircularBuffer
-	 * -- A new runnable is created and the listener knows that a message has been written and knows the number of bytes written
-	 * -- The executor post the runnable
-	 * -- The request that has just been executed is removed from the list of WriteRequest
-	 * -- If the outCircularBuffer is not full and if there is another writeRequest in the list
-	 * -------- The executor post the first one of the list
-	 * -- else the write flag changes to false
+	 * -------- The channel is disconnected with remoteDisconnected()
+	 * -- Starting with this request, repeat :
+	 * -------- as much of the rest of the request as possible is pushed at once in the outCircularBuffer,
+	 *          its progress being kept in the request
+	 * -------- if the request is not fully written, it stays first in the list of WriteRequest,
+	 *          the write flag changes to false and stop, the space freed in the outCircularBuffer resuming it
+	 * -------- else the request is removed from the list of WriteRequest
+	 * -------- the listener is called inline with the whole length written, the requests it adds
+	 *          being only queued since the write flag is still true
+	 * -------- stop if the channel was disconnected meanwhile
+	 * -------- if the outCircularBuffer is full or there is no other writeRequest in the list,
+	 *          the write flag changes to false and stop
+	 * -------- after REQUESTS_PER_TURN requests, the executor post the first one of the list and stop,
+	 *          so other channels get their turn
 	 * else the write flag changes to false
 	 */
 	
@@ -241,6 +445,8 @@ public class CChannel extends Channel {
 		int offset;
 		int length;
 		WriteListener listener;
+		// the number of bytes already pushed, a request being never interleaved with the next ones
+		int written;
 		
 		
 		public WriteRequest(byte[] bytes, int offset, int length, WriteListener listener) {
@@ -256,39 +462,39 @@ public class CChannel extends Channel {
 				writeRequests.clear();
 				return;
 			}
-			if(!out.full()) {
-				if (linkedChannel.disconnected() && in.empty()) {
-					disconnect();
-					writeRequests.clear();
-					return;
-				}
-				int writtenBytes = 0;
-				while(!out.full() && writtenBytes<length && !disconnected()) {
-					try {
-						out.push(bytes[writtenBytes + offset]);
-						writtenBytes++;
-					} catch(IllegalStateException e) {
-						break;
-					}
+			if(out.full()) {
+				synchronized(writeRequests) {
+					writing = false;
 				}
-				final int b = writtenBytes;
-				Runnable r = new Runnable() {
-					@Override
-					public void run() {
-						listener.written(bytes, offset, length, b);
-					}
-				};
-				executor.post(r);
-				writeRequests.remove(this);
-				if(!out.full() && writeRequests.size()>0) 
-					executor.post(writeRequests.get(0));
-				else
+				return;
+			}
+			if (linkedChannel.disconnected() && in.empty()) {
+				remoteDisconnected();
+				return;
+			}
+			WriteRequest request = this;
+			for(int turn=1; ; turn++) {
+				request.written += out.push(request.bytes, request.offset+request.written, request.length-request.written);
+				if(request.written<request.length) {
 					synchronized(writeRequests) {
 						writing = false;
 					}
-			} else {
+					return;
+				}
+				writeRequests.remove(request);
+				request.listener.written(request.bytes, request.offset, request.length, request.length);
+				if(disconnected())
+					return;
 				synchronized(writeRequests) {
-					writing = false;
+					if(out.full() || writeRequests.isEmpty()) {
+						writing = false;
+						return;
+					}
+					request = writeRequests.get(0);
+				}
+				if(turn==REQUESTS_PER_TURN) {
+					executor.post(request);
+					return;
 				}
 			}
 		}
@@ -305,16 +511,19 @@ public class CChannel extends Channel {
 	 * -- A ReadListener
 	 * 
 	 * If the channel is disconnected the readRequests list is cleaned
-	 * If the inCircularBuffer is not empty :
-	 * -- As long as we can, we from the inCircularBuffer
-	 * -- A new runnable is created and the listener knows that a message has been read and knows the number of bytes read
-	 * -- The executor post the runnable
-	 * -- The request that has just been executed is removed from the list of ReadRequest
+	 * If the inCircularBuffer is not empty, starting with this request, repeat :
+	 * -- as much of the request as possible is pulled at once from the inCircularBuffer
+	 * -- the request is removed from the list of ReadRequest
+	 * -- the listener is called inline with the number of bytes read, the bytes being passed
+	 *    in the array of the request without copying them, and the requests it adds
+	 *    being only queued since the read flag is still true
+	 * -- stop if the channel was disconnected meanwhile
 	 * -- If the inCircularBuffer is empty and the remote channel is disconnected : 
-	 * -------- The channel is disconnected and the readRequests list is cleaned
-	 * -- If the inCircularBuffer is not empty and if there is another ReadRequest in the list
-	 * -------- The executor post the first one of the list
-	 * -- else the read flag changes to false
+	 * -------- The channel is disconnected with remoteDisconnected() and stop
+	 * -- If the inCircularBuffer is empty or there is no other ReadRequest in the list,
+	 *    the read flag changes to false and stop
+	 * -- after REQUESTS_PER_TURN requests, the executor post the first one of the list and stop,
+	 *    so other channels get their turn
 	 * else the read flag changes to false
 	 */
 	
@@ -338,45 +547,88 @@ public class CChannel extends Channel {
 				readRequests.clear();
 				return;
 			}
-			if(!in.empty()) {
-				int readBytes = 0;
-				while (readBytes < length && !disconnected()) {
-					try {
-						bytes[offset + readBytes] = in.pull();
-						readBytes++;
-					} catch(IllegalStateException e) {
-						break;
-					}
+			if(in.empty()) {
+				synchronized(readRequests) {
+					reading = false;
 				}
-				final int b = readBytes;
-				Runnable r = new Runnable() {
-					@Override
-					public void run() {
-						listener.read(Arrays.copyOfRange(bytes, offset, offset+b));
-					}
-				};
-				executor.post(r);
-				readRequests.remove(this);
-				
+				return;
+			}
+			ReadRequest request = this;
+			for(int turn=1; ; turn++) {
+				int read = in.pull(request.bytes, request.offset, request.length);
+				readRequests.remove(request);
+				request.listener.read(request.bytes, request.offset, read);
+				if(disconnected())
+					return;
 				if (in.empty() && linkedChannel.disconnected()) {
-					disconnect();
-					readRequests.clear();
+					remoteDisconnected();
 					return;
 				}
-				if(!in.empty() && readRequests.size()>0)
-					executor.post(readRequests.get(0));
-				else
-					synchronized(readRequests) {
+				synchronized(readRequests) {
+					if(in.empty() || readRequests.isEmpty()) {
 						reading = false;
+						return;
 					}
-			} else {
-				synchronized(readRequests) {
-					reading = false;
+					request = readRequests.get(0);
+				}
+				if(turn==REQUESTS_PER_TURN) {
+					executor.post(request);
+					return;
 				}
 			}
 		}
 	}
 	
+	/*
+	 * Each Relay is a Runnable, run by the executor when bytes are received by this channel,
+	 * when space is freed in the out buffer of dst, or when a channel is disconnected
+	 * Each Relay has :
+	 * -- the channel the bytes are forwarded to
+	 * -- A SpliceListener
+	 * -- the number of bytes forwarded
+	 *
+	 * If the relay has ended, stop
+	 * If both channels are connected :
+	 * -- as many bytes as possible are pulled from the inCircularBuffer to the outCircularBuffer of dst at once
+	 * -- stop if the remote channel is connected or there are still bytes to forward,
+	 *    and if the remote channel of dst is connected
+	 * The relay ends :
+	 * -- the relay of both channels is removed
+	 * -- both channels are disconnected, the remote channel of dst still reading the forwarded bytes
+	 * -- the listener is called inline with the number of bytes forwarded
+	 */
+
+	private class Relay implements Runnable {
+		CChannel dst;
+		SpliceListener listener;
+		long transferred;
+		boolean ended;
+
+
+		public Relay(CChannel dst, SpliceListener listener) {
+			this.dst = dst;
+			this.listener = listener;
+		}
+
+		@Override
+		public void run() {
+			if(ended)
+				return;
+			if(!disconnected() && !dst.disconnected()) {
+				transferred += in.pull(dst.out, Integer.MAX_VALUE);
+				if(!(in.empty() && linkedChannel.disconnected()) && !dst.linkedChannel.disconnected())
+					return;
+			}
+			ended = true;
+			spliceTo = null;
+			dst.spliceFrom = null;
+			disconnect();
+			dst.disconnect();
+			if(listener != null)
+				listener.spliced(CChannel.this, dst, transferred);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "CChannel[" + this.getBroker().getName() + ":" + port + "]-[" + linkedChannel.getBroker().getName() + ":"
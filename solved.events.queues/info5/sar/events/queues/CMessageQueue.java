@@ -16,8 +16,12 @@
  */
 package info5.sar.events.queues;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import info5.sar.channels.DisconnectedException;
 import info5.sar.events.channels.Channel;
@@ -25,7 +29,11 @@ import info5.sar.events.channels.Channel.ReadListener;
 import info5.sar.events.channels.Channel.WriteListener;
 import info5.sar.events.queues.events.MessageQueue;
 import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.BufferPool;
 import info5.sar.utils.Executor;
+import info5.sar.utils.FrameCodec;
+import info5.sar.utils.LZCodec;
+import info5.sar.utils.PooledBuffer;
 
 /**
  * This is for the full event-oriented implementation, 
@@ -33,10 +41,35 @@ import info5.sar.utils.Executor;
  * You must specify, design, and code the event-oriented
  * version of the channels and their brokers.
  */
+/*
+ * Each message is sent as a sequence of frames, each frame being at most
+ * 'maxFrameSize' bytes long :
+ * [header] + [frame]
+ * The header encodes the size of the frame and its flags, the MORE flag being
+ * set when more frames of the same message follow (see FrameCodec).
+ * The frames use the legacy format until the broker agrees on a version with
+ * the peer through the hello payloads, see setFrameFormat().
+ * When both peers support it and the compression threshold is reached, the frame
+ * is an LZCodec block flagged COMPRESSED, holding at most 'maxFrameSize' bytes
+ * once decompressed.
+ * Messages wait in one lane per priority and are cut into frames as they are sent,
+ * a single frame being written at a time, the urgent lane first. With the compact
+ * format, the frames of the urgent lane are flagged PRIORITY so the receiver
+ * reassembles each lane separately. With the legacy format, the lanes only switch
+ * between messages.
+ */
 public class CMessageQueue extends MessageQueue {
 	
 	// payload constants
 	public static final byte[] UNBINDING_QUEUE_PAYLOAD = {0}, REGULAR_QUEUE_PAYLOAD = {1};
+	// features supported by this implementation
+	private static final int FEATURES = FrameCodec.FEATURE_COMPRESSION;
+	// regular payload followed by the latest version of the frame format supported and the supported features
+	public static final byte[] HELLO_PAYLOAD = {REGULAR_QUEUE_PAYLOAD[0], (byte) FrameCodec.VERSION, (byte) FEATURES};
+	// size of the buffer used to send a stream
+	private static final int STREAM_CHUNK_SIZE = 16 * 1024;
+	// size of the buffer the frames are read in, larger frames being read directly in their body
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
 	// the channel to layout
 	private Channel channel;
 	// the event executor pump
@@ -45,17 +78,78 @@ public class CMessageQueue extends MessageQueue {
 	private QueueBroker broker;
 	// the stored listener
 	private Listener listener;
+	// maximum size of a single frame
+	private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	// the version of the frame format used to send
+	private int version = FrameCodec.LEGACY_VERSION;
+	// minimum size of a compressed frame
+	private volatile int compressionThreshold = NO_COMPRESSION;
+	// true if the peer decompresses frames
+	private boolean compression = false;
+	// decoder of the received headers
+	private FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(FrameCodec.LEGACY_VERSION);
+	// the outgoing messages of each lane, indexed by priority
+	private final List<ArrayDeque<Outgoing>> lanes = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+	// true while a frame is being written on the channel
+	private boolean writing = false;
+	// true while writeNext() is picking frames
+	private boolean pumping = false;
+	// the lane of a partially sent message, when lanes cannot be interleaved (-1 if none)
+	private int current = -1;
+	// the number of messages queued and not fully written yet
+	private int pending = 0;
+	// the number of bytes of the messages queued and not written yet
+	private long queuedBytes = 0;
+	// the watermarks bounding queuedBytes
+	private int lowWatermark = DEFAULT_LOW_WATERMARK, highWatermark = DEFAULT_HIGH_WATERMARK;
+	// true once a message was refused, until queuedBytes drops to the low watermark
+	private boolean refused = false;
+	// set once close() is called, so the listener is only told once
+	private boolean closing = false;
+	// true while the frames of a multi-frame message are being received, for each lane
+	private boolean[] assembling = new boolean[lanes.size()];
+	// the received frames of the current multi-frame message of each lane, when not delivered as chunks
+	private final List<List<PooledBuffer>> frames = Arrays.asList(null, null);
+	// the buffer the channel reads in, used by the executor and released by close()
+	private PooledBuffer input;
+	// the bytes of the input buffer not decoded yet, left while reading is paused, used by the executor
+	private int inputIndex, inputEnd;
+	// true while a read is requested from the channel, used by the executor
+	private boolean readPending = false;
+	// true while reading is paused by pauseReading()
+	private boolean paused = false;
+	// the maximum number of delivered messages not consumed, and their number
+	private int inboundLimit = NO_INBOUND_LIMIT, unconsumed = 0;
+	// the body of the frame being read, null between frames, used by the executor
+	private byte[] body;
+	// the number of bytes of the body and the number already read
+	private int bodySize, bodyIndex;
+	// the pooled buffer of the body if it is pooled, released by close() if not read yet
+	private PooledBuffer bodyBuffer;
+	// the pooled buffer of the frame being written, released by close() if not written yet
+	private PooledBuffer outFrame;
+	// the limits of the batches delivered to a BatchListener, the delay in microseconds
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private volatile long maxBatchDelay = 0;
+	// the messages gathered for a BatchListener and not delivered yet, used by the executor
+	private final ArrayList<byte[]> batch = new ArrayList<>();
+	// the time the first message of the batch was received, in nanoseconds
+	private long batchStart;
+	// true while the batchFlusher is posted to the executor
+	private boolean flushPosted = false;
 	
 	/*
 	 * Set the channel field with the given channel
 	 * Set the executor field with the given executor
 	 * Set the broker field with the given broker
-	 * Start the worker_writer  thread field 
+	 * Close this queue when the remote end disconnects the channel
 	 */
 	public CMessageQueue(Channel channel, QueueBroker broker, Executor executor) {
 		this.channel = channel;
 		this.executor = executor;
 		this.broker = broker;
+		if (channel instanceof CChannel)
+			((CChannel) channel).setDisconnectListener(this::close);
 	}
 
 	/* return the broker */
@@ -79,112 +173,765 @@ public class CMessageQueue extends MessageQueue {
   }
   
   /*
-   *Create a new byte array the size of 2 integers
-   *Create a new read listener with in its read() method :
-   *- If the first part of the byte array interpreted as an int + the length of the read bytes array equals the size of a int :
-   *- - call the readMessage() method with the second part of the initial byte array interpreted as a int
-   *- Else :
-   *- - retrieve the previous index encoded in the first part of the initial byte array
-   *- - add to it the size of the newly read byte array
-   *- - convert this index to a new byte array and replace the first part of the initial byte array with this new one
-   *- - try to read the rest of the message and call the close() method if a DisconnectedException is caught
-   *Call the read() method of the channel to read the size of a int with an offset the same size.
-   *If a DisconnectedException is caught, call the close() method
+   * Allocate the input buffer from the pool, reset the decoder and post the reading Runnable,
+   * so the channel is only read by the executor
    */
   /**
-   * Used to read the size of a message and call {@link #readMessage(int)} when done.
+   * Starts reading the frames, once the listener is set.
    */
   private void startReadMessage() {
-	  byte[] messageSize = new byte[Integer.BYTES*2]; // messageSize[] = [reading index (int)] + [message size (int)]
-	  ReadListener listenerSize = new ReadListener() {
-		@Override
-		public void read(byte[] bytes) {
-			if(byteArrayToInt(Arrays.copyOf(messageSize, Integer.BYTES))+bytes.length==Integer.BYTES) {
-				readMessage(byteArrayToInt(Arrays.copyOfRange(messageSize, Integer.BYTES, messageSize.length)));
-			}else {
-				int index = byteArrayToInt(Arrays.copyOf(messageSize, Integer.BYTES))+bytes.length;
-				byte[] indexArray = intToByteArray(index);
-				for(int y=0; y<indexArray.length; y++) messageSize[y] = indexArray[y];
-				try {
-					channel.read(messageSize, index+Integer.BYTES, Integer.BYTES-index, this);
-				} catch (DisconnectedException e) {
-					close();
-				}
-			}
-		}
-	  };
+	  synchronized(this) {
+		  if(closing) return;
+		  input = BufferPool.DEFAULT.allocate(INPUT_BUFFER_SIZE);
+	  }
+	  decoder.reset();
+	  executor.post(reading);
+  }
+
+  /*
+   * Return if this queue is closed or not reading yet
+   * Call the decode() method
+   */
+  /**
+   * Decodes the bytes left and reads the channel again, posted when reading starts or resumes.
+   */
+  private final Runnable reading = new Runnable() {
+	  @Override
+	  public void run() {
+		  synchronized(CMessageQueue.this) {
+			  if(closing || input==null) return;
+		  }
+		  decode();
+	  }
+  };
+
+  /*
+   * Consume the bytes left in the input buffer with the consume() method, returning if this queue was closed
+   * If no read is requested from the channel and reading is not paused, call the readNext() method
+   */
+  /**
+   * Decodes the bytes left in the input buffer, then reads the next ones unless reading is paused.
+   */
+  private void decode() {
+	  if(!consume()) return;
+	  if(!readPending && readable()) readNext();
+  }
+
+  /*
+   * If the rest of the frame being read fills at least the input buffer, read it directly in the frame
+   * Else read as many bytes as available in the input buffer
+   * Set the readPending flag
+   * If a DisconnectedException is caught, call the close() method
+   */
+  /**
+   * Asks the channel for the next bytes, the reader field being called back.
+   */
+  private void readNext() {
+	  readPending = true;
 	  try {
-		channel.read(messageSize, Integer.BYTES, Integer.BYTES, listenerSize);
+		  if(body!=null && bodySize-bodyIndex>=INPUT_BUFFER_SIZE)
+			  channel.read(body, bodyIndex, bodySize-bodyIndex, reader);
+		  else
+			  channel.read(input.array(), 0, INPUT_BUFFER_SIZE, reader);
 	  } catch (DisconnectedException e) {
-		close();
+		  close();
 	  }
   }
-  
+
   /*
-   *Create a new byte array the size of an integers + the given size
-   *Create a new read listener with in its read() method :
-   *- If the first part of the byte array interpreted as an int + the length of the read bytes array equals the size of a int :
-   *- - create a new Runnable calling the received() method of the listener field in its run() method and post it to the executor
-   *- - call the startReadMessage() method
-   *- Else :
-   *- - retrieve the previous index encoded in the first part of the initial byte array
-   *- - add to it the size of the newly read byte array
-   *- - convert this index to a new byte array and replace the first part of the initial byte array with this new one
-   *- - try to read the rest of the message and call the close() method if a DisconnectedException is caught
-   *Call the read() method of the channel to read the size of a int with an offset the same size.
-   *If a DisconnectedException is caught, call the close() method
+   * Reset the readPending flag
+   * If the bytes were read directly in the frame, add their number to bodyIndex and if the frame is complete
+   * call the frameRead() method, returning if this queue was closed
+   * Else set inputIndex and inputEnd to the bytes read in the input buffer
+   * Call the decode() method
    */
   /**
-   * Reads a message of the given size and calls received() method of the listener field when done
-   * @param size : the size of the message to read
+   * Called back by the channel with the bytes read, on the executor.
    */
-  private void readMessage(int size) {
-	  byte[] message = new byte[Integer.BYTES+size]; // message[] = [reading index (int)] + [message]
-	  ReadListener listenerSize = new ReadListener() {
-		@Override
-		public void read(byte[] bytes) {
-			if(byteArrayToInt(Arrays.copyOf(message, Integer.BYTES))+bytes.length==size) {
-				Runnable r = new Runnable() {
-					@Override
-					public void run() {
-						listener.received(Arrays.copyOfRange(message, Integer.BYTES, message.length));
-					}
-				};
-				executor.post(r);
-				startReadMessage();
-			}else {
-				int index = byteArrayToInt(Arrays.copyOf(message, Integer.BYTES))+bytes.length;
-				byte[] indexArray = intToByteArray(index);
-				for(int y=0; y<indexArray.length; y++) message[y] = indexArray[y];
-				try {
-					channel.read(message, index+Integer.BYTES, size-index, this);
-				} catch (DisconnectedException e) {
-					close();
-				}
-			}
-		}
-	  };
+  private final ReadListener reader = new ReadListener() {
+	  @Override
+	  public void read(byte[] bytes) {
+		  read(bytes, 0, bytes.length);
+	  }
+
+	  @Override
+	  public void read(byte[] bytes, int offset, int length) {
+		  readPending = false;
+		  if(bytes==body) {
+			  bodyIndex += length;
+			  if(bodyIndex==bodySize && !frameRead()) return;
+		  } else {
+			  inputIndex = offset;
+			  inputEnd = offset+length;
+		  }
+		  decode();
+	  }
+  };
+
+  /*
+   * While there are bytes left in the input buffer and this queue is not closed :
+   * - if no frame is being read, stop if reading is paused, else feed the decoder with the next byte,
+   *   calling the close() method if the header is malformed, and once the header is complete
+   *   call the frameStarted() method
+   * - else copy as many bytes as needed by the frame, and if it is complete call the frameRead() method
+   * Return false if this queue was closed
+   */
+  /**
+   * Decodes the bytes left in the input buffer, which may hold the end of a frame and several whole frames.
+   * @return False if this queue was closed meanwhile
+   */
+  private boolean consume() {
+	  if(closing) return false;
+	  byte[] bytes = input.array();
+	  while(inputIndex<inputEnd && !closing) {
+		  if(body==null) {
+			  // a paused queue stops between frames, the bytes left are decoded once resumed
+			  if(!readable()) break;
+			  try {
+				  decoder.feed(bytes[inputIndex++]);
+			  } catch (IllegalStateException e) {
+				  close();
+				  return false;
+			  }
+			  if(decoder.complete() && !frameStarted()) return false;
+		  } else {
+			  int n = Math.min(inputEnd-inputIndex, bodySize-bodyIndex);
+			  System.arraycopy(bytes, inputIndex, body, bodyIndex, n);
+			  inputIndex += n;
+			  bodyIndex += n;
+			  if(bodyIndex==bodySize && !frameRead()) return false;
+		  }
+	  }
+	  return !closing;
+  }
+
+  /*
+   * If the size of the frame is superior to maxFrameSize, call the close() method and return false
+   * If the size is 0, call the deliver() method with an empty frame, reset the decoder and return true
+   * If the frame is handed to the listener as is (not compressed, and either a whole message not
+   * delivered in a pooled buffer or a chunk for a StreamListener), allocate the body as a new byte array,
+   * else allocate it from the pool, in the bodyBuffer field
+   * Return true
+   */
+  /**
+   * Prepares the body of a frame whose header was just decoded.
+   * @return False if this queue was closed
+   */
+  private boolean frameStarted() {
+	  int size = decoder.size(), flags = decoder.flags();
+	  if(size>maxFrameSize) {
+		  // never allocate a frame announced larger than allowed
+		  close();
+		  return false;
+	  }
+	  if(size==0) {
+		  decoder.reset();
+		  deliver(new byte[0], null, flags);
+		  return true;
+	  }
+	  boolean more = (flags & FrameCodec.MORE)!=0;
+	  boolean compressed = (flags & FrameCodec.COMPRESSED)!=0;
+	  int lane = (flags & FrameCodec.PRIORITY)!=0 ? PRIORITY_URGENT : PRIORITY_NORMAL;
+	  boolean owned = !compressed
+			  && ((!assembling[lane] && !more && !pooledDelivery()) || (lane==PRIORITY_NORMAL && listener instanceof StreamListener));
+	  synchronized(this) {
+		  bodyBuffer = owned ? null : BufferPool.DEFAULT.allocate(size);
+	  }
+	  body = owned ? new byte[size] : bodyBuffer.array();
+	  bodySize = size;
+	  bodyIndex = 0;
+	  return true;
+  }
+
+  /*
+   * Take the body of the frame and reset the body fields and the decoder
+   * If the frame is flagged COMPRESSED, decompress it with decompress(), returning false if it returns null
+   * Call the deliver() method with the frame and its flags and return true
+   */
+  /**
+   * Delivers the frame whose body was just read.
+   * @return False if this queue was closed
+   */
+  private boolean frameRead() {
+	  int flags = decoder.flags();
+	  byte[] frame = body;
+	  PooledBuffer buffer;
+	  synchronized(this) {
+		  buffer = bodyBuffer;
+		  bodyBuffer = null;
+	  }
+	  body = null;
+	  decoder.reset();
+	  if(buffer!=null && (flags & FrameCodec.COMPRESSED)!=0) {
+		  buffer = decompress(buffer);
+		  if(buffer==null) return false;
+	  }
+	  if(buffer!=null)
+		  deliver(null, buffer, flags);
+	  else
+		  deliver(frame, null, flags);
+	  return true;
+  }
+
+  /*
+   * Decompress the frame with the LZCodec in a new pooled buffer, calling the close() method
+   * and returning null if it is malformed or larger than maxFrameSize once decompressed
+   * Release the compressed frame
+   */
+  /**
+   * @param frame : a received frame flagged COMPRESSED, released by this method
+   * @return The decompressed frame, or null if this connection was closed
+   */
+  private PooledBuffer decompress(PooledBuffer frame) {
+	  PooledBuffer data = null;
 	  try {
-		channel.read(message, Integer.BYTES, size, listenerSize);
-	  } catch (DisconnectedException e) {
-		close();
+		  int length = LZCodec.decompressedLength(frame.array(), 0, frame.length());
+		  if(length>maxFrameSize) {
+			  close();
+			  return null;
+		  }
+		  data = BufferPool.DEFAULT.allocate(length);
+		  LZCodec.decompress(frame.array(), 0, frame.length(), data.array(), 0);
+		  return data;
+	  } catch (IllegalArgumentException e) {
+		  if(data!=null) data.release();
+		  close();
+		  return null;
+	  } finally {
+		  frame.release();
 	  }
   }
 
   /*
-   * Create a new byte array which is the concatenation of the byte array interpretation of the size of the given byte array and the given byte array itself
-   * Create a new write listener with in its written() method :
-   * - if written is different from length :
-   * - - try to call the write() method of the channel to write the rest of the message 
-   * - - call the close() method if a DisconnectedException is caught
-   * Try to call the write() method of the channel to write the whole new byte array
-   * Call the close() method if a DisconnectedException is caught
+   * Get the lane of the frame from its PRIORITY flag
+   * If no multi-frame message is being received in this lane and the frame is the last one :
+   * - call the received() method of the listener field with the frame
+   * Else if the lane is the normal one and the listener is a StreamListener :
+   * - call the receivedChunk() method of the listener field with the frame
+   * Else :
+   * - add the frame to the frames list of the lane, as a pooled buffer
+   * - if it is the last one, concatenate the frames, in a pooled buffer if the listener takes them,
+   *   and hand the message to the listener
+   * A pooled frame handed to the listener as an array is copied in a new byte array and released
+   * Set the assembling flag of the lane to the more frames flag
+   * The listener is called directly, this method being run by the executor
+   */
+  /**
+   * Delivers a received frame to the listener, as a whole message or as a chunk of a multi-frame message.
+   * @param frame : the received frame, if read in its own array
+   * @param buffer : the received frame, if read in a pooled buffer
+   * @param flags : the flags of the frame
+   */
+  private void deliver(byte[] frame, PooledBuffer buffer, int flags) {
+	  boolean more = (flags & FrameCodec.MORE)!=0;
+	  int lane = (flags & FrameCodec.PRIORITY)!=0 ? PRIORITY_URGENT : PRIORITY_NORMAL;
+	  boolean whole = !assembling[lane] && !more;
+	  assembling[lane] = more;
+	  if(whole) {
+		  if(buffer!=null)
+			  receivedMessage(buffer);
+		  else
+			  receivedMessage(frame);
+	  } else if(lane==PRIORITY_NORMAL && listener instanceof StreamListener) {
+		  // the messages gathered before are delivered first, in order
+		  flushBatch();
+		  if(!more) delivered();
+		  ((StreamListener) listener).receivedChunk(frame!=null ? frame : toArray(buffer), !more);
+	  } else {
+		  byte[] message = null;
+		  PooledBuffer pooled = null;
+		  synchronized(this) {
+			  if(frames.get(lane)==null) frames.set(lane, new ArrayList<>());
+			  frames.get(lane).add(buffer!=null ? buffer : BufferPool.DEFAULT.copyOf(frame, 0, frame.length));
+			  if(!more) {
+				  if(pooledDelivery())
+					  pooled = BufferPool.DEFAULT.concat(frames.get(lane));
+				  else
+					  message = concatFrames(frames.get(lane));
+				  frames.set(lane, null);
+			  }
+		  }
+		  if(message!=null) receivedMessage(message);
+		  if(pooled!=null) receivedMessage(pooled);
+	  }
+  }
+
+  /*
+   * Count the message with the delivered() method
+   * If the listener is not a BatchListener, call its received() method with the message
+   * Else add the message to the batch, setting batchStart if it is the first one, and :
+   * - if the batch is full, call the flushBatch() method
+   * - else post the batchFlusher if it is not posted yet
+   */
+  /**
+   * Hands a whole received message to the listener, run by the executor.
+   * @param message : the received message
+   */
+  private void receivedMessage(byte[] message) {
+	  if(pooledDelivery()) {
+		  receivedMessage(BufferPool.DEFAULT.copyOf(message, 0, message.length));
+		  return;
+	  }
+	  delivered();
+	  if(!(listener instanceof BatchListener)) {
+		  listener.received(message);
+		  return;
+	  }
+	  if(batch.isEmpty()) batchStart = System.nanoTime();
+	  batch.add(message);
+	  if(batch.size()>=maxBatchSize) {
+		  flushBatch();
+	  } else if(!flushPosted) {
+		  flushPosted = true;
+		  executor.post(batchFlusher);
+	  }
+  }
+
+  /*
+   * If the listener does not take pooled buffers, call receivedMessage() with a copy of the message
+   * Else count the message with the delivered() method, deliver the gathered messages first with flushBatch(),
+   * and call the received() method of the listener with the buffer, releasing it once it returns
+   */
+  /**
+   * Hands a whole received message in a pooled buffer to the listener, run by the executor.
+   * @param message : the received message, released by this method
+   */
+  private void receivedMessage(PooledBuffer message) {
+	  if(!pooledDelivery()) {
+		  receivedMessage(toArray(message));
+		  return;
+	  }
+	  delivered();
+	  try {
+		  flushBatch();
+		  ((BufferListener) listener).received(message);
+	  } finally {
+		  message.release();
+	  }
+  }
+
+  /**
+   * @return True if the listener takes the messages in pooled buffers
+   */
+  private boolean pooledDelivery() {
+	  return listener instanceof BufferListener && !(listener instanceof BatchListener);
+  }
+
+  /*
+   * Return if the batch is empty
+   * If the listener is still a BatchListener, call its received() method with the batch,
+   * else call its received() method with each message
+   * Clear the batch
+   */
+  /**
+   * Delivers the gathered messages, run by the executor.
+   */
+  private void flushBatch() {
+	  if(batch.isEmpty()) return;
+	  try {
+		  if(listener instanceof BatchListener) {
+			  ((BatchListener) listener).received(batch);
+		  } else {
+			  for(byte[] message : batch)
+				  listener.received(message);
+		  }
+	  } finally {
+		  batch.clear();
+	  }
+  }
+
+  /*
+   * Reset the flushPosted flag
+   * If the batch is not empty, this queue is not closing nor paused, the channel still holds bytes to decode
+   * and the first message has not waited maxBatchDelay yet, post this Runnable again
+   * Else call the flushBatch() method
+   */
+  /**
+   * Delivers the batch once the executor is done with the bytes already received,
+   * the executor being unable to post a delayed task.
+   */
+  private final Runnable batchFlusher = new Runnable() {
+	  @Override
+	  public void run() {
+		  flushPosted = false;
+		  if(batch.isEmpty()) return;
+		  if(!closing && readable() && bytesPending() && System.nanoTime()-batchStart<maxBatchDelay*1000) {
+			  flushPosted = true;
+			  executor.post(this);
+			  return;
+		  }
+		  flushBatch();
+	  }
+  };
+
+  /**
+   * @return True if the channel holds received bytes not decoded yet
+   */
+  private boolean bytesPending() {
+	  return channel instanceof CChannel && ((CChannel) channel).available()>0;
+  }
+
+  /*
+   * If an inbound limit is set, increment the unconsumed field, before the listener may consume the message
+   */
+  /**
+   * Counts a message delivered to the listener against the inbound limit.
+   */
+  private synchronized void delivered() {
+	  if(inboundLimit!=NO_INBOUND_LIMIT) unconsumed++;
+  }
+
+  /**
+   * @return True if reading is neither paused nor stopped by the inbound limit
+   */
+  private synchronized boolean readable() {
+	  return !paused && (inboundLimit==NO_INBOUND_LIMIT || unconsumed<inboundLimit);
+  }
+
+  /*
+   * If reading was stopped and the given changes allow it again, post the reading Runnable
+   */
+  /**
+   * Changes the reading state, resuming reading if it was stopped and is not anymore.
+   * @param paused : the new paused flag
+   * @param limit : the new inbound limit
+   * @param unconsumed : the new number of messages not consumed
+   */
+  private synchronized void setReading(boolean paused, int limit, int unconsumed) {
+	  boolean stopped = !readable();
+	  this.paused = paused;
+	  this.inboundLimit = limit;
+	  this.unconsumed = unconsumed;
+	  if(stopped && readable()) executor.post(reading);
+  }
+
+  @Override
+  public synchronized void pauseReading() {
+	  paused = true;
+  }
+
+  @Override
+  public synchronized void resumeReading() {
+	  setReading(false, inboundLimit, unconsumed);
+  }
+
+  @Override
+  public synchronized boolean isReadingPaused() {
+	  return !readable();
+  }
+
+  @Override
+  public synchronized void setInboundLimit(int limit) {
+	  if(limit<0) throw new IllegalArgumentException(this.toString()+" setInboundLimit : Illegal limit");
+	  setReading(paused, limit, limit==NO_INBOUND_LIMIT ? 0 : unconsumed);
+  }
+
+  @Override
+  public synchronized int getInboundLimit() {
+	  return inboundLimit;
+  }
+
+  @Override
+  public synchronized void consumed(int count) {
+	  setReading(paused, inboundLimit, Math.max(0, unconsumed-count));
+  }
+
+  @Override
+  public void setBatchLimits(int size, long delay) {
+	  if(size<1 || delay<0) throw new IllegalArgumentException(this.toString()+" setBatchLimits : Illegal limits");
+	  maxBatchSize = size;
+	  maxBatchDelay = delay;
+  }
+
+  @Override
+  public int getMaxBatchSize() {
+	  return maxBatchSize;
+  }
+
+  @Override
+  public long getMaxBatchDelay() {
+	  return maxBatchDelay;
+  }
+
+  @Override
+  public boolean send(byte[] bytes, int priority) {
+	  return send(bytes, priority, true);
+  }
+
+  @Override
+  public boolean sendShared(byte[] bytes, int priority) {
+	  return send(bytes, priority, false);
+  }
+
+  @Override
+  public synchronized int pendingMessages() {
+	  return pending;
+  }
+
+  /*
+   * Throw a IllegalArgumentException if the priority is not valid
+   * If bytes are queued and the message would bring them above the high watermark,
+   * set the refused flag and return false
+   * Increment the pending field and add the length of the message to queuedBytes
+   * If nothing is being written nor waiting and the message fits in a single frame,
+   * write it directly with writeFrame(), calling frameWritten() once written
+   * Else add the message to the lane of the given priority, or a copy of it if asked, and call writeNext()
+   * return true
+   */
+  /**
+   * Sends a message in the lane of the given priority.
+   * @param bytes : the message to send
+   * @param priority : the priority of the message
+   * @param copy : true if the array may be changed by the caller and must be copied
+   * @return True if the message is successfully queued for sending, false if refused by the high watermark
+   */
+  private synchronized boolean send(byte[] bytes, int priority, boolean copy) {
+	  if(priority!=PRIORITY_NORMAL && priority!=PRIORITY_URGENT)
+		  throw new IllegalArgumentException(this.toString()+" send : Illegal priority");
+	  if(queuedBytes>0 && queuedBytes+bytes.length>highWatermark) {
+		  refused = true;
+		  return false;
+	  }
+	  pending++;
+	  queuedBytes += bytes.length;
+	  if(!writing && lanes.get(PRIORITY_NORMAL).isEmpty() && lanes.get(PRIORITY_URGENT).isEmpty() && bytes.length<=maxFrameSize) {
+		  // the frame copies the message, no need to keep it
+		  writing = true;
+		  writeFrame(bytes, 0, bytes.length, laneFlags(priority), () -> frameWritten(true, bytes.length));
+	  } else {
+		  lanes.get(priority).add(new Outgoing(copy ? Arrays.copyOf(bytes, bytes.length) : bytes));
+		  writeNext();
+	  }
+      return true;
+  }
+
+  /*
+   * Increment the pending field
+   * Add a new Outgoing for the given stream to the normal lane
+   * Post its StreamSender to the executor, reading the first chunk
    * return true
    */
   @Override
-  public synchronized boolean send(byte[] bytes) {
-	  byte[] size = intToByteArray(bytes.length);
-	  byte[] message = concatArray(size, 0, size.length, bytes, 0, bytes.length);
+  public synchronized boolean sendStream(InputStream in) {
+	  pending++;
+	  Outgoing outgoing = new Outgoing(new StreamSender(in));
+	  lanes.get(PRIORITY_NORMAL).add(outgoing);
+	  executor.post(outgoing.stream);
+	  return true;
+  }
+
+  @Override
+  public void setMaxFrameSize(int size) {
+	  if(size<1) throw new IllegalArgumentException(this.toString()+" setMaxFrameSize : Illegal size");
+	  maxFrameSize = size;
+  }
+
+  @Override
+  public int getMaxFrameSize() {
+	  return maxFrameSize;
+  }
+
+  @Override
+  public void setCompressionThreshold(int size) {
+	  compressionThreshold = size<0 ? NO_COMPRESSION : size;
+  }
+
+  @Override
+  public int getCompressionThreshold() {
+	  return compressionThreshold;
+  }
+
+  /*
+   * Negotiate the version and the features with the ones announced in the given payload,
+   * a missing version meaning the legacy one and missing features meaning none
+   * Set the version and compression fields, then the version of the decoder
+   */
+  /**
+   * Uses the frame format agreed on with the peer for the following frames, in both directions.
+   * Called by the broker once the hello payloads are exchanged, before any message.
+   * @param payload : the payload received from the peer at connection
+   */
+  void setFrameFormat(byte[] payload) {
+	  int version = FrameCodec.negotiate(payload.length>1 ? payload[1] : FrameCodec.LEGACY_VERSION);
+	  int features = FrameCodec.negotiateFeatures(version, FEATURES, payload.length>2 ? payload[2] : 0);
+	  synchronized(this) {
+		  this.version = version;
+		  this.compression = (features & FrameCodec.FEATURE_COMPRESSION)!=0;
+	  }
+	  decoder.setVersion(version);
+  }
+
+  /*
+   * Return immediately if a frame is being written, or if this method is already picking frames
+   * (then the loop below picks the next one)
+   * Set the pumping flag and while no frame is being written :
+   * - pick the first lane, by decreasing priority, whose first Outgoing is ready,
+   *   only considering the current lane if a message of it is partially sent
+   * - stop if there is none
+   * - cut the next frame from this Outgoing, flagged MORE if more frames follow and with the flags of the lane
+   * - if it is the last frame, remove the Outgoing from its lane and reset current,
+   *   else set current to the lane if the frame format is the legacy one
+   * - set the writing flag and write the frame with writeFrame(), calling frameWritten() once written,
+   *   telling it whether the frame is the last of its message
+   * - if the Outgoing is a stream, call its chunkSent() method
+   * Reset the pumping flag
+   */
+  /**
+   * Writes the next frames, one at a time, from the lanes of outgoing messages.
+   */
+  private synchronized void writeNext() {
+	  if(writing || pumping) return;
+	  pumping = true;
+	  try {
+		  while(!writing && !channel.disconnected()) {
+			  int lane = -1;
+			  for(int p=lanes.size()-1; p>=0; p--) {
+				  if(current>=0 && p!=current) continue;
+				  Outgoing head = lanes.get(p).peek();
+				  if(head!=null && head.ready()) {
+					  lane = p;
+					  break;
+				  }
+			  }
+			  if(lane<0) return;
+			  Outgoing outgoing = lanes.get(lane).peek();
+			  byte[] bytes;
+			  int offset, length;
+			  boolean last;
+			  // the number of bytes of the frame counted in queuedBytes, none for a stream
+			  int counted;
+			  if(outgoing.stream==null) {
+				  bytes = outgoing.bytes;
+				  offset = outgoing.sent;
+				  length = Math.min(maxFrameSize, bytes.length-offset);
+				  outgoing.sent += length;
+				  last = outgoing.sent==bytes.length;
+				  counted = length;
+			  } else {
+				  bytes = outgoing.stream.chunk;
+				  offset = 0;
+				  length = outgoing.stream.filled;
+				  last = outgoing.stream.eof;
+				  counted = 0;
+			  }
+			  if(last) {
+				  lanes.get(lane).poll();
+				  current = -1;
+			  } else if(version==FrameCodec.LEGACY_VERSION) {
+				  current = lane;
+			  }
+			  writing = true;
+			  writeFrame(bytes, offset, length, (last ? 0 : FrameCodec.MORE) | laneFlags(lane), () -> frameWritten(last, counted));
+			  if(outgoing.stream!=null)
+				  outgoing.stream.chunkSent();
+		  }
+	  } finally {
+		  pumping = false;
+	  }
+  }
+
+  /*
+   * Reset the writing flag, decrement the pending field if the message is fully written,
+   * and subtract the written bytes from queuedBytes
+   * If a message was refused and queuedBytes dropped to the low watermark, reset the refused flag
+   * and post a Runnable calling the writable() method of the listener
+   * Call writeNext()
+   */
+  /**
+   * Called when a frame is fully written.
+   * @param last : true if the frame is the last of its message
+   * @param length : the number of bytes of the frame counted in queuedBytes
+   */
+  private synchronized void frameWritten(boolean last, int length) {
+	  writing = false;
+	  if(last && pending>0) pending--;
+	  queuedBytes = Math.max(0, queuedBytes-length);
+	  if(refused && queuedBytes<=lowWatermark) {
+		  refused = false;
+		  if(listener!=null) {
+			  Listener l = listener;
+			  executor.post(new Runnable() {
+				  @Override
+				  public void run() {
+					  l.writable();
+				  }
+			  });
+		  }
+	  }
+	  writeNext();
+  }
+
+  @Override
+  public synchronized void setWatermarks(int low, int high) {
+	  if(low<0 || low>high) throw new IllegalArgumentException(this.toString()+" setWatermarks : Illegal watermarks");
+	  lowWatermark = low;
+	  highWatermark = high;
+  }
+
+  @Override
+  public synchronized int getLowWatermark() {
+	  return lowWatermark;
+  }
+
+  @Override
+  public synchronized int getHighWatermark() {
+	  return highWatermark;
+  }
+
+  @Override
+  public synchronized boolean isWritable() {
+	  return !refused;
+  }
+
+  /**
+   * @param lane : the lane of a frame
+   * @return The flags of the frames of this lane
+   */
+  private int laneFlags(int lane) {
+	  // the legacy format cannot flag the lane, it never interleaves them
+	  return lane==PRIORITY_URGENT && version!=FrameCodec.LEGACY_VERSION ? FrameCodec.PRIORITY : 0;
+  }
+
+  /*
+   * If compression is negotiated and the frame reaches the threshold, compress it with
+   * the LZCodec of the current thread, and if it is smaller write the compressed block instead
+   * flagged COMPRESSED
+   * Allocate a pooled buffer, stored in the outFrame field, and encode the header then copy the frame directly in it
+   * Create a new write listener with in its written() method :
+   * - if written is different from length (the CChannel writes the whole frame at once, other channels may not) :
+   * - - try to call the write() method of the channel to write the rest of the frame 
+   * - - call the close() method if a DisconnectedException is caught
+   * - else release the buffer with frameReleased() and if the given Runnable is not null, run it
+   * Try to call the write() method of the channel to write the whole frame
+   * Release the buffer and call the close() method if a DisconnectedException is caught
+   */
+  /**
+   * Writes a single frame.
+   * @param bytes : the array containing the frame
+   * @param offset : the starting index of the frame in the array
+   * @param length : the length of the frame
+   * @param flags : the flags of the frame
+   * @param done : run when the frame is fully written, may be null
+   */
+  private void writeFrame(byte[] bytes, int offset, int length, int flags, Runnable done) {
+	  int threshold = compressionThreshold;
+	  if(compression && threshold!=NO_COMPRESSION && length>=threshold) {
+		  LZCodec codec = LZCodec.get();
+		  int compressed = codec.compress(bytes, offset, length);
+		  if(compressed>0) {
+			  bytes = codec.output();
+			  offset = 0;
+			  length = compressed;
+			  flags |= FrameCodec.COMPRESSED;
+		  }
+	  }
+	  PooledBuffer frame = BufferPool.DEFAULT.allocate(FrameCodec.headerSize(version, length, flags)+length);
+	  byte[] message = frame.array();
+	  int headerSize = FrameCodec.encodeHeader(version, length, flags, message, 0);
+	  System.arraycopy(bytes, offset, message, headerSize, length);
+	  synchronized(this) {
+		  outFrame = frame;
+	  }
 	  WriteListener writeListener = new WriteListener() {
 		@Override
 		public void written(byte[] bytes, int offset, int length, int written) {
@@ -194,29 +941,106 @@ public class CMessageQueue extends MessageQueue {
 				} catch (DisconnectedException e) {
 					close();
 				}
+			} else {
+				frameReleased(frame);
+				if(done!=null) done.run();
 			}
 		}
 	  };
       try {
-		channel.write(message, 0, message.length, writeListener);
+		channel.write(message, 0, frame.length(), writeListener);
 	} catch (DisconnectedException e) {
+		frameReleased(frame);
 		close();
 	}
-      return true;
   }
 
   /*
+   * If the given buffer is still the outFrame field, reset the field and release the buffer
+   */
+  /**
+   * Releases the buffer of a written frame, unless close() already did.
+   * @param frame : the buffer of the frame
+   */
+  private synchronized void frameReleased(PooledBuffer frame) {
+	  if(outFrame==frame) {
+		  outFrame = null;
+		  frame.release();
+	  }
+  }
+
+  /*
+   * Release the input, bodyBuffer and outFrame buffers and the frames being assembled, and reset them
+   */
+  /**
+   * Releases the pooled buffers held by this queue once closed, run by the executor
+   * so the channel is not using them anymore.
+   */
+  private synchronized void releaseBuffers() {
+	  if(input!=null) {
+		  input.release();
+		  input = null;
+	  }
+	  if(bodyBuffer!=null) {
+		  bodyBuffer.release();
+		  bodyBuffer = null;
+	  }
+	  if(outFrame!=null) {
+		  outFrame.release();
+		  outFrame = null;
+	  }
+	  for(int lane=0; lane<frames.size(); lane++) {
+		  if(frames.get(lane)!=null) {
+			  for(PooledBuffer frame : frames.get(lane))
+				  frame.release();
+			  frames.set(lane, null);
+		  }
+	  }
+  }
+
+  /*
+   * In a synchronized block on this object, return if already closed, else set the closing flag
    * If the channel is still connected :
    * - disconnect it
+   * In a synchronized block on this object, clear the lanes, closing the streams they contain
+   * Post a Runnable calling releaseBuffers() to the executor
    * If the listener is not null :
+   * - post a Runnable calling flushBatch(), so the gathered messages are delivered before closed()
    * - create a new Runnable which calls the closed() method of the listener field in its run() method
    * - post this runnable to the executor
    */
   @Override
   public void close() {
+		synchronized (this) {
+			if (closing)
+				return;
+			closing = true;
+		}
 		if (!channel.disconnected())
 			channel.disconnect();
+		synchronized (this) {
+			for (ArrayDeque<Outgoing> lane : lanes) {
+				for (Outgoing outgoing : lane)
+					if (outgoing.stream != null)
+						outgoing.stream.closeStream();
+				lane.clear();
+			}
+			pending = 0;
+			queuedBytes = 0;
+		}
+		executor.post(new Runnable() {
+			@Override
+			public void run() {
+				releaseBuffers();
+			}
+		});
 		if (listener != null) {
+			executor.post(new Runnable() {
+				@Override
+				public void run() {
+					flushBatch();
+				}
+			});
 			Runnable r = new Runnable() {
 				@Override
 				public void run() {
@@ -242,122 +1066,233 @@ public class CMessageQueue extends MessageQueue {
     return this.channel.getRemoteName();
   }
   
-    /**
-	 * Converts a byte array to its integer interpretation
-	 * @param array : the byte array to convert
-	 * @return The interpreted integer
-	 */
-	private int byteArrayToInt(byte[] array) {
-		ByteBuffer buffer = ByteBuffer.wrap(array);
-		return buffer.getInt();
-	}
-	
-	/**
-	 * Converts an integer to a byte array
-	 * @param i : the integer to convert
-	 * @return : The byte array interpretation
+	/*
+	 * Create a new byte array for the size of the payload
+	 * Create a new read listener with in its read() method :
+	 * - add the number of read bytes to its index
+	 * - if the size is not fully read, try to read the rest of it and call the close() method if a DisconnectedException is caught
+	 * - else call the readPayload() method with the decoded size
+	 * Call the read() method of the channel to read the size
+	 * If a DisconnectedException is caught, call the close() method
 	 */
-	private byte[] intToByteArray(int i) {
-		ByteBuffer buffer = ByteBuffer.wrap(new byte[Integer.BYTES]);
-		buffer.putInt(i);
-		return buffer.array();
-	}
-	
 	/**
-	 * Reads the size of the payload and calls the {@link #readPayload(int)} method when done.
+	 * Reads the size of the payload and calls the {@link #readPayload(int, ReadListener)} method when done.
 	 * @param listener : the listener to call when the payload is read
 	 */
 	public void startReadPayload(ReadListener listener) {
-		byte[] messageSize = new byte[Integer.BYTES*2]; // messageSize[] = [reading index (int)] + [message size (int)]
-		  ReadListener listenerSize = new ReadListener() {
+		byte[] size = new byte[Integer.BYTES];
+		ReadListener listenerSize = new ReadListener() {
+			// the number of bytes of the size already read
+			int index = 0;
+
 			@Override
 			public void read(byte[] bytes) {
-				if(byteArrayToInt(Arrays.copyOf(messageSize, Integer.BYTES))+bytes.length==Integer.BYTES) {
-					readPayload(byteArrayToInt(Arrays.copyOfRange(messageSize, Integer.BYTES, messageSize.length)), listener);
-				}else {
-					int index = byteArrayToInt(Arrays.copyOf(messageSize, Integer.BYTES))+bytes.length;
-					byte[] indexArray = intToByteArray(index);
-					for(int y=0; y<indexArray.length; y++) messageSize[y] = indexArray[y];
+				read(bytes, 0, bytes.length);
+			}
+
+			@Override
+			public void read(byte[] bytes, int offset, int length) {
+				index += length;
+				if(index<Integer.BYTES) {
 					try {
-						channel.read(messageSize, index+Integer.BYTES, Integer.BYTES-index, this);
+						channel.read(size, index, Integer.BYTES-index, this);
 					} catch (DisconnectedException e) {
 						close();
 					}
+					return;
 				}
+				readPayload((size[0] & 0xFF)<<24 | (size[1] & 0xFF)<<16 | (size[2] & 0xFF)<<8 | (size[3] & 0xFF), listener);
 			}
-		  };
-		  try {
-			channel.read(messageSize, Integer.BYTES, Integer.BYTES, listenerSize);
-		  } catch (DisconnectedException e) {
+		};
+		try {
+			channel.read(size, 0, Integer.BYTES, listenerSize);
+		} catch (DisconnectedException e) {
 			close();
-		  }
+		}
 	}
 
+	/*
+	 * Create a new byte array the size of the payload
+	 * Create a new read listener with in its read() method :
+	 * - add the number of read bytes to its index
+	 * - if the payload is not fully read, try to read the rest of it and call the close() method if a DisconnectedException is caught
+	 * - else post a Runnable calling the read() method of the given listener with the payload
+	 * Call the read() method of the channel to read the payload
+	 * If a DisconnectedException is caught, call the close() method
+	 */
 	/**
 	 * Reads a payload and call the read() method of the listener when done
 	 * @param size : the size of the payload
 	 * @param listener : the listener to call when done
 	 */
 	private void readPayload(int size, ReadListener listener) {
-		  byte[] message = new byte[Integer.BYTES+size]; // message[] = [reading index (int)] + [message]
-		  ReadListener listenerSize = new ReadListener() {
+		byte[] payload = new byte[size];
+		Runnable done = new Runnable() {
+			@Override
+			public void run() {
+				listener.read(payload);
+			}
+		};
+		if(size==0) {
+			// nothing to read, the channel would not call back
+			executor.post(done);
+			return;
+		}
+		ReadListener listenerPayload = new ReadListener() {
+			// the number of bytes of the payload already read
+			int index = 0;
+
 			@Override
 			public void read(byte[] bytes) {
-				if(byteArrayToInt(Arrays.copyOf(message, Integer.BYTES))+bytes.length==size) {
-					Runnable r = new Runnable() {
-						@Override
-						public void run() {
-							listener.read(Arrays.copyOfRange(message, Integer.BYTES, message.length));
-						}
-					};
-					executor.post(r);
-				}else {
-					int index = byteArrayToInt(Arrays.copyOf(message, Integer.BYTES))+bytes.length;
-					byte[] indexArray = intToByteArray(index);
-					for(int y=0; y<indexArray.length; y++) message[y] = indexArray[y];
+				read(bytes, 0, bytes.length);
+			}
+
+			@Override
+			public void read(byte[] bytes, int offset, int length) {
+				index += length;
+				if(index<size) {
 					try {
-						channel.read(message, index+Integer.BYTES, Integer.BYTES-index, this);
+						channel.read(payload, index, size-index, this);
 					} catch (DisconnectedException e) {
 						close();
 					}
+					return;
 				}
+				executor.post(done);
 			}
-		  };
-		  try {
-			channel.read(message, Integer.BYTES, size, listenerSize);
-		  } catch (DisconnectedException e) {
+		};
+		try {
+			channel.read(payload, 0, size, listenerPayload);
+		} catch (DisconnectedException e) {
 			close();
-		  }
-	  }
+		}
+	}
 
 	/**
-	 * <pre>Exemple : concatArray([0,1,2,3,4], 1, 3, [5,6,7,8,9], 0, 4) <br>	returns [1,2,3,5,6,7,8]</pre>
-	 * @param a : the first array
-	 * @param offset_a : the starting index of the first array
-	 * @param length_a : the number of bytes to copy from the first array
-	 * @param b : the second array
-	 * @param offset_b : the starting index of the second array
-	 * @param length_b : the number of bytes to copy from the second array
-	 * @return The concatenated 2 arrays
+	 * @param frames : the frames of a message, released by this method
+	 * @return The concatenation of the frames
 	 */
-	private byte[] concatArray(byte[] a, int offset_a, int length_a, byte[] b, int offset_b, int length_b) {
-		// exception si les arguments ne sont pas valide
-		if(a==null || offset_a<0 || length_a<0 || a.length<offset_a+length_a)
-			throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-		if(b==null || offset_b<0 || length_b<0 || b.length<offset_b+length_b)
-			throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-		// concaténation du tableau a et b
-		byte[] result = new byte[length_a+length_b];
+	private byte[] concatFrames(List<PooledBuffer> frames) {
+		int length = 0;
+		for(PooledBuffer frame : frames) length += frame.length();
+		byte[] message = new byte[length];
 		int index = 0;
-		for(int i=offset_a; i<length_a; i++) {
-			result[index] = a[i];
-			index++;
+		for(PooledBuffer frame : frames) {
+			System.arraycopy(frame.array(), 0, message, index, frame.length());
+			index += frame.length();
+			frame.release();
+		}
+		return message;
+	}
+
+	/**
+	 * @param buffer : a pooled frame, released by this method
+	 * @return A copy of the frame
+	 */
+	private static byte[] toArray(PooledBuffer buffer) {
+		byte[] frame = Arrays.copyOf(buffer.array(), buffer.length());
+		buffer.release();
+		return frame;
+	}
+
+	/**
+	 * A message waiting in a lane, either an array partially sent or a stream.
+	 */
+	private static class Outgoing {
+		// the message and the number of bytes already sent, if not a stream
+		byte[] bytes;
+		int sent;
+		// the stream, if not an array
+		StreamSender stream;
+
+		Outgoing(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		Outgoing(StreamSender stream) {
+			this.stream = stream;
 		}
-		for(int i=offset_b; i<length_b; i++) {
-			result[index] = b[i];
-			index++;
+
+		/**
+		 * @return True if the next frame of this message can be sent
+		 */
+		boolean ready() {
+			return stream==null || stream.ready;
+		}
+	}
+
+	/*
+	 * Each StreamSender is a Runnable reading a stream in its chunk array, one chunk per run
+	 * If the connection is closed, close the stream and stop
+	 * Fill the chunk array from the stream, until it is full or the end of the stream is reached
+	 * If a IOException is thrown, close the stream and this connection
+	 * In a synchronized block on the CMessageQueue, set the ready flag and call writeNext()
+	 */
+	private class StreamSender implements Runnable {
+		InputStream in;
+		byte[] chunk = new byte[Math.min(maxFrameSize, STREAM_CHUNK_SIZE)];
+		// the number of bytes in the chunk
+		int filled;
+		// true if the end of the stream is reached
+		boolean eof;
+		// true when the chunk is filled and not sent yet, guarded by the CMessageQueue
+		boolean ready;
+
+		StreamSender(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			if(closed()) {
+				closeStream();
+				return;
+			}
+			filled = 0;
+			try {
+				while(filled<chunk.length) {
+					int n = in.read(chunk, filled, chunk.length-filled);
+					if(n<0) {
+						eof = true;
+						break;
+					}
+					filled += n;
+				}
+			} catch (IOException e) {
+				// the receiver is waiting for the end of the message, it cannot be resynchronized
+				closeStream();
+				close();
+				return;
+			}
+			synchronized(CMessageQueue.this) {
+				ready = true;
+				writeNext();
+			}
+		}
+
+		/*
+		 * Reset the ready flag
+		 * If the end of the stream is reached, close the stream
+		 * Else post this StreamSender to the executor to read the next chunk,
+		 * the chunk being copied in the frame
+		 */
+		/**
+		 * Called once the chunk is copied in a frame, must be called in a synchronized block on the CMessageQueue.
+		 */
+		void chunkSent() {
+			ready = false;
+			if(eof)
+				closeStream();
+			else
+				executor.post(this);
+		}
+
+		private void closeStream() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing to do here
+			}
 		}
-		return result;
 	}
-	
 }
@@ -42,6 +42,16 @@ public class CQueueBroker extends QueueBroker {
 		super(pump, broker);
 	}
 
+	/*
+	 * If the binds field contains the port key, return false.
+	 * Add the given port as key to the binds field with a new object as value.
+	 * Accept on the given port with a listener which, for each accepted channel :
+	 * - creates a new CMessageQueue and reads the payload sent by the peer
+	 * - if it is the unbinding payload, closes the queue and adds the port to the unbinds field
+	 * - else, if the peer sent its frame version, answers with the hello payload and agrees on the frame format,
+	 *   posts a Runnable calling the accepted() method of the listener, and accepts again on the port
+	 * Return true.
+	 */
 	@Override
 	public synchronized boolean bind(int port, AcceptListener listener) {
 		if(binds.containsKey(port)) return false;
@@ -54,10 +64,15 @@ public class CQueueBroker extends QueueBroker {
 				Channel.ReadListener readListener = new Channel.ReadListener() {
 					@Override
 					public void read(byte[] bytes) {
-						if(bytes.equals(CMessageQueue.UNBINDING_QUEUE_PAYLOAD)) {
+						if(bytes.length>0 && bytes[0]==CMessageQueue.UNBINDING_QUEUE_PAYLOAD[0]) {
 							messageQueue.close();
 							unbinds.add(port);
 						}else {
+							if(bytes.length>1) {
+								// the peer waits for our hello before using its frame version
+								messageQueue.send(CMessageQueue.HELLO_PAYLOAD);
+								messageQueue.setFrameFormat(bytes);
+							}
 							Runnable r = new Runnable() {
 								@Override
 								public void run() {
@@ -99,20 +114,34 @@ public class CQueueBroker extends QueueBroker {
 		}
 	}
 
+	/*
+	 * Connect on the given port with a listener which, once connected :
+	 * - creates a new CMessageQueue and sends the hello payload
+	 * - reads the hello payload of the peer and agrees on the frame format
+	 * - posts a Runnable calling the connected() method of the listener
+	 * If the remote broker is not found, post a Runnable calling the refused() method of the listener and return false.
+	 * Return true.
+	 */
 	@Override
 	public boolean connect(String name, int port, ConnectListener listener) {
 		Broker.ConnectListener connectListener = new Broker.ConnectListener() {
 			@Override
 			public void connected(Channel channel) {
 				CMessageQueue queue = new CMessageQueue(channel, self(), self().getEventPump());
-				queue.send(CMessageQueue.REGULAR_QUEUE_PAYLOAD);
-				Runnable r = new Runnable() {
+				queue.send(CMessageQueue.HELLO_PAYLOAD);
+				queue.startReadPayload(new Channel.ReadListener() {
 					@Override
-					public void run() {
-						listener.connected(queue);
+					public void read(byte[] bytes) {
+						queue.setFrameFormat(bytes);
+						Runnable r = new Runnable() {
+							@Override
+							public void run() {
+								listener.connected(queue);
+							}
+						};
+						getEventPump().post(r);
 					}
-				};
-				getEventPump().post(r);
+				});
 			}
 		};
 		
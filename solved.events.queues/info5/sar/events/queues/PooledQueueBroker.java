@@ -0,0 +1,316 @@
+package info5.sar.events.queues;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.IdlePool;
+
+/**
+ * QueueBroker keeping the connected MessageQueues open once closed by their users,
+ * to reuse them for the next connections to the same QueueBroker and port.<br>
+ * <br>
+ * The queues given by {@link #connect(String, int, ConnectListener)} give their connection
+ * back to the pool when closed, instead of closing it, so a client opening a session per
+ * request skips the rendez-vous and the handshake of the connection. An idle connection
+ * receiving a message, or closed by the peer, leaves the pool, and a connection is closed
+ * once idle for longer than the idle timeout, or when too many connections are idle for the
+ * same QueueBroker and port. Since the peer sees a single connection, a user must receive all
+ * the replies it expects before closing its queue, or call {@link PooledQueue#discard()} to
+ * really close it. Binding is left to the QueueBroker in field.
+ */
+public class PooledQueueBroker extends QueueBroker {
+
+	// default maximum number of idle connections to the same QueueBroker and port
+	public static final int DEFAULT_MAX_IDLE = 8;
+	// default time a connection is kept idle, in milliseconds
+	public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+	// the QueueBroker establishing the connections
+	private final QueueBroker queueBroker;
+	// the idle connections, by QueueBroker name and port
+	private final IdlePool<MessageQueue> idle = new IdlePool<>(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT, MessageQueue::close);
+
+	/*
+	 * Call the super() constructor with the event pump and the broker of the given QueueBroker
+	 * Store the given QueueBroker in the field
+	 */
+	/**
+	 * @param queueBroker : the QueueBroker establishing the connections
+	 */
+	public PooledQueueBroker(QueueBroker queueBroker) {
+		super(queueBroker.getEventPump(), queueBroker.getBroker());
+		this.queueBroker = queueBroker;
+	}
+
+	/* Return the result of bind() of the QueueBroker in field */
+	@Override
+	public boolean bind(int port, AcceptListener listener) {
+		return queueBroker.bind(port, listener);
+	}
+
+	/* Return the result of unbind() of the QueueBroker in field */
+	@Override
+	public boolean unbind(int port) {
+		return queueBroker.unbind(port);
+	}
+
+	/*
+	 * Take an idle connection to the given QueueBroker and port, not closed
+	 * If there is one, post a Runnable calling the connected() method of the listener with a PooledQueue of it
+	 * Else, connect with the QueueBroker in field, with a listener giving a PooledQueue of the connection
+	 * Return true, or the result of connect() of the QueueBroker in field
+	 */
+	@Override
+	public boolean connect(String name, int port, ConnectListener listener) {
+		String key = name + ":" + port;
+		MessageQueue queue = idle.poll(key, q -> !q.closed());
+		if (queue != null) {
+			PooledQueue pooled = new PooledQueue(key, queue);
+			getEventPump().post(new Runnable() {
+				@Override
+				public void run() {
+					listener.connected(pooled);
+				}
+			});
+			return true;
+		}
+		return queueBroker.connect(name, port, new ConnectListener() {
+			@Override
+			public void connected(MessageQueue queue) {
+				listener.connected(new PooledQueue(key, queue));
+			}
+
+			@Override
+			public void refused() {
+				listener.refused();
+			}
+		});
+	}
+
+	/**
+	 * @return The pool of the idle connections, to set its limits
+	 */
+	public IdlePool<MessageQueue> getIdlePool() {
+		return idle;
+	}
+
+	/**
+	 * Closes all the idle connections.
+	 */
+	public void clear() {
+		idle.clear();
+	}
+
+	/**
+	 * MessageQueue of a pooled connection, usable until closed.
+	 */
+	public class PooledQueue extends MessageQueue {
+		private final String key;
+		private final MessageQueue queue;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		// the listener set by the user, told when this queue is closed
+		private volatile Listener listener;
+
+		PooledQueue(String key, MessageQueue queue) {
+			this.key = key;
+			this.queue = queue;
+		}
+
+		@Override
+		public QueueBroker broker() {
+			return PooledQueueBroker.this;
+		}
+
+		@Override
+		public String getRemoteName() {
+			return queue.getRemoteName();
+		}
+
+		/* If not closed, set the listener of the connection */
+		@Override
+		public synchronized void setListener(Listener l) {
+			if (closed.get())
+				return;
+			listener = l;
+			queue.setListener(l);
+		}
+
+		@Override
+		public boolean send(byte[] bytes, int priority) {
+			return !closed.get() && queue.send(bytes, priority);
+		}
+
+		@Override
+		public boolean sendShared(byte[] bytes, int priority) {
+			return !closed.get() && queue.sendShared(bytes, priority);
+		}
+
+		@Override
+		public int pendingMessages() {
+			return queue.pendingMessages();
+		}
+
+		@Override
+		public boolean sendStream(InputStream in) {
+			return !closed.get() && queue.sendStream(in);
+		}
+
+		@Override
+		public void setMaxFrameSize(int size) {
+			queue.setMaxFrameSize(size);
+		}
+
+		@Override
+		public int getMaxFrameSize() {
+			return queue.getMaxFrameSize();
+		}
+
+		@Override
+		public void setCompressionThreshold(int size) {
+			queue.setCompressionThreshold(size);
+		}
+
+		@Override
+		public int getCompressionThreshold() {
+			return queue.getCompressionThreshold();
+		}
+
+		@Override
+		public void setBatchLimits(int size, long delay) {
+			queue.setBatchLimits(size, delay);
+		}
+
+		@Override
+		public int getMaxBatchSize() {
+			return queue.getMaxBatchSize();
+		}
+
+		@Override
+		public long getMaxBatchDelay() {
+			return queue.getMaxBatchDelay();
+		}
+
+		@Override
+		public void setWatermarks(int low, int high) {
+			queue.setWatermarks(low, high);
+		}
+
+		@Override
+		public int getLowWatermark() {
+			return queue.getLowWatermark();
+		}
+
+		@Override
+		public int getHighWatermark() {
+			return queue.getHighWatermark();
+		}
+
+		@Override
+		public boolean isWritable() {
+			return !closed.get() && queue.isWritable();
+		}
+
+		@Override
+		public void pauseReading() {
+			if (!closed.get())
+				queue.pauseReading();
+		}
+
+		@Override
+		public void resumeReading() {
+			if (!closed.get())
+				queue.resumeReading();
+		}
+
+		@Override
+		public boolean isReadingPaused() {
+			return queue.isReadingPaused();
+		}
+
+		@Override
+		public void setInboundLimit(int limit) {
+			queue.setInboundLimit(limit);
+		}
+
+		@Override
+		public int getInboundLimit() {
+			return queue.getInboundLimit();
+		}
+
+		@Override
+		public void consumed(int count) {
+			if (!closed.get())
+				queue.consumed(count);
+		}
+
+		/*
+		 * If not already closed :
+		 * - if the connection is closed, return
+		 * - remove the inbound limit of the connection and resume its reading
+		 * - set a listener on the connection, closing it and removing it from the pool when a message is received,
+		 *   and removing it from the pool when it is closed
+		 * - give the connection back to the pool
+		 * - if the user set a listener, post a Runnable calling its closed() method
+		 */
+		/**
+		 * Gives the connection back to the pool, to be reused by the next connect().
+		 */
+		@Override
+		public void close() {
+			Listener l;
+			synchronized (this) {
+				if (!closed.compareAndSet(false, true))
+					return;
+				l = listener;
+			}
+			if (!queue.closed()) {
+				queue.setInboundLimit(NO_INBOUND_LIMIT);
+				queue.resumeReading();
+				MessageQueue connection = queue;
+				queue.setListener(new Listener() {
+					@Override
+					public void received(byte[] msg) {
+						// a message nobody waits for, the connection cannot be reused
+						idle.remove(key, connection);
+						connection.close();
+					}
+
+					@Override
+					public void closed() {
+						idle.remove(key, connection);
+					}
+				});
+				idle.offer(key, queue);
+			}
+			if (l != null) {
+				getEventPump().post(new Runnable() {
+					@Override
+					public void run() {
+						l.closed();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Closes the connection instead of giving it back to the pool, when it cannot be
+		 * reused, like when some replies were not received.
+		 */
+		public void discard() {
+			closed.set(true);
+			queue.close();
+		}
+
+		@Override
+		public boolean closed() {
+			return closed.get() || queue.closed();
+		}
+
+		@Override
+		public String toString() {
+			return "PooledQueue[" + key + "]";
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package info5.sar.events.queues.pubsub;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.PubSubCodec;
+import info5.sar.utils.TopicFilter;
+
+/**
+ * Topic-based publish/subscribe broker over event-oriented {@link MessageQueue MessageQueues}.<br>
+ * <br>
+ * Clients subscribe to topics with filters, possibly with wildcards (see {@link TopicFilter}),
+ * and publish messages on topics. A published message is encoded once, and the same immutable
+ * array is given to all the matching subscriber queues with {@link MessageQueue#sendShared(byte[], int) sendShared()},
+ * so fanning it out does not copy it for each subscriber.<br>
+ * <br>
+ * The backlog of a subscriber is the number of messages its queue has not fully written yet.
+ * When it is full, the {@link OverflowPolicy} of the broker either drops the new message for
+ * this subscriber or disconnects it.
+ */
+public class PubSubBroker {
+
+	/**
+	 * What to do with a message for a subscriber whose backlog is full.
+	 */
+	public enum OverflowPolicy {
+		// the message is not delivered to this subscriber
+		DROP,
+		// the subscriber is disconnected
+		DISCONNECT
+	}
+
+	/**
+	 * Default maximum number of messages queued for a subscriber.
+	 */
+	public static final int DEFAULT_BACKLOG = 1024;
+
+	// the broker accepting the connections
+	private QueueBroker broker;
+	// the maximum number of messages queued for a subscriber
+	private int backlog;
+	// what to do when the backlog of a subscriber is full
+	private OverflowPolicy policy;
+	// the binded ports
+	private Set<Integer> ports = ConcurrentHashMap.newKeySet();
+	// the connected clients
+	private Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	// the number of messages dropped because of full backlogs
+	private AtomicLong dropped = new AtomicLong();
+	// set once the broker is closed
+	private volatile boolean closed = false;
+
+	/*
+	 * Set the broker, backlog and policy fields with the given ones
+	 */
+	/**
+	 * @param broker : the broker accepting the connections
+	 * @param backlog : the maximum number of messages queued for a subscriber
+	 * @param policy : what to do when the backlog of a subscriber is full
+	 */
+	public PubSubBroker(QueueBroker broker, int backlog, OverflowPolicy policy) {
+		if (backlog < 1)
+			throw new IllegalArgumentException("PubSubBroker : Illegal backlog");
+		this.broker = broker;
+		this.backlog = backlog;
+		this.policy = policy;
+	}
+
+	/*
+	 * Bind the given port with a listener serving each accepted queue
+	 * If successful, add the port to the ports field
+	 */
+	/**
+	 * Accepts and serves clients on the given port, until the broker is closed.
+	 * This is a thread-safe non-blocking method.
+	 * @param port : the port to accept on
+	 * @return True if the given port is not already binded, false otherwise
+	 */
+	public boolean bind(int port) {
+		boolean binded = broker.bind(port, new QueueBroker.AcceptListener() {
+			@Override
+			public void accepted(MessageQueue queue) {
+				serve(queue);
+			}
+		});
+		if (binded)
+			ports.add(port);
+		return binded;
+	}
+
+	/*
+	 * Create a new Subscriber for the queue and add it to the subscribers field
+	 * Set the listener of the queue, which :
+	 * - for each received request, subscribes or unsubscribes with its filter, or fans out a published message,
+	 *   closing the queue if the request is not valid
+	 * - once closed, removes the Subscriber from the subscribers field
+	 */
+	/**
+	 * Serves the given client, until it is disconnected.
+	 * The broker sets the listener of the queue, it should not be changed.
+	 * This is a thread-safe non-blocking method.
+	 * @param queue : the queue to the client, fully connected
+	 */
+	public void serve(MessageQueue queue) {
+		Subscriber subscriber = new Subscriber(queue);
+		subscribers.add(subscriber);
+		if (closed) {
+			queue.close();
+			subscribers.remove(subscriber);
+			return;
+		}
+		queue.setListener(new MessageQueue.Listener() {
+			@Override
+			public void received(byte[] request) {
+				try {
+					switch (PubSubCodec.kind(request)) {
+					case PubSubCodec.SUBSCRIBE:
+						TopicFilter filter = new TopicFilter(PubSubCodec.topic(request));
+						if (!subscriber.filters.contains(filter))
+							subscriber.filters.add(filter);
+						break;
+					case PubSubCodec.UNSUBSCRIBE:
+						subscriber.filters.remove(new TopicFilter(PubSubCodec.topic(request)));
+						break;
+					case PubSubCodec.PUBLISH:
+						fanOut(PubSubCodec.toMessage(request));
+						break;
+					default:
+						throw new IllegalArgumentException("PubSubBroker : unexpected request");
+					}
+				} catch (IllegalArgumentException e) {
+					// the client does not follow the protocol
+					queue.close();
+				}
+			}
+
+			@Override
+			public void closed() {
+				subscribers.remove(subscriber);
+			}
+		});
+	}
+
+	/**
+	 * Publishes a message from the broker itself.
+	 * This is a thread-safe non-blocking method.
+	 * @param topic : the topic of the message
+	 * @param payload : the payload of the message
+	 * @return The number of subscribers the message is queued for
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public int publish(String topic, byte[] payload) {
+		TopicFilter.topicLevels(topic);
+		return fanOut(PubSubCodec.encode(PubSubCodec.MESSAGE, topic, payload));
+	}
+
+	/**
+	 * @return The number of connected clients
+	 */
+	public int subscribers() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return The number of messages dropped because of full backlogs
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Closes the broker: unbinds its ports and disconnects the connected clients.
+	 */
+	public void close() {
+		closed = true;
+		for (Integer port : ports)
+			broker.unbind(port);
+		ports.clear();
+		for (Subscriber subscriber : subscribers)
+			subscriber.queue.close();
+	}
+
+	/*
+	 * Split the topic of the message once
+	 * For each connected subscriber with a matching filter :
+	 * - if its backlog is not full, send the same message without copying it
+	 * - if its backlog is full or its queue refused the message (high watermark), count the message
+	 *   as dropped, disconnecting the subscriber with the DISCONNECT policy
+	 */
+	/**
+	 * Queues a message for all the matching subscribers.
+	 * @param message : the encoded message, of kind {@link PubSubCodec#MESSAGE}, not changed afterwards
+	 * @return The number of subscribers the message is queued for
+	 */
+	private int fanOut(byte[] message) {
+		String[] levels = TopicFilter.topicLevels(PubSubCodec.topic(message));
+		int queued = 0;
+		for (Subscriber subscriber : subscribers) {
+			if (!subscriber.matches(levels) || subscriber.queue.closed())
+				continue;
+			if (subscriber.queue.pendingMessages() < backlog
+					&& subscriber.queue.sendShared(message, MessageQueue.PRIORITY_NORMAL)) {
+				queued++;
+			} else {
+				dropped.incrementAndGet();
+				if (policy == OverflowPolicy.DISCONNECT)
+					subscriber.queue.close();
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * A connected client, with its subscriptions.
+	 */
+	private static class Subscriber {
+		MessageQueue queue;
+		// the filters of the subscriptions
+		List<TopicFilter> filters = new CopyOnWriteArrayList<>();
+
+		Subscriber(MessageQueue queue) {
+			this.queue = queue;
+		}
+
+		/**
+		 * @param levels : the levels of a topic
+		 * @return True if a subscription matches the topic
+		 */
+		boolean matches(String[] levels) {
+			for (TopicFilter filter : filters)
+				if (filter.matches(levels))
+					return true;
+			return false;
+		}
+	}
+}
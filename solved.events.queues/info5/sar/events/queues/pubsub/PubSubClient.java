@@ -0,0 +1,119 @@
+package info5.sar.events.queues.pubsub;
+
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.utils.PubSubCodec;
+import info5.sar.utils.TopicFilter;
+
+/**
+ * Client of a {@link PubSubBroker} over an event-oriented {@link MessageQueue}.<br>
+ * <br>
+ * The requests are sent in order on the queue, so a subscription is active on the broker
+ * before the messages this client publishes after it. Messages published by other clients
+ * are only received once the broker handled the subscription.<br>
+ * <br>
+ * The client sets the listener of the queue, it should not be changed.
+ */
+public class PubSubClient {
+
+	/**
+	 * Listener for the messages of the subscriptions, called by the event pump.
+	 */
+	public interface Listener {
+		/**
+		 * Defines the behavior when a message is received.
+		 * @param topic : the topic the message was published on
+		 * @param payload : the payload of the message
+		 */
+		void received(String topic, byte[] payload);
+
+		/**
+		 * Defines the behavior when the connection to the broker is closed.
+		 */
+		void closed();
+	}
+
+	// the queue to the broker
+	private MessageQueue queue;
+
+	/*
+	 * Set the queue field with the given queue
+	 * Set the listener of the queue, which :
+	 * - for each received message, calls the received() method of the given listener,
+	 *   closing the queue if it is not a valid delivered message
+	 * - once closed, calls the closed() method of the given listener
+	 */
+	/**
+	 * @param queue : the queue to the broker, fully connected
+	 * @param listener : the listener of the messages
+	 */
+	public PubSubClient(MessageQueue queue, Listener listener) {
+		this.queue = queue;
+		queue.setListener(new MessageQueue.Listener() {
+			@Override
+			public void received(byte[] message) {
+				String topic;
+				byte[] payload;
+				try {
+					if (PubSubCodec.kind(message) != PubSubCodec.MESSAGE)
+						throw new IllegalArgumentException("PubSubClient : unexpected message");
+					topic = PubSubCodec.topic(message);
+					payload = PubSubCodec.payload(message);
+				} catch (IllegalArgumentException e) {
+					// the broker does not follow the protocol
+					queue.close();
+					return;
+				}
+				listener.received(topic, payload);
+			}
+
+			@Override
+			public void closed() {
+				listener.closed();
+			}
+		});
+	}
+
+	/**
+	 * Subscribes to the topics matching the given filter.
+	 * This is a thread-safe non-blocking method.
+	 * @param filter : the filter, possibly with wildcards (see {@link TopicFilter})
+	 * @return True if the request is successfully queued for sending
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public boolean subscribe(String filter) {
+		new TopicFilter(filter);
+		return queue.sendShared(PubSubCodec.encode(PubSubCodec.SUBSCRIBE, filter, new byte[0]), MessageQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Cancels the subscription with the given filter.
+	 * This is a thread-safe non-blocking method.
+	 * @param filter : the filter of the subscription
+	 * @return True if the request is successfully queued for sending
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public boolean unsubscribe(String filter) {
+		new TopicFilter(filter);
+		return queue.sendShared(PubSubCodec.encode(PubSubCodec.UNSUBSCRIBE, filter, new byte[0]), MessageQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Publishes a message on the given topic.
+	 * This is a thread-safe non-blocking method.
+	 * @param topic : the topic, without wildcards
+	 * @param payload : the payload of the message, which can be changed at the return of this method
+	 * @return True if the request is successfully queued for sending
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public boolean publish(String topic, byte[] payload) {
+		TopicFilter.topicLevels(topic);
+		return queue.sendShared(PubSubCodec.encode(PubSubCodec.PUBLISH, topic, payload), MessageQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Disconnects from the broker.
+	 */
+	public void close() {
+		queue.close();
+	}
+}
@@ -0,0 +1,183 @@
+package info5.sar.events.queues.rpc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.utils.RpcCodec;
+import info5.sar.utils.RpcException;
+
+/**
+ * Client side of remote procedure calls over an event-oriented {@link MessageQueue}.<br>
+ * <br>
+ * Each call is sent as a request tagged with a new correlation id, without waiting
+ * for the responses of the previous calls, so many calls may be in flight on the
+ * same queue. The responses are received in any order, and the listener of the call
+ * with the same correlation id is called by the event pump.<br>
+ * <br>
+ * The client sets the listener of the queue, it should not be changed.
+ */
+/*
+ * The pending map holds the listeners of the calls waiting for their response,
+ * by correlation id. The closed flag is set before the pending calls are failed,
+ * so a call either sees it or is failed by the listener of the queue.
+ */
+public class RpcClient {
+
+	/**
+	 * Listener for the result of a call, called by the event pump.
+	 */
+	public interface ResponseListener {
+		/**
+		 * Defines the behavior when the response is received.
+		 * @param response : the response
+		 */
+		void responded(byte[] response);
+
+		/**
+		 * Defines the behavior when the call failed on the server side.
+		 * @param error : the message of the error
+		 */
+		void failed(String error);
+
+		/**
+		 * Defines the behavior when the queue is closed before the response is received.
+		 */
+		void closed();
+	}
+
+	// the queue to the server
+	private MessageQueue queue;
+	// the next correlation id
+	private AtomicInteger ids = new AtomicInteger();
+	// the calls waiting for their response, by correlation id
+	private Map<Integer, ResponseListener> pending = new ConcurrentHashMap<>();
+	// set once the queue is closed
+	private volatile boolean closed = false;
+
+	/*
+	 * Set the queue field with the given queue
+	 * Set the listener of the queue, which :
+	 * - for each received message, removes the listener with its correlation id from the pending map,
+	 *   ignoring it if there is none, and calls its responded() or failed() method
+	 * - once closed, sets the closed flag and calls the closed() method of all the pending listeners
+	 */
+	/**
+	 * @param queue : the queue to the server, fully connected
+	 */
+	public RpcClient(MessageQueue queue) {
+		this.queue = queue;
+		queue.setListener(new MessageQueue.Listener() {
+			@Override
+			public void received(byte[] message) {
+				ResponseListener listener;
+				try {
+					listener = pending.remove(RpcCodec.id(message));
+				} catch (IllegalArgumentException e) {
+					// not a response, the server does not follow the protocol
+					queue.close();
+					return;
+				}
+				if (listener == null)
+					return;
+				if (RpcCodec.kind(message) == RpcCodec.ERROR)
+					listener.failed(RpcCodec.error(message));
+				else
+					listener.responded(RpcCodec.payload(message));
+			}
+
+			@Override
+			public void closed() {
+				closed = true;
+				for (Integer id : pending.keySet()) {
+					ResponseListener listener = pending.remove(id);
+					if (listener != null)
+						listener.closed();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Put the listener in the pending map with a new correlation id
+	 * If the closed field is set, remove it, post a Runnable calling its closed() method and return false
+	 * Else send the encoded request, removing the listener and returning false if it is refused
+	 */
+	/**
+	 * Calls the server.<br>
+	 * This is a thread-safe non-blocking method.
+	 * @param request : the request
+	 * @param listener : the listener of the result
+	 * @return True if the request is successfully queued for sending, false if the queue is closed
+	 *         or refused it because of its high watermark, the listener being then only called if closed
+	 */
+	public boolean call(byte[] request, ResponseListener listener) {
+		int id = ids.incrementAndGet();
+		pending.put(id, listener);
+		if (closed) {
+			pending.remove(id);
+			queue.broker().getEventPump().post(new Runnable() {
+				@Override
+				public void run() {
+					listener.closed();
+				}
+			});
+			return false;
+		}
+		if (!queue.send(RpcCodec.encode(RpcCodec.REQUEST, id, request))) {
+			// refused by the high watermark, the listener is not called
+			pending.remove(id);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calls the server.<br>
+	 * This is a thread-safe non-blocking method.
+	 * @param request : the request
+	 * @return A future completed by the event pump with the response, or completed exceptionally
+	 *         with a {@link RpcException} if the call failed on the server side, or with a
+	 *         {@link IllegalStateException} if the queue is closed before the response is received
+	 *         or refused the request because of its high watermark
+	 */
+	public CompletableFuture<byte[]> call(byte[] request) {
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		boolean queued = call(request, new ResponseListener() {
+			@Override
+			public void responded(byte[] response) {
+				future.complete(response);
+			}
+
+			@Override
+			public void failed(String error) {
+				future.completeExceptionally(new RpcException(error));
+			}
+
+			@Override
+			public void closed() {
+				future.completeExceptionally(new IllegalStateException("RpcClient : queue closed"));
+			}
+		});
+		// once closed, the listener completes the future
+		if (!queued && !closed)
+			future.completeExceptionally(new IllegalStateException("RpcClient : call refused"));
+		return future;
+	}
+
+	/**
+	 * @return The number of calls waiting for their response
+	 */
+	public int pendingCalls() {
+		return pending.size();
+	}
+
+	/**
+	 * Closes the queue, failing the calls waiting for their response.
+	 */
+	public void close() {
+		queue.close();
+	}
+}
@@ -0,0 +1,179 @@
+package info5.sar.events.queues.rpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import info5.sar.events.queues.events.MessageQueue;
+import info5.sar.events.queues.events.QueueBroker;
+import info5.sar.utils.RpcCodec;
+
+/**
+ * Server side of remote procedure calls over event-oriented {@link MessageQueue MessageQueues}.<br>
+ * <br>
+ * The requests received by the event pump are dispatched to a pool of workers shared
+ * by all the served queues, so a long call does not block the pump. A worker runs the
+ * handler and sends the response tagged with the correlation id of the request, so the
+ * responses of a queue are sent in the order the calls complete, not the order they
+ * were received.
+ */
+public class RpcServer {
+
+	/**
+	 * Maximum number of requests of a queue waiting for or being handled by the workers,
+	 * reading the queue being paused beyond.
+	 */
+	public static final int MAX_PENDING_REQUESTS = 256;
+
+	/**
+	 * Handler of the requests, called by the workers of the server.
+	 * It may be called by several workers at the same time.
+	 */
+	public interface Handler {
+		/**
+		 * @param request : the received request
+		 * @return The response
+		 * @throws Exception if the call fails, its message being sent to the client
+		 */
+		byte[] handle(byte[] request) throws Exception;
+	}
+
+	// the broker accepting the connections
+	private QueueBroker broker;
+	// the handler of the requests
+	private Handler handler;
+	// the pool of workers running the handler
+	private ExecutorService workers;
+	// the binded ports
+	private Set<Integer> ports = ConcurrentHashMap.newKeySet();
+	// the served queues
+	private Set<MessageQueue> queues = ConcurrentHashMap.newKeySet();
+	// set once the server is closed
+	private volatile boolean closed = false;
+
+	/*
+	 * Set the broker and handler fields with the given ones
+	 * Set the workers field with a new fixed thread pool of the given size
+	 */
+	/**
+	 * @param broker : the broker accepting the connections
+	 * @param handler : the handler of the requests
+	 * @param nworkers : the number of workers running the handler
+	 */
+	public RpcServer(QueueBroker broker, Handler handler, int nworkers) {
+		if (nworkers < 1)
+			throw new IllegalArgumentException("RpcServer : Illegal number of workers");
+		this.broker = broker;
+		this.handler = handler;
+		this.workers = Executors.newFixedThreadPool(nworkers);
+	}
+
+	/*
+	 * Bind the given port with a listener serving each accepted queue
+	 * If successful, add the port to the ports field
+	 */
+	/**
+	 * Accepts and serves connections on the given port, until the server is closed.
+	 * This is a thread-safe non-blocking method.
+	 * @param port : the port to accept on
+	 * @return True if the given port is not already binded, false otherwise
+	 */
+	public boolean bind(int port) {
+		boolean binded = broker.bind(port, new QueueBroker.AcceptListener() {
+			@Override
+			public void accepted(MessageQueue queue) {
+				serve(queue);
+			}
+		});
+		if (binded)
+			ports.add(port);
+		return binded;
+	}
+
+	/*
+	 * Add the queue to the queues field
+	 * Remove the high watermark of the queue, the responses being bounded by the inbound limit
+	 * Set the inbound limit of the queue to MAX_PENDING_REQUESTS
+	 * Set the listener of the queue, which :
+	 * - for each received message, closes the queue if it is not a request,
+	 *   else submits a Runnable to the workers calling reply()
+	 * - once closed, removes the queue from the queues field
+	 */
+	/**
+	 * Serves the requests received on the given queue, until it is closed.
+	 * The server sets the listener of the queue, it should not be changed.
+	 * This is a thread-safe non-blocking method.
+	 * @param queue : the queue to serve, fully connected
+	 */
+	public void serve(MessageQueue queue) {
+		queues.add(queue);
+		if (closed) {
+			queue.close();
+			queues.remove(queue);
+			return;
+		}
+		// a refused response would never reach its caller
+		queue.setWatermarks(queue.getLowWatermark(), Integer.MAX_VALUE);
+		queue.setInboundLimit(MAX_PENDING_REQUESTS);
+		queue.setListener(new MessageQueue.Listener() {
+			@Override
+			public void received(byte[] message) {
+				if (message.length < RpcCodec.HEADER_SIZE || RpcCodec.kind(message) != RpcCodec.REQUEST) {
+					// the client does not follow the protocol
+					queue.close();
+					return;
+				}
+				try {
+					workers.execute(() -> reply(queue, message));
+				} catch (RejectedExecutionException e) {
+					// the server is closed
+					queue.close();
+				}
+			}
+
+			@Override
+			public void closed() {
+				queues.remove(queue);
+			}
+		});
+	}
+
+	/**
+	 * Closes the server: unbinds its ports, closes the served queues
+	 * and stops the workers once the running calls are done.
+	 */
+	public void close() {
+		closed = true;
+		for (Integer port : ports)
+			broker.unbind(port);
+		ports.clear();
+		workers.shutdown();
+		for (MessageQueue queue : queues)
+			queue.close();
+	}
+
+	/*
+	 * Call the handler with the payload of the request
+	 * Send the response tagged with the correlation id of the request,
+	 * or an error with the message of the exception thrown by the handler
+	 * Tell the queue the request is consumed
+	 */
+	/**
+	 * Handles a request and sends its response, run by a worker.
+	 * @param queue : the queue the request was received on
+	 * @param message : the encoded request
+	 */
+	private void reply(MessageQueue queue, byte[] message) {
+		int id = RpcCodec.id(message);
+		byte[] response;
+		try {
+			response = RpcCodec.encode(RpcCodec.RESPONSE, id, handler.handle(RpcCodec.payload(message)));
+		} catch (Exception e) {
+			response = RpcCodec.encodeError(id, e);
+		}
+		queue.send(response);
+		queue.consumed(1);
+	}
+}
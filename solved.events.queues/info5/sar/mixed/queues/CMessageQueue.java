@@ -1,6 +1,7 @@
 package info5.sar.mixed.queues;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -9,13 +10,39 @@ import info5.sar.channels.Channel;
 import info5.sar.channels.DisconnectedException;
 import info5.sar.events.queues.mixed.MessageQueue;
 import info5.sar.events.queues.mixed.QueueBroker;
+import info5.sar.utils.BufferPool;
 import info5.sar.utils.Executor;
+import info5.sar.utils.FrameCodec;
+import info5.sar.utils.PooledBuffer;
 
 
+/*
+ * Each message is sent as a sequence of frames, each frame being at most
+ * FRAME_SIZE bytes long :
+ * [header] + [frame]
+ * The header encodes the size of the frame and its flags (see FrameCodec), the
+ * MORE flag being set when more frames of the same message follow, in the legacy
+ * format until the broker agrees on a version with the peer through the hello
+ * payloads, see setFrameVersion().
+ * Messages wait in one lane per priority of the worker_writer, which sends their
+ * frames one at a time, the urgent lane first. With the compact format, the frames
+ * of the urgent lane are flagged PRIORITY so the receiver reassembles each lane
+ * separately. With the legacy format, the lanes only switch between messages.
+ * The frames waiting to be written and the frames of a message being reassembled
+ * are held in pooled buffers, released once written or concatenated.
+ * The worker_reader and worker_writer are tasks run by a shared pool of IOWorkers
+ * when the channel is ready, never blocking, so an idle queue holds no thread.
+ */
 public class CMessageQueue extends MessageQueue {
 	
 	// payload constants
 	public static final byte[] UNBINDING_QUEUE_PAYLOAD = {0}, REGULAR_QUEUE_PAYLOAD = {1};
+	// regular payload followed by the latest version of the frame format supported
+	public static final byte[] HELLO_PAYLOAD = {REGULAR_QUEUE_PAYLOAD[0], (byte) FrameCodec.VERSION};
+	// maximum size of a frame, so an urgent frame waits for at most one frame of a large message
+	private static final int FRAME_SIZE = 64 * 1024;
+	// the number of reads and of written frames of a queue in a single run of its tasks, so the queues are served in turn
+	private static final int READS_PER_RUN = 64, FRAMES_PER_RUN = 16;
 	// the channel to layout
 	private Channel channel;
 	// the event executor pump
@@ -24,101 +51,202 @@ public class CMessageQueue extends MessageQueue {
 	private QueueBroker broker;
 	// the stored listener
 	private Listener listener;
-	// the automatic reader thread
-	private Thread worker_reader;
-	// the automatic sender thread
-	private WorkerWriter worker_writer=new WorkerWriter();
+	// the automatic reader task
+	private WorkerReader worker_reader;
+	// the automatic sender task
+	private WorkerWriter worker_writer;
+	// set once the listener is set, the worker_reader reading from then on
+	private volatile boolean reading = false;
+	// the version of the frame format used to send
+	private int version = FrameCodec.LEGACY_VERSION;
+	// decoder of the received headers, used by the worker_reader
+	private FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(FrameCodec.LEGACY_VERSION);
+	// the received frames of the current multi-frame message of each lane, used by the worker_reader
+	private final List<List<PooledBuffer>> frames = Arrays.asList(null, null);
+	// the maximum number of messages in a batch delivered to a BatchListener
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	// the messages received for a BatchListener and not delivered yet, guarded by itself
+	private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+	// the batch being delivered, used by the executor
+	private final ArrayList<byte[]> batch = new ArrayList<>();
 	
+	/*
+	 * Call the other constructor with the default IOWorkers
+	 */
+	public CMessageQueue(Channel channel, QueueBroker broker, Executor executor) {
+		this(channel, broker, executor, IOWorkers.DEFAULT);
+	}
+
 	/*
 	 * Set the channel field with the given channel
 	 * Set the executor field with the given executor
 	 * Set the broker field with the given broker
-	 * Start the worker_writer  thread field 
+	 * Create the worker_reader and worker_writer tasks run by the given workers
+	 * Set the ready listener of the channel, signalling the worker_writer, and the worker_reader once reading
 	 */
-	public CMessageQueue(Channel channel, QueueBroker broker, Executor executor) {
+	/**
+	 * @param workers : the workers running the reads and writes of this queue
+	 */
+	CMessageQueue(Channel channel, QueueBroker broker, Executor executor, IOWorkers workers) {
 		this.channel = channel;
 		this.executor = executor;
 		this.broker = broker;
-		worker_writer.start();
+		this.worker_reader = new WorkerReader(workers);
+		this.worker_writer = new WorkerWriter(workers);
+		channel.setReadyListener(() -> {
+			if(reading) worker_reader.signal();
+			worker_writer.signal();
+		});
 	}
 
 	/*
 	 * Set the listener field with the given listener
-	 * if the worker_reader field is not initialised :
-	 * - set it with a new Thread and in its run() method :
-	 * - - while the connection is not closed :
-	 * - - - In a synchronized block on this object :
-	 * - - - | create a new initialized byte array variable of the length of the encoding of an integer in bytes
-	 * - - - | set a new counter to 0
-	 * - - - | while the counter is inferior to the length of the array
-	 * - - - | - increment the counter by the returned value of the read() method of the channel field.
-	 * - - - | - this read() call should write on the newly created array, use the counter as offset and read the length of the array minus the counter bytes
-	 * - - - | - if a DisconnectedException is thrown during the read() call, catch it, close the connection and break the while loop
-	 * - - - | Create a new integer variable 'length' which is the integer interpretation of the byte array
-	 * - - - | create a new initialized byte array the size of 'length" variable
-	 * - - - | set a new counter to 0
-	 * - - - | while the counter is inferior to the 'length' variable
-	 * - - - | - increment the new counter by the returned value of the read() method of the channel field.
-	 * - - - | - this read() call should write on the newly created array, use the new counter as offset and read the length of the new array minus the new counter bytes
-	 * - - - | - if a DisconnectedException is thrown during the read() call, catch it, close the connection and break the while loop
-	 * - - - | if the length of the new array is superior to 0 :
-	 * - - - | - create a new Runnable calling the received() method of the listener field in its run() method
-	 * - - - | - post this Runnable to the event executor pump in field
-	 * - start the thread
+	 * If reading is not started, set the reading flag and signal the worker_reader
 	 */
 	@Override
 	public synchronized void setListener(Listener l) {
-		this.listener = l;		
-		if(worker_reader==null) {
-			worker_reader = new Thread() {
+		this.listener = l;
+		if(!reading) {
+			reading = true;
+			worker_reader.signal();
+		}
+	}
+
+	/*
+	 * If the length of the message is superior to 0 :
+	 * - if the listener is a BatchListener, add the message to the received messages,
+	 *   posting a Runnable calling flushBatch() if there were none
+	 * - else create a new Runnable calling the received() method of the listener field in its run() method
+	 *   and post it to the event executor pump in field
+	 */
+	/**
+	 * Hands a received message to the executor, used by the worker_reader.
+	 * @param message : the received message
+	 */
+	private void deliver(byte[] message) {
+		if(message.length>0 && listener instanceof BatchListener) {
+			synchronized(received) {
+				received.add(message);
+				if(received.size()==1)
+					executor.post(batchFlusher);
+			}
+		} else if(message.length>0) {
+			Runnable r = new Runnable() {
 				@Override
 				public void run() {
-					while(!closed()) {
-						synchronized(this){
-							// retrieving the message length
-							byte[] messageLength = new byte[Integer.BYTES];
-							int lengthIndex = 0;
-							while(lengthIndex<messageLength.length) {
-								try {
-									lengthIndex += channel.read(messageLength, lengthIndex, messageLength.length-lengthIndex);
-								} catch (DisconnectedException e) {
-									close();
-									break;
-								}
-							}
-							// receiving the message
-							int length = byteArrayToInt(messageLength);
-							byte[] message = new byte[length];
-							int messageIndex = 0;
-							while(messageIndex<length) {
-								try {
-									messageIndex += channel.read(message, messageIndex, length-messageIndex);
-								} catch (DisconnectedException e) {
-									close();
-									break;
-								}
-							}
-							if(message.length>0) {
-								Runnable r = new Runnable() {
-									@Override
-									public void run() {
-										listener.received(message);
-									}
-								};
-								executor.post(r);
-							}
-						}
-					}
+					listener.received(message);
 				}
 			};
-			worker_reader.start();
+			executor.post(r);
 		}
 	}
 	
+	/*
+	 * If the buffer is empty, release it
+	 * Else create a new Runnable which, in its run() method, calls the received() method of the listener field
+	 * with the buffer if it is a BufferListener and not a BatchListener, else with a copy of the buffer,
+	 * and releases the buffer, then post it to the event executor pump in field
+	 */
+	/**
+	 * Hands a received message in a pooled buffer to the executor, used by the worker_reader.
+	 * @param message : the received message, released once delivered
+	 */
+	private void deliver(PooledBuffer message) {
+		if(message.length()==0) {
+			message.release();
+			return;
+		}
+		Runnable r = new Runnable() {
+			@Override
+			public void run() {
+				Listener l = listener;
+				try {
+					if(l instanceof BufferListener && !(l instanceof BatchListener))
+						((BufferListener) l).received(message);
+					else
+						l.received(Arrays.copyOf(message.array(), message.length()));
+				} finally {
+					message.release();
+				}
+			}
+		};
+		executor.post(r);
+	}
+
+	/**
+	 * @return True if the listener takes the messages in pooled buffers
+	 */
+	private boolean pooledDelivery() {
+		Listener l = listener;
+		return l instanceof BufferListener && !(l instanceof BatchListener);
+	}
+
+	/**
+	 * @param frames : the frames of a message, released by this method
+	 * @return The concatenation of the frames
+	 */
+	private byte[] concatFrames(List<PooledBuffer> frames) {
+		int length = 0;
+		for(PooledBuffer frame : frames) length += frame.length();
+		byte[] message = new byte[length];
+		int index = 0;
+		for(PooledBuffer frame : frames) {
+			System.arraycopy(frame.array(), 0, message, index, frame.length());
+			index += frame.length();
+			frame.release();
+		}
+		return message;
+	}
+
+	/*
+	 * In a synchronized block on the received messages, move at most maxBatchSize of them to the batch,
+	 * and post this Runnable again if some are left
+	 * If the listener is still a BatchListener, call its received() method with the batch,
+	 * else call its received() method with each message
+	 * Clear the batch
+	 */
+	/**
+	 * Delivers the messages received for a BatchListener, run by the executor.
+	 */
+	private final Runnable batchFlusher = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(received) {
+				while(batch.size()<maxBatchSize && !received.isEmpty())
+					batch.add(received.poll());
+				if(!received.isEmpty())
+					executor.post(this);
+			}
+			if(batch.isEmpty())
+				return;
+			try {
+				if(listener instanceof BatchListener) {
+					((BatchListener) listener).received(batch);
+				} else {
+					for(byte[] message : batch)
+						listener.received(message);
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	};
+
+	@Override
+	public void setMaxBatchSize(int size) {
+		if(size<1) throw new IllegalArgumentException(this.toString()+" setMaxBatchSize : Illegal size");
+		maxBatchSize = size;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
 
 	/*
 	 * If the field channel is still connected, disconnect it
 	 * If the listener field is initialized :
+	 * - post a Runnable delivering all the received messages left for a BatchListener
 	 * - create a new Runnable calling the closed() method of the listener field in its run() method
 	 * - post this Runnable to the event executor pump in field
 	 * kill the worker_writer field
@@ -127,6 +255,17 @@ public class CMessageQueue extends MessageQueue {
 	public synchronized void close() {
 		if(!channel.disconnected()) channel.disconnect();
 		if(listener!=null) {
+			executor.post(new Runnable() {
+				@Override
+				public void run() {
+					while(true) {
+						synchronized(received) {
+							if(received.isEmpty()) return;
+						}
+						batchFlusher.run();
+					}
+				}
+			});
 			Runnable r = new Runnable() {
 				@Override
 				public void run() {
@@ -147,14 +286,88 @@ public class CMessageQueue extends MessageQueue {
 	}
 
 	/*
-	 * Call the send() method of the worker_writer field with a copy of the given array
+	 * Throw a IllegalArgumentException if the priority is not valid
+	 * Return false if the reserve() method of the worker_writer field refuses the message
+	 * If the message fits in a single frame :
+	 * - allocate a pooled buffer and encode the header then copy the given array directly in it
+	 * - call the send() method of the worker_writer field with a new Outgoing for this frame
+	 * Else call the send() method of the worker_writer field with a new Outgoing for a pooled copy of the message
 	 * Return true
 	 */
 	@Override
-	public synchronized boolean send(byte[] bytes) {
-		worker_writer.send(Arrays.copyOf(bytes, bytes.length));
+	public synchronized boolean send(byte[] bytes, int priority) {
+		if(priority!=PRIORITY_NORMAL && priority!=PRIORITY_URGENT)
+			throw new IllegalArgumentException(this.toString()+" send : Illegal priority");
+		if(!worker_writer.reserve(bytes.length))
+			return false;
+		if(bytes.length<=FRAME_SIZE) {
+			int flags = laneFlags(version, priority);
+			PooledBuffer frame = BufferPool.DEFAULT.allocate(FrameCodec.headerSize(version, bytes.length, flags)+bytes.length);
+			int headerSize = FrameCodec.encodeHeader(version, bytes.length, flags, frame.array(), 0);
+			System.arraycopy(bytes, 0, frame.array(), headerSize, bytes.length);
+			Outgoing outgoing = new Outgoing(frame);
+			outgoing.length = bytes.length;
+			worker_writer.send(outgoing, priority);
+		} else {
+			worker_writer.send(new Outgoing(BufferPool.DEFAULT.copyOf(bytes, 0, bytes.length), version), priority);
+		}
 		return true;
 	}
+
+	@Override
+	public void setWatermarks(int low, int high) {
+		if(low<0 || low>high) throw new IllegalArgumentException(this.toString()+" setWatermarks : Illegal watermarks");
+		worker_writer.setWatermarks(low, high);
+	}
+
+	@Override
+	public int getLowWatermark() {
+		return worker_writer.getLowWatermark();
+	}
+
+	@Override
+	public int getHighWatermark() {
+		return worker_writer.getHighWatermark();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return worker_writer.isWritable();
+	}
+
+	/**
+	 * @param version : the version of the frame format
+	 * @param lane : the lane of a frame
+	 * @return The flags of the frames of this lane
+	 */
+	private static int laneFlags(int version, int lane) {
+		// the legacy format cannot flag the lane, it never interleaves them
+		return lane==PRIORITY_URGENT && version!=FrameCodec.LEGACY_VERSION ? FrameCodec.PRIORITY : 0;
+	}
+
+	/*
+	 * In a synchronized block on this object, set the version field with the given version
+	 * Set the version of the decoder with the given version
+	 */
+	/**
+	 * Uses the given version of the frame format for the following frames, in both directions.
+	 * Called by the broker once the hello payloads are exchanged, before the listener is set.
+	 * @param version : the negotiated version
+	 */
+	void setFrameVersion(int version) {
+		synchronized(this) {
+			this.version = version;
+		}
+		decoder.setVersion(version);
+	}
+
+	/**
+	 * @param payload : the payload received at connection
+	 * @return The latest version of the frame format supported by the peer
+	 */
+	static int peerVersion(byte[] payload) {
+		return payload.length>1 ? payload[1] : FrameCodec.LEGACY_VERSION;
+	}
 	
 	/*
 	 * Return the returned value of the getRemoteName() method of the channel field
@@ -173,6 +386,7 @@ public class CMessageQueue extends MessageQueue {
 	}
 	
 	/**
+	 * Reads a payload sent in the legacy frame format.
 	 * This is a thread-safe blocking method
 	 * @return The payload read
 	 */
@@ -211,104 +425,396 @@ public class CMessageQueue extends MessageQueue {
 	}
 
 	/**
-	 * Working thread used to automatically send messages<br>
-	 * This is thread-safe and FIFO
+	 * A message waiting in a lane of the worker_writer, either already encoded as
+	 * a single frame or cut into frames as it is sent.
+	 */
+	private static class Outgoing {
+		// the encoded frame, or the message to cut
+		PooledBuffer bytes;
+		// true if the bytes are an encoded frame
+		boolean encoded;
+		// the length of the message, when encoded as a frame
+		int length;
+		// the version of the frame format when the message was sent, to cut it
+		int version;
+		// the number of bytes of the message already sent
+		int sent;
+
+		Outgoing(PooledBuffer frame) {
+			this.bytes = frame;
+			this.encoded = true;
+		}
+
+		Outgoing(PooledBuffer message, int version) {
+			this.bytes = message;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Task reading the frames of the channel as they arrive, never blocking, run by the IOWorkers.
+	 * Its fields are only used by the worker running it.
 	 */
-	public class WorkerWriter extends Thread {
-		// the FIFO queue of messages to send
-		private List<byte[]> queue = new ArrayList<>();
+	private class WorkerReader extends IOWorkers.Task {
+		// the bytes of the header being read, never reading past it
+		private byte[] header = new byte[Integer.BYTES];
+		// the number of bytes of the header needed by the decoder and the number already read
+		private int headerSize = -1, headerIndex;
+		// the body of the frame being read, null while reading a header
+		private byte[] body;
+		// the pooled buffer of the body if the frame is part of a multi-frame message
+		private PooledBuffer bodyBuffer;
+		// the number of bytes of the body and the number already read, the pooled array being larger
+		private int bodyLength, bodyIndex;
+		// the lane of the frame and whether more frames of its message follow
+		private int lane;
+		private boolean more;
+
+		WorkerReader(IOWorkers workers) {
+			super(workers);
+		}
+
+		/*
+		 * Return if not reading yet
+		 * At most READS_PER_RUN times :
+		 * - if reading a header, start it if needed with the number of bytes the decoder needs,
+		 *   read them and once all read feed the decoder, calling frameStarted() if the header is complete
+		 * - else read the body, calling frameRead() once it is complete
+		 * - stop if the channel has no bytes
+		 * If a DisconnectedException is thrown or the header is malformed, release the frames being assembled
+		 * and close the connection
+		 */
+		@Override
+		boolean work() {
+			if(!reading)
+				return false;
+			try {
+				for(int i=0; i<READS_PER_RUN; i++) {
+					if(body==null) {
+						if(headerSize<0) {
+							decoder.reset();
+							headerSize = decoder.remaining();
+							headerIndex = 0;
+						}
+						int n = channel.tryRead(header, headerIndex, headerSize-headerIndex);
+						if(n==0)
+							return false;
+						headerIndex += n;
+						if(headerIndex<headerSize)
+							continue;
+						for(int k=0; k<headerSize; k++)
+							decoder.feed(header[k]);
+						headerIndex = 0;
+						headerSize = decoder.remaining();
+						if(decoder.complete())
+							frameStarted();
+					} else {
+						int n = channel.tryRead(body, bodyIndex, bodyLength-bodyIndex);
+						if(n==0)
+							return false;
+						bodyIndex += n;
+						if(bodyIndex==bodyLength)
+							frameRead();
+					}
+				}
+				return true;
+			} catch (DisconnectedException | IllegalStateException e) {
+				for(int lane=0; lane<frames.size(); lane++) {
+					if(frames.get(lane)!=null) {
+						for(PooledBuffer frame : frames.get(lane))
+							frame.release();
+						frames.set(lane, null);
+					}
+				}
+				body = null;
+				bodyBuffer = null;
+				close();
+				return false;
+			}
+		}
+
+		/*
+		 * Get the lane of the frame from its PRIORITY flag
+		 * If it is the last frame, no message is being assembled in this lane and the listener does not take
+		 * pooled buffers, read it in a new byte array
+		 * Else read it in a pooled buffer added to the frames list of the lane
+		 * If the frame is empty, call frameRead() at once
+		 */
+		private void frameStarted() {
+			int length = decoder.size();
+			more = (decoder.flags() & FrameCodec.MORE)!=0;
+			lane = (decoder.flags() & FrameCodec.PRIORITY)!=0 ? PRIORITY_URGENT : PRIORITY_NORMAL;
+			if(frames.get(lane)==null && !more && !pooledDelivery()) {
+				bodyBuffer = null;
+				body = new byte[length];
+			} else {
+				if(frames.get(lane)==null)
+					frames.set(lane, new ArrayList<>());
+				bodyBuffer = BufferPool.DEFAULT.allocate(length);
+				frames.get(lane).add(bodyBuffer);
+				body = bodyBuffer.array();
+			}
+			bodyLength = length;
+			bodyIndex = 0;
+			if(length==0)
+				frameRead();
+		}
+
+		/*
+		 * Reset the body, the next header being read
+		 * If the frame is a whole message in a byte array deliver it, else if it is the last frame of its lane
+		 * deliver the concatenation of the frames list of the lane, in a pooled buffer if the listener takes them
+		 */
+		private void frameRead() {
+			byte[] message = null;
+			PooledBuffer pooled = null;
+			if(bodyBuffer==null) {
+				message = body;
+			} else if(!more) {
+				if(pooledDelivery())
+					pooled = BufferPool.DEFAULT.concat(frames.get(lane));
+				else
+					message = concatFrames(frames.get(lane));
+				frames.set(lane, null);
+			}
+			body = null;
+			bodyBuffer = null;
+			headerSize = -1;
+			if(message!=null)
+				deliver(message);
+			if(pooled!=null)
+				deliver(pooled);
+		}
+	}
+
+	/**
+	 * Task sending the messages, one frame at a time and never blocking, run by the IOWorkers<br>
+	 * This is thread-safe and FIFO per priority
+	 */
+	public class WorkerWriter extends IOWorkers.Task {
+		// the FIFO queues of messages to send, indexed by priority
+		private final List<ArrayDeque<Outgoing>> lanes = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+		// the lane of a partially sent message, when lanes cannot be interleaved (-1 if none)
+		private int current = -1;
 		// the alive flag
 		private boolean alive = true;	
+		// the number of bytes of the messages queued and not written yet
+		private long queuedBytes = 0;
+		// the frame being written, null if none, and the number of its bytes already written
+		private PooledBuffer frame;
+		private int frameIndex;
+		// the number of bytes of the message in the frame being written
+		private int frameLength;
+		// the watermarks bounding queuedBytes
+		private int lowWatermark = DEFAULT_LOW_WATERMARK, highWatermark = DEFAULT_HIGH_WATERMARK;
+		// true once a message was refused, until queuedBytes drops to the low watermark
+		private boolean refused = false;
 		
+		WorkerWriter(IOWorkers workers) {
+			super(workers);
+		}
+
+		/*
+		 * At most FRAMES_PER_RUN times :
+		 * - in a synchronized block on this object, release the frame being written and stop if killed,
+		 *   else get the next frame with nextFrame() if none is being written, stopping if there is none
+		 * - write the rest of the frame on the channel, stopping if it has no room,
+		 *   and closing the connection if it is disconnected
+		 * - release the frame and call the written() method with the length of the message in it
+		 */
 		@Override
-		public void run() {
-			while(alive) {
-				if(queue.size()>0) {
-					byte[] request = queue.get(0);
-					byte[] message = concatArray(intToByteArray(request.length), 0, Integer.BYTES, request, 0, request.length);
-					int byteSent = 0;
-					while(byteSent<message.length) {
-						try {
-							byteSent += channel.write(message, byteSent, message.length-byteSent);
-						} catch (DisconnectedException e) {
-							close();
-							break;
-						}
+		boolean work() {
+			for(int i=0; i<FRAMES_PER_RUN; i++) {
+				PooledBuffer frame;
+				int length;
+				synchronized(this) {
+					if(!alive) {
+						releaseFrame();
+						return false;
 					}
-					if(byteSent==message.length)
-						queue.remove(request);
-						
-				}else {
+					if(this.frame==null) {
+						this.frame = nextFrame();
+						this.frameIndex = 0;
+						if(this.frame==null)
+							return false;
+					}
+					frame = this.frame;
+					length = frameLength;
+				}
+				try {
+					while(frameIndex<frame.length()) {
+						int n = channel.tryWrite(frame.array(), frameIndex, frame.length()-frameIndex);
+						if(n==0)
+							return false;
+						frameIndex += n;
+					}
+				} catch (DisconnectedException e) {
 					synchronized(this) {
-						try {
-							wait();
-						} catch (InterruptedException e) {
-							// nothing to do here
-						}
+						releaseFrame();
 					}
+					close();
+					return false;
+				}
+				synchronized(this) {
+					releaseFrame();
 				}
+				written(length);
 			}
+			return true;
 		}
-		
+
 		/**
-		 * Kills this thread
+		 * Releases the frame being written, if any. Must be called in a synchronized block on this object.
 		 */
-		public void kill() {
-			alive = false;
+		private void releaseFrame() {
+			if(frame!=null) {
+				frame.release();
+				frame = null;
+			}
+		}
+
+		/*
+		 * Return false and set the refused flag if bytes are queued and the message would bring them
+		 * above the high watermark
+		 * Else add the length to queuedBytes and return true
+		 */
+		/**
+		 * Counts a message about to be sent against the high watermark.
+		 * @param length : the length of the message
+		 * @return False if the message is refused
+		 */
+		synchronized boolean reserve(int length) {
+			if(queuedBytes>0 && queuedBytes+length>highWatermark) {
+				refused = true;
+				return false;
+			}
+			queuedBytes += length;
+			return true;
+		}
+
+		/*
+		 * Subtract the length from queuedBytes
+		 * If a message was refused and queuedBytes dropped to the low watermark, reset the refused flag
+		 * and post a Runnable calling the writable() method of the listener
+		 */
+		/**
+		 * Called once a frame is written.
+		 * @param length : the length of the message in the frame
+		 */
+		private void written(int length) {
 			synchronized(this) {
-				notify();
+				queuedBytes = Math.max(0, queuedBytes-length);
+				if(!refused || queuedBytes>lowWatermark)
+					return;
+				refused = false;
+			}
+			Listener l = listener;
+			if(l!=null) {
+				executor.post(new Runnable() {
+					@Override
+					public void run() {
+						l.writable();
+					}
+				});
 			}
 		}
-		
+
+		synchronized void setWatermarks(int low, int high) {
+			lowWatermark = low;
+			highWatermark = high;
+		}
+
+		synchronized int getLowWatermark() {
+			return lowWatermark;
+		}
+
+		synchronized int getHighWatermark() {
+			return highWatermark;
+		}
+
+		synchronized boolean isWritable() {
+			return !refused;
+		}
+
+		/*
+		 * Pick the first non-empty lane by decreasing priority, only considering
+		 * the current lane if a message of it is partially sent
+		 * Return null if there is none
+		 * If its first Outgoing is an encoded frame, remove it and return it
+		 * Else cut its next frame, flagged MORE if more frames follow and with the flags of the lane,
+		 * encode it in a new pooled buffer and return it
+		 * If it is the last frame, remove the Outgoing, release its message and reset current,
+		 * else set current to the lane if the frame format is the legacy one
+		 */
 		/**
-		 * Sends a message.
-		 * This is a tread-safe FIFO method
-		 * @param message : the message to send
+		 * Must be called in a synchronized block on this object.
+		 * @return The next frame to write, or null if there is none
 		 */
-		public synchronized void send(byte[] message) {
-			queue.add(message);
-			notify();
+		private PooledBuffer nextFrame() {
+			int lane = -1;
+			for(int p=lanes.size()-1; p>=0; p--) {
+				if((current<0 || p==current) && !lanes.get(p).isEmpty()) {
+					lane = p;
+					break;
+				}
+			}
+			if(lane<0)
+				return null;
+			Outgoing outgoing = lanes.get(lane).peek();
+			if(outgoing.encoded) {
+				lanes.get(lane).poll();
+				frameLength = outgoing.length;
+				return outgoing.bytes;
+			}
+			int length = Math.min(FRAME_SIZE, outgoing.bytes.length()-outgoing.sent);
+			boolean last = outgoing.sent+length==outgoing.bytes.length();
+			int flags = (last ? 0 : FrameCodec.MORE) | laneFlags(outgoing.version, lane);
+			PooledBuffer frame = BufferPool.DEFAULT.allocate(FrameCodec.headerSize(outgoing.version, length, flags)+length);
+			int headerSize = FrameCodec.encodeHeader(outgoing.version, length, flags, frame.array(), 0);
+			System.arraycopy(outgoing.bytes.array(), outgoing.sent, frame.array(), headerSize, length);
+			outgoing.sent += length;
+			frameLength = length;
+			if(last) {
+				lanes.get(lane).poll();
+				outgoing.bytes.release();
+				current = -1;
+			} else if(outgoing.version==FrameCodec.LEGACY_VERSION) {
+				current = lane;
+			}
+			return frame;
 		}
 		
 		/**
-		 * <pre>Exemple : concatArray([0,1,2,3,4], 1, 3, [5,6,7,8,9], 0, 4) <br>	returns [1,2,3,5,6,7,8]</pre>
-		 * @param a : the first array
-		 * @param offset_a : the starting index of the first array
-		 * @param length_a : the number of bytes to copy from the first array
-		 * @param b : the second array
-		 * @param offset_b : the starting index of the second array
-		 * @param length_b : the number of bytes to copy from the second array
-		 * @return The concatenated 2 arrays
+		 * Kills this task, releasing the messages not sent, and the frame being written once its run is done
 		 */
-		private byte[] concatArray(byte[] a, int offset_a, int length_a, byte[] b, int offset_b, int length_b) {
-			// exception si les arguments ne sont pas valide
-			if(a==null || offset_a<0 || length_a<0 || a.length<offset_a+length_a)
-				throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-			if(b==null || offset_b<0 || length_b<0 || b.length<offset_b+length_b)
-				throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-			// concaténation du tableau a et b
-			byte[] result = new byte[length_a+length_b];
-			int index = 0;
-			for(int i=offset_a; i<length_a; i++) {
-				result[index] = a[i];
-				index++;
-			}
-			for(int i=offset_b; i<length_b; i++) {
-				result[index] = b[i];
-				index++;
+		public void kill() {
+			synchronized(this) {
+				alive = false;
+				queuedBytes = 0;
+				for(ArrayDeque<Outgoing> lane : lanes) {
+					for(Outgoing outgoing : lane)
+						outgoing.bytes.release();
+					lane.clear();
+				}
 			}
-			return result;
+			signal();
 		}
 		
 		/**
-		 * Converts an integer to a byte array
-		 * @param i : the integer to convert
-		 * @return : The byte array interpretation
+		 * Sends a message, released at once if this task is killed.
+		 * This is a tread-safe method, FIFO per priority
+		 * @param outgoing : the message to send
+		 * @param priority : the lane of the message
 		 */
-		private byte[] intToByteArray(int i) {
-			ByteBuffer buffer = ByteBuffer.wrap(new byte[Integer.BYTES]);
-			buffer.putInt(i);
-			return buffer.array();
+		void send(Outgoing outgoing, int priority) {
+			synchronized(this) {
+				if(!alive) {
+					outgoing.bytes.release();
+					return;
+				}
+				lanes.get(priority).add(outgoing);
+			}
+			signal();
 		}
 
 	}
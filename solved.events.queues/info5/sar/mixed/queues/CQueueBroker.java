@@ -4,55 +4,89 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import info5.sar.channels.Broker;
 import info5.sar.channels.Channel;
 import info5.sar.events.queues.mixed.MessageQueue;
 import info5.sar.events.queues.mixed.QueueBroker;
 import info5.sar.utils.Executor;
+import info5.sar.utils.FrameCodec;
 
 
 public class CQueueBroker extends QueueBroker {
-	
+
+	// the threads accepting the connections of the binded ports, one per port, reused once unbinded
+	private static final ExecutorService acceptors = Executors.newCachedThreadPool(r -> {
+		Thread acceptor = new Thread(r, "QueueBroker-acceptor");
+		acceptor.setDaemon(true);
+		return acceptor;
+	});
+	// the threads establishing the connections, one per connection being established, stopped once idle,
+	// a connect() blocking until the port is accepted on, so a connection never waits for the others
+	private static final ExecutorService connectors = connectors();
+
+	// the workers running the reads and writes of the queues
+	private IOWorkers workers;
 	// map of the binded ports and their objects to synchronize on
 	private Map<Integer, Object> binds = new HashMap<>();
 	// list of unbinding ports
 	private List<Integer> unbinds = new ArrayList<>();
 	
 	public CQueueBroker(Executor executor, Broker broker) {
+		this(executor, broker, IOWorkers.DEFAULT);
+	}
+
+	/**
+	 * @param executor : the event pump
+	 * @param broker : the broker of the channels
+	 * @param workers : the workers running the reads and writes of the queues
+	 */
+	public CQueueBroker(Executor executor, Broker broker, IOWorkers workers) {
 		super(executor, broker);
+		this.workers = workers;
 	}
 
 	/*
 	 * If the binds field contains the port key, return false.
 	 * Add the given port as key to the binds field with a new object as value.
-	 * Create a new worker Thread doing in the run() method :
+	 * Submit to the acceptors a new Runnable doing in the run() method :
 	 * - while the binds field contains the port as key or the unbinds list doesn't contain the port :
 	 * - - Get the channel from the accept() of the broker on the given port.
 	 * - - Create a new CMessageQueue from the channel.
-	 * - - If the readPayload() of the MessageQueue equals the unbinding queue payload constant of CMessageQueue :
+	 * - - If the readPayload() of the MessageQueue is the unbinding queue payload of CMessageQueue :
 	 * - - - close the MessageQueue and add the port to the unbinds field.
 	 * - - Else :
+	 * - - - If the peer sent its frame version, send the hello payload and agree on the version.
 	 * - - - Create a new Runnable which calls the accepted() method of the listener with the new MessageQueue
 	 * - - - Post this Runnable to the event executor pump
 	 * - Remove the port from the unbinds field.
-	 * Start the thread.
 	 * Return true.
 	 */
 	@Override
 	public synchronized boolean bind(int port, AcceptListener listener) {
 		if(binds.containsKey(port)) return false;
 		binds.put(port, new Object());
-		Thread worker = new Thread() {			
+		acceptors.execute(new Runnable() {
 			@Override
 			public void run() {
 				while(binds.containsKey(port) || !unbinds.contains(port)) {
 					Channel channel = getBroker().accept(port);
-					CMessageQueue messageQueue = new CMessageQueue(channel, self(), getEventPump());
-					if(messageQueue.readPayload().equals(CMessageQueue.UNBINDING_QUEUE_PAYLOAD)) {
+					CMessageQueue messageQueue = new CMessageQueue(channel, self(), getEventPump(), workers);
+					byte[] payload = messageQueue.readPayload();
+					if(payload.length>0 && payload[0]==CMessageQueue.UNBINDING_QUEUE_PAYLOAD[0]) {
 						messageQueue.close();
 						unbinds.add(port);
 					}else {
+						if(payload.length>1) {
+							// the peer waits for our hello before using its frame version
+							messageQueue.send(CMessageQueue.HELLO_PAYLOAD);
+							messageQueue.setFrameVersion(FrameCodec.negotiate(CMessageQueue.peerVersion(payload)));
+						}
 						Runnable r = new Runnable() {
 							@Override
 							public void run() {
@@ -64,8 +98,7 @@ public class CQueueBroker extends QueueBroker {
 				}
 				unbinds.remove(port);
 			}
-		};
-		worker.start();
+		});
 		return true;
 	}
 
@@ -97,22 +130,22 @@ public class CQueueBroker extends QueueBroker {
 	}
 
 	/*
-	 * Create a new worker Thread doing in the run() method :
+	 * Submit to the connectors a new Runnable doing in the run() method :
 	 * - retrieve the returned channel of connect() on the broker
 	 * - if the channel is null :
 	 * - - create a new Runnable which calls the refused() method from the listener in its run() method
 	 * - - post the new Runnable to the event executor pump
 	 * - else :
 	 * - - create a new CMessageQueue from this channel
-	 * - - send the regular queue payload from this messageQueue
+	 * - - send the hello payload from this messageQueue
+	 * - - read the hello payload of the peer and agree on the frame version
 	 * - - create a new Runnable which calls the connected() method of the listener from its run() method.
 	 * - - post this Runnable to the event executor pump
-	 * Start the thread
 	 * Return true
 	 */
 	@Override
 	public synchronized boolean connect(String name, int port, ConnectListener listener) {
-		Thread worker = new Thread() {
+		connectors.execute(new Runnable() {
 			@Override
 			public void run() {
 				Channel channel = getBroker().connect(name, port);
@@ -125,8 +158,9 @@ public class CQueueBroker extends QueueBroker {
 					};
 					getEventPump().post(r);
 				}else {
-					CMessageQueue messageQueue = new CMessageQueue(channel, self(), getEventPump());
-					messageQueue.send(CMessageQueue.REGULAR_QUEUE_PAYLOAD);
+					CMessageQueue messageQueue = new CMessageQueue(channel, self(), getEventPump(), workers);
+					messageQueue.send(CMessageQueue.HELLO_PAYLOAD);
+					messageQueue.setFrameVersion(FrameCodec.negotiate(CMessageQueue.peerVersion(messageQueue.readPayload())));
 					Runnable r = new Runnable() {
 						@Override
 						public void run() {
@@ -136,11 +170,21 @@ public class CQueueBroker extends QueueBroker {
 					getEventPump().post(r);
 				}
 			}
-		};
-		worker.start();
+		});
 		return true;
 	}
 	
+	/**
+	 * @return A pool creating a thread per connection being established, stopping once idle for a while
+	 */
+	private static ExecutorService connectors() {
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			Thread connector = new Thread(r, "QueueBroker-connector");
+			connector.setDaemon(true);
+			return connector;
+		});
+	}
+
 	/**
 	 * @return yourself
 	 */
@@ -0,0 +1,109 @@
+package info5.sar.mixed.queues;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of threads reading and writing the channels of the mixed {@link CMessageQueue CMessageQueues}.<br>
+ * <br>
+ * Each queue has a reader and a writer {@link Task}, run by the workers when signalled, by one
+ * worker at a time so the queue stays FIFO. A task never blocks: it reads or writes until the channel
+ * has no more bytes or room, then gives the worker back until the channel tells it is ready again.
+ * An idle queue thus holds no thread, and a busy one gives the worker back after each run so the
+ * other queues are served in turn. Idle workers stop after a while.
+ */
+public class IOWorkers {
+
+	/**
+	 * The pool shared by the queues of all the brokers, one worker per processor.
+	 */
+	public static final IOWorkers DEFAULT = new IOWorkers(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	// the number of created workers, to name them
+	private static final AtomicInteger workers = new AtomicInteger();
+	// the time an idle worker waits for a task before stopping, in seconds
+	private static final long KEEP_ALIVE = 30;
+
+	private final ExecutorService pool;
+
+	/**
+	 * @param nworkers : the maximum number of workers
+	 * @throws IllegalArgumentException if the number of workers is not strictly positive
+	 */
+	public IOWorkers(int nworkers) {
+		if (nworkers < 1)
+			throw new IllegalArgumentException("IOWorkers : Illegal number of workers");
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(nworkers, nworkers, KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread worker = new Thread(r, "IOWorker-" + workers.incrementAndGet());
+					worker.setDaemon(true);
+					return worker;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		this.pool = pool;
+	}
+
+	/**
+	 * Work of a queue run by the workers when signalled, by one worker at a time.
+	 */
+	abstract static class Task implements Runnable {
+		private static final int IDLE = 0, SCHEDULED = 1, RUNNING = 2, SIGNALLED = 3;
+
+		private final IOWorkers workers;
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+
+		Task(IOWorkers workers) {
+			this.workers = workers;
+		}
+
+		/**
+		 * Does a bounded amount of work, never blocking.
+		 * @return True if work is left, the task being scheduled again after the others
+		 */
+		abstract boolean work();
+
+		/*
+		 * If idle, schedule this task on the workers
+		 * If running, flag it so it runs again once done
+		 * Else do nothing, the scheduled run will see what was signalled
+		 */
+		/**
+		 * Asks for this task to run.
+		 * This is a thread-safe non-blocking method.
+		 */
+		void signal() {
+			while (true) {
+				int s = state.get();
+				if (s == IDLE) {
+					if (state.compareAndSet(IDLE, SCHEDULED)) {
+						workers.pool.execute(this);
+						return;
+					}
+				} else if (s == RUNNING) {
+					if (state.compareAndSet(RUNNING, SIGNALLED))
+						return;
+				} else {
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Set the state to running and call work()
+		 * If work is left or this task was signalled meanwhile, schedule it again,
+		 * else set the state back to idle
+		 */
+		@Override
+		public final void run() {
+			state.set(RUNNING);
+			boolean more = work();
+			if (!more && state.compareAndSet(RUNNING, IDLE))
+				return;
+			state.set(SCHEDULED);
+			workers.pool.execute(this);
+		}
+	}
+}
@@ -5,13 +5,21 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import info5.sar.utils.CircularBuffer;
+import info5.sar.utils.Recycler;
+
 /**
  * Implementation of {@link Broker}
  */
 public class CBroker extends Broker {
 
+	// default number of channels whose buffers are kept for reuse
+	public static final int DEFAULT_CHANNEL_POOL_SIZE = 64;
+
 	// map storing the list of rendez-vous from their port
 	private Map<Integer, List<RDVChannelConnexion>> rdvs = new HashMap<>();
+	// the buffers of the disconnected channels created by this broker, two per channel
+	private final Recycler<CircularBuffer> buffers = new Recycler<>(2 * DEFAULT_CHANNEL_POOL_SIZE);
 
 	/*
 	 * Call the super() constructor with the given name.
@@ -158,6 +166,39 @@ public class CBroker extends Broker {
 		return rdv.getChannel();
 	}
 	
+	/*
+	 * Return half the capacity of the buffer recycler
+	 */
+	/**
+	 * @return The maximum number of channels whose buffers are kept for reuse
+	 */
+	public int getChannelPoolSize() {
+		return buffers.getCapacity() / 2;
+	}
+
+	/*
+	 * Throw a IllegalArgumentException if the size is negative
+	 * Set the capacity of the buffer recycler to twice the size
+	 */
+	/**
+	 * Sets the maximum number of channels whose buffers are kept for reuse, once both ends
+	 * of a channel created by this broker are disconnected.
+	 * @param size : the number of channels, {@link #DEFAULT_CHANNEL_POOL_SIZE} by default, 0 for none
+	 * @throws IllegalArgumentException if the size is negative
+	 */
+	public void setChannelPoolSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException(this.toString() + " setChannelPoolSize : Illegal size");
+		buffers.setCapacity(2 * size);
+	}
+
+	/**
+	 * @return The recycler of the buffers of the channels created by this broker
+	 */
+	Recycler<CircularBuffer> getBufferRecycler() {
+		return buffers;
+	}
+
 	@Override
 	public String toString() {
 		return "[CBroker "+name+"]";
@@ -1,25 +1,59 @@
 package info5.sar.channels;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import info5.sar.utils.CircularBuffer;
+import info5.sar.utils.Recycler;
 
 /**
  * Implementation of {@link Channel}
  */
 public class CChannel extends Channel {
 
+	// capacity of the input and output buffers
+	private static final int BUFFER_CAPACITY = 256;
+	// Buffer of the channels whose buffers were recycled, always empty and full
+	private static final CircularBuffer RELEASED = new CircularBuffer(1);
+	// Taken to lock two buffers whose locks have the same identity hash code
+	private static final ReentrantLock tieLock = new ReentrantLock();
+
 	// Input and output buffers
 	private CircularBuffer in, out;
+	// Locks guarding the in and out buffers, shared with the 'distant' channel like the buffers,
+	// rather than monitors so a blocked thread does not pin the carrier of a virtual thread
+	private ReentrantLock inLock, outLock;
+	// Conditions signalled when the in and out buffers become not empty or not full, or a channel is disconnected
+	private Condition inNotEmpty, inNotFull, outNotEmpty, outNotFull;
+	// Versions of the in and out buffers, changed by each operation, watched by the spinning threads
+	private AtomicLong inVersion, outVersion;
+	// Spin-then-yield phases of the waits in read and write, following the strategy of the broker
+	private WaitStrategy.Waiter readWaiter, writeWaiter;
 	// Disconnection state flag
-	private boolean disconnected = false;
+	private volatile boolean disconnected = false;
 	// The Channel you are communicating with ('distant' channel)
 	private CChannel linkedChannel;
 	// Communication port
 	private int port;
+	// Listener told when this channel may have become readable or writable
+	private volatile ReadyListener readyListener;
+	// The recycler the buffers are taken from and given back to, shared with the 'distant' channel, may be null
+	private Recycler<CircularBuffer> recycler;
+	// The bits of the ends not disconnected yet, shared with the 'distant' channel, and the bit of this end
+	private AtomicInteger connectedEnds;
+	private int end;
 
 	/*
 	 * Call the super() constructor with the given broker.
 	 * Store the given port in the field.
-	 * Initialize the in and out buffers in field with two different CircularBuffer
+	 * If the broker is a CBroker, store its buffer recycler in the field
+	 * Initialize the in and out buffers in field with two different CircularBuffer, reused if possible
+	 * Initialize their locks, conditions and versions
+	 * Initialize the connected ends with the bits of both ends
+	 * Initialize the waiters
 	 */
 	/**
 	 * Creates a non-fully connected Channel
@@ -31,8 +65,21 @@ public class CChannel extends Channel {
 	protected CChannel(Broker broker, int port) {
 		super(broker);
 		this.port = port;
-		this.in = new CircularBuffer(256);
-		this.out = new CircularBuffer(256);
+		if (broker instanceof CBroker)
+			this.recycler = ((CBroker) broker).getBufferRecycler();
+		this.in = newBuffer();
+		this.out = newBuffer();
+		this.inLock = new ReentrantLock();
+		this.outLock = new ReentrantLock();
+		this.inNotEmpty = inLock.newCondition();
+		this.inNotFull = inLock.newCondition();
+		this.outNotEmpty = outLock.newCondition();
+		this.outNotFull = outLock.newCondition();
+		this.inVersion = new AtomicLong();
+		this.outVersion = new AtomicLong();
+		this.connectedEnds = new AtomicInteger(3);
+		this.end = 1;
+		initWaiters();
 	}
 
 	/*
@@ -42,6 +89,9 @@ public class CChannel extends Channel {
 	 * Call the setLinkedChannel() method of the given Channel with this
 	 * Store the in buffer of the given channel in your out field.
 	 * Store the out buffer of the given channel in your in field.
+	 * Do the same with their locks, conditions and versions.
+	 * Share the recycler and the connected ends of the given channel, this end being the second bit
+	 * Initialize the waiters
 	 */
 	/**
 	 * Creates a fully connected Channel.<br>
@@ -58,143 +108,524 @@ public class CChannel extends Channel {
 		channel.setLinkedChannel(this);
 		this.in = channel.getOutBuffer();
 		this.out = channel.getInBuffer();
+		this.inLock = channel.outLock;
+		this.outLock = channel.inLock;
+		this.inNotEmpty = channel.outNotEmpty;
+		this.inNotFull = channel.outNotFull;
+		this.outNotEmpty = channel.inNotEmpty;
+		this.outNotFull = channel.inNotFull;
+		this.inVersion = channel.outVersion;
+		this.outVersion = channel.inVersion;
+		this.recycler = channel.recycler;
+		this.connectedEnds = channel.connectedEnds;
+		this.end = 2;
+		initWaiters();
+	}
+
+	/*
+	 * Take a buffer from the recycler and clear it
+	 * If there is none, create a new one
+	 */
+	/**
+	 * @return An empty buffer, reused if the recycler has one
+	 */
+	private CircularBuffer newBuffer() {
+		CircularBuffer buffer = recycler != null ? recycler.poll() : null;
+		if (buffer == null)
+			return new CircularBuffer(BUFFER_CAPACITY);
+		buffer.clear();
+		return buffer;
+	}
+
+	/*
+	 * If the wait strategy of the broker parks at once, set no waiters
+	 * Else create a waiter for read and one for write
+	 */
+	private void initWaiters() {
+		WaitStrategy strategy = broker.getWaitStrategy();
+		if (!strategy.parksAtOnce()) {
+			this.readWaiter = strategy.newWaiter();
+			this.writeWaiter = strategy.newWaiter();
+		}
 	}
 
 	/*
-	 * Throw a IllegalStateException if this is not linked
 	 * Throw a IllegalArgumentException if either :
 	 * - bytes is null
 	 * - offset or length are negative
 	 * - offset+length is superior to the length of the bytes array
-	 * Throw a DisconnectedException if disconnected
-	 * Set a new counter to 0;
-	 * In a synchronized block on the in buffer object :
-	 * | while the in buffer is empty : 
-	 * | - if the 'distant' channel is disconnected, disconnect and throw a DisconnectedException
-	 * | - wait() on the in buffer object and do nothing if a InterruptedException occurs
-	 * | while he counter is inferior to the length :
-	 * | - set the array value at the index offset+counter with the returned value of pull() of the in buffer.
-	 * | - increment by 1 the counter.
-	 * | - if one of the last two statements throws a IllegalStateException, break the while loop
-	 * | notify all waiting threads on the in buffer object.
-	 * return the counter value
+	 * return the result of read() with a ByteBuffer wrapping the array from offset to offset+length
 	 */
 	@Override
 	public int read(byte[] bytes, int offset, int length) throws DisconnectedException {
+		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(this.toString() + " read : Illegal arguments");
+		return read(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/*
+	 * Throw a IllegalStateException if this is not linked
+	 * Throw a IllegalArgumentException if dst is null
+	 * Throw a DisconnectedException if disconnected
+	 * Holding the lock of the in buffer :
+	 * | call awaitNotEmpty()
+	 * | pull() from the in buffer at most the remaining bytes of dst, with bulk copies
+	 * | call pulled() with whether the in buffer was full
+	 * If a channel was disconnected, disconnect and throw a DisconnectedException
+	 * Tell the 'distant' channel it may write again
+	 * return the number of bytes read
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws DisconnectedException {
 		// checking if we can use the method
 		if (!this.isLinked())
 			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] read : not linked");
-		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+		if (dst == null)
 			throw new IllegalArgumentException(this.toString() + " read : Illegal arguments");
 		if (disconnected())
 			throw new DisconnectedException(this.toString() + " read : Disconnected channel");
 		int readBytes = 0;
-		synchronized (in) {
-			// wait for the first byte
-			while (in.empty()) {
-				if (linkedChannel.disconnected()) {
-					disconnect();
-					throw new DisconnectedException(this.toString() + " read : Linked channel disconnected");
-				}
-				try {
-					in.wait();
-				} catch (InterruptedException e) {
-					// Nothing to do here
-				}
+		boolean lost;
+		inLock.lock();
+		try {
+			lost = awaitNotEmpty();
+			if (!lost) {
+				boolean wasFull = in.full();
+				readBytes = in.pull(dst);
+				pulled(wasFull);
 			}
-			// reading bytes
-			while (readBytes < length) {
+		} finally {
+			inLock.unlock();
+		}
+		if (lost) {
+			String reason = disconnected ? " read : Disconnected channel" : " read : Linked channel disconnected";
+			disconnect();
+			throw new DisconnectedException(this.toString() + reason);
+		}
+		linkedChannel.fireReady();
+		return readBytes;
+	}
+
+	/*
+	 * While the in buffer is empty : 
+	 * - if this channel or the 'distant' channel is disconnected, return true
+	 * - the first time, release the lock while the read waiter spins for a change of the in buffer version
+	 * - then, await the in buffer is not empty
+	 * return false
+	 */
+	/**
+	 * Waits for the in buffer not to be empty.
+	 * Called holding the lock of the in buffer.
+	 * @return True if a channel is disconnected and the in buffer is empty
+	 */
+	private boolean awaitNotEmpty() {
+		boolean spun = readWaiter == null;
+		while (in.empty()) {
+			if (disconnected || linkedChannel.disconnected())
+				return true;
+			if (!spun) {
+				spun = true;
+				long seen = inVersion.get();
+				inLock.unlock();
 				try {
-					bytes[offset + readBytes] = in.pull();
-					readBytes++;
-				} catch(IllegalStateException e) {
-					break;
+					readWaiter.await(inVersion, seen);
+				} finally {
+					inLock.lock();
 				}
-				
+			} else {
+				inNotEmpty.awaitUninterruptibly();
 			}
-			in.notifyAll();
 		}
+		return false;
+	}
+
+	/*
+	 * Check the state and the arguments like read()
+	 * Holding the lock of the in buffer :
+	 * | if the in buffer is empty, stop
+	 * | pull() from the in buffer at most length bytes in the array, with bulk copies
+	 * | call pulled() with whether the in buffer was full
+	 * If nothing was read :
+	 * - if the 'distant' channel is disconnected, disconnect and throw a DisconnectedException
+	 * - else return 0
+	 * Tell the 'distant' channel it may write again
+	 * return the number of bytes read
+	 */
+	@Override
+	public int tryRead(byte[] bytes, int offset, int length) throws DisconnectedException {
+		if (!this.isLinked())
+			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] tryRead : not linked");
+		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(this.toString() + " tryRead : Illegal arguments");
+		if (disconnected())
+			throw new DisconnectedException(this.toString() + " tryRead : Disconnected channel");
+		int readBytes = 0;
+		inLock.lock();
+		try {
+			if (!in.empty()) {
+				boolean wasFull = in.full();
+				readBytes = in.pull(bytes, offset, length);
+				pulled(wasFull);
+			}
+		} finally {
+			inLock.unlock();
+		}
+		if (readBytes == 0) {
+			// the distant channel disconnects after its last write, nothing can come after
+			if (linkedChannel.disconnected() && emptyIn()) {
+				disconnect();
+				throw new DisconnectedException(this.toString() + " tryRead : Linked channel disconnected");
+			}
+			return 0;
+		}
+		linkedChannel.fireReady();
 		return readBytes;
 	}
 
 	/*
-	 * Throw a IllegalStateException if this is not linked
 	 * Throw a IllegalArgumentException if either :
 	 * - bytes is null
 	 * - offset or length are negative
 	 * - offset+length is superior to the length of the bytes array
-	 * Throw a DisconnectedException if disconnected
-	 * Set a new counter to 0;
-	 * In a synchronized block on the out buffer object :
-	 * | - if the 'distant' channel is disconnected and the in buffer is empty, disconnect and throw a DisconnectedException
-	 * | while the out buffer is full : 
-	 * | - if the 'distant' channel is disconnected :
-	 * | - - if the in buffer is empty disconnect and throw a DisconnectedException else return the counter value
-	 * | - else :
-	 * | - wait() on the out buffer object and do nothing if a InterruptedException occurs
-	 * | while the counter is inferior to the length :
-	 * | - push() on the out buffer the value of the array at the index offset+counter
-	 * | - increment by 1 the counter.
-	 * | - if one of the last two statements throws a IllegalStateException, break the while loop
-	 * | notify all waiting threads on the out buffer object.
-	 * return the counter value
+	 * return the result of write() with a ByteBuffer wrapping the array from offset to offset+length
 	 */
 	@Override
 	public int write(byte[] bytes, int offset, int length) throws DisconnectedException {
+		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(this.toString() + " write : Illegal arguments");
+		return write(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/*
+	 * Throw a IllegalStateException if this is not linked
+	 * Throw a IllegalArgumentException if src is null
+	 * Throw a DisconnectedException if disconnected
+	 * If the 'distant' channel is disconnected and the in buffer is empty, disconnect and throw a DisconnectedException
+	 * Holding the lock of the out buffer :
+	 * | call awaitNotFull()
+	 * | push() in the out buffer as many remaining bytes of src as possible, with bulk copies
+	 * | call pushed() with whether the out buffer was empty
+	 * If a channel was disconnected, disconnect and throw a DisconnectedException
+	 * Tell the 'distant' channel it may read
+	 * return the number of bytes written
+	 */
+	@Override
+	public int write(ByteBuffer src) throws DisconnectedException {
 		// checking if we can use the method
 		if (!this.isLinked())
-			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] read : not linked");
-		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] write : not linked");
+		if (src == null)
 			throw new IllegalArgumentException(this.toString() + " write : Illegal arguments");
 		if (disconnected())
 			throw new DisconnectedException(this.toString() + " write : Disconnected channel");
+		if (linkedChannel.disconnected() && emptyIn()) {
+			disconnect();
+			throw new DisconnectedException(this.toString() + " write : Linked channel disconnected");
+		}
 		int writtenBytes = 0;
-		synchronized (out) {
-			if (linkedChannel.disconnected() && in.empty()) {
-				disconnect();
-				throw new DisconnectedException(this.toString() + " read : Linked channel disconnected");
-			}
-			// wait for space
-			while (out.full()) {
-				if (linkedChannel.disconnected()) {
-					disconnect();
-					throw new DisconnectedException(this.toString() + " read : Linked channel disconnected");
-				} else {
-					try {
-						out.wait();
-					} catch (InterruptedException e) {
-						// Nothing to do here
-					}
-				}
+		boolean lost;
+		outLock.lock();
+		try {
+			lost = awaitNotFull();
+			if (!lost) {
+				boolean wasEmpty = out.empty();
+				writtenBytes = out.push(src);
+				pushed(wasEmpty);
 			}
-			// writing bytes
-			while (writtenBytes < length) {
+		} finally {
+			outLock.unlock();
+		}
+		if (lost) {
+			String reason = disconnected ? " write : Disconnected channel" : " write : Linked channel disconnected";
+			disconnect();
+			throw new DisconnectedException(this.toString() + reason);
+		}
+		linkedChannel.fireReady();
+		return writtenBytes;
+	}
+
+	/*
+	 * While the out buffer is full : 
+	 * - if this channel or the 'distant' channel is disconnected, return true
+	 * - the first time, release the lock while the write waiter spins for a change of the out buffer version
+	 * - then, await the out buffer is not full
+	 * return false
+	 */
+	/**
+	 * Waits for the out buffer not to be full.
+	 * Called holding the lock of the out buffer.
+	 * @return True if a channel is disconnected and the out buffer is full
+	 */
+	private boolean awaitNotFull() {
+		boolean spun = writeWaiter == null;
+		while (out.full()) {
+			if (disconnected || linkedChannel.disconnected())
+				return true;
+			if (!spun) {
+				spun = true;
+				long seen = outVersion.get();
+				outLock.unlock();
 				try {
-					out.push(bytes[writtenBytes + offset]);
-					writtenBytes++;
-				} catch(IllegalStateException e) {
-					break;
+					writeWaiter.await(outVersion, seen);
+				} finally {
+					outLock.lock();
 				}
-				
+			} else {
+				outNotFull.awaitUninterruptibly();
 			}
-			out.notifyAll();
 		}
+		return false;
+	}
+
+	/*
+	 * Check the state and the arguments like write()
+	 * If the 'distant' channel is disconnected, disconnect and throw a DisconnectedException
+	 * Holding the lock of the out buffer :
+	 * | push() in the out buffer at most length bytes from the array, with bulk copies
+	 * | if some were pushed, call pushed() with whether the out buffer was empty
+	 * If nothing was written, return 0
+	 * Tell the 'distant' channel it may read
+	 * return the number of bytes written
+	 */
+	@Override
+	public int tryWrite(byte[] bytes, int offset, int length) throws DisconnectedException {
+		if (!this.isLinked())
+			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] tryWrite : not linked");
+		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(this.toString() + " tryWrite : Illegal arguments");
+		if (disconnected())
+			throw new DisconnectedException(this.toString() + " tryWrite : Disconnected channel");
+		if (linkedChannel.disconnected()) {
+			// nobody will read the bytes
+			disconnect();
+			throw new DisconnectedException(this.toString() + " tryWrite : Linked channel disconnected");
+		}
+		int writtenBytes = 0;
+		outLock.lock();
+		try {
+			boolean wasEmpty = out.empty();
+			writtenBytes = out.push(bytes, offset, length);
+			if (writtenBytes > 0)
+				pushed(wasEmpty);
+		} finally {
+			outLock.unlock();
+		}
+		if (writtenBytes == 0)
+			return 0;
+		linkedChannel.fireReady();
 		return writtenBytes;
 	}
 
+	/*
+	 * return true if dst is a CChannel other than this channel and the 'distant' channel,
+	 * whose out buffer is the in buffer of this channel
+	 */
+	@Override
+	public boolean canSplice(Channel dst) {
+		return dst instanceof CChannel && dst != this && dst != linkedChannel;
+	}
+
+	/*
+	 * If this cannot splice to dst, or bytes copied by a previous call are left,
+	 * return the result of the trySplice() of Channel, copying the bytes
+	 * Throw a IllegalStateException if this or dst is not linked
+	 * Throw a IllegalArgumentException if length is negative
+	 * Throw a DisconnectedException if this or dst is disconnected
+	 * If the 'distant' channel of dst is disconnected, disconnect dst and throw a DisconnectedException
+	 * Holding the locks of the in buffer and of the out buffer of dst :
+	 * | pull() from the in buffer to the out buffer of dst at most length bytes, with bulk copies
+	 * | if some were moved, call pulled() and pushed() of dst
+	 * If nothing was moved :
+	 * - if the 'distant' channel is disconnected and the in buffer is empty, disconnect and throw a DisconnectedException
+	 * - else return 0
+	 * Tell both 'distant' channels they may write and read
+	 * return the number of bytes moved
+	 */
+	@Override
+	public int trySplice(Channel dst, int length) throws DisconnectedException {
+		if (!canSplice(dst) || spliceLength > 0)
+			return super.trySplice(dst, length);
+		if (!this.isLinked())
+			throw new IllegalStateException("CChannel[" + broker.getName() + ":" + port + "] trySplice : not linked");
+		if (length < 0)
+			throw new IllegalArgumentException(this.toString() + " trySplice : Illegal arguments");
+		CChannel to = (CChannel) dst;
+		if (!to.isLinked())
+			throw new IllegalStateException(to.toString() + " trySplice : not linked");
+		if (disconnected() || to.disconnected())
+			throw new DisconnectedException(this.toString() + " trySplice : Disconnected channel");
+		if (to.linkedChannel.disconnected()) {
+			// nobody will read the bytes
+			to.disconnect();
+			throw new DisconnectedException(to.toString() + " trySplice : Linked channel disconnected");
+		}
+		int movedBytes = 0;
+		lockBoth(inLock, to.outLock);
+		try {
+			boolean wasFull = in.full();
+			boolean wasEmpty = to.out.empty();
+			movedBytes = in.pull(to.out, length);
+			if (movedBytes > 0) {
+				pulled(wasFull);
+				to.pushed(wasEmpty);
+			}
+		} finally {
+			to.outLock.unlock();
+			inLock.unlock();
+		}
+		if (movedBytes == 0) {
+			if (linkedChannel.disconnected() && emptyIn()) {
+				disconnect();
+				throw new DisconnectedException(this.toString() + " trySplice : Linked channel disconnected");
+			}
+			return 0;
+		}
+		linkedChannel.fireReady();
+		to.linkedChannel.fireReady();
+		return movedBytes;
+	}
+
+	/*
+	 * Lock the two locks in the order of their identity hash codes,
+	 * holding the tie lock if they are the same
+	 */
+	/**
+	 * Locks two buffers always in the same order, so two splices locking the same
+	 * buffers the other way round cannot deadlock.
+	 */
+	private static void lockBoth(ReentrantLock a, ReentrantLock b) {
+		int ha = System.identityHashCode(a), hb = System.identityHashCode(b);
+		if (ha < hb) {
+			a.lock();
+			b.lock();
+		} else if (ha > hb) {
+			b.lock();
+			a.lock();
+		} else {
+			tieLock.lock();
+			try {
+				a.lock();
+				b.lock();
+			} finally {
+				tieLock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Change the version of the in buffer
+	 * If it was full, signal a thread awaiting it is not full
+	 * If it is still not empty while another reader awaits, pass the signal on to it,
+	 * no transition being left to wake it
+	 */
+	/**
+	 * Signals the threads waiting on the in buffer after a pull, on the transitions only,
+	 * one at a time, so they do not all wake to find nothing to do.
+	 * A reader leaving bytes wakes another waiting reader only if there is one.
+	 * Called holding the lock of the in buffer.
+	 * @param wasFull : true if the in buffer was full before the pull
+	 */
+	private void pulled(boolean wasFull) {
+		inVersion.incrementAndGet();
+		if (wasFull)
+			inNotFull.signal();
+		if (!in.empty() && inLock.hasWaiters(inNotEmpty))
+			inNotEmpty.signal();
+	}
+
+	/*
+	 * Change the version of the out buffer
+	 * If it was empty, signal a thread awaiting it is not empty
+	 * If it is still not full while another writer awaits, pass the signal on to it,
+	 * no transition being left to wake it
+	 */
+	/**
+	 * Signals the threads waiting on the out buffer after a push, like {@link #pulled(boolean)}.
+	 * Called holding the lock of the out buffer.
+	 * @param wasEmpty : true if the out buffer was empty before the push
+	 */
+	private void pushed(boolean wasEmpty) {
+		outVersion.incrementAndGet();
+		if (wasEmpty)
+			outNotEmpty.signal();
+		if (!out.full() && outLock.hasWaiters(outNotFull))
+			outNotFull.signal();
+	}
+
+	/*
+	 * Set the readyListener field with the given listener
+	 */
+	@Override
+	public void setReadyListener(ReadyListener listener) {
+		this.readyListener = listener;
+	}
+
+	/**
+	 * Tells the listener, if any, that this channel may have become readable or writable.
+	 */
+	private void fireReady() {
+		ReadyListener listener = readyListener;
+		if (listener != null)
+			listener.ready();
+	}
+
 	/*
 	 * Set the disconnected flag to true.
-	 * In a synchronized block on the in buffer object, notify all waiting threads on the in buffer.
-	 * In a synchronized block on the out buffer object, notify all waiting threads on the out buffer.
+	 * Holding the lock of the in buffer, change its version and signal all the threads awaiting its conditions.
+	 * Holding the lock of the out buffer, change its version and signal all the threads awaiting its conditions.
+	 * Tell the listeners of both ends, if linked, so the threads waiting for them see the disconnection
+	 * Clear the bit of this end in the connected ends, if the other one was already cleared, call release()
 	 */
 	@Override
 	public void disconnect() {
 		this.disconnected = true;
-		synchronized (in) {
-			in.notifyAll();
+		inLock.lock();
+		try {
+			inVersion.incrementAndGet();
+			inNotEmpty.signalAll();
+			inNotFull.signalAll();
+		} finally {
+			inLock.unlock();
+		}
+		outLock.lock();
+		try {
+			outVersion.incrementAndGet();
+			outNotEmpty.signalAll();
+			outNotFull.signalAll();
+		} finally {
+			outLock.unlock();
+		}
+		fireReady();
+		if (linkedChannel != null)
+			linkedChannel.fireReady();
+		if (connectedEnds.getAndUpdate(ends -> ends & ~end) == end)
+			release();
+	}
+
+	/*
+	 * Holding the locks of both buffers :
+	 * | replace the buffers of both ends with the RELEASED buffer
+	 * Give the buffers back to the recycler, if any
+	 */
+	/**
+	 * Recycles the buffers once both ends are disconnected. The threads still operating on
+	 * either end find the RELEASED buffer, empty and full, and see the disconnection.
+	 */
+	private void release() {
+		CircularBuffer a, b;
+		lockBoth(inLock, outLock);
+		try {
+			a = in;
+			b = out;
+			in = out = RELEASED;
+			linkedChannel.in = linkedChannel.out = RELEASED;
+		} finally {
+			outLock.unlock();
+			inLock.unlock();
 		}
-		synchronized (out) {
-			out.notifyAll();
+		if (recycler != null) {
+			recycler.offer(a);
+			recycler.offer(b);
 		}
 	}
 
@@ -202,10 +633,22 @@ public class CChannel extends Channel {
 	 * return the value of the disconnected flag
 	 */
 	@Override
-	public synchronized boolean disconnected() {
+	public boolean disconnected() {
 		return this.disconnected;
 	}
 
+	/**
+	 * @return True if the in buffer is empty, read holding its lock
+	 */
+	private boolean emptyIn() {
+		inLock.lock();
+		try {
+			return in.empty();
+		} finally {
+			inLock.unlock();
+		}
+	}
+
 	/*
 	 * return the in buffer in field
 	 */
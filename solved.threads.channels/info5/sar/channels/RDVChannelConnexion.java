@@ -21,26 +21,30 @@ public class RDVChannelConnexion {
 	
 	/*
 	 * Set the hasAccept flag to true
-	 * Set the distantBroker field to the given broker
+	 * If the distantBroker field is not set, set it to the given broker,
+	 * so the 2nd thread does not overwrite the broker of the 1st one
 	 */
 	/**
 	 * @param broker : the broker of the accepting channel to store
 	 */
 	public synchronized void accept(CBroker broker) {
 		hasAccept = true;
-		distantBroker = broker;
+		if (distantBroker == null)
+			distantBroker = broker;
 	}
 	
 	/*
 	 * Set the hasConnect flag to true
-	 * Set the distantBroker field to the given broker
+	 * If the distantBroker field is not set, set it to the given broker,
+	 * so the 2nd thread does not overwrite the broker of the 1st one
 	 */
 	/**
 	 * @param broker : the broker of the connecting channel to store
 	 */
 	public synchronized void connect(CBroker broker) {
 		hasConnect = true;
-		distantBroker = broker;
+		if (distantBroker == null)
+			distantBroker = broker;
 	}
 	
 	/*
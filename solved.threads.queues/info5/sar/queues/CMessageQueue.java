@@ -1,21 +1,66 @@
 package info5.sar.queues;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import info5.sar.channels.Channel;
 import info5.sar.channels.DisconnectedException;
+import info5.sar.utils.BufferPool;
+import info5.sar.utils.FrameCodec;
+import info5.sar.utils.LZCodec;
+import info5.sar.utils.PooledBuffer;
 
 /**
  * Implementation of {@link MessageQueue}
  */
+/*
+ * Each message is sent as a sequence of frames, each frame being at most
+ * 'maxFrameSize' bytes long :
+ * [header] + [frame]
+ * The header encodes the size of the frame and its flags, the MORE flag being
+ * set when more frames of the same message follow (see FrameCodec).
+ * The frames use the legacy format until the handshake() agrees on a version
+ * with the peer.
+ * When both peers support it and the compression threshold is reached, the frame
+ * is an LZCodec block flagged COMPRESSED, holding at most 'maxFrameSize' bytes
+ * once decompressed.
+ */
 public class CMessageQueue extends MessageQueue {
 
+	// size of the buffer used to send a stream
+	private static final int STREAM_CHUNK_SIZE = 16 * 1024;
+	// frames up to this size are written along with their header in a single write
+	private static final int COALESCE_SIZE = 256;
+
 	// The Channel to layout
 	private Channel channel;
 	// The parent QueueBroker
 	private QueueBroker broker;
-	// Objects only here for synchronization purpose
-	private Object lock_in = new Object(), lock_out = new Object();
+	// Locks of the reading and writing sides, rather than monitors so a thread blocked
+	// on the channel does not pin the carrier of a virtual thread
+	private ReentrantLock lock_in = new ReentrantLock(), lock_out = new ReentrantLock();
+	// signalled when a stream returned by receiveStream() is done, with lock_in
+	private Condition streamDone = lock_in.newCondition();
+	// maximum size of a single frame
+	private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	// the version of the frame format used to send, guarded by lock_out
+	private int version = FrameCodec.LEGACY_VERSION;
+	// minimum size of a compressed frame
+	private volatile int compressionThreshold = NO_COMPRESSION;
+	// true if the peer decompresses frames, guarded by lock_out
+	private boolean compression = false;
+	// reused arrays, guarded by lock_in and lock_out
+	private byte[] header_in = new byte[Integer.BYTES], buffer_out = new byte[FrameCodec.MAX_HEADER_SIZE + COALESCE_SIZE];
+	// decoder of the received headers, guarded by lock_in
+	private FrameCodec.HeaderDecoder decoder = new FrameCodec.HeaderDecoder(FrameCodec.LEGACY_VERSION);
+	// the flags of the last header read, guarded by lock_in
+	private int flags_in;
+	// true while a stream returned by receiveStream() is being read, guarded by lock_in
+	private boolean streaming = false;
 
 	/*
 	 * Set the channel field with the given channel
@@ -32,84 +77,174 @@ public class CMessageQueue extends MessageQueue {
 	}
 
 	/*
-	 * In a synchronized block on the lock_out object :
-	 * | create a byte array containing the size of the message and the message itself exacly using the intToByteArray() and the concatArray() method
-	 * | set a new counter to 0
-	 * | while the counter is inferior to the length of the new array :
-	 * | - increment the counter by the returned value of write() of the channel field
-	 * | - the write() call should send the created array, the offset is the counter and the length to send is the total length of the array minus the counter
-	 * | - if a DisconnectedException is thrown during the previous statement, catch it, close this connection and throw a ClosedException
+	 * Throw a IllegalArgumentException if the arguments are not valid
+	 * Holding the lock_out lock :
+	 * | cut the message in frames of at most maxFrameSize bytes
+	 * | write each frame with writeFrame(), flagging every frame but the last one
 	 */
 	@Override
 	public void send(byte[] bytes, int offset, int length) throws ClosedException {
-		synchronized (lock_out) {
-			// the size of the message on 4 bytes concatenated with the message
-			byte[] message = concatArray(intToByteArray(length), 0, Integer.BYTES, bytes, offset, length);
-			int byteSent = 0;
-			while (byteSent < message.length) {
+		if (bytes == null || offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(this.toString() + " send : Illegal arguments");
+		lock_out.lock();
+		try {
+			int max = maxFrameSize;
+			int sent = 0;
+			do {
+				int size = Math.min(max, length - sent);
+				writeFrame(bytes, offset + sent, size, sent + size < length ? FrameCodec.MORE : 0);
+				sent += size;
+			} while (sent < length);
+		} finally {
+			lock_out.unlock();
+		}
+	}
+
+	/*
+	 * Holding the lock_out lock :
+	 * | create a chunk array of at most maxFrameSize bytes
+	 * | while the end of the stream is not reached :
+	 * | - fill the chunk from the stream, until it is full or the end of the stream is reached
+	 * | - write the chunk with writeFrame(), flagged if the end of the stream is not reached
+	 * | - if a IOException is thrown by the stream, close this connection and throw it again
+	 */
+	@Override
+	public void sendStream(InputStream in) throws ClosedException, IOException {
+		lock_out.lock();
+		try {
+			byte[] chunk = new byte[Math.min(maxFrameSize, STREAM_CHUNK_SIZE)];
+			boolean eof = false;
+			while (!eof) {
+				int filled = 0;
 				try {
-					byteSent += channel.write(message, byteSent, message.length - byteSent);
-				} catch (DisconnectedException e) {
+					while (filled < chunk.length) {
+						int n = in.read(chunk, filled, chunk.length - filled);
+						if (n < 0) {
+							eof = true;
+							break;
+						}
+						filled += n;
+					}
+				} catch (IOException e) {
+					// the receiver is waiting for the end of the message, it cannot be resynchronized
 					this.close();
-					throw new ClosedException(this.toString()+" send : Closed");
+					throw e;
 				}
+				writeFrame(chunk, 0, filled, eof ? 0 : FrameCodec.MORE);
 			}
+		} finally {
+			lock_out.unlock();
 		}
 	}
 
 	/*
-	 * In a synchronized block on the lock_in object :
-	 * | initialize a new byte array the size of a integer
-	 * | set a new counter to 0
-	 * | while the counter is inferior to the size of the byte array :
-	 * | - increment the counter by the returned value of read() of the channel field
-	 * | - the read() call should write on the created array, the offset is the counter and the length to send is the length of the array minus the counter
-	 * | - if a DisconnectedException is thrown during the previous statement, catch it, close this connection and throw a ClosedException
-	 * | create a new variable 'length' which is the integer interpretation of the previous byte array (using byteArrayToInt())
-	 * | initialize a new byte array the size of 'length'
-	 * | set a new counter to 0
-	 * | while the new counter is inferior to the new array length :
-	 * | - increment the new counter by the returned value of read() of the channel field
-	 * | - the read() call should write on the new created array, the offset is the new counter and the length to send is the length of the new array minus the new counter
-	 * | - if a DisconnectedException is thrown during the previous statement, catch it, close this connection and throw a ClosedException
-	 * | return the new array
+	 * Holding the lock_in lock :
+	 * | wait until no stream is being read
+	 * | read a first frame with readHeader() and readFrame()
+	 * | if it is the last frame of the message, return it
+	 * | else read the following frames until the last one and return their concatenation
 	 */
 	@Override
 	public byte[] receive() throws ClosedException {
-		synchronized (lock_in) {
-			// receiving the size of the message
-			byte[] messageLength = new byte[Integer.BYTES];
-			int lengthIndex = 0;
-			while (lengthIndex < messageLength.length) {
-				try {
-					lengthIndex += channel.read(messageLength, lengthIndex, messageLength.length - lengthIndex);
-				} catch (DisconnectedException e) {
-					this.close();
-					throw new ClosedException();
-				}
+		lock_in.lock();
+		try {
+			waitStream();
+			byte[] frame = readFrame(readHeader());
+			if ((flags_in & FrameCodec.MORE) == 0)
+				return frame;
+			// receiving the following frames of the message
+			List<byte[]> frames = new ArrayList<>();
+			frames.add(frame);
+			long length = frame.length;
+			do {
+				frame = readFrame(readHeader());
+				frames.add(frame);
+				length += frame.length;
+			} while ((flags_in & FrameCodec.MORE) != 0);
+			if (length > Integer.MAX_VALUE - 8) {
+				this.close();
+				throw new ClosedException(this.toString() + " receive : message too large, use receiveStream()");
 			}
-			int length = byteArrayToInt(messageLength);
-			// receiving the message
-			byte[] message = new byte[length];
-			int messageIndex = 0;
-			while (messageIndex < length) {
-				try {
-					messageIndex += channel.read(message, messageIndex, length - messageIndex);
-				} catch (DisconnectedException e) {
-					this.close();
-					throw new ClosedException();
-				}
+			byte[] message = new byte[(int) length];
+			int index = 0;
+			for (byte[] f : frames) {
+				System.arraycopy(f, 0, message, index, f.length);
+				index += f.length;
 			}
 			return message;
+		} finally {
+			lock_in.unlock();
+		}
+	}
+
+	/*
+	 * Holding the lock_in lock :
+	 * | wait until no stream is being read
+	 * | read the frames of the message in pooled buffers with readHeader() and readFrameBuffer(),
+	 * | releasing them if the connection is closed meanwhile
+	 * | return their concatenation, the frame itself for a single-frame message
+	 */
+	@Override
+	public PooledBuffer receiveBuffer() throws ClosedException {
+		lock_in.lock();
+		try {
+			waitStream();
+			List<PooledBuffer> frames = new ArrayList<>(1);
+			long length = 0;
+			try {
+				do {
+					PooledBuffer frame = readFrameBuffer(readHeader());
+					frames.add(frame);
+					length += frame.length();
+					if (length > Integer.MAX_VALUE - 8) {
+						this.close();
+						throw new ClosedException(this.toString() + " receive : message too large, use receiveStream()");
+					}
+				} while ((flags_in & FrameCodec.MORE) != 0);
+			} catch (ClosedException e) {
+				for (PooledBuffer frame : frames)
+					frame.release();
+				throw e;
+			}
+			return BufferPool.DEFAULT.concat(frames);
+		} finally {
+			lock_in.unlock();
+		}
+	}
+
+	/*
+	 * Holding the lock_in lock :
+	 * | wait until no stream is being read
+	 * | set the streaming flag
+	 * | return a new FrameInputStream
+	 */
+	@Override
+	public InputStream receiveStream() throws ClosedException {
+		lock_in.lock();
+		try {
+			waitStream();
+			streaming = true;
+			return new FrameInputStream();
+		} finally {
+			lock_in.unlock();
 		}
 	}
 
 	/*
 	 * Call disconnect() of the channel field
+	 * Holding the lock_in lock, clear the streaming flag and signal the receivers
+	 * waiting for a stream to be done, so they see the queue is closed
 	 */
 	@Override
 	public void close() {
 		channel.disconnect();
+		lock_in.lock();
+		try {
+			streaming = false;
+			streamDone.signalAll();
+		} finally {
+			lock_in.unlock();
+		}
 	}
 
 	/*
@@ -120,51 +255,260 @@ public class CMessageQueue extends MessageQueue {
 		return channel.disconnected();
 	}
 
+	/*
+	 * Return false if closed
+	 * If a thread is receiving, return true
+	 * Holding the lock_in lock, try to read no bytes from the channel, which throws
+	 * a DisconnectedException if the 'distant' channel is disconnected and nothing is left to read
+	 * Return false if the exception was thrown, the channel being then disconnected
+	 */
+	/**
+	 * Tells if this queue is still usable, without blocking nor consuming any byte.
+	 * @return False if the queue is closed or the peer closed it
+	 */
+	boolean alive() {
+		if (closed())
+			return false;
+		if (!lock_in.tryLock())
+			return true;
+		try {
+			channel.tryRead(header_in, 0, 0);
+			return true;
+		} catch (DisconnectedException e) {
+			return false;
+		} finally {
+			lock_in.unlock();
+		}
+	}
+
+	@Override
+	public void setMaxFrameSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException(this.toString() + " setMaxFrameSize : Illegal size");
+		maxFrameSize = size;
+	}
+
+	@Override
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	@Override
+	public void setCompressionThreshold(int size) {
+		compressionThreshold = size < 0 ? NO_COMPRESSION : size;
+	}
+
+	@Override
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/*
+	 * Send a hello message containing the latest version of the frame format supported
+	 * and the supported features
+	 * Receive the hello message of the peer, an empty one meaning the legacy version
+	 * and a missing features byte meaning no feature
+	 * Holding the lock_in and lock_out locks in turn, use the negotiated version
+	 * and features
+	 */
+	/**
+	 * Agrees with the peer on the version of the frame format and the features to use.
+	 * Both ends must call this method once, before any other message is sent.
+	 * @throws ClosedException if the connection is closed
+	 */
+	void handshake() throws ClosedException {
+		byte[] hello = { (byte) FrameCodec.VERSION, (byte) FrameCodec.FEATURE_COMPRESSION };
+		send(hello, 0, hello.length);
+		byte[] peer = receive();
+		int negotiated = FrameCodec.negotiate(peer.length > 0 ? peer[0] : FrameCodec.LEGACY_VERSION);
+		int features = FrameCodec.negotiateFeatures(negotiated, FrameCodec.FEATURE_COMPRESSION, peer.length > 1 ? peer[1] : 0);
+		lock_out.lock();
+		try {
+			version = negotiated;
+			compression = (features & FrameCodec.FEATURE_COMPRESSION) != 0;
+		} finally {
+			lock_out.unlock();
+		}
+		lock_in.lock();
+		try {
+			decoder.setVersion(negotiated);
+		} finally {
+			lock_in.unlock();
+		}
+	}
+
+	/*
+	 * If compression is negotiated and the frame reaches the threshold, compress it with
+	 * the LZCodec of the current thread, and if it is smaller write the compressed block instead
+	 * flagged COMPRESSED
+	 * Encode the header in the buffer_out array
+	 * If the frame is small enough, copy it after the header and write both at once
+	 * Else write the header then the frame
+	 */
+	/**
+	 * Must be called holding the lock_out lock.
+	 * @param bytes : the array containing the frame
+	 * @param offset : the starting index of the frame in the array
+	 * @param length : the length of the frame
+	 * @param flags : the flags of the frame
+	 * @throws ClosedException if the connection is closed
+	 */
+	private void writeFrame(byte[] bytes, int offset, int length, int flags) throws ClosedException {
+		int threshold = compressionThreshold;
+		if (compression && threshold != NO_COMPRESSION && length >= threshold) {
+			LZCodec codec = LZCodec.get();
+			int compressed = codec.compress(bytes, offset, length);
+			if (compressed > 0) {
+				bytes = codec.output();
+				offset = 0;
+				length = compressed;
+				flags |= FrameCodec.COMPRESSED;
+			}
+		}
+		int headerSize = FrameCodec.encodeHeader(version, length, flags, buffer_out, 0);
+		if (length <= COALESCE_SIZE) {
+			System.arraycopy(bytes, offset, buffer_out, headerSize, length);
+			writeFully(buffer_out, 0, headerSize + length);
+		} else {
+			writeFully(buffer_out, 0, headerSize);
+			writeFully(bytes, offset, length);
+		}
+	}
+
 	/**
-	 * <pre>Exemple : concatArray([0,1,2,3,4], 1, 3, [5,6,7,8,9], 0, 4) <br>	returns [1,2,3,5,6,7,8]</pre>
-	 * @param a : the first array
-	 * @param offset_a : the starting index of the first array
-	 * @param length_a : the number of bytes to copy from the first array
-	 * @param b : the second array
-	 * @param offset_b : the starting index of the second array
-	 * @param length_b : the number of bytes to copy from the second array
-	 * @return The concatenated 2 arrays
-	 */
-	private byte[] concatArray(byte[] a, int offset_a, int length_a, byte[] b, int offset_b, int length_b) {
-		if (a == null || offset_a < 0 || length_a < 0 || a.length < offset_a + length_a)
-			throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-		if (b == null || offset_b < 0 || length_b < 0 || b.length < offset_b + length_b)
-			throw new IllegalArgumentException("Illegal arguments for byte[] concatenation");
-		byte[] result = new byte[length_a + length_b];
+	 * Writes all the given bytes on the channel, closing this connection if it is disconnected.
+	 * @throws ClosedException if the connection is closed
+	 */
+	private void writeFully(byte[] bytes, int offset, int length) throws ClosedException {
+		int byteSent = 0;
+		while (byteSent < length) {
+			try {
+				byteSent += channel.write(bytes, offset + byteSent, length - byteSent);
+			} catch (DisconnectedException e) {
+				this.close();
+				throw new ClosedException(this.toString() + " send : Closed");
+			}
+		}
+	}
+
+	/**
+	 * Reads the given number of bytes from the channel, closing this connection if it is disconnected.
+	 * @throws ClosedException if the connection is closed
+	 */
+	private void readFully(byte[] bytes, int offset, int length) throws ClosedException {
 		int index = 0;
-		for (int i = offset_a; i < length_a; i++) {
-			result[index] = a[i];
-			index++;
+		while (index < length) {
+			try {
+				index += channel.read(bytes, offset + index, length - index);
+			} catch (DisconnectedException e) {
+				this.close();
+				throw new ClosedException(this.toString() + " receive : Closed");
+			}
 		}
-		for (int i = offset_b; i < length_b; i++) {
-			result[index] = b[i];
-			index++;
+	}
+
+	/**
+	 * Must be called by the owner of the reading side.
+	 * Reads a frame header, never reading past it, and stores its flags in the flags_in field.
+	 * Closes this connection if the announced size is larger than the maximum frame size.
+	 * @return The size of the frame
+	 * @throws ClosedException if the connection is closed
+	 */
+	private int readHeader() throws ClosedException {
+		decoder.reset();
+		while (!decoder.complete()) {
+			int n = decoder.remaining();
+			readFully(header_in, 0, n);
+			try {
+				for (int i = 0; i < n; i++)
+					decoder.feed(header_in[i]);
+			} catch (IllegalStateException e) {
+				this.close();
+				throw new ClosedException(this.toString() + " receive : malformed header");
+			}
 		}
-		return result;
+		flags_in = decoder.flags();
+		int size = decoder.size();
+		if (size > maxFrameSize) {
+			this.close();
+			throw new ClosedException(this.toString() + " receive : frame too large (" + size + " bytes)");
+		}
+		return size;
 	}
 
 	/**
-	 * @param i : the integer to convert
-	 * @return The bytes constituting the given integer as a byte array of a fixed size : 4
+	 * Reads a frame, decompressing it if its header is flagged COMPRESSED.
+	 * Closes this connection if the frame is malformed or larger than the maximum frame size once decompressed.
+	 * @param size : the size of the frame to read
+	 * @return The frame
+	 * @throws ClosedException if the connection is closed
 	 */
-	private byte[] intToByteArray(int i) {
-		ByteBuffer buffer = ByteBuffer.wrap(new byte[Integer.BYTES]);
-		buffer.putInt(i);
-		return buffer.array();
+	private byte[] readFrame(int size) throws ClosedException {
+		byte[] frame = new byte[size];
+		readFully(frame, 0, frame.length);
+		if ((flags_in & FrameCodec.COMPRESSED) == 0)
+			return frame;
+		try {
+			int length = LZCodec.decompressedLength(frame, 0, size);
+			if (length > maxFrameSize) {
+				this.close();
+				throw new ClosedException(this.toString() + " receive : frame too large (" + length + " bytes)");
+			}
+			byte[] data = new byte[length];
+			LZCodec.decompress(frame, 0, size, data, 0);
+			return data;
+		} catch (IllegalArgumentException e) {
+			this.close();
+			throw new ClosedException(this.toString() + " receive : malformed compressed frame");
+		}
 	}
 
 	/**
-	 * @param array : the array to interpret
-	 * @return The integer interpretation of the array
+	 * Same as {@link #readFrame(int)} reading the frame in a pooled buffer.
+	 * @param size : the size of the frame to read
+	 * @return The frame, to be released by the caller
+	 * @throws ClosedException if the connection is closed
 	 */
-	private int byteArrayToInt(byte[] array) {
-		ByteBuffer buffer = ByteBuffer.wrap(array);
-		return buffer.getInt();
+	private PooledBuffer readFrameBuffer(int size) throws ClosedException {
+		PooledBuffer frame = BufferPool.DEFAULT.allocate(size);
+		PooledBuffer data = null;
+		try {
+			readFully(frame.array(), 0, size);
+			if ((flags_in & FrameCodec.COMPRESSED) == 0) {
+				data = frame;
+				return data;
+			}
+			int length = LZCodec.decompressedLength(frame.array(), 0, size);
+			if (length > maxFrameSize) {
+				this.close();
+				throw new ClosedException(this.toString() + " receive : frame too large (" + length + " bytes)");
+			}
+			data = BufferPool.DEFAULT.allocate(length);
+			LZCodec.decompress(frame.array(), 0, size, data.array(), 0);
+			return data;
+		} catch (IllegalArgumentException e) {
+			if (data != null)
+				data.release();
+			data = null;
+			this.close();
+			throw new ClosedException(this.toString() + " receive : malformed compressed frame");
+		} finally {
+			if (data != frame)
+				frame.release();
+		}
+	}
+
+	/**
+	 * Must be called holding the lock_in lock.
+	 * Waits until no stream returned by {@link #receiveStream()} is being read.
+	 * @throws ClosedException if the connection is closed
+	 */
+	private void waitStream() throws ClosedException {
+		while (streaming) {
+			if (closed())
+				throw new ClosedException(this.toString() + " receive : Closed");
+			streamDone.awaitUninterruptibly();
+		}
 	}
 
 	/*
@@ -174,10 +518,108 @@ public class CMessageQueue extends MessageQueue {
 	public QueueBroker broker() {
 		return this.broker;
 	}
-	
+
 	@Override
 	public String toString() {
 		return "CMessageQueue[" + broker.getName() + ":" + channel.getPort() + "]-[" + channel.getRemoteName() + ":"
 				+ channel.getPort() + "]";
 	}
+
+	/**
+	 * Stream returned by {@link CMessageQueue#receiveStream()}, reading the frames
+	 * of one message directly from the channel, except compressed frames which are
+	 * read and decompressed as a whole.<br>
+	 * Releases the streaming flag when the end of the message is reached or when closed.
+	 */
+	private class FrameInputStream extends InputStream {
+		// remaining bytes of the current frame
+		private int remaining = 0;
+		// the current frame if it was compressed, null otherwise
+		private byte[] frame;
+		// true until the last frame header of the message is read
+		private boolean more = true;
+		// true once the streaming flag is released
+		private boolean done = false;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		/*
+		 * Return -1 if done
+		 * While the current frame is fully read and more frames follow, read the next header,
+		 * reading and decompressing the whole frame if it is compressed
+		 * If the current frame is fully read and it is the last one, call finish() and return -1
+		 * Read at most the remaining bytes of the current frame, from the decompressed frame
+		 * or from the channel
+		 * If the connection is closed, call finish() and throw a IOException
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (b == null || off < 0 || len < 0 || off + len > b.length)
+				throw new IndexOutOfBoundsException();
+			if (done)
+				return -1;
+			if (len == 0)
+				return 0;
+			try {
+				while (remaining == 0 && more) {
+					remaining = readHeader();
+					more = (flags_in & FrameCodec.MORE) != 0;
+					frame = (flags_in & FrameCodec.COMPRESSED) != 0 ? readFrame(remaining) : null;
+					if (frame != null)
+						remaining = frame.length;
+				}
+				if (remaining == 0) {
+					finish();
+					return -1;
+				}
+				if (frame != null) {
+					int n = Math.min(len, remaining);
+					System.arraycopy(frame, frame.length - remaining, b, off, n);
+					remaining -= n;
+					return n;
+				}
+				int n = channel.read(b, off, Math.min(len, remaining));
+				remaining -= n;
+				return n;
+			} catch (ClosedException e) {
+				finish();
+				throw new IOException(e);
+			} catch (DisconnectedException e) {
+				CMessageQueue.this.close();
+				finish();
+				throw new IOException(new ClosedException(CMessageQueue.this.toString() + " receive : Closed"));
+			}
+		}
+
+		/*
+		 * Skip the rest of the message, reading it into a scratch array, then call finish()
+		 */
+		@Override
+		public void close() throws IOException {
+			if (done)
+				return;
+			byte[] scratch = new byte[Math.min(maxFrameSize, STREAM_CHUNK_SIZE)];
+			while (read(scratch, 0, scratch.length) >= 0)
+				;
+		}
+
+		/**
+		 * Releases the streaming flag, unblocking any waiting receive.
+		 */
+		private void finish() {
+			done = true;
+			lock_in.lock();
+			try {
+				streaming = false;
+				streamDone.signalAll();
+			} finally {
+				lock_in.unlock();
+			}
+		}
+	}
 }
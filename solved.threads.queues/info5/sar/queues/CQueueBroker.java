@@ -21,25 +21,53 @@ public class CQueueBroker extends QueueBroker {
 	/*
 	 * Set the channel field with the result of accept() of the broker field
 	 * Set the messageQueue field with a new CMessageQueue created from the channel field
+	 * Agree on the frame format with the peer, see handshake()
+	 * If the peer closed the connection meanwhile, accept again
 	 * Return the messageQueue field
 	 */
 	@Override
 	public MessageQueue accept(int port) {
-		channel = broker.accept(port);
-		messageQueue = new CMessageQueue(channel, this);
+		do {
+			channel = broker.accept(port);
+			messageQueue = newMessageQueue(channel);
+		} while (messageQueue == null);
 		return messageQueue;
 	}
 
 	/*
 	 * Set the channel field with the result of connect() of the broker field
+	 * If the channel is null, return null
 	 * Set the messageQueue field with a new CMessageQueue created from the channel field
-	 * Return the messageQueue field
+	 * Agree on the frame format with the peer, see handshake()
+	 * Return the messageQueue field, null if the peer closed the connection meanwhile
+	 */
+	/**
+	 * @return The resulting fully connected MessageQueue, or null if no QueueBroker with the
+	 *         given name has been found or if the peer closed the connection before the
+	 *         handshake
 	 */
 	@Override
 	public MessageQueue connect(String name, int port) {
 		channel = broker.connect(name, port);
-		messageQueue = new CMessageQueue(channel, this);
+		if (channel == null)
+			return null;
+		messageQueue = newMessageQueue(channel);
 		return messageQueue;
 	}
 
+	/**
+	 * @param channel : a fully connected Channel
+	 * @return A new CMessageQueue on the given channel, null if the handshake failed
+	 */
+	private CMessageQueue newMessageQueue(Channel channel) {
+		CMessageQueue queue = new CMessageQueue(channel, this);
+		try {
+			queue.handshake();
+		} catch (ClosedException e) {
+			queue.close();
+			return null;
+		}
+		return queue;
+	}
+
 }
@@ -0,0 +1,212 @@
+package info5.sar.queues;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import info5.sar.utils.IdlePool;
+import info5.sar.utils.PooledBuffer;
+
+/**
+ * QueueBroker keeping the connected MessageQueues open once closed by their users,
+ * to reuse them for the next connections to the same QueueBroker and port.<br>
+ * <br>
+ * The queues returned by {@link #connect(String, int)} give their connection back to the
+ * pool when closed, instead of closing it, so a client opening a session per request skips
+ * the rendez-vous and the handshake of the connection. A connection is checked on checkout,
+ * the ones closed by the peer meanwhile being dropped, and is closed once idle for longer
+ * than the idle timeout, or when too many connections are idle for the same QueueBroker and
+ * port. Since the peer sees a single connection, a user must receive all the replies it
+ * expects before closing its queue, or call {@link PooledQueue#discard()} to really close it.
+ * The queues returned by {@link #accept(int)} are not pooled.
+ */
+public class PooledQueueBroker extends QueueBroker {
+
+	// default maximum number of idle connections to the same QueueBroker and port
+	public static final int DEFAULT_MAX_IDLE = 8;
+	// default time a connection is kept idle, in milliseconds
+	public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+	// the QueueBroker establishing the connections
+	private final QueueBroker queueBroker;
+	// the idle connections, by QueueBroker name and port
+	private final IdlePool<MessageQueue> idle = new IdlePool<>(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT, MessageQueue::close);
+
+	/*
+	 * Call the super() constructor with the broker of the given QueueBroker
+	 * Store the given QueueBroker in the field
+	 */
+	/**
+	 * @param queueBroker : the QueueBroker establishing the connections
+	 */
+	public PooledQueueBroker(QueueBroker queueBroker) {
+		super(queueBroker.getBroker());
+		this.queueBroker = queueBroker;
+	}
+
+	/*
+	 * Return the result of accept() of the QueueBroker in field
+	 */
+	@Override
+	public MessageQueue accept(int port) {
+		return queueBroker.accept(port);
+	}
+
+	/*
+	 * Take an idle connection to the given QueueBroker and port, checked alive
+	 * If there is none, return null if connect() of the QueueBroker in field returns null
+	 * Return a PooledQueue of the connection
+	 */
+	/**
+	 * @return A MessageQueue giving its connection back to the pool when closed,
+	 *         or null if no QueueBroker with the given name has been found
+	 */
+	@Override
+	public MessageQueue connect(String name, int port) {
+		String key = name + ":" + port;
+		MessageQueue queue = idle.poll(key, PooledQueueBroker::alive);
+		if (queue == null) {
+			queue = queueBroker.connect(name, port);
+			if (queue == null)
+				return null;
+		}
+		return new PooledQueue(key, queue);
+	}
+
+	/**
+	 * @return True if the given connection can be reused
+	 */
+	private static boolean alive(MessageQueue queue) {
+		if (queue instanceof CMessageQueue)
+			return ((CMessageQueue) queue).alive();
+		return !queue.closed();
+	}
+
+	/**
+	 * @return The pool of the idle connections, to set its limits
+	 */
+	public IdlePool<MessageQueue> getIdlePool() {
+		return idle;
+	}
+
+	/**
+	 * Closes all the idle connections.
+	 */
+	public void clear() {
+		idle.clear();
+	}
+
+	/**
+	 * MessageQueue of a pooled connection, usable until closed.
+	 */
+	public class PooledQueue extends MessageQueue {
+		private final String key;
+		private final MessageQueue queue;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		PooledQueue(String key, MessageQueue queue) {
+			this.key = key;
+			this.queue = queue;
+		}
+
+		@Override
+		public QueueBroker broker() {
+			return PooledQueueBroker.this;
+		}
+
+		@Override
+		public void send(byte[] bytes, int offset, int length) throws ClosedException {
+			check("send").send(bytes, offset, length);
+		}
+
+		@Override
+		public byte[] receive() throws ClosedException {
+			return check("receive").receive();
+		}
+
+		@Override
+		public PooledBuffer receiveBuffer() throws ClosedException {
+			return check("receiveBuffer").receiveBuffer();
+		}
+
+		@Override
+		public void sendStream(InputStream in) throws ClosedException, IOException {
+			check("sendStream").sendStream(in);
+		}
+
+		@Override
+		public void sendStream(ReadableByteChannel in) throws ClosedException, IOException {
+			check("sendStream").sendStream(in);
+		}
+
+		@Override
+		public InputStream receiveStream() throws ClosedException {
+			return check("receiveStream").receiveStream();
+		}
+
+		@Override
+		public void setMaxFrameSize(int size) {
+			queue.setMaxFrameSize(size);
+		}
+
+		@Override
+		public int getMaxFrameSize() {
+			return queue.getMaxFrameSize();
+		}
+
+		@Override
+		public void setCompressionThreshold(int size) {
+			queue.setCompressionThreshold(size);
+		}
+
+		@Override
+		public int getCompressionThreshold() {
+			return queue.getCompressionThreshold();
+		}
+
+		/*
+		 * If not already closed, give the connection back to the pool if it is not closed, else close it
+		 */
+		/**
+		 * Gives the connection back to the pool, to be reused by the next connect().
+		 */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				if (queue.closed())
+					return;
+				idle.offer(key, queue);
+			}
+		}
+
+		/**
+		 * Closes the connection instead of giving it back to the pool, when it cannot be
+		 * reused, like after a send or receive interrupted by an error.
+		 */
+		public void discard() {
+			closed.set(true);
+			queue.close();
+		}
+
+		@Override
+		public boolean closed() {
+			return closed.get() || queue.closed();
+		}
+
+		/**
+		 * @return The connection, if this queue is not closed
+		 * @throws ClosedException if this queue is closed
+		 */
+		private MessageQueue check(String op) throws ClosedException {
+			if (closed.get())
+				throw new ClosedException(this.toString() + " " + op + " : Closed queue");
+			return queue;
+		}
+
+		@Override
+		public String toString() {
+			return "PooledQueue[" + key + "]";
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package info5.sar.queues.durable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.utils.MappedLog;
+
+/**
+ * Durable exchange of messages over successive {@link MessageQueue MessageQueues}.<br>
+ * <br>
+ * The sent messages are appended to a {@link MappedLog} before being sent, and stay in it
+ * until the peer acknowledges them. A DurableQueue is attached to a connected queue, and when
+ * this queue is closed, it can be attached to a new one: the peers then exchange the sequence
+ * number of the last message they received, and the messages the peer did not receive are
+ * sent again, in order, before the new ones. The peer discards the messages it already received,
+ * so each message is received once, as long as the peers keep their DurableQueue.<br>
+ * <br>
+ * A writer task commits the appended messages to the log, one commit for all the messages
+ * appended meanwhile, and sends them. A reader task receives the messages and acknowledges
+ * them every {@link #ACK_INTERVAL} messages, or once all the received messages are taken.
+ * Acknowledged messages are deleted from the log according to its retention policy.
+ */
+/*
+ * Messages exchanged on the attached queue :
+ * [kind (1 byte)] + [sequence number (8 bytes)] + [payload]
+ * - HELLO : sent once attached, with the sequence number of the last message received
+ * - DATA : a message, with its sequence number in the log of the sender
+ * - ACK : acknowledges the messages up to the sequence number
+ * DATA messages are stored in the log as they are sent.
+ */
+public class DurableQueue {
+
+	/**
+	 * Number of received messages after which they are acknowledged.
+	 */
+	public static final int ACK_INTERVAL = 64;
+
+	/**
+	 * Maximum number of received messages not taken yet, the reader task waiting beyond.
+	 */
+	public static final int INBOX_CAPACITY = 1024;
+
+	private static final byte HELLO = 0, DATA = 1, ACK = 2;
+	private static final int HEADER_SIZE = 1 + Long.BYTES;
+
+	// the log of the sent messages
+	private MappedLog log;
+	// serializes the appends, so the sequence numbers in the messages are the ones of the log
+	private final Object appendLock = new Object();
+	// the attached queue, null if none, guarded by this DurableQueue
+	private MessageQueue attached;
+	// set once closed, guarded by this DurableQueue
+	private boolean closed = false;
+
+	// the received messages not taken yet, guarded by itself
+	private final ArrayDeque<byte[]> inbox = new ArrayDeque<>();
+	// the sequence number of the last received message, guarded by the inbox
+	private long received = 0;
+	// the number of received messages not acknowledged yet, guarded by the inbox
+	private int unacknowledged = 0;
+
+	/**
+	 * @param log : the log of the sent messages, owned by this DurableQueue until closed
+	 */
+	public DurableQueue(MappedLog log) {
+		this.log = log;
+	}
+
+	/*
+	 * Close the previously attached queue
+	 * Send a HELLO with the sequence number of the last received message
+	 * Receive the HELLO of the peer and acknowledge the messages it received
+	 * Set the attached field and start the reader and writer tasks, the writer
+	 * sending the messages from the first one the peer did not receive
+	 */
+	/**
+	 * Attaches this DurableQueue to a new queue, the previous one being closed.
+	 * The peer must attach its own DurableQueue to the other end of the queue.
+	 * This is a blocking method, waiting for the peer.
+	 * @param queue : the queue, fully connected
+	 * @throws ClosedException if this DurableQueue or the queue is closed
+	 */
+	public void attach(MessageQueue queue) throws ClosedException {
+		MessageQueue previous;
+		synchronized (this) {
+			if (closed)
+				throw new ClosedException("DurableQueue : closed");
+			previous = attached;
+			attached = null;
+			notifyAll();
+		}
+		if (previous != null)
+			previous.close();
+		long last;
+		synchronized (inbox) {
+			last = received;
+			unacknowledged = 0;
+		}
+		byte[] hello = encode(HELLO, last);
+		queue.send(hello, 0, hello.length);
+		byte[] answer = queue.receive();
+		if (answer.length != HEADER_SIZE || answer[0] != HELLO) {
+			queue.close();
+			throw new ClosedException("DurableQueue : unexpected hello");
+		}
+		long peerReceived = sequence(answer);
+		log.acknowledge(peerReceived);
+		synchronized (this) {
+			if (closed) {
+				queue.close();
+				throw new ClosedException("DurableQueue : closed");
+			}
+			attached = queue;
+		}
+		String name = "DurableQueue[" + queue.broker().getName() + "]-[" + queue + "]";
+		Task reader = new Task(name + "-reader", queue.broker().getBroker());
+		reader.setDaemon(true);
+		reader.start(() -> read(queue));
+		Task writer = new Task(name + "-writer", queue.broker().getBroker());
+		writer.setDaemon(true);
+		writer.start(() -> write(queue, log.cursor(peerReceived + 1)));
+	}
+
+	/*
+	 * Under the append lock, encode the message with the next sequence number of the log and append it
+	 * Wake up the writer
+	 */
+	/**
+	 * Sends a message, which is appended to the log and sent by the writer task once committed,
+	 * or once a queue is attached if none is.
+	 * This is a thread-safe method, not waiting for the message to be sent.
+	 * @param bytes : the array containing the message
+	 * @param offset : the starting index of the message in the array
+	 * @param length : the length of the message
+	 * @return The sequence number of the message
+	 * @throws ClosedException if this DurableQueue is closed
+	 * @throws IOException if the message cannot be appended to the log
+	 */
+	public long send(byte[] bytes, int offset, int length) throws ClosedException, IOException {
+		long sequence;
+		synchronized (appendLock) {
+			synchronized (this) {
+				if (closed)
+					throw new ClosedException("DurableQueue : closed");
+			}
+			byte[] message = new byte[HEADER_SIZE + length];
+			sequence = log.lastSequence() + 1;
+			encodeHeader(DATA, sequence, message);
+			System.arraycopy(bytes, offset, message, HEADER_SIZE, length);
+			log.append(message, 0, message.length);
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+		return sequence;
+	}
+
+	/*
+	 * Wait for a received message, then take it and wake up the reader
+	 * If no other message is waiting, acknowledge the received ones
+	 */
+	/**
+	 * Receives the next message, whichever queue it was received on.
+	 * This is a blocking method.
+	 * @return The received message
+	 * @throws ClosedException if this DurableQueue is closed and all the received messages are taken
+	 */
+	public byte[] receive() throws ClosedException {
+		byte[] message;
+		long acknowledged = -1;
+		synchronized (inbox) {
+			while (inbox.isEmpty()) {
+				synchronized (this) {
+					if (closed)
+						throw new ClosedException("DurableQueue : closed");
+				}
+				try {
+					inbox.wait();
+				} catch (InterruptedException e) {
+					// Nothing to do here
+				}
+			}
+			message = inbox.poll();
+			inbox.notifyAll();
+			if (inbox.isEmpty() && unacknowledged > 0) {
+				unacknowledged = 0;
+				acknowledged = received;
+			}
+		}
+		if (acknowledged >= 0)
+			acknowledge(acknowledged);
+		return message;
+	}
+
+	/**
+	 * @return The number of sent messages not acknowledged by the peer yet
+	 */
+	public long pendingMessages() {
+		return log.lastSequence() - log.acknowledgedSequence();
+	}
+
+	/**
+	 * @return True if a queue is attached
+	 */
+	public synchronized boolean attached() {
+		return attached != null;
+	}
+
+	/**
+	 * Closes this DurableQueue and the attached queue. The log is not closed,
+	 * its messages not acknowledged yet can be sent by a new DurableQueue.
+	 */
+	public void close() {
+		MessageQueue queue;
+		synchronized (this) {
+			closed = true;
+			queue = attached;
+			attached = null;
+			notifyAll();
+		}
+		if (queue != null)
+			queue.close();
+		synchronized (inbox) {
+			inbox.notifyAll();
+		}
+	}
+
+	/*
+	 * Until the queue is detached :
+	 * - wait for a message appended after the ones already sent
+	 * - commit all the messages appended so far at once
+	 * - send them from the log
+	 * Detach the queue if it is closed
+	 */
+	/**
+	 * Sends the messages of the log, run by the writer task of an attached queue.
+	 * @param queue : the attached queue
+	 * @param cursor : the cursor on the first message to send
+	 */
+	private void write(MessageQueue queue, MappedLog.Cursor cursor) {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (attached == queue && log.lastSequence() < cursor.sequence()) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Nothing to do here
+						}
+					}
+					if (attached != queue)
+						return;
+				}
+				long last = log.lastSequence();
+				log.commit(last);
+				byte[] message;
+				while (cursor.sequence() <= last && (message = cursor.next()) != null)
+					queue.send(message, 0, message.length);
+			}
+		} catch (ClosedException | IOException e) {
+			detach(queue);
+		}
+	}
+
+	/*
+	 * Until the queue is closed, receive a message :
+	 * - DATA : discard it if already received, else wait for room in the inbox and add its payload,
+	 *   acknowledging the received messages every ACK_INTERVAL messages
+	 * - ACK : acknowledge the messages in the log
+	 * - else close the queue, the peer does not follow the protocol
+	 * Detach the queue once closed
+	 */
+	/**
+	 * Receives the messages of the peer, run by the reader task of an attached queue.
+	 * @param queue : the attached queue
+	 */
+	private void read(MessageQueue queue) {
+		try {
+			while (true) {
+				byte[] message = queue.receive();
+				if (message.length < HEADER_SIZE) {
+					queue.close();
+					continue;
+				}
+				long sequence = sequence(message);
+				switch (message[0]) {
+				case DATA:
+					long acknowledged = -1;
+					synchronized (inbox) {
+						if (sequence <= received)
+							break;
+						while (inbox.size() >= INBOX_CAPACITY && !queue.closed()) {
+							try {
+								inbox.wait();
+							} catch (InterruptedException e) {
+								// Nothing to do here
+							}
+						}
+						byte[] payload = new byte[message.length - HEADER_SIZE];
+						System.arraycopy(message, HEADER_SIZE, payload, 0, payload.length);
+						inbox.add(payload);
+						inbox.notifyAll();
+						received = sequence;
+						if (++unacknowledged >= ACK_INTERVAL) {
+							unacknowledged = 0;
+							acknowledged = received;
+						}
+					}
+					if (acknowledged >= 0)
+						acknowledge(acknowledged);
+					break;
+				case ACK:
+					log.acknowledge(sequence);
+					break;
+				default:
+					queue.close();
+				}
+			}
+		} catch (ClosedException e) {
+			detach(queue);
+		}
+	}
+
+	/**
+	 * Sends an acknowledgment on the attached queue, if any.
+	 * @param sequence : the sequence number of the last received message
+	 */
+	private void acknowledge(long sequence) {
+		MessageQueue queue;
+		synchronized (this) {
+			queue = attached;
+		}
+		if (queue == null)
+			return;
+		byte[] ack = encode(ACK, sequence);
+		try {
+			queue.send(ack, 0, ack.length);
+		} catch (ClosedException e) {
+			detach(queue);
+		}
+	}
+
+	/*
+	 * Reset the attached field if it is the given queue, waking up its writer
+	 * Close the queue and wake up the reader waiting for room in the inbox
+	 */
+	private void detach(MessageQueue queue) {
+		synchronized (this) {
+			if (attached == queue) {
+				attached = null;
+				notifyAll();
+			}
+		}
+		queue.close();
+		synchronized (inbox) {
+			inbox.notifyAll();
+		}
+	}
+
+	private static byte[] encode(byte kind, long sequence) {
+		byte[] message = new byte[HEADER_SIZE];
+		encodeHeader(kind, sequence, message);
+		return message;
+	}
+
+	private static void encodeHeader(byte kind, long sequence, byte[] message) {
+		message[0] = kind;
+		for (int i = 0; i < Long.BYTES; i++)
+			message[1 + i] = (byte) (sequence >>> (56 - 8 * i));
+	}
+
+	private static long sequence(byte[] message) {
+		long sequence = 0;
+		for (int i = 0; i < Long.BYTES; i++)
+			sequence = sequence << 8 | (message[1 + i] & 0xFF);
+		return sequence;
+	}
+}
@@ -0,0 +1,317 @@
+package info5.sar.queues.pubsub;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.PubSubCodec;
+import info5.sar.utils.TopicFilter;
+
+/**
+ * Topic-based publish/subscribe broker over {@link MessageQueue MessageQueues}.<br>
+ * <br>
+ * Clients subscribe to topics with filters, possibly with wildcards (see {@link TopicFilter}),
+ * and publish messages on topics. A published message is encoded once, and the same immutable
+ * array is queued for all the matching subscribers.<br>
+ * <br>
+ * Each subscriber has a reader task handling its requests and a writer task sending its
+ * backlog of messages, so a slow subscriber does not slow down the others. When the backlog
+ * of a subscriber is full, the {@link OverflowPolicy} of the broker either drops the new
+ * message for this subscriber or disconnects it.
+ */
+public class PubSubBroker {
+
+	/**
+	 * What to do with a message for a subscriber whose backlog is full.
+	 */
+	public enum OverflowPolicy {
+		// the message is not delivered to this subscriber
+		DROP,
+		// the subscriber is disconnected
+		DISCONNECT
+	}
+
+	/**
+	 * Default maximum number of messages queued for a subscriber.
+	 */
+	public static final int DEFAULT_BACKLOG = 1024;
+
+	// the broker accepting the connections
+	private QueueBroker broker;
+	// the maximum number of messages queued for a subscriber
+	private int backlog;
+	// what to do when the backlog of a subscriber is full
+	private OverflowPolicy policy;
+	// the connected clients
+	private Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	// the number of messages dropped because of full backlogs
+	private AtomicLong dropped = new AtomicLong();
+	// set once the broker is closed
+	private volatile boolean closed = false;
+
+	/*
+	 * Set the broker, backlog and policy fields with the given ones
+	 */
+	/**
+	 * @param broker : the broker accepting the connections
+	 * @param backlog : the maximum number of messages queued for a subscriber
+	 * @param policy : what to do when the backlog of a subscriber is full
+	 */
+	public PubSubBroker(QueueBroker broker, int backlog, OverflowPolicy policy) {
+		if (backlog < 1)
+			throw new IllegalArgumentException("PubSubBroker : Illegal backlog");
+		this.broker = broker;
+		this.backlog = backlog;
+		this.policy = policy;
+	}
+
+	/*
+	 * Start a new Task which, until the broker is closed, accepts a queue on the given port and serves it
+	 */
+	/**
+	 * Accepts and serves clients on the given port, until the broker is closed.
+	 * This is a non-blocking method.
+	 * @param port : the port to accept on
+	 */
+	public void bind(int port) {
+		Task acceptor = new Task("PubSubBroker[" + broker.getName() + ":" + port + "]", broker.getBroker());
+		acceptor.setDaemon(true);
+		acceptor.start(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					MessageQueue queue = broker.accept(port);
+					if (closed)
+						queue.close();
+					else
+						serve(queue);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Create a new Subscriber for the queue and add it to the subscribers field
+	 * Start its reader and writer tasks
+	 */
+	/**
+	 * Serves the given client, until it is disconnected.
+	 * The broker owns the queue, nothing else should use it.
+	 * This is a non-blocking method.
+	 * @param queue : the queue to the client, fully connected
+	 */
+	public void serve(MessageQueue queue) {
+		Subscriber subscriber = new Subscriber(queue);
+		subscribers.add(subscriber);
+		if (closed) {
+			subscriber.close();
+			return;
+		}
+		String name = "PubSubBroker[" + broker.getName() + "]-[" + queue + "]";
+		Task reader = new Task(name + "-reader", broker.getBroker());
+		reader.setDaemon(true);
+		reader.start(subscriber::read);
+		Task writer = new Task(name + "-writer", broker.getBroker());
+		writer.setDaemon(true);
+		writer.start(subscriber::write);
+	}
+
+	/**
+	 * Publishes a message from the broker itself.
+	 * This is a thread-safe non-blocking method.
+	 * @param topic : the topic of the message
+	 * @param payload : the payload of the message
+	 * @return The number of subscribers the message is queued for
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public int publish(String topic, byte[] payload) {
+		TopicFilter.topicLevels(topic);
+		return fanOut(PubSubCodec.encode(PubSubCodec.MESSAGE, topic, payload));
+	}
+
+	/**
+	 * @return The number of connected clients
+	 */
+	public int subscribers() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return The number of messages dropped because of full backlogs
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Closes the broker: stops accepting clients and disconnects the connected ones.
+	 */
+	public void close() {
+		closed = true;
+		for (Subscriber subscriber : subscribers)
+			subscriber.close();
+	}
+
+	/*
+	 * Split the topic of the message once
+	 * Offer the same message to each subscriber with a matching filter
+	 */
+	/**
+	 * Queues a message for all the matching subscribers.
+	 * @param message : the encoded message, of kind {@link PubSubCodec#MESSAGE}, not changed afterwards
+	 * @return The number of subscribers the message is queued for
+	 */
+	private int fanOut(byte[] message) {
+		String[] levels = TopicFilter.topicLevels(PubSubCodec.topic(message));
+		int queued = 0;
+		for (Subscriber subscriber : subscribers)
+			if (subscriber.matches(levels) && subscriber.offer(message))
+				queued++;
+		return queued;
+	}
+
+	/**
+	 * A connected client, with its subscriptions and its backlog of messages.
+	 */
+	private class Subscriber {
+		MessageQueue queue;
+		// the filters of the subscriptions
+		List<TopicFilter> filters = new CopyOnWriteArrayList<>();
+		// the messages waiting to be sent, guarded by this Subscriber
+		ArrayDeque<byte[]> pending = new ArrayDeque<>();
+		// set once the client is disconnected, guarded by this Subscriber
+		boolean disconnected = false;
+
+		Subscriber(MessageQueue queue) {
+			this.queue = queue;
+		}
+
+		/**
+		 * @param levels : the levels of a topic
+		 * @return True if a subscription matches the topic
+		 */
+		boolean matches(String[] levels) {
+			for (TopicFilter filter : filters)
+				if (filter.matches(levels))
+					return true;
+			return false;
+		}
+
+		/*
+		 * Return false if disconnected
+		 * If the backlog is full, count the message as dropped and return false,
+		 * disconnecting the subscriber first with the DISCONNECT policy
+		 * Else add the message to the backlog, wake up the writer and return true
+		 */
+		/**
+		 * @param message : the encoded message, shared with the other subscribers
+		 * @return True if the message is queued for this subscriber
+		 */
+		boolean offer(byte[] message) {
+			synchronized (this) {
+				if (disconnected)
+					return false;
+				if (pending.size() < backlog) {
+					pending.add(message);
+					notify();
+					return true;
+				}
+			}
+			dropped.incrementAndGet();
+			if (policy == OverflowPolicy.DISCONNECT)
+				close();
+			return false;
+		}
+
+		/*
+		 * Until the client is disconnected :
+		 * - receive a request
+		 * - subscribe or unsubscribe with its filter, or fan out a published message
+		 * - close the client if the request is not valid
+		 */
+		/**
+		 * Handles the requests of the client, run by the reader task.
+		 */
+		void read() {
+			try {
+				while (true) {
+					byte[] request = queue.receive();
+					try {
+						switch (PubSubCodec.kind(request)) {
+						case PubSubCodec.SUBSCRIBE:
+							TopicFilter filter = new TopicFilter(PubSubCodec.topic(request));
+							if (!filters.contains(filter))
+								filters.add(filter);
+							break;
+						case PubSubCodec.UNSUBSCRIBE:
+							filters.remove(new TopicFilter(PubSubCodec.topic(request)));
+							break;
+						case PubSubCodec.PUBLISH:
+							fanOut(PubSubCodec.toMessage(request));
+							break;
+						default:
+							throw new IllegalArgumentException("PubSubBroker : unexpected request");
+						}
+					} catch (IllegalArgumentException e) {
+						// the client does not follow the protocol
+						close();
+					}
+				}
+			} catch (ClosedException e) {
+				close();
+			}
+		}
+
+		/*
+		 * Until the client is disconnected :
+		 * - wait for a message in the backlog
+		 * - send it, outside of the monitor so publishers are not blocked
+		 */
+		/**
+		 * Sends the backlog of the client, run by the writer task.
+		 */
+		void write() {
+			try {
+				while (true) {
+					byte[] message;
+					synchronized (this) {
+						while (pending.isEmpty() && !disconnected) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								// Nothing to do here
+							}
+						}
+						if (disconnected)
+							return;
+						message = pending.poll();
+					}
+					queue.send(message, 0, message.length);
+				}
+			} catch (ClosedException e) {
+				close();
+			}
+		}
+
+		/*
+		 * Set the disconnected flag, clear the backlog and wake up the writer
+		 * Close the queue and remove this Subscriber from the subscribers field
+		 */
+		void close() {
+			synchronized (this) {
+				disconnected = true;
+				pending.clear();
+				notify();
+			}
+			queue.close();
+			subscribers.remove(this);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package info5.sar.queues.pubsub;
+
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.utils.PubSubCodec;
+import info5.sar.utils.TopicFilter;
+
+/**
+ * Client of a {@link PubSubBroker} over a {@link MessageQueue}.<br>
+ * <br>
+ * The requests are sent in order on the queue, so a subscription is active on the broker
+ * before the messages this client publishes after it. Messages published by other clients
+ * are only received once the broker handled the subscription.
+ */
+public class PubSubClient {
+
+	/**
+	 * A message received on a topic.
+	 */
+	public static class Message {
+		private String topic;
+		private byte[] payload;
+
+		Message(String topic, byte[] payload) {
+			this.topic = topic;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return The topic the message was published on
+		 */
+		public String topic() {
+			return topic;
+		}
+
+		/**
+		 * @return The payload of the message
+		 */
+		public byte[] payload() {
+			return payload;
+		}
+	}
+
+	// the queue to the broker
+	private MessageQueue queue;
+
+	/**
+	 * @param queue : the queue to the broker, fully connected
+	 */
+	public PubSubClient(MessageQueue queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * Subscribes to the topics matching the given filter.
+	 * This is a thread-safe blocking method.
+	 * @param filter : the filter, possibly with wildcards (see {@link TopicFilter})
+	 * @throws IllegalArgumentException if the filter is not valid
+	 * @throws ClosedException if the queue is closed
+	 */
+	public void subscribe(String filter) throws ClosedException {
+		new TopicFilter(filter);
+		send(PubSubCodec.encode(PubSubCodec.SUBSCRIBE, filter, new byte[0]));
+	}
+
+	/**
+	 * Cancels the subscription with the given filter.
+	 * This is a thread-safe blocking method.
+	 * @param filter : the filter of the subscription
+	 * @throws IllegalArgumentException if the filter is not valid
+	 * @throws ClosedException if the queue is closed
+	 */
+	public void unsubscribe(String filter) throws ClosedException {
+		new TopicFilter(filter);
+		send(PubSubCodec.encode(PubSubCodec.UNSUBSCRIBE, filter, new byte[0]));
+	}
+
+	/**
+	 * Publishes a message on the given topic.
+	 * This is a thread-safe blocking method.
+	 * @param topic : the topic, without wildcards
+	 * @param payload : the payload of the message
+	 * @throws IllegalArgumentException if the topic is not valid
+	 * @throws ClosedException if the queue is closed
+	 */
+	public void publish(String topic, byte[] payload) throws ClosedException {
+		TopicFilter.topicLevels(topic);
+		send(PubSubCodec.encode(PubSubCodec.PUBLISH, topic, payload));
+	}
+
+	/*
+	 * Receive a message, closing the queue if it is not a valid delivered message
+	 */
+	/**
+	 * Receives the next message of the subscriptions.
+	 * This is a blocking method.
+	 * @return The received message
+	 * @throws ClosedException if the queue is closed
+	 */
+	public Message receive() throws ClosedException {
+		byte[] message = queue.receive();
+		try {
+			if (PubSubCodec.kind(message) != PubSubCodec.MESSAGE)
+				throw new IllegalArgumentException("PubSubClient : unexpected message");
+			return new Message(PubSubCodec.topic(message), PubSubCodec.payload(message));
+		} catch (IllegalArgumentException e) {
+			// the broker does not follow the protocol
+			queue.close();
+			throw new ClosedException(e);
+		}
+	}
+
+	/**
+	 * Disconnects from the broker.
+	 */
+	public void close() {
+		queue.close();
+	}
+
+	private void send(byte[] message) throws ClosedException {
+		queue.send(message, 0, message.length);
+	}
+}
@@ -0,0 +1,165 @@
+package info5.sar.queues.rpc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.utils.RpcCodec;
+import info5.sar.utils.RpcException;
+
+/**
+ * Client side of remote procedure calls over a {@link MessageQueue}.<br>
+ * <br>
+ * Each call is sent as a request tagged with a new correlation id, without waiting
+ * for the responses of the previous calls, so many calls may be in flight on the
+ * same queue. A reader task receives the responses, in any order, and completes
+ * the future of the call with the same correlation id.<br>
+ * <br>
+ * The client owns the receiving side of the queue, nothing else should receive on it.
+ */
+/*
+ * The pending map holds the futures of the calls waiting for their response,
+ * by correlation id. The closed flag is set before the pending calls are failed,
+ * so a call either sees it or is failed by the reader.
+ */
+public class RpcClient {
+
+	// the queue to the server
+	private MessageQueue queue;
+	// the next correlation id
+	private AtomicInteger ids = new AtomicInteger();
+	// the calls waiting for their response, by correlation id
+	private Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+	// set once the queue is closed
+	private volatile ClosedException closed;
+
+	/*
+	 * Set the queue field with the given queue
+	 * Start a new Task receiving the responses with readResponses()
+	 */
+	/**
+	 * @param queue : the queue to the server, fully connected
+	 */
+	public RpcClient(MessageQueue queue) {
+		this.queue = queue;
+		Task reader = new Task("RpcClient[" + queue.broker().getName() + "]", queue.broker().getBroker());
+		reader.setDaemon(true);
+		reader.start(this::readResponses);
+	}
+
+	/*
+	 * Create a future and put it in the pending map with a new correlation id
+	 * If the closed field is set, remove it and fail it
+	 * Else send the encoded request, failing the future and removing it if the queue is closed
+	 * Return the future
+	 */
+	/**
+	 * Calls the server without waiting for the response.<br>
+	 * This is a thread-safe method, blocking while the request is sent.
+	 * @param request : the request
+	 * @return A future completed with the response, or completed exceptionally with
+	 *         a {@link RpcException} if the call failed on the server side, or with a
+	 *         {@link ClosedException} if the queue is closed before the response is received
+	 */
+	public CompletableFuture<byte[]> call(byte[] request) {
+		int id = ids.incrementAndGet();
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		pending.put(id, future);
+		if (closed != null) {
+			pending.remove(id);
+			future.completeExceptionally(closed);
+			return future;
+		}
+		byte[] message = RpcCodec.encode(RpcCodec.REQUEST, id, request);
+		try {
+			queue.send(message, 0, message.length);
+		} catch (ClosedException e) {
+			pending.remove(id);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Calls the server and waits for the response.<br>
+	 * This is a thread-safe blocking method.
+	 * @param request : the request
+	 * @return The response
+	 * @throws ClosedException if the queue is closed before the response is received
+	 * @throws RpcException if the call failed on the server side
+	 */
+	public byte[] invoke(byte[] request) throws ClosedException, RpcException {
+		CompletableFuture<byte[]> future = call(request);
+		while (true) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				// Nothing to do here
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RpcException)
+					throw (RpcException) e.getCause();
+				if (e.getCause() instanceof ClosedException)
+					throw (ClosedException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return The number of calls waiting for their response
+	 */
+	public int pendingCalls() {
+		return pending.size();
+	}
+
+	/**
+	 * Closes the queue, failing the calls waiting for their response.
+	 */
+	public void close() {
+		queue.close();
+	}
+
+	/*
+	 * Until the queue is closed :
+	 * - receive a message and remove the future with its correlation id from the pending map
+	 * - ignore it if there is none
+	 * - complete the future with the payload of the response, or fail it with a RpcException for an error
+	 * Once closed, set the closed field and fail all the pending futures
+	 */
+	/**
+	 * Receives the responses, run by the reader task.
+	 */
+	private void readResponses() {
+		try {
+			while (true) {
+				byte[] message = queue.receive();
+				CompletableFuture<byte[]> future;
+				try {
+					future = pending.remove(RpcCodec.id(message));
+				} catch (IllegalArgumentException e) {
+					// not a response, the server does not follow the protocol
+					queue.close();
+					continue;
+				}
+				if (future == null)
+					continue;
+				if (RpcCodec.kind(message) == RpcCodec.ERROR)
+					future.completeExceptionally(new RpcException(RpcCodec.error(message)));
+				else
+					future.complete(RpcCodec.payload(message));
+			}
+		} catch (ClosedException e) {
+			closed = e;
+			for (Integer id : pending.keySet()) {
+				CompletableFuture<byte[]> future = pending.remove(id);
+				if (future != null)
+					future.completeExceptionally(e);
+			}
+		}
+	}
+}
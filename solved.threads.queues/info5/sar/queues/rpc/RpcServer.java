@@ -0,0 +1,215 @@
+package info5.sar.queues.rpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import info5.sar.channels.Task;
+import info5.sar.queues.ClosedException;
+import info5.sar.queues.MessageQueue;
+import info5.sar.queues.QueueBroker;
+import info5.sar.utils.RpcCodec;
+
+/**
+ * Server side of remote procedure calls over {@link MessageQueue MessageQueues}.<br>
+ * <br>
+ * Each served queue has a reader task receiving the requests and dispatching them
+ * to a pool of workers shared by all the queues. A worker runs the handler and sends
+ * the response tagged with the correlation id of the request, so the responses of
+ * a queue are sent in the order the calls complete, not the order they were received.
+ */
+public class RpcServer {
+
+	/**
+	 * Maximum number of requests of a queue waiting for or being handled by the workers,
+	 * the reader of the queue waiting beyond.
+	 */
+	public static final int MAX_PENDING_REQUESTS = 256;
+
+	/**
+	 * Handler of the requests, called by the workers of the server.
+	 * It may be called by several workers at the same time.
+	 */
+	public interface Handler {
+		/**
+		 * @param request : the received request
+		 * @return The response
+		 * @throws Exception if the call fails, its message being sent to the client
+		 */
+		byte[] handle(byte[] request) throws Exception;
+	}
+
+	// the broker accepting the connections
+	private QueueBroker broker;
+	// the handler of the requests
+	private Handler handler;
+	// the pool of workers running the handler
+	private ExecutorService workers;
+	// the served queues
+	private Set<MessageQueue> queues = ConcurrentHashMap.newKeySet();
+	// the ports accepted on
+	private Set<Integer> ports = ConcurrentHashMap.newKeySet();
+	// set once the server is closed
+	private volatile boolean closed = false;
+
+	/*
+	 * Set the broker and handler fields with the given ones
+	 * Set the workers field with a new fixed thread pool of the given size
+	 */
+	/**
+	 * @param broker : the broker accepting the connections
+	 * @param handler : the handler of the requests
+	 * @param nworkers : the number of workers running the handler
+	 */
+	public RpcServer(QueueBroker broker, Handler handler, int nworkers) {
+		if (nworkers < 1)
+			throw new IllegalArgumentException("RpcServer : Illegal number of workers");
+		this.broker = broker;
+		this.handler = handler;
+		this.workers = Executors.newFixedThreadPool(nworkers);
+	}
+
+	/*
+	 * Add the port to the ports field
+	 * Start a new Task which, until the server is closed, accepts a queue on the given port and serves it
+	 */
+	/**
+	 * Accepts and serves connections on the given port, until the server is closed.
+	 * This is a non-blocking method.
+	 * @param port : the port to accept on
+	 */
+	public void bind(int port) {
+		ports.add(port);
+		Task acceptor = new Task("RpcServer[" + broker.getName() + ":" + port + "]", broker.getBroker());
+		acceptor.setDaemon(true);
+		acceptor.start(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					MessageQueue queue = broker.accept(port);
+					if (closed)
+						queue.close();
+					else
+						serve(queue);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Add the queue to the queues field
+	 * Start a new Task which, until the queue is closed :
+	 * - receives a request
+	 * - closes the queue if it is not a request
+	 * - else acquires a permit of the queue, out of MAX_PENDING_REQUESTS,
+	 *   and submits a Runnable to the workers calling reply() then releasing the permit
+	 * Once closed, remove the queue from the queues field
+	 */
+	/**
+	 * Serves the requests received on the given queue, until it is closed.
+	 * The server owns the receiving side of the queue, nothing else should receive on it.
+	 * This is a non-blocking method.
+	 * @param queue : the queue to serve, fully connected
+	 */
+	public void serve(MessageQueue queue) {
+		queues.add(queue);
+		if (closed) {
+			queue.close();
+			queues.remove(queue);
+			return;
+		}
+		Semaphore pending = new Semaphore(MAX_PENDING_REQUESTS);
+		Task reader = new Task("RpcServer[" + broker.getName() + "]-[" + queue + "]", broker.getBroker());
+		reader.setDaemon(true);
+		reader.start(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						byte[] message = queue.receive();
+						if (message.length < RpcCodec.HEADER_SIZE || RpcCodec.kind(message) != RpcCodec.REQUEST) {
+							// the client does not follow the protocol
+							queue.close();
+							continue;
+						}
+						pending.acquireUninterruptibly();
+						try {
+							workers.execute(() -> {
+								try {
+									reply(queue, message);
+								} finally {
+									pending.release();
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// the server is closed
+							pending.release();
+							queue.close();
+						}
+					}
+				} catch (ClosedException e) {
+					queues.remove(queue);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Set the closed field to true
+	 * Shut the workers down and close the served queues
+	 * For each port accepted on, start a new Task connecting to it, so its acceptor
+	 * returns from accept(), sees the server is closed and ends, and close the connected queue
+	 */
+	/**
+	 * Closes the server: stops accepting connections, closes the served queues
+	 * and stops the workers once the running calls are done.
+	 */
+	public void close() {
+		closed = true;
+		workers.shutdown();
+		for (MessageQueue queue : queues)
+			queue.close();
+		for (int port : ports) {
+			Task waker = new Task("RpcServer[" + broker.getName() + ":" + port + "]-close", broker.getBroker());
+			waker.setDaemon(true);
+			waker.start(new Runnable() {
+				@Override
+				public void run() {
+					MessageQueue queue = broker.connect(broker.getName(), port);
+					if (queue != null)
+						queue.close();
+				}
+			});
+		}
+		ports.clear();
+	}
+
+	/*
+	 * Call the handler with the payload of the request
+	 * Send the response tagged with the correlation id of the request,
+	 * or an error with the message of the exception thrown by the handler
+	 * Ignore a closed queue, the client is gone
+	 */
+	/**
+	 * Handles a request and sends its response, run by a worker.
+	 * @param queue : the queue the request was received on
+	 * @param message : the encoded request
+	 */
+	private void reply(MessageQueue queue, byte[] message) {
+		int id = RpcCodec.id(message);
+		byte[] response;
+		try {
+			response = RpcCodec.encode(RpcCodec.RESPONSE, id, handler.handle(RpcCodec.payload(message)));
+		} catch (Exception e) {
+			response = RpcCodec.encodeError(id, e);
+		}
+		try {
+			queue.send(response, 0, response.length);
+		} catch (ClosedException e) {
+			// Nothing to do here, the client is gone
+		}
+	}
+}